@@ -0,0 +1,162 @@
+package org.ireland.jnetty;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundMessageHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import javax.servlet.MultipartConfigElement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ireland.jnetty.webapp.WebApp;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+import static io.netty.handler.codec.http.HttpVersion.*;
+
+/**
+ * 在读取请求体之前处理"Expect: 100-continue",放在HttpServerCodec之后
+ *
+ * HttpHandler收到的是聚合后的FullHttpRequest,此时再回应100 Continue已没有意义,而一个将被拒绝的请求体也已被完整地接收.
+ * ExpectContinueHandler在收到请求头时即作出决定:
+ *
+ * HTTP/1.0的请求原样传给下一个Handler(HTTP/1.0的客户端不会等待100 Continue,未知的Expect按RFC 2616 14.20可以忽略).
+ * 对HTTP/1.1的请求:
+ *
+ * 1:Expect不是100-continue: 回应417 Expectation Failed
+ *
+ * 2:Content-Length超出处理该请求的Servlet的限制(流式解析的multipart/form-data为MultipartConfigElement#getMaxRequestSize(),
+ * 其它请求为HttpObjectAggregator的maxContentLength): 回应413 Request Entity Too Large
+ *
+ * 被拒绝的请求回应后关闭连接(客户端可能不等待回应就发送请求体),之后收到的数据全部丢弃.
+ *
+ * 3:否则立即回应100 Continue,并去掉Expect头(之后的Handler不再重复回应).
+ *
+ * 每个Channel一个实例(有状态).
+ *
+ * @author KEN
+ *
+ */
+public class ExpectContinueHandler extends ChannelInboundMessageHandlerAdapter<HttpObject>
+{
+	private static final Log log = LogFactory.getLog(ExpectContinueHandler.class.getName());
+
+	private final WebApp _webApp;
+
+	// 聚合的请求体的最大长度
+	private final long _maxContentLength;
+
+	// 已拒绝请求,丢弃之后的所有数据直到连接关闭
+	private boolean _discarding;
+
+	/**
+	 * @param webApp
+	 * @param maxContentLength
+	 *            HttpObjectAggregator的maxContentLength
+	 */
+	public ExpectContinueHandler(WebApp webApp, long maxContentLength)
+	{
+		_webApp = webApp;
+		_maxContentLength = maxContentLength;
+	}
+
+	/**
+	 * 只接收带Expect头的HTTP/1.1请求(被拒绝后接收所有的数据),其它消息原样传给下一个Handler
+	 */
+	@Override
+	public boolean acceptInboundMessage(Object msg) throws Exception
+	{
+		if (_discarding)
+			return true;
+
+		if (!(msg instanceof HttpRequest))
+			return false;
+
+		HttpRequest request = (HttpRequest) msg;
+
+		return !HTTP_1_0.equals(request.getProtocolVersion()) && HttpHeaders.getHeader(request, EXPECT) != null;
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, HttpObject msg) throws Exception
+	{
+		if (_discarding)
+			return;
+
+		HttpRequest request = (HttpRequest) msg;
+
+		HttpResponseStatus status = check(request);
+
+		if (status != null)
+		{
+			if (log.isDebugEnabled())
+				log.debug("reject " + request.getMethod() + " " + request.getUri() + " : " + status);
+
+			reject(ctx, status);
+			return;
+		}
+
+		ctx.nextOutboundMessageBuffer().add(new DefaultHttpResponse(HTTP_1_1, CONTINUE));
+		ctx.flush();
+
+		request.headers().remove(EXPECT);
+
+		ctx.nextInboundMessageBuffer().add(request);
+		ctx.fireInboundBufferUpdated();
+	}
+
+	/**
+	 * @return 拒绝请求的状态码,可以继续时返回null
+	 */
+	private HttpResponseStatus check(HttpRequest request)
+	{
+		if (!HttpHeaders.is100ContinueExpected(request))
+			return EXPECTATION_FAILED;
+
+		long contentLength = HttpHeaders.getContentLength(request, -1);
+
+		if (contentLength < 0)
+			return null;
+
+		long maxLength = getMaxContentLength(request);
+
+		if (maxLength >= 0 && contentLength > maxLength)
+			return REQUEST_ENTITY_TOO_LARGE;
+
+		return null;
+	}
+
+	/**
+	 * @return 该请求的请求体的最大长度,-1表示没有限制
+	 */
+	private long getMaxContentLength(HttpRequest request)
+	{
+		// 流式解析的multipart/form-data不受HttpObjectAggregator的限制
+		MultipartConfigElement config = MultipartStreamHandler.getStreamingConfig(_webApp, request);
+
+		if (config != null)
+			return config.getMaxRequestSize() > 0 ? config.getMaxRequestSize() : -1;
+
+		return _maxContentLength;
+	}
+
+	private void reject(ChannelHandlerContext ctx, HttpResponseStatus status)
+	{
+		_discarding = true;
+
+		FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status);
+
+		HttpHeaders.setContentLength(response, 0);
+		response.headers().set(CONNECTION, HttpHeaders.Values.CLOSE);
+
+		ctx.nextOutboundMessageBuffer().add(response);
+		ctx.flush().addListener(ChannelFutureListener.CLOSE);
+	}
+}
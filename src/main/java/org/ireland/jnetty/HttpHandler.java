@@ -27,7 +27,6 @@ import io.netty.handler.codec.DecoderResult;
 import io.netty.handler.codec.http.Cookie;
 import io.netty.handler.codec.http.CookieDecoder;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpMessage;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
@@ -35,7 +34,6 @@ import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
@@ -83,10 +81,7 @@ public class HttpHandler extends ChannelInboundMessageHandlerAdapter<FullHttpMes
 		{
 			FullHttpRequest request = (FullHttpRequest) message;
 
-			if (is100ContinueExpected(request))
-			{
-				send100Continue(ctx);
-			}
+			// Expect: 100-continue已由ExpectContinueHandler在读取请求体之前处理
 
 			//TODO: UnpooledHeapByteBuf 是基于内存复制 来扩展容量的,这里可以改为 (池化 + 增量 组合模式) 来优化
 			FullHttpResponse response = new DefaultFullHttpResponse(request.getProtocolVersion(), OK, PooledByteBufAllocator.DEFAULT.directBuffer(0));
@@ -105,10 +100,28 @@ public class HttpHandler extends ChannelInboundMessageHandlerAdapter<FullHttpMes
 		
 		response.setHttpServletRequest(request);
 
+		// 请求体已被MultipartStreamHandler流式解析
+		MultipartStreamHandler multipartHandler = ctx.pipeline().get(MultipartStreamHandler.class);
+
+		if (multipartHandler != null)
+			request.setMultipartFormData(multipartHandler.takeFormData(fullHttpRequest));
+
 		//
 		String rawUri = fullHttpRequest.getUri();
 
-		dispatch(rawUri, request, response);
+		try
+		{
+			dispatch(rawUri, request, response);
+		}
+		finally
+		{
+			if (!request.isAsyncStarted())
+			{
+				request.releaseMultipartFormData();
+
+				request.releaseSessions();
+			}
+		}
 	}
 
 	/**
@@ -129,12 +142,6 @@ public class HttpHandler extends ChannelInboundMessageHandlerAdapter<FullHttpMes
 	}
 
 
-	private static void send100Continue(ChannelHandlerContext ctx)
-	{
-		HttpResponse response = new DefaultHttpResponse(HTTP_1_1, CONTINUE);
-		ctx.nextOutboundMessageBuffer().add(response);
-	}
-
 	@Override
 	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
 	{
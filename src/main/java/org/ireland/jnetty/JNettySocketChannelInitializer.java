@@ -40,12 +40,20 @@ public class JNettySocketChannelInitializer extends ChannelInitializer<SocketCha
 	
 	private static final HttpHandler httpHandler;
 	
+	//聚合的请求体的最大长度
+	private static final int MAX_CONTENT_LENGTH = 1048576;
+	
 	//32条线程作为业务线程
 	private static final EventExecutorGroup businessThreadGroup;
 	
+	//流式解析multipart/form-data的线程(解析时会创建及写入临时文件,不能在IO线程中执行)
+	private static final EventExecutorGroup multipartThreadGroup;
+	
 	static
 	{
 		businessThreadGroup = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 8);
+		
+		multipartThreadGroup = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2);
 	}
 	
 	static 
@@ -73,8 +81,14 @@ public class JNettySocketChannelInitializer extends ChannelInitializer<SocketCha
 
         p.addLast("httpServerCodec", new HttpServerCodec());
         
+        //在读取请求体之前回应Expect: 100-continue(或以413/417拒绝请求)
+        p.addLast("expectContinue", new ExpectContinueHandler(webApp, MAX_CONTENT_LENGTH));
+        
+        //multipart/form-data请求体在到达时流式解析,不经过Aggregator;文件IO由独立的线程组来处理
+        p.addLast(multipartThreadGroup, "multipart", new MultipartStreamHandler(webApp));
+        
         //HttpChunks  Aggregator
-        p.addLast("aggregator", new HttpObjectAggregator(1048576));
+        p.addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
         
         //Share The HttpHandler
         //业务部分的处理比较耗时，故由独立的线程组来处理						TODO ? 测试：业务处理时间达多长才需要使用独立的业务线程呢？
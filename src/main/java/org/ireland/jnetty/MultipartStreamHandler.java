@@ -0,0 +1,254 @@
+package org.ireland.jnetty;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundMessageHandlerAdapter;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.servlet.MultipartConfigElement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ireland.jnetty.http.multipart.MultipartFormData;
+import org.ireland.jnetty.http.multipart.MultipartParser;
+import org.ireland.jnetty.util.http.ContentTypeUtil;
+import org.ireland.jnetty.webapp.WebApp;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+
+/**
+ * 流式解析multipart/form-data请求体,放在HttpServerCodec与HttpObjectAggregator之间
+ *
+ * 对于目标Servlet配置了MultipartConfigElement的multipart/form-data请求,请求体的每个HttpContent一到达就交给MultipartParser解析
+ * (part的内容按fileSizeThreshold保存在池化的内存中或临时文件中),而不是由HttpObjectAggregator聚合为一个FullHttpRequest(有1M的上限且占用与请求体同样大小的内存).
+ *
+ * 请求体解析完毕后,向HttpObjectAggregator传递一个没有请求体的请求,解析结果放入队列中,由HttpHandler按请求的顺序取出.
+ *
+ * 其它请求原样传给HttpObjectAggregator.
+ *
+ * 超出fileSizeThreshold的part会被写入临时文件,故本Handler须在独立的EventExecutorGroup中执行,不能阻塞IO线程.
+ * 写入临时文件慢于网络时,等待解析的HttpContent超过MAX_PENDING_CONTENTS个则暂停读取该连接(autoRead),降到RESUME_PENDING_CONTENTS个以下再恢复,
+ * 未解析的请求体不会在内存中无限堆积.
+ *
+ * 每个Channel一个实例(有状态).
+ *
+ * @author KEN
+ *
+ */
+public class MultipartStreamHandler extends ChannelInboundMessageHandlerAdapter<HttpObject>
+{
+	private static final Log log = LogFactory.getLog(MultipartStreamHandler.class.getName());
+
+	// 等待解析的HttpContent(每个最多为HttpServerCodec的maxChunkSize)超过此数量时暂停读取
+	static final int MAX_PENDING_CONTENTS = 64;
+
+	// 暂停读取后,等待解析的HttpContent降到此数量时恢复读取
+	static final int RESUME_PENDING_CONTENTS = 8;
+
+	private final WebApp _webApp;
+
+	// 已解析完毕,等待HttpHandler处理的请求体(HttpHandler在业务线程中取出)
+	private final Queue<MultipartFormData> _completed = new ConcurrentLinkedQueue<MultipartFormData>();
+
+	// 正在流式解析的请求
+	private HttpRequest _request;
+
+	private MultipartParser _parser;
+
+	// 已收到的请求体的长度(chunked请求没有Content-Length)
+	private long _contentLength;
+
+	// 是否由本Handler暂停了读取
+	private boolean _isReadSuspended;
+
+	public MultipartStreamHandler(WebApp webApp)
+	{
+		_webApp = webApp;
+	}
+
+	/**
+	 * 只接收需要流式解析的请求(及其请求体),其它消息原样传给下一个Handler
+	 */
+	@Override
+	public boolean acceptInboundMessage(Object msg) throws Exception
+	{
+		if (_parser != null)
+			return msg instanceof HttpContent;
+
+		return msg instanceof HttpRequest && !(msg instanceof FullHttpRequest) && getStreamingConfig(_webApp, (HttpRequest) msg) != null;
+	}
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, HttpObject msg) throws Exception
+	{
+		if (msg instanceof HttpRequest)
+		{
+			start((HttpRequest) msg);
+			return;
+		}
+
+		HttpContent content = (HttpContent) msg;
+
+		_contentLength += content.content().readableBytes();
+
+		try
+		{
+			_parser.offer(content.content());
+		}
+		catch (Exception e)
+		{
+			// 超出限制或格式错误:继续读完请求体(忽略),由getParts()报告错误
+			if (log.isDebugEnabled())
+				log.debug(e.toString(), e);
+		}
+
+		if (content instanceof LastHttpContent)
+			complete(ctx);
+		else
+			updateAutoRead(ctx);
+	}
+
+	/**
+	 * 按等待解析的HttpContent的数量暂停或恢复读取
+	 */
+	private void updateAutoRead(ChannelHandlerContext ctx)
+	{
+		int pending = ctx.inboundMessageBuffer().size();
+
+		if (!_isReadSuspended && pending > MAX_PENDING_CONTENTS)
+		{
+			_isReadSuspended = true;
+			ctx.channel().config().setAutoRead(false);
+		}
+		else if (_isReadSuspended && pending <= RESUME_PENDING_CONTENTS)
+		{
+			resumeRead(ctx);
+		}
+	}
+
+	private void resumeRead(ChannelHandlerContext ctx)
+	{
+		if (!_isReadSuspended)
+			return;
+
+		_isReadSuspended = false;
+		ctx.channel().config().setAutoRead(true);
+	}
+
+	private void start(HttpRequest request)
+	{
+		MultipartConfigElement config = getStreamingConfig(_webApp, request);
+
+		String contentType = HttpHeaders.getHeader(request, CONTENT_TYPE);
+
+		String charset = ContentTypeUtil.getCharsetFromContentType(contentType);
+
+		Charset headerCharset = charset != null && Charset.isSupported(charset) ? Charset.forName(charset) : null;
+
+		// Expect: 100-continue已由之前的ExpectContinueHandler回应
+		_request = request;
+		_contentLength = 0;
+		_parser = new MultipartParser(MultipartParser.getBoundary(contentType), config, _webApp.getTempDir(), headerCharset);
+	}
+
+	/**
+	 * 请求体已解析完毕:把解析结果放入队列,并向下传递一个没有请求体的请求
+	 * 
+	 * 请求体的长度随解析结果传递(HttpObjectAggregator把聚合后的请求的Content-Length设置为0),由HttpServletRequestImpl恢复
+	 */
+	private void complete(ChannelHandlerContext ctx)
+	{
+		HttpRequest request = _request;
+
+		MultipartFormData formData = _parser.finish();
+		formData.setContentLength(_contentLength);
+
+		_completed.add(formData);
+
+		_request = null;
+		_parser = null;
+
+		request.headers().remove(TRANSFER_ENCODING);
+		HttpHeaders.setContentLength(request, 0);
+
+		ctx.nextInboundMessageBuffer().add(request);
+		ctx.nextInboundMessageBuffer().add(LastHttpContent.EMPTY_LAST_CONTENT);
+		ctx.fireInboundBufferUpdated();
+
+		resumeRead(ctx);
+	}
+
+	/**
+	 * 取出请求体已被流式解析的请求的解析结果(与请求的顺序一致)
+	 *
+	 * @param request
+	 *            HttpObjectAggregator聚合后的请求
+	 * @return 该请求没有被流式解析时返回null
+	 */
+	public MultipartFormData takeFormData(FullHttpRequest request)
+	{
+		if (getStreamingConfig(_webApp, request) == null)
+			return null;
+
+		return _completed.poll();
+	}
+
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception
+	{
+		// 连接中断时请求体未读完,释放已保存的part
+		if (_parser != null)
+		{
+			_parser.abort();
+			_parser.finish().release();
+
+			_parser = null;
+			_request = null;
+		}
+
+		MultipartFormData formData;
+
+		while ((formData = _completed.poll()) != null)
+		{
+			formData.release();
+		}
+
+		super.channelInactive(ctx);
+	}
+
+	/**
+	 * 是否流式解析该请求: POST/PUT 的 multipart/form-data 请求,且处理该请求的Servlet配置了MultipartConfigElement
+	 *
+	 * @return 不需要流式解析时返回null
+	 */
+	static MultipartConfigElement getStreamingConfig(WebApp webApp, HttpRequest request)
+	{
+		HttpMethod method = request.getMethod();
+
+		if (!HttpMethod.POST.equals(method) && !HttpMethod.PUT.equals(method))
+			return null;
+
+		if (MultipartParser.getBoundary(HttpHeaders.getHeader(request, CONTENT_TYPE)) == null)
+			return null;
+
+		try
+		{
+			return webApp.getRequestDispatcher(request.getUri()).getMultipartConfig();
+		}
+		catch (Exception e)
+		{
+			log.debug(e.toString(), e);
+
+			return null;
+		}
+	}
+}
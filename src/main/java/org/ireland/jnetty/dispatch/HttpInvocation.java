@@ -40,7 +40,9 @@ import org.ireland.jnetty.webapp.WebApp;
  * 
  * HttpInvocation 是面向特定_rawURI的,故QueryString部分难以重用
  * 
- * 对于rawContextURI相同(即包括参数也相同)时,并发的情况下是可重用的和共享的,像单例一般的重用, 但一般情况下,URL上的参数都不太相同,所以对HttpInvocation作缓存的意义不太
+ * 对于rawContextURI相同(即包括参数也相同)时,并发的情况下是可重用的和共享的,像单例一般的重用. 
+ * 
+ * URL上的参数一般都不相同,故被缓存的是不带参数的HttpInvocation,带参数的请求通过withQueryString(...)得到一个共享FilterChainInvocation的副本
  * 
  */
 public class HttpInvocation
@@ -234,6 +236,35 @@ public class HttpInvocation
 		_queryString = queryString;
 	}
 
+	/**
+	 * Returns a copy of this invocation that carries the given query string.
+	 * 
+	 * 副本与本HttpInvocation共享同一个FilterChainInvocation,只有rawContextURI及QueryString不同
+	 * 
+	 * @param rawContextURI
+	 *            未规范化的URI(不带参数)
+	 * @param queryString
+	 *            URI上的参数('?'之后的部分),可以为null
+	 */
+	public HttpInvocation withQueryString(String rawContextURI, String queryString)
+	{
+		HttpInvocation invocation = new HttpInvocation(_webApp, rawContextURI);
+
+		invocation._filterChainInvocation = _filterChainInvocation;
+
+		invocation._rawHost = _rawHost;
+		invocation._hostName = _hostName;
+		invocation._port = _port;
+		invocation._isSecure = _isSecure;
+
+		invocation._contextURI = _contextURI;
+		invocation._sessionIdFromUri = _sessionIdFromUri;
+
+		invocation._queryString = queryString;
+
+		return invocation;
+	}
+
 	/**
 	 * Returns the invocation's hash code.
 	 */
@@ -0,0 +1,91 @@
+package org.ireland.jnetty.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletException;
+
+/**
+ * 启动时并行执行一组初始化任务(Filter或同一load-on-startup值的Servlet),直到全部完成才返回
+ *
+ * 任务自己处理并报告预期的失败(如ServletException);其它未处理的异常在所有任务完成后才抛出(第一个),
+ * 不会在还有任务运行时就中止启动.
+ *
+ * @author KEN
+ *
+ */
+public final class ParallelInitializer
+{
+	private ParallelInitializer()
+	{
+	}
+
+	/**
+	 * @param tasks
+	 *            一组可以并行执行的任务
+	 * @param executor
+	 *            为null或只有一个任务时,在当前线程中依次执行
+	 */
+	public static void invokeAll(List<? extends Callable<?>> tasks, ExecutorService executor) throws ServletException
+	{
+		Throwable failure = null;
+
+		if (executor == null || tasks.size() <= 1)
+		{
+			for (Callable<?> task : tasks)
+			{
+				try
+				{
+					task.call();
+				}
+				catch (Throwable e)
+				{
+					if (failure == null)
+						failure = e;
+				}
+			}
+		}
+		else
+		{
+			List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+
+			for (Callable<?> task : tasks)
+				futures.add(executor.submit(task));
+
+			for (Future<?> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException e)
+				{
+					if (failure == null)
+						failure = e.getCause();
+				}
+				catch (InterruptedException e)
+				{
+					for (Future<?> f : futures)
+						f.cancel(true);
+
+					Thread.currentThread().interrupt();
+
+					throw new ServletException("interrupted while initializing", e);
+				}
+			}
+		}
+
+		if (failure instanceof ServletException)
+			throw (ServletException) failure;
+		else if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		else if (failure instanceof Error)
+			throw (Error) failure;
+		else if (failure != null)
+			throw new ServletException(failure);
+	}
+}
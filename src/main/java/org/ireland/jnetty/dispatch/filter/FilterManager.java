@@ -36,6 +36,9 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.Filter;
@@ -45,6 +48,7 @@ import javax.servlet.ServletException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.ireland.jnetty.dispatch.ParallelInitializer;
 import org.ireland.jnetty.webapp.WebApp;
 import org.springframework.util.Assert;
 
@@ -111,16 +115,59 @@ public class FilterManager
 	@PostConstruct
 	public void init()
 	{
-		for (String name : _filters.keySet())
+		try
 		{
-			try
-			{
-				createFilter(name);
-			} catch (Exception e)
+			init(null);
+		}
+		catch (ServletException e)
+		{
+			// 只在等待时被中断才会发生
+			log.warn(e.toString(), e);
+		}
+	}
+
+	/**
+	 * Initialize filters that need starting at server start.
+	 * 
+	 * Filter之间没有顺序要求,全部在executor中并行初始化,直到全部完成才返回
+	 * 
+	 * @param executor
+	 *            为null时在当前线程中依次初始化
+	 */
+	public void init(ExecutorService executor) throws ServletException
+	{
+		long start = System.currentTimeMillis();
+
+		final AtomicInteger failed = new AtomicInteger();
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		for (final String name : new ArrayList<String>(_filters.keySet()))
+		{
+			tasks.add(new Callable<Void>()
 			{
-				log.warn(e.toString(), e);
-			}
+				@Override
+				public Void call()
+				{
+					try
+					{
+						createFilter(name);
+					} catch (Exception e)
+					{
+						failed.incrementAndGet();
+
+						log.warn("Filter[" + name + "] failed to init: " + e, e);
+					}
+
+					return null;
+				}
+			});
 		}
+
+		ParallelInitializer.invokeAll(tasks, executor);
+
+		if (!tasks.isEmpty())
+			log.info("inited " + tasks.size() + " filter(s) in " + (System.currentTimeMillis() - start) + " ms, " + failed.get() + " failed");
 	}
 
 	public void addFilterMapping(FilterMapping filterMapping)
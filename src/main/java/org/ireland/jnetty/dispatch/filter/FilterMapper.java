@@ -37,12 +37,14 @@ import javax.servlet.ServletException;
 
 import org.ireland.jnetty.config.ConfigException;
 import org.ireland.jnetty.dispatch.FilterChainInvocation;
-import org.ireland.jnetty.dispatch.filterchain.FilterFilterChain;
+import org.ireland.jnetty.dispatch.filterchain.FlatFilterChain;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -91,6 +93,12 @@ public class FilterMapper
     //持有<servlet-name>的<filter-mapping>对象, KEY: servlet-name,VALUE: List<FilterMapping>
     private Map<String,List<FilterMapping>> _filterMappingsWithServletName = new HashMap<String,List<FilterMapping>>();
 
+    // 由_filterMappingsWithUrl编译而成的<url-pattern>索引,映射关系改变时置为null,在下次查找时重新编译
+    private volatile FilterPatternIndex _patternIndex;
+
+    // FilterChain的等价类:匹配同一个Servlet(同一个ServletFilterChain)且<url-pattern>签名相同的URI共享同一个FilterChain
+    private final ConcurrentHashMap<ChainKey, ChainClass> _chainClasses = new ConcurrentHashMap<ChainKey, ChainClass>();
+
 	public FilterMapper(ServletContext servletContext,FilterManager filterManager,DispatcherType sameDispatcherType)
 	{
 		_servletContext = servletContext;
@@ -173,6 +181,10 @@ public class FilterMapper
 					list.add(filterMapping);
 				}
 			}
+
+			// 映射关系已改变,需要重新编译索引
+			_patternIndex = null;
+			_chainClasses.clear();
 			
 
 			log.debug("filter-mapping " + filterMapping + " -> " + filterName);
@@ -192,6 +204,10 @@ public class FilterMapper
 	 * 容器使用的用于构建应用到一个特定请求URI的过滤器链的顺序如下所示：
 	 * 1. 首先，    <url-pattern>按照在部署描述符中的出现顺序匹配过滤器映射。
      * 2. 接下来，<servlet-name>按照在部署描述符中的出现顺序匹配过滤器映射。
+     * 
+     * FilterChain只由 匹配的Servlet 及 URI的<url-pattern>签名(匹配的<filter-mapping>集合) 决定,
+     * 故先在索引中查找URI的签名,再从等价类表中取出已创建的FilterChain,只有新的等价类才需要创建FilterChain.
+     * 
 	 * @param fcInvocation
 	 * @param chain
 	 * @return
@@ -199,93 +215,143 @@ public class FilterMapper
 	 */
 	public FilterChain buildFilterChain(FilterChainInvocation fcInvocation, FilterChain chain) throws ServletException
 	{
-		//TODO: why first matche the ServletName and the Match the URI? why not match the FilterMapping'ServletName and  FilterMapping'urlPattern as the same time?
-		
-		//根据<servlet-name>去查找匹配的FilterMapping,并将其Filter实例 添加到FilterChain中
-		if(_filterMappingsWithServletName.size() > 0)
+		String servletName = fcInvocation.getServletName();
+
+		BitSet urlMatches = getPatternIndex().match(getMatchURI(fcInvocation));
+
+		// 无法找到匹配的Servlet时(如404),chain不是共享的ServletFilterChain,不能作为等价类
+		if (servletName == null)
 		{
-			synchronized(_filterMappingsWithServletName)
-			{
-				//<servlet-name>*</servlet-name>会匹配所有Servlet
-				List<FilterMapping> mappings = 	_filterMappingsWithServletName.get("*");
-				
-				if(mappings != null)
-				{
-					for (int i = mappings.size() - 1; i >= 0; i--)
-					{
-						FilterMapping filterMapping = mappings.get(i);
-		
-						chain = addFilter(fcInvocation, chain, filterMapping);
-					}
-				}
-				
-				
-				//查找 指定servletName匹配的FilterMapping,并将其Filter实例 添加到FilterChain中
-				String servletName = fcInvocation.getServletName();
-				
-				mappings = 	_filterMappingsWithServletName.get(servletName);
-				
-				if(mappings != null)
-				{
-					for (int i = mappings.size() - 1; i >= 0; i--)
-					{
-						FilterMapping filterMapping = mappings.get(i);
-		
-						chain = addFilter(fcInvocation, chain, filterMapping);
-					}
-				}
-			}
+			ChainClass chainClass = createChainClass(null, urlMatches, chain);
+
+			return applyChainClass(fcInvocation, chainClass);
 		}
 
-		//根据<url-pattern>去查找匹配的FilterMapping,并将其Filter实例 添加到FilterChain中
-		if(_filterMappingsWithUrl.size() > 0)
+		ChainKey key = new ChainKey(chain, servletName, urlMatches);
+
+		ChainClass chainClass = _chainClasses.get(key);
+
+		if (chainClass == null)
 		{
-			synchronized (_filterMappingsWithUrl)
-			{
-				for (int i = _filterMappingsWithUrl.size() - 1; i >= 0; i--)
-				{
-					FilterMapping filterMapping = _filterMappingsWithUrl.get(i);
-	
-					if (filterMapping.isMatch(fcInvocation))
-					{
-						chain = addFilter(fcInvocation, chain, filterMapping);
-					}
-				}
-			}
-		}
-			
+			chainClass = createChainClass(servletName, urlMatches, chain);
+
+			ChainClass old = _chainClasses.putIfAbsent(key, chainClass);
 
-		fcInvocation.setFilterChain(chain);
+			if (old != null)
+				chainClass = old;
+		}
 
-		return chain;
+		return applyChainClass(fcInvocation, chainClass);
 	}
-	
 
+	private FilterChain applyChainClass(FilterChainInvocation fcInvocation, ChainClass chainClass)
+	{
+		if (!chainClass._asyncSupported)
+			fcInvocation.clearAsyncSupported();
+
+		fcInvocation.setFilterChain(chainClass._chain);
 
+		return chainClass._chain;
+	}
 
 	/**
+	 * 为一个等价类创建FilterChain
 	 * 
-	 * @param invocation
+	 * Filter的执行顺序:<url-pattern>匹配的Filter,指定<servlet-name>匹配的Filter,<servlet-name>*</servlet-name>匹配的Filter(各自按web.xml中的顺序)
+	 * 
+	 * 所有的Filter按执行顺序放在一个FlatFilterChain中,没有匹配的Filter时直接返回末端的chain
+	 * 
+	 * @param servletName
+	 * @param urlMatches
+	 *            匹配的<url-pattern>的<filter-mapping>序号
 	 * @param chain
-	 * @param filterMapping
-	 * @return	增加了FilterChain节点的新的FilterChain
+	 * @return
 	 * @throws ServletException
 	 */
-	private FilterChain addFilter(FilterChainInvocation invocation,FilterChain chain, FilterMapping filterMapping) throws ServletException
+	private ChainClass createChainClass(String servletName, BitSet urlMatches, FilterChain chain) throws ServletException
 	{
-		FilterConfigImpl config = filterMapping.getFilterConfig();
-		
-		Filter filter = config.getInstance();
-
-		if (!config.isAsyncSupported())
-			invocation.clearAsyncSupported();
-		
-		return addFilter(chain, filter);
+		List<FilterMapping> matched = new ArrayList<FilterMapping>();
+
+		//根据<url-pattern>匹配的FilterMapping
+		for (int i = urlMatches.nextSetBit(0); i >= 0; i = urlMatches.nextSetBit(i + 1))
+		{
+			matched.add(_filterMappingsWithUrl.get(i));
+		}
+
+		//根据<servlet-name>去查找匹配的FilterMapping
+		if(_filterMappingsWithServletName.size() > 0)
+		{
+			//查找 指定servletName匹配的FilterMapping
+			List<FilterMapping> mappings = servletName != null ? _filterMappingsWithServletName.get(servletName) : null;
+			
+			if(mappings != null)
+				matched.addAll(mappings);
+
+			//<servlet-name>*</servlet-name>会匹配所有Servlet
+			mappings = 	_filterMappingsWithServletName.get("*");
+			
+			if(mappings != null)
+				matched.addAll(mappings);
+		}
+
+		if (matched.isEmpty())
+			return new ChainClass(chain, true);
+
+		boolean asyncSupported = true;
+
+		Filter[] filters = new Filter[matched.size()];
+
+		for (int i = 0; i < filters.length; i++)
+		{
+			FilterConfigImpl config = matched.get(i).getFilterConfig();
+
+			filters[i] = config.getInstance();
+
+			asyncSupported &= config.isAsyncSupported();
+		}
+
+		return new ChainClass(new FlatFilterChain(filters, chain), asyncSupported);
 	}
-	
-	private FilterChain addFilter(FilterChain chain, Filter filter)
+
+	/**
+	 * 取得<url-pattern>索引,未编译或映射关系已改变时重新编译
+	 */
+	private FilterPatternIndex getPatternIndex()
+	{
+		FilterPatternIndex index = _patternIndex;
+
+		if (index == null)
+		{
+			synchronized (this)
+			{
+				index = _patternIndex;
+
+				if (index == null)
+				{
+					index = new FilterPatternIndex(FilterPatternIndex.urlPatternsOf(_filterMappingsWithUrl));
+
+					_patternIndex = index;
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * 用于匹配<url-pattern>的URI(servletPath + pathInfo),无法找到匹配的Servlet时为contextURI
+	 */
+	private static String getMatchURI(FilterChainInvocation fcInvocation)
 	{
-		return new FilterFilterChain(chain, filter);
+		String servletPath = fcInvocation.getServletPath();
+		String pathInfo = fcInvocation.getPathInfo();
+
+		if (pathInfo == null)
+			return servletPath != null ? servletPath : fcInvocation.getContextURI();
+		else if (servletPath == null)
+			return pathInfo;
+		else
+			return servletPath + pathInfo;
 	}
 
 	@Override
@@ -293,4 +359,64 @@ public class FilterMapper
 	{
 		return "FilterMapper[" + _sameDispatcherType + "]";
 	}
+
+	/**
+	 * FilterChain等价类的键: ServletFilterChain + servletName + <url-pattern>签名
+	 */
+	private static final class ChainKey
+	{
+		private final FilterChain _servletChain;
+
+		private final String _servletName;
+
+		private final BitSet _urlMatches;
+
+		private final int _hashCode;
+
+		ChainKey(FilterChain servletChain, String servletName, BitSet urlMatches)
+		{
+			_servletChain = servletChain;
+			_servletName = servletName;
+			_urlMatches = urlMatches;
+
+			_hashCode = (System.identityHashCode(servletChain) * 31 + servletName.hashCode()) * 31 + urlMatches.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return true;
+
+			if (!(o instanceof ChainKey))
+				return false;
+
+			ChainKey key = (ChainKey) o;
+
+			return _servletChain == key._servletChain && _servletName.equals(key._servletName) && _urlMatches.equals(key._urlMatches);
+		}
+	}
+
+	/**
+	 * 一个等价类已创建的FilterChain
+	 */
+	private static final class ChainClass
+	{
+		final FilterChain _chain;
+
+		// 所有Filter都支持异步时才为true
+		final boolean _asyncSupported;
+
+		ChainClass(FilterChain chain, boolean asyncSupported)
+		{
+			_chain = chain;
+			_asyncSupported = asyncSupported;
+		}
+	}
 }
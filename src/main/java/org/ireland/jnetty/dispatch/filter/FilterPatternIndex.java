@@ -0,0 +1,223 @@
+package org.ireland.jnetty.dispatch.filter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 编译后的<filter-mapping>的<url-pattern>索引(不可变)
+ *
+ * 与Servlet不同,一个URI可以同时匹配多个Filter,故查找的结果是所有匹配的<filter-mapping>的序号集合(BitSet),
+ * 即URI的"url-pattern签名".签名相同(且匹配同一个Servlet)的URI,其FilterChain也一定相同.
+ *
+ * 1:精确匹配的pattern放在<pattern,序号>的HashMap中
+ *
+ * 2:前缀匹配的pattern(如 /user/*)按路径段编译为一棵树,"/*"挂在根节点上,沿着URI的路径段遍历一次即可得到所有匹配的前缀
+ *
+ * 3:扩展名匹配的pattern(如 *.do)放在<扩展名,序号>的HashMap中
+ *
+ * 查找的代价只与URI的路径段数有关,与<filter-mapping>的数量无关.
+ *
+ * @author KEN
+ *
+ */
+class FilterPatternIndex
+{
+	private static final int[] EMPTY = new int[0];
+
+	private final Map<String, int[]> _exact = new HashMap<String, int[]>();
+
+	private final Node _root = new Node();
+
+	private final Map<String, int[]> _extensions = new HashMap<String, int[]>();
+
+	// <filter-mapping>的数量
+	private final int _size;
+
+	/**
+	 * @param urlPatterns
+	 *            每个<filter-mapping>的<url-pattern>,按web.xml中的<filter-mapping>顺序排列(序号即其在List中的位置)
+	 */
+	FilterPatternIndex(List<? extends Collection<String>> urlPatterns)
+	{
+		_size = urlPatterns.size();
+
+		for (int i = 0; i < _size; i++)
+		{
+			for (String urlPattern : urlPatterns.get(i))
+			{
+				// Case 1 - Exact Match
+				_exact.put(urlPattern, add(_exact.get(urlPattern), i));
+
+				// Case 2 - Path Match ("/.../*")
+				if (urlPattern.equals("/*"))
+				{
+					_root._prefix = add(_root._prefix, i);
+				}
+				else if (urlPattern.endsWith("/*") && urlPattern.startsWith("/"))
+				{
+					Node node = addPath(urlPattern, urlPattern.length() - 2);
+
+					node._prefix = add(node._prefix, i);
+				}
+
+				// Case 3 - Extension Match
+				if (urlPattern.startsWith("*."))
+				{
+					String extension = urlPattern.substring(2);
+
+					_extensions.put(extension, add(_extensions.get(extension), i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * 创建路径path[0,end)上的所有节点,返回最后一个节点
+	 */
+	private Node addPath(String path, int end)
+	{
+		Node node = _root;
+
+		int start = 1;
+
+		while (start <= end)
+		{
+			int slash = path.indexOf('/', start);
+
+			if (slash < 0 || slash > end)
+				slash = end;
+
+			String segment = path.substring(start, slash);
+
+			if (node._children == null)
+				node._children = new HashMap<String, Node>(4);
+
+			Node child = node._children.get(segment);
+
+			if (child == null)
+			{
+				child = new Node();
+				node._children.put(segment, child);
+			}
+
+			node = child;
+
+			start = slash + 1;
+		}
+
+		return node;
+	}
+
+	/**
+	 * 查找与URI匹配的所有<filter-mapping>
+	 *
+	 * @param uri
+	 *            servletPath + pathInfo
+	 * @return 匹配的<filter-mapping>的序号集合
+	 */
+	BitSet match(String uri)
+	{
+		BitSet matches = new BitSet(_size);
+
+		set(matches, _exact.get(uri));
+
+		// "/*"匹配所有的URI
+		set(matches, _root._prefix);
+
+		int length = uri.length();
+
+		if (length > 0 && uri.charAt(0) == '/')
+		{
+			Node node = _root;
+
+			int start = 1;
+
+			while (node._children != null && start <= length)
+			{
+				int slash = uri.indexOf('/', start);
+
+				if (slash < 0)
+					slash = length;
+
+				node = node._children.get(uri.substring(start, slash));
+
+				if (node == null)
+					break;
+
+				set(matches, node._prefix);
+
+				start = slash + 1;
+			}
+		}
+
+		if (_extensions.size() > 0)
+		{
+			int slash = uri.lastIndexOf('/');
+			int period = uri.lastIndexOf('.');
+
+			if (slash >= 0 && period > slash && period != length - 1)
+				set(matches, _extensions.get(uri.substring(period + 1)));
+		}
+
+		return matches;
+	}
+
+	private static int[] add(int[] indexes, int index)
+	{
+		if (indexes == null)
+			indexes = EMPTY;
+
+		// 同一个<filter-mapping>中的多个pattern可能落在同一处
+		if (indexes.length > 0 && indexes[indexes.length - 1] == index)
+			return indexes;
+
+		int[] result = new int[indexes.length + 1];
+
+		System.arraycopy(indexes, 0, result, 0, indexes.length);
+
+		result[indexes.length] = index;
+
+		return result;
+	}
+
+	private static void set(BitSet matches, int[] indexes)
+	{
+		if (indexes == null)
+			return;
+
+		for (int index : indexes)
+		{
+			matches.set(index);
+		}
+	}
+
+	/**
+	 * 路径段节点(编译完成后不再修改)
+	 */
+	private static final class Node
+	{
+		Map<String, Node> _children;
+
+		// 以本节点为前缀的<filter-mapping>的序号
+		int[] _prefix;
+	}
+
+	/**
+	 * 取得每个<filter-mapping>的<url-pattern>
+	 */
+	static List<Collection<String>> urlPatternsOf(List<FilterMapping> filterMappings)
+	{
+		List<Collection<String>> urlPatterns = new ArrayList<Collection<String>>(filterMappings.size());
+
+		for (FilterMapping filterMapping : filterMappings)
+		{
+			urlPatterns.add(filterMapping.getURLPatterns());
+		}
+
+		return urlPatterns;
+	}
+}
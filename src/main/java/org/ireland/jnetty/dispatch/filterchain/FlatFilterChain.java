@@ -0,0 +1,253 @@
+package org.ireland.jnetty.dispatch.filterchain;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.ServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ireland.jnetty.webapp.WebApp;
+
+import com.caucho.util.FreeList;
+
+/**
+ * 扁平化的FilterChain: 用一个Filter数组 + 末端的ServletFilterChain代替层层嵌套的FilterFilterChain(及ServletRequestListenerFilterChain)
+ *
+ * FlatFilterChain本身是不可变的,可以被多个请求共享.每次执行时从FreeList中取出一个Cursor(记录下一个要执行的Filter的下标),
+ * 传给Filter的FilterChain就是这个Cursor,执行完毕后Cursor被回收,故对于只调用chain.doFilter()的Filter,链的执行过程中不需要分配任何对象.
+ *
+ * 如果有ServletRequestListener,每个请求只创建一个ServletRequestEvent,所有的requestInitialized及requestDestroyed事件共用它.
+ *
+ * @author KEN
+ *
+ */
+public class FlatFilterChain implements FilterChain
+{
+	private static final Log log = LogFactory.getLog(FlatFilterChain.class.getName());
+
+	private static final boolean trace = log.isTraceEnabled();
+
+	private static final FreeList<Cursor> _freeCursors = new FreeList<Cursor>(256);
+
+	// 按执行顺序排列的Filter
+	private final Filter[] _filters;
+
+	// 末端的Servlet
+	private final FilterChain _servletChain;
+
+	// app
+	private final WebApp _webApp;
+
+	// 按注册顺序排列的ServletRequestListener,没有时为null
+	private final ServletRequestListener[] _requestListeners;
+
+	/**
+	 * @param filters
+	 *            按执行顺序排列的Filter
+	 * @param servletChain
+	 *            末端的Servlet
+	 */
+	public FlatFilterChain(Filter[] filters, FilterChain servletChain)
+	{
+		this(filters, servletChain, null, null);
+	}
+
+	private FlatFilterChain(Filter[] filters, FilterChain servletChain, WebApp webApp, ServletRequestListener[] requestListeners)
+	{
+		if (servletChain == null)
+			throw new NullPointerException();
+
+		_filters = filters;
+		_servletChain = servletChain;
+		_webApp = webApp;
+		_requestListeners = requestListeners;
+	}
+
+	/**
+	 * 返回一个在执行Filter之前(之后)回调ServletRequestListener#requestInitialized(requestDestroyed)事件的FlatFilterChain
+	 *
+	 * @param chain
+	 *            FlatFilterChain或者末端的Servlet
+	 * @param webApp
+	 * @param requestListeners
+	 * @return
+	 */
+	public static FlatFilterChain withRequestListeners(FilterChain chain, WebApp webApp, List<ServletRequestListener> requestListeners)
+	{
+		ServletRequestListener[] listeners = requestListeners.toArray(new ServletRequestListener[requestListeners.size()]);
+
+		if (chain instanceof FlatFilterChain)
+		{
+			FlatFilterChain flat = (FlatFilterChain) chain;
+
+			return new FlatFilterChain(flat._filters, flat._servletChain, webApp, listeners);
+		}
+
+		return new FlatFilterChain(new Filter[0], chain, webApp, listeners);
+	}
+
+	/**
+	 * Invokes the filters and the final servlet.
+	 *
+	 * @param request
+	 *            the servlet request
+	 * @param response
+	 *            the servlet response
+	 */
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response) throws ServletException, IOException
+	{
+		if (_requestListeners == null)
+		{
+			execute(request, response);
+			return;
+		}
+
+		// 所有的监听器共用同一个事件
+		ServletRequestEvent event = new ServletRequestEvent(_webApp, request);
+
+		try
+		{
+			//触发ServletRequestListener#requestInitialized事件
+			for (ServletRequestListener listener : _requestListeners)
+			{
+				listener.requestInitialized(event);
+			}
+
+			execute(request, response);
+		}
+		finally
+		{
+			//触发ServletRequestListener#requestDestroyed事件
+			for (int i = _requestListeners.length - 1; i >= 0; i--)
+			{
+				try
+				{
+					_requestListeners[i].requestDestroyed(event);
+				}
+				catch (Throwable e)
+				{
+					log.warn(e.toString(), e);
+				}
+			}
+		}
+	}
+
+	private void execute(ServletRequest request, ServletResponse response) throws ServletException, IOException
+	{
+		if (_filters.length == 0)
+		{
+			_servletChain.doFilter(request, response);
+			return;
+		}
+
+		Cursor cursor = _freeCursors.allocate();
+
+		if (cursor == null)
+			cursor = new Cursor();
+
+		cursor.init(this);
+
+		try
+		{
+			cursor.doFilter(request, response);
+		}
+		finally
+		{
+			// 异步请求中,Filter可能在返回后继续使用这个FilterChain
+			if (!request.isAsyncStarted())
+			{
+				cursor.init(null);
+
+				_freeCursors.free(cursor);
+			}
+		}
+	}
+
+	public int getFilterCount()
+	{
+		return _filters.length;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(getClass().getSimpleName()).append("[");
+
+		for (Filter filter : _filters)
+		{
+			sb.append(filter).append(",");
+		}
+
+		sb.append(_servletChain).append("]");
+
+		return sb.toString();
+	}
+
+	/**
+	 * 一次执行的游标:传给每个Filter的FilterChain,调用doFilter()时执行下一个Filter,所有Filter执行完毕后执行末端的Servlet
+	 */
+	private static final class Cursor implements FilterChain
+	{
+		private FlatFilterChain _chain;
+
+		// 下一个要执行的Filter的下标
+		private int _index;
+
+		void init(FlatFilterChain chain)
+		{
+			_chain = chain;
+			_index = 0;
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) throws ServletException, IOException
+		{
+			FlatFilterChain chain = _chain;
+
+			if (chain == null)
+				throw new IllegalStateException("FilterChain has already been completed");
+
+			Filter[] filters = chain._filters;
+
+			int index = _index;
+
+			if (index < filters.length)
+			{
+				_index = index + 1;
+
+				if (trace)
+					log.trace("Dispatch " + request + " filter=" + filters[index]);
+
+				try
+				{
+					filters[index].doFilter(request, response, this);
+				}
+				finally
+				{
+					// 回到调用者的位置:前一个Filter再次调用chain.doFilter()(重试/重放)时,从这个Filter开始重新执行链的其余部分
+					_index = index;
+				}
+			}
+			else
+			{
+				chain._servletChain.doFilter(request, response);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return getClass().getSimpleName() + "[" + _chain + ",index=" + _index + "]";
+		}
+	}
+}
@@ -97,13 +97,14 @@ public class ServletRequestListenerFilterChain implements FilterChain
 	@Override
 	public void doFilter(ServletRequest request, ServletResponse response) throws ServletException, IOException
 	{
+		// 所有的监听器共用同一个事件
+		ServletRequestEvent event = new ServletRequestEvent(_webApp, request);
+
 		try
 		{
 			//触发ServletRequestListener#requestInitialized事件
 			for (ServletRequestListener listener : _requestListeners)
 			{
-				ServletRequestEvent event = new ServletRequestEvent(_webApp, request);
-
 				listener.requestInitialized(event);
 			}
 
@@ -116,8 +117,6 @@ public class ServletRequestListenerFilterChain implements FilterChain
 			{
 				try
 				{
-					ServletRequestEvent event = new ServletRequestEvent(_webApp, request);
-
 					_requestListeners.get(i).requestDestroyed(event);
 				}
 				catch (Throwable e)
@@ -38,10 +38,15 @@ import javax.servlet.ServletException;
 
 import org.ireland.jnetty.config.ConfigException;
 import org.ireland.jnetty.dispatch.FilterChainInvocation;
+import org.ireland.jnetty.dispatch.ParallelInitializer;
 import org.ireland.jnetty.webapp.WebApp;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
@@ -139,12 +144,33 @@ public class ServletManager
 	@PostConstruct
 	public void init() throws ServletException
 	{
+		init(null);
+	}
+
+	/**
+	 * Initialize servlets that need starting at server start.
+	 * 
+	 * 按load-on-startup的数值升序分组,组与组之间依次初始化;同一组内的Servlet在executor中并行初始化,整组完成后才开始下一组.
+	 * 
+	 * @param executor
+	 *            为null时在当前线程中依次初始化
+	 */
+	public void init(ExecutorService executor) throws ServletException
+	{
+		ArrayList<ServletConfigImpl> servletList;
+
+		// ServletContextListener或Servlet.init()中可能动态添加Servlet
+		synchronized (_servlets)
+		{
+			servletList = new ArrayList<ServletConfigImpl>(_servletList);
+		}
+
 		ArrayList<ServletConfigImpl> loadOnStartup = new ArrayList<ServletConfigImpl>();
 
 		// 取出loadOnStartup的Servlet,并按其数值升序排序
-		for (int j = 0; j < _servletList.size(); j++)
+		for (int j = 0; j < servletList.size(); j++)
 		{
-			ServletConfigImpl config = _servletList.get(j);
+			ServletConfigImpl config = servletList.get(j);
 
 			if (config.getLoadOnStartup() == Integer.MIN_VALUE)
 				continue;
@@ -166,20 +192,57 @@ public class ServletManager
 
 		}
 
+		long start = System.currentTimeMillis();
+
+		final AtomicInteger failed = new AtomicInteger();
+
+		int groups = 0;
+
 		// 只实例化和初始化 loadOnStartup 的Servlet
-		for (int i = 0; i < loadOnStartup.size(); i++)
+		for (int i = 0; i < loadOnStartup.size();)
 		{
-			ServletConfigImpl config = loadOnStartup.get(i);
+			int loadOnStartupValue = loadOnStartup.get(i).getLoadOnStartup();
 
-			try
-			{
-				config.getInstance();
-			}
-			catch (ServletException e)
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+			for (; i < loadOnStartup.size() && loadOnStartup.get(i).getLoadOnStartup() == loadOnStartupValue; i++)
 			{
-				log.warn( e.toString(), e);
+				final ServletConfigImpl config = loadOnStartup.get(i);
+
+				tasks.add(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						long begin = System.currentTimeMillis();
+
+						try
+						{
+							config.getInstance();
+
+							if (debug)
+								log.debug("Servlet[" + config.getServletName() + "] inited in " + (System.currentTimeMillis() - begin) + " ms");
+						}
+						catch (ServletException e)
+						{
+							failed.incrementAndGet();
+
+							log.warn("Servlet[" + config.getServletName() + "] failed to init: " + e, e);
+						}
+
+						return null;
+					}
+				});
 			}
+
+			ParallelInitializer.invokeAll(tasks, executor);
+
+			groups++;
 		}
+
+		if (!loadOnStartup.isEmpty())
+			log.info("inited " + loadOnStartup.size() + " load-on-startup servlet(s) in " + groups + " group(s) in " + (System.currentTimeMillis() - start)
+					+ " ms, " + failed.get() + " failed");
 	}
 
 	/**
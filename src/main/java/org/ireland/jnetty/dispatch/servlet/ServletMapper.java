@@ -29,14 +29,11 @@
 
 package org.ireland.jnetty.dispatch.servlet;
 
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
@@ -48,12 +45,10 @@ import org.ireland.jnetty.config.ConfigException;
 import org.ireland.jnetty.dispatch.FilterChainInvocation;
 import org.ireland.jnetty.dispatch.filterchain.ErrorFilterChain;
 import org.ireland.jnetty.jsp.JspServletComposite;
+import org.ireland.jnetty.util.ConcurrentLruCache;
 import org.ireland.jnetty.webapp.WebApp;
 import org.springframework.util.Assert;
 
-
-import com.caucho.util.LruCache;
-
 /**
  * Manages dispatching: servlets and filters. :TODO: rename "ServletMapper" TO "ServletMatcher"
  * 
@@ -73,23 +68,19 @@ public class ServletMapper
 	private final ServletManager _servletManager;
 
 	
-	// 用LRU算法Cache最近最常使用的ContextURI与ServletFilterChain之间的映射关系()
-	private LruCache<String, FilterChain> _servletChainCache = new LruCache<String, FilterChain>(256);
+	// 用LRU算法Cache最近最常使用的ContextURI与ServletFilterChain之间的映射关系(读操作无锁)
+	private final ConcurrentLruCache<String, FilterChain> _servletChainCache = new ConcurrentLruCache<String, FilterChain>("servletChain", 256);
 	
 
-	// 记录 urlPattern 到 <servlet-mapping>的映射关系(用于URL精确匹配)
-	// 1:ServletMappings for Exact Match <urlPattern,ServletMapping>
-	private Map<String, ServletMapping> _exactServletMappings = new HashMap<String, ServletMapping>();
-
-	// 2:ServletMappings for Longest Prefix Match <prefixPattern,ServletMapping>(按pattern长度倒序排列)
-	private SortedMap<String, ServletMapping> _prefixServletMappings = new TreeMap<String, ServletMapping>(new PatternLengthComparator());
+	// 记录 urlPattern 到 <servlet-mapping>的映射关系 <urlPattern,ServletMapping> (按web.xml里出现的顺序排列)
+	private Map<String, ServletMapping> _servletMappings = new LinkedHashMap<String, ServletMapping>();
 
-	// 3:ServletMappings for Extension Match <Extension,ServletMapping> (按web.xml里出现的顺序排列)
-	private LinkedHashMap<String, ServletMapping> _extensionServletMappings = new LinkedHashMap<String, ServletMapping>();
-
-	// 4:Default servlet (urlPattern为"/",当无法找到匹配的Servlet或jsp时,则默认匹配的Servlet)
+	// Default servlet (urlPattern为"/",当无法找到匹配的Servlet或jsp时,则默认匹配的Servlet)
 	private ServletConfigImpl _defaultServlet;
 
+	// 由所有<servlet-mapping>编译而成的路由表(不可变),映射关系改变时置为null,在下次查找时重新编译
+	private volatile ServletRouter _router;
+
 	
 	// 记录 ServletName 到 urlPattern 之间的映射关系
 	// Servlet 3.0 maps serletName to urlPattern <serletName,Set<urlPattern>>
@@ -170,21 +161,10 @@ public class ServletMapper
 			}
 
 
-			// 添加到精确匹配的分类
-			_exactServletMappings.put(urlPattern, mapping); 
-
-			
-			// 添加到前缀匹配的分类/../*
-			if (urlPattern.endsWith("/*")) 
-			{
-				_prefixServletMappings.put(urlPattern, mapping);
-			}
+			_servletMappings.put(urlPattern, mapping);
 
-			// 添加到扩展名匹配的分类
-			if (urlPattern.startsWith("*.")) 
-			{
-				_extensionServletMappings.put(urlPattern, mapping);
-			}
+			// 映射关系已改变,需要重新编译路由表
+			_router = null;
 
 			//
 			Set<String> patterns = _urlPatterns.get(servletName);
@@ -210,6 +190,22 @@ public class ServletMapper
 		}
 	}
 
+	/**
+	 * Returns the cache of contextURI -> ServletFilterChain
+	 */
+	public ConcurrentLruCache<String, FilterChain> getServletChainCache()
+	{
+		return _servletChainCache;
+	}
+
+	/**
+	 * Clears the cache of contextURI -> ServletFilterChain
+	 */
+	public void clearCache()
+	{
+		_servletChainCache.clear();
+	}
+
 	public Set<String> getUrlPatterns(String servletName)
 	{
 		return _urlPatterns.get(servletName);
@@ -222,6 +218,56 @@ public class ServletMapper
 	public void setDefaultServlet(ServletConfigImpl config) throws ServletException
 	{
 		_defaultServlet = config;
+
+		_router = null;
+	}
+
+	/**
+	 * 把所有的<servlet-mapping>(及JspServletComposite,默认的Servlet)编译为不可变的路由表,在WebApp.start()时调用
+	 * 
+	 * @return
+	 */
+	public ServletRouter compile()
+	{
+		Map<String, ServletConfigImpl> urlPatterns = new LinkedHashMap<String, ServletConfigImpl>();
+
+		for (Map.Entry<String, ServletMapping> entry : _servletMappings.entrySet())
+		{
+			urlPatterns.put(entry.getKey(), entry.getValue().getServletConfig());
+		}
+
+		// 3.5:与jsp页面匹配的JspServletComposite
+		ServletConfigImpl jspServlet = _servletManager.getServlet(JspServletComposite.class.getCanonicalName());
+
+		ServletRouter router = new ServletRouter(urlPatterns, jspServlet, _defaultServlet);
+
+		_router = router;
+
+		if (debug)
+			log.debug(_webApp + " compiled " + urlPatterns.size() + " url-patterns");
+
+		return router;
+	}
+
+	/**
+	 * 取得路由表,未编译或映射关系已改变时重新编译
+	 */
+	private ServletRouter getRouter()
+	{
+		ServletRouter router = _router;
+
+		if (router == null)
+		{
+			synchronized (this)
+			{
+				router = _router;
+
+				if (router == null)
+					router = compile();
+			}
+		}
+
+		return router;
 	}
 
 	/**
@@ -240,6 +286,8 @@ public class ServletMapper
 	 * XXX:创建ServletFilterChain时,只看请求的contextURI(不带参数),故不同的URI,只要contextURI相同,会匹配同一个Servlet
 	 * XXX:/login.do?u=jack,/login.do?u=ken 生成的ServletFilterChain是一样的
 	 * 
+	 * 1-4的规则已编译在ServletRouter中,只需要沿着URI的路径段遍历一次
+	 * 
 	 * @param fcInvocation
 	 * @return
 	 * @throws ServletException
@@ -247,36 +295,12 @@ public class ServletMapper
 	public FilterChain buildServletChain(FilterChainInvocation fcInvocation) throws ServletException
 	{
 		String contextURI = fcInvocation.getContextURI();
-		
-		//尝试在cache中查找
-		FilterChain servletChain = _servletChainCache.get(contextURI);
-		
-		if(servletChain != null) 
-			return servletChain;
-
-		
-		//
-		ServletConfigImpl config = null;
 
-
-		// 1-2-3:查找与contextURI最佳匹配的Servlet
-		config = mapServlet(contextURI);
-		
-		//3.5查找是否与相关jsp页面匹配
-		if(config == null)
-		{
-			config = mapJspServlet(contextURI);
-		}
-		
-
-		// 4:默认的Servlet(urlPattern为"/",当无法找到匹配的Servlet或jsp时,则默认匹配的Servlet)
-		if (config == null)
-		{
-			config = _defaultServlet;
-		}
+		// 1-2-3-4:查找与contextURI最佳匹配的Servlet(包括jsp页面及默认的Servlet)
+		ServletRouter.Match match = getRouter().route(contextURI);
 
 		// 5:无法找到合适的Servlet,返回404
-		if (config == null)
+		if (match == null)
 		{
 			if(debug)
 				log.debug("'"+contextURI+"' has no default servlet defined");
@@ -284,27 +308,33 @@ public class ServletMapper
 			return new ErrorFilterChain(404);
 		}
 
-		String servletPath = contextURI; // TODO: how to decide servletPath ?
+		ServletConfigImpl config = match.getServletConfig();
 
-		fcInvocation.setServletPath(servletPath);
+		// 即使ServletFilterChain已被缓存,FilterChainInvocation也需要servletPath,pathInfo,servletName,asyncSupported及multipartConfig
+		fcInvocation.setServletPath(match.getServletPath());
 
-		if (servletPath.length() < contextURI.length())
-			fcInvocation.setPathInfo(contextURI.substring(servletPath.length()));
-		else
-			fcInvocation.setPathInfo(null);
+		fcInvocation.setPathInfo(match.getPathInfo());
 		
 		String servletName = config.getServletName();
 
 		fcInvocation.setServletName(servletName);
 
+		if (!config.isAsyncSupported())
+			fcInvocation.clearAsyncSupported();
+
+		fcInvocation.setMultipartConfig(config.getMultipartConfig());
+
+		//尝试在cache中查找
+		FilterChain chain = _servletChainCache.get(contextURI);
+		
+		if(chain != null) 
+			return chain;
+
 		if (debug)
 			log.debug(_webApp + " map (uri:" + contextURI + " -> " + servletName + ")");
 
 		// 创建ServletFilterChain
-		FilterChain chain = null;
-		
-		if (config != null)
-			chain = _servletManager.createServletChain(config, fcInvocation);
+		chain = _servletManager.createServletChain(config, fcInvocation);
 		
 		//put to cache
 		_servletChainCache.put(contextURI, chain);
@@ -312,79 +342,19 @@ public class ServletMapper
 		return chain;
 	}
 
-	/**
-	 * 查找与contextURI最佳匹配的Jsp,默认返回一个组合模式实现的JspServletComposite的ServletConfig
-	 * @param contextURI
-	 * @return
-	 */
-	protected ServletConfigImpl mapJspServlet(String contextURI)
-	{
-		if(contextURI != null && contextURI.endsWith(".jsp"))
-		{
-			return _servletManager.getServlet(JspServletComposite.class.getCanonicalName());
-		}
-		
-		return null;
-	}
-
 	/**
 	 * 查找与contextURI最佳匹配的Servlet Specification: Servlet-3_1-PFD chapter 12.1
 	 * 
+	 * 包括与jsp页面匹配的JspServletComposite及默认的Servlet
+	 * 
 	 * @param contextURI
-	 * @return
+	 * @return 无法找到匹配的Servlet时返回null
 	 */
 	public ServletConfigImpl mapServlet(String contextURI)
 	{
-		// Rule 1 -- Exact Match :查找是否存在URL精确匹配的<servler-mapping>
-		if (_exactServletMappings.size() > 0)
-		{
-			ServletMapping servletMapping = _exactServletMappings.get(contextURI);
+		ServletRouter.Match match = getRouter().route(contextURI);
 
-			if (servletMapping != null)
-				return servletMapping.getServletConfig();
-		}
-
-		// Rule 2 -- Longest Prefix Match : 查找最长前缀匹配的Servlet,如:/page/today/123 会 匹配 /page/today/*,而非/page/*
-		if (_prefixServletMappings.size() > 0)
-		{
-			String prefixPattern;
-			ServletMapping servletMapping = null;
-
-			for (Map.Entry<String, ServletMapping> entry : _prefixServletMappings.entrySet())
-			{
-				prefixPattern = entry.getKey();
-
-				if (prefixPatternMatch(contextURI, prefixPattern))
-				{
-					servletMapping = entry.getValue();
-
-					if (servletMapping != null)
-						return servletMapping.getServletConfig();
-				}
-			}
-		}
-
-		// Rule 3 -- Extension Match : 像.do等基于扩展名的匹配
-		if (_extensionServletMappings.size() > 0)
-		{
-			String extensionPattern;
-			ServletMapping servletMapping = null;
-
-			for (Map.Entry<String, ServletMapping> entry : _extensionServletMappings.entrySet())
-			{
-				extensionPattern = entry.getKey();
-
-				if (extensionPatternMatch(contextURI, extensionPattern))
-				{
-					servletMapping = entry.getValue();
-
-					if (servletMapping != null)
-						return servletMapping.getServletConfig();
-				}
-			}
-		}
-
-		return null;
+		return match != null ? match.getServletConfig() : null;
 	}
 
 
@@ -394,7 +364,7 @@ public class ServletMapper
 
 	public ServletMapping getServletMapping(String pattern)
 	{
-		return _exactServletMappings.get(pattern);
+		return _servletMappings.get(pattern);
 	}
 
 	private void addServlet(String servletName) throws ServletException
@@ -427,89 +397,4 @@ public class ServletMapper
 		_servletManager.destroy();
 	}
 
-	/**
-	 * 
-	 * 按String的长度倒序排列
-	 * 
-	 * @author KEN
-	 * 
-	 */
-	private static class PatternLengthComparator implements Comparator<String>
-	{
-		@Override
-		public int compare(String pattern1, String pattern2)
-		{
-			if (pattern1.length() > pattern2.length())
-				return -1;
-			else if (pattern1.length() == pattern2.length())
-				return 0;
-			else
-				return 1;
-		}
-	}
-
-	// util Method---------------------------------------------------------------------------
-
-	/**
-	 * 前缀匹配
-	 * 
-	 * @param requestPath
-	 * @param prefixPattern
-	 * @return
-	 */
-	private static boolean prefixPatternMatch(String requestPath, String prefixPattern)
-	{
-
-		if (prefixPattern == null)
-			return (false);
-
-		// Case 2 - Path Match ("/.../*")
-		if (prefixPattern.equals("/*"))
-			return (true);
-		if (prefixPattern.endsWith("/*"))
-		{
-			if (prefixPattern.regionMatches(0, requestPath, 0, prefixPattern.length() - 2))
-			{
-				if (requestPath.length() == (prefixPattern.length() - 2))
-				{
-					return (true);
-				}
-				else if ('/' == requestPath.charAt(prefixPattern.length() - 2))
-				{
-					return (true);
-				}
-			}
-			return (false);
-		}
-
-		return (false);
-	}
-
-	/**
-	 * 
-	 * @param requestPath
-	 * @param extensionPattern
-	 * @return
-	 */
-	private static boolean extensionPatternMatch(String requestPath, String extensionPattern)
-	{
-
-		if (extensionPattern == null)
-			return (false);
-
-		// Case 3 - Extension Match
-		if (extensionPattern.startsWith("*."))
-		{
-			int slash = requestPath.lastIndexOf('/');
-			int period = requestPath.lastIndexOf('.');
-			if ((slash >= 0) && (period > slash) && (period != requestPath.length() - 1)
-					&& ((requestPath.length() - period) == (extensionPattern.length() - 1)))
-			{
-				return (extensionPattern.regionMatches(2, requestPath, period + 1, extensionPattern.length() - 2));
-			}
-		}
-
-		return (false);
-	}
-
 }
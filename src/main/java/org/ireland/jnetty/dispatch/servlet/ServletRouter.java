@@ -0,0 +1,252 @@
+package org.ireland.jnetty.dispatch.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 编译后的Servlet路由表(不可变),用于替换ServletMapper中 精确匹配(HashMap) -> 最长前缀匹配(线性遍历) -> 扩展名匹配(线性遍历) 的查找过程
+ *
+ * 所有以'/'开头的url-pattern按路径段('/'分隔)编译为一棵树:
+ *
+ * 1:精确匹配的pattern(如 /user/login)挂在其最后一个路径段的节点上
+ *
+ * 2:前缀匹配的pattern(如 /user/*)挂在其'/*'之前的路径段的节点上,"/*"挂在根节点上
+ *
+ * 扩展名匹配的pattern(如 *.do)放在一个<扩展名,Servlet>的HashMap中,JspServletComposite作为"*.jsp"的后备扩展名匹配.
+ *
+ * 查找时只需要沿着URI的路径段遍历一次:走到URI的末尾时的精确匹配优先,其次是途中遇到的最深(即最长)的前缀匹配,再次为扩展名匹配,最后是默认的Servlet.
+ * 查找的代价只与URI的路径段数有关,与url-pattern的数量无关.
+ *
+ * Specification: Servlet-3_1-PFD chapter 12.1
+ *
+ * @author KEN
+ *
+ */
+public class ServletRouter
+{
+	private final Node _root = new Node();
+
+	// <扩展名(不带'.'),Servlet>
+	private final Map<String, ServletConfigImpl> _extensions = new HashMap<String, ServletConfigImpl>();
+
+	// 默认的Servlet(urlPattern为"/")
+	private final ServletConfigImpl _defaultServlet;
+
+	/**
+	 *
+	 * @param urlPatterns
+	 *            <urlPattern,Servlet>,按web.xml里出现的顺序排列
+	 * @param jspServlet
+	 *            处理"*.jsp"的Servlet(当没有显式地映射"*.jsp"时),可为null
+	 * @param defaultServlet
+	 *            默认的Servlet,可为null
+	 */
+	public ServletRouter(Map<String, ServletConfigImpl> urlPatterns, ServletConfigImpl jspServlet, ServletConfigImpl defaultServlet)
+	{
+		for (Map.Entry<String, ServletConfigImpl> entry : urlPatterns.entrySet())
+		{
+			String urlPattern = entry.getKey();
+			ServletConfigImpl config = entry.getValue();
+
+			if (urlPattern.startsWith("*."))
+			{
+				// 扩展名匹配,同一扩展名以先出现的为准
+				String extension = urlPattern.substring(2);
+
+				if (!_extensions.containsKey(extension))
+					_extensions.put(extension, config);
+			}
+			else if (urlPattern.startsWith("/"))
+			{
+				// 所有以'/'开头的pattern都可以精确匹配(包括"/"及"/user/*"本身)
+				Node node = addPath(urlPattern, urlPattern.length());
+
+				if (node._exact == null)
+					node._exact = config;
+
+				// 前缀匹配
+				if (urlPattern.endsWith("/*"))
+				{
+					node = addPath(urlPattern, urlPattern.length() - 2);
+
+					if (node._prefix == null)
+						node._prefix = config;
+				}
+			}
+		}
+
+		if (jspServlet != null && !_extensions.containsKey("jsp"))
+			_extensions.put("jsp", jspServlet);
+
+		_defaultServlet = defaultServlet;
+	}
+
+	/**
+	 * 创建路径path[0,end)上的所有节点,返回最后一个节点
+	 *
+	 * 根节点对应于空路径(即"/*"的前缀),"/a/b"对应于 根->a->b, "/a/"对应于 根->a->""
+	 */
+	private Node addPath(String path, int end)
+	{
+		Node node = _root;
+
+		int start = 1;
+
+		while (start <= end)
+		{
+			int slash = path.indexOf('/', start);
+
+			if (slash < 0 || slash > end)
+				slash = end;
+
+			String segment = path.substring(start, slash);
+
+			Node child = node._children.get(segment);
+
+			if (child == null)
+			{
+				child = new Node();
+				node._children.put(segment, child);
+			}
+
+			node = child;
+
+			start = slash + 1;
+		}
+
+		return node;
+	}
+
+	/**
+	 * 查找与contextURI最佳匹配的Servlet
+	 *
+	 * @param contextURI
+	 *            规范化后的URI(不带参数)
+	 * @return 无法找到匹配的Servlet(包括默认的Servlet)时返回null
+	 */
+	public Match route(String contextURI)
+	{
+		int length = contextURI.length();
+
+		Node node = _root;
+
+		// 最深的前缀匹配
+		ServletConfigImpl prefix = _root._prefix;
+		int prefixEnd = 0;
+
+		if (length > 0 && contextURI.charAt(0) == '/')
+		{
+			int start = 1;
+
+			while (node != null && start <= length)
+			{
+				int slash = contextURI.indexOf('/', start);
+
+				if (slash < 0)
+					slash = length;
+
+				node = node._children.get(contextURI.substring(start, slash));
+
+				if (node != null && node._prefix != null)
+				{
+					prefix = node._prefix;
+					prefixEnd = slash;
+				}
+
+				start = slash + 1;
+			}
+		}
+		else
+		{
+			node = null;
+		}
+
+		// Rule 1 -- Exact Match
+		if (node != null && node._exact != null)
+			return new Match(node._exact, contextURI, null);
+
+		// Rule 2 -- Longest Prefix Match: servletPath为'/*'之前的部分,其余为pathInfo
+		if (prefix != null)
+		{
+			String servletPath = contextURI.substring(0, prefixEnd);
+			String pathInfo = prefixEnd < length ? contextURI.substring(prefixEnd) : null;
+
+			return new Match(prefix, servletPath, pathInfo);
+		}
+
+		// Rule 3 -- Extension Match: 扩展名定义在最后一个路径段的最后一个'.'字符之后
+		if (_extensions.size() > 0)
+		{
+			int slash = contextURI.lastIndexOf('/');
+			int period = contextURI.lastIndexOf('.');
+
+			if (slash >= 0 && period > slash && period != length - 1)
+			{
+				ServletConfigImpl config = _extensions.get(contextURI.substring(period + 1));
+
+				if (config != null)
+					return new Match(config, contextURI, null);
+			}
+		}
+
+		// Rule 4 -- Default Servlet
+		if (_defaultServlet != null)
+			return new Match(_defaultServlet, contextURI, null);
+
+		return null;
+	}
+
+	/**
+	 * 路径段节点(编译完成后不再修改)
+	 */
+	private static final class Node
+	{
+		final Map<String, Node> _children = new HashMap<String, Node>(4);
+
+		// 以本节点结尾的精确匹配
+		ServletConfigImpl _exact;
+
+		// 以本节点为前缀的前缀匹配(pattern为 本节点的路径 + "/*")
+		ServletConfigImpl _prefix;
+	}
+
+	/**
+	 * 一次路由的结果:匹配的Servlet及URI拆分出的servletPath和pathInfo
+	 */
+	public static final class Match
+	{
+		private final ServletConfigImpl _servletConfig;
+
+		private final String _servletPath;
+
+		private final String _pathInfo;
+
+		Match(ServletConfigImpl servletConfig, String servletPath, String pathInfo)
+		{
+			_servletConfig = servletConfig;
+			_servletPath = servletPath;
+			_pathInfo = pathInfo;
+		}
+
+		public ServletConfigImpl getServletConfig()
+		{
+			return _servletConfig;
+		}
+
+		public String getServletPath()
+		{
+			return _servletPath;
+		}
+
+		public String getPathInfo()
+		{
+			return _pathInfo;
+		}
+
+		@Override
+		public String toString()
+		{
+			return getClass().getSimpleName() + "[" + _servletConfig.getServletName() + "," + _servletPath + "," + _pathInfo + "]";
+		}
+	}
+}
@@ -35,7 +35,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -52,6 +51,7 @@ import java.security.Principal;
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncListener;
 import javax.servlet.DispatcherType;
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -69,6 +69,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.Part;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.CookieDecoder;
@@ -79,7 +80,6 @@ import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.codec.http.QueryStringDecoder;
 
 import org.eclipse.jetty.util.MultiMap;
 import org.eclipse.jetty.util.StringUtil;
@@ -88,10 +88,14 @@ import org.eclipse.jetty.util.UrlEncoded;
 
 import org.ireland.jnetty.dispatch.HttpInvocation;
 import org.ireland.jnetty.http.io.ByteBufServletInputStream;
+import org.ireland.jnetty.http.multipart.MultipartFormData;
+import org.ireland.jnetty.http.multipart.MultipartParser;
+import org.ireland.jnetty.http.multipart.MultipartPart;
 import org.ireland.jnetty.server.session.HttpSessionImpl;
 import org.ireland.jnetty.server.session.SessionManager;
 import org.ireland.jnetty.util.StringParser;
 import org.ireland.jnetty.util.http.ContentTypeUtil;
+import org.ireland.jnetty.util.http.UrlEncodedParameters;
 import org.ireland.jnetty.webapp.WebApp;
 
 
@@ -146,6 +150,9 @@ public class HttpServletRequestImpl implements HttpServletRequest
 
 	private static final Collection<Locale> __defaultLocale = Collections.singleton(Locale.getDefault());
 
+	// 没有指定字符集时参数的默认字符集(与QueryStringDecoder一致)
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	// Util
 
 	/**
@@ -155,6 +162,8 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	//
 
 	private final ServletContext servletContext;
+
+	private final WebApp _webApp;
 	
 	//the HttpInvocation of this Request()
 	private HttpInvocation _invocation;
@@ -177,9 +186,6 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	// request-body
 	private final HttpContent body;
 
-	// the content of HttpServletRequestImpl Body,as byte array. normaly,please use HttpContent body
-	private byte[] bodyContent;
-
 	// Netty<<
 
 	/**
@@ -245,7 +251,10 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	private HttpMethod _httpMethod;
 
 	// Parameters from query string and form HttpServletRequestImpl Body(application/x-www-form-urlencoded [POST |PUT])
-	private Map<String, List<String>> _parameters;
+	private UrlEncodedParameters _parameters;
+
+	// multipart/form-data的请求体
+	private MultipartFormData _multipartFormData;
 
 	private int _port;
 	private HttpVersion _httpVersion = HttpVersion.HTTP_1_1;
@@ -268,6 +277,9 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	private HttpSessionImpl _session;
 	private SessionManager _sessionManager;
 	
+	//本请求取得的Session,请求结束时释放(在此之前不会被钝化到溢出存储中)
+	private List<HttpSessionImpl> _acquiredSessions;
+	
 	//true: has try to Extracte the sessionid
 	private boolean _sessionIdExtracted;
 	
@@ -297,6 +309,8 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	{
 		this.servletContext = servletContext;
 
+		_webApp = webApp;
+
 		this._sessionManager = webApp.getSessionManager();
 
 		this.socketChannel = socketChannel;
@@ -339,26 +353,21 @@ public class HttpServletRequestImpl implements HttpServletRequest
 
 		_paramsExtracted = true;
 
-		if(_parameters == null)
-			_parameters = new HashMap<String, List<String>>();
-		
+		// 只记录每个参数的位置,getParameter()时才解码
+		_parameters = new UrlEncodedParameters();
+
 		// Handle query string
+		String uri = request.getUri();
 
-		if (_queryEncoding == null)
-		{
-			QueryStringDecoder queryStringDecoder = new QueryStringDecoder(request.getUri());
-			
-			_parameters.putAll(queryStringDecoder.parameters());
+		int q = uri.indexOf('?');
 
-		}
-		else
+		if (q >= 0)
 		{
 			try
 			{
-				QueryStringDecoder queryStringDecoder = new QueryStringDecoder(request.getUri(), Charset.forName(_queryEncoding));
-
-				_parameters.putAll(queryStringDecoder.parameters());
+				Charset queryCharset = _queryEncoding == null ? UTF_8 : Charset.forName(_queryEncoding);
 
+				_parameters.addQueryString(uri, q + 1, queryCharset);
 			}
 			catch (UnsupportedCharsetException e)
 			{
@@ -386,38 +395,13 @@ public class HttpServletRequestImpl implements HttpServletRequest
 				{
 					try
 					{
-						Charset bodyCharset = Charset.forName(encoding);
-						String bodyContent = new String(getRowBodyContent(), bodyCharset);
-
-						// Add form params to query params
-						QueryStringDecoder queryStringDecoder = new QueryStringDecoder(bodyContent, bodyCharset,false);
-
-						if (_parameters == null)
-							_parameters = queryStringDecoder.parameters();
-						else//merge
-						{
-							Map<String, List<String>> map = queryStringDecoder.parameters();
-
-							for (Entry<String, List<String>> e : map.entrySet())
-							{
-								if (!_parameters.containsKey(e.getKey()))
-								{
-									_parameters.put(e.getKey(), e.getValue());
-								}
-								else// parameter with the same name exist,merge
-								{
-									List<String> value = _parameters.get(e.getKey());
-
-									if (value == null)
-										_parameters.put(e.getKey(), e.getValue());
-									else
-									{
-										value.addAll(e.getValue()); // merge
-										_parameters.put(e.getKey(), value);
-									}
-								}
-							}
-						}
+						Charset bodyCharset = encoding == null ? UTF_8 : Charset.forName(encoding);
+
+						// [0,writerIndex) of body,直接从ByteBuf中读取,不复制整个请求体
+						ByteBuf content = body.content();
+
+						// Add form params to query params(同名参数的值排在query string的值之后)
+						_parameters.addContent(content, 0, content.writerIndex(), bodyCharset);
 					}
 					catch (Exception e)
 					{
@@ -428,35 +412,41 @@ public class HttpServletRequestImpl implements HttpServletRequest
 					}
 				}
 			}
+			// multipart/form-data: 没有filename的part作为参数(Servlet 3.0 3.1.1)
+			else if (isMultipartFormData())
+			{
+				extractMultipartParameters(encoding);
+			}
 		}
 	}
 
-	/**
-	 * 
-	 * @return the content of HttpServletRequestImpl Body,as byte array. this method will not change the read / write
-	 *         index of body
-	 */
-	private byte[] getRowBodyContent()
+	private boolean isMultipartFormData()
 	{
-		// get [0,writerIndex) of body.date();
-		if (bodyContent == null)
-		{
-			int content_length = body.content().writerIndex(); // [0,writerIndex)
-
-			int old_readerIndex = body.content().readerIndex();// resver the old_readrIndex
-
-			byte[] data = new byte[content_length];
+		return MultipartParser.getBoundary(getContentType()) != null
+				&& (_multipartFormData != null || _invocation != null && _invocation.getFilterChainInvocation().getMultipartConfig() != null);
+	}
 
-			body.content().readerIndex(0);
+	private void extractMultipartParameters(String encoding)
+	{
+		try
+		{
+			for (MultipartPart part : getMultipartFormData().getFormFields())
+			{
+				String charset = ContentTypeUtil.getCharsetFromContentType(part.getContentType());
 
-			body.content().readBytes(data, 0, content_length);
+				if (charset == null)
+					charset = encoding;
 
-			body.content().readerIndex(old_readerIndex); // recover the readerIndex
-			
-			bodyContent = data;
+				_parameters.addParameter(part.getName(), part.getString(charset == null ? UTF_8 : Charset.forName(charset)));
+			}
+		}
+		catch (Exception e)
+		{
+			if (LOG.isDebugEnabled())
+				LOG.debug(e.toString(), e);
+			else
+				LOG.warn(e.toString());
 		}
-
-		return bodyContent;
 	}
 
 	/* ------------------------------------------------------------ */
@@ -1024,12 +1014,8 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	{
 		if (!_paramsExtracted)
 			extractParameters();
-		List<String> list = _parameters.get(name);
 
-		if (list == null || list.isEmpty())
-			return null;
-
-		return list.get(0);
+		return _parameters.getParameter(name);
 	}
 
 	/* ------------------------------------------------------------ */
@@ -1043,20 +1029,7 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		if (!_paramsExtracted)
 			extractParameters();
 
-		HashMap<String, String[]> map = new HashMap<String, String[]>(_parameters.size() * 3 / 2);
-
-		for (Map.Entry<String, List<String>> entry : _parameters.entrySet())
-		{
-			String[] a = null;
-			if (entry.getValue() != null)
-			{
-				a = new String[entry.getValue().size()];
-				a = entry.getValue().toArray(a);
-			}
-			map.put(entry.getKey(), a);
-		}
-
-		return Collections.unmodifiableMap(map);
+		return _parameters.getParameterMap();
 	}
 
 	/* ------------------------------------------------------------ */
@@ -1069,7 +1042,8 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	{
 		if (!_paramsExtracted)
 			extractParameters();
-		return Collections.enumeration(_parameters.keySet());
+
+		return _parameters.getParameterNames();
 	}
 
 	/* ------------------------------------------------------------ */
@@ -1090,10 +1064,8 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	{
 		if (!_paramsExtracted)
 			extractParameters();
-		List<String> vals = _parameters.get(name);
-		if (vals == null)
-			return null;
-		return vals.toArray(new String[vals.size()]);
+
+		return _parameters.getParameterValues(name);
 	}
 
 	/* ------------------------------------------------------------ */
@@ -1633,6 +1605,15 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		{
 			if (_sessionManager.isValid(_session))
 				return _session;
+
+			// Session可能已被钝化到溢出存储中:按id重新取得
+			HttpSessionImpl session = acquired(_sessionManager.acquireSession(_session.getId()));
+
+			if (session != null && _sessionManager.isValid(session))
+			{
+				_session = session;
+				return _session;
+			}
 			else
 			// Session无效
 			{
@@ -1649,10 +1630,13 @@ public class HttpServletRequestImpl implements HttpServletRequest
 			
 			if(sessionId != null)
 			{
-				HttpSessionImpl session = _sessionManager.getSession(sessionId);
+				HttpSessionImpl session = acquired(_sessionManager.acquireSession(sessionId));
 				
 				if (session != null && _sessionManager.isValid(session))
 				{
+					// 推迟Session的过期时间
+					session.access(System.currentTimeMillis());
+
 					_session = session;
 					return _session;
 				}
@@ -1666,7 +1650,7 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		if (_sessionManager == null)
 			throw new IllegalStateException("No SessionManager");
 
-		_session = _sessionManager.createNewSession(this);
+		_session = acquired(_sessionManager.createNewSession(this));
 
 		Cookie cookie = _sessionManager.getSessionCookie(_session, getContextPath(), isSecure());
 
@@ -1688,6 +1672,44 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		return _sessionManager;
 	}
 
+	/* ------------------------------------------------------------ */
+	/**
+	 * 把本请求对Session的修改写入外部的SessionStore(未设置SessionStore或Session未改变时不做任何事),须在发送响应之前调用
+	 */
+	public void saveSession()
+	{
+		if (_session != null && _sessionManager != null)
+			_sessionManager.saveSession(_session);
+	}
+
+	private HttpSessionImpl acquired(HttpSessionImpl session)
+	{
+		if (session != null)
+		{
+			if (_acquiredSessions == null)
+				_acquiredSessions = new ArrayList<HttpSessionImpl>(1);
+
+			_acquiredSessions.add(session);
+		}
+
+		return session;
+	}
+
+	/* ------------------------------------------------------------ */
+	/**
+	 * 请求结束:释放本请求取得的Session,之后它们才可以被钝化到溢出存储中
+	 */
+	public void releaseSessions()
+	{
+		if (_acquiredSessions == null)
+			return;
+
+		for (HttpSessionImpl session : _acquiredSessions)
+			_sessionManager.releaseSession(session);
+
+		_acquiredSessions = null;
+	}
+
 	/* ------------------------------------------------------------ */
 	/**
 	 * Get HttpServletRequestImpl TimeStamp
@@ -1858,8 +1880,6 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		_servletPath = null;
 		_timeStamp = 0;
 		// _uri = null;
-		if (_parameters != null)
-			_parameters.clear();
 		_parameters = null;
 		_paramsExtracted = false;
 
@@ -2123,18 +2143,6 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		return HttpMethod.HEAD == _httpMethod;
 	}
 
-	/* ------------------------------------------------------------ */
-	/**
-	 * @param parameters
-	 *            The parameters to set.
-	 */
-	public void setParameters(Map<String, List<String>> parameters)
-	{
-		_parameters = (parameters == null) ? _parameters : parameters;
-		if (_paramsExtracted && _parameters == null)
-			throw new IllegalStateException();
-	}
-
 	/* ------------------------------------------------------------ */
 	/**
 	 * @param pathInfo
@@ -2340,59 +2348,91 @@ public class HttpServletRequestImpl implements HttpServletRequest
 	@Override
 	public Part getPart(String name) throws IOException, ServletException
 	{
-		/*
-		 * if (getContentType() == null || !getContentType().startsWith("multipart/form-data")) throw new
-		 * ServletException("Content-Type != multipart/form-data");
-		 * 
-		 * if (_multiPartInputStream == null) { MultipartConfigElement config =
-		 * (MultipartConfigElement)getAttribute(__MULTIPART_CONFIG_ELEMENT);
-		 * 
-		 * if (config == null) throw new IllegalStateException("No multipart config for servlet");
-		 * 
-		 * _multiPartInputStream = new MultiPartInputStreamParser(getInputStream(), getContentType(),config,
-		 * (servletContext != null?(File)servletContext.getAttribute("javax.servlet.context.tempdir"):null));
-		 * setAttribute(__MULTIPART_INPUT_STREAM, _multiPartInputStream); setAttribute(__MULTIPART_CONTEXT,
-		 * servletContext); Collection<Part> parts = _multiPartInputStream.getParts(); //causes parsing for (Part
-		 * p:parts) { MultiPartInputStreamParser.MultiPart mp = (MultiPartInputStreamParser.MultiPart)p; if
-		 * (mp.getContentDispositionFilename() == null && mp.getFile() == null) { //Servlet Spec 3.0 pg 23, parts
-		 * without filenames must be put into init params String charset = null; if (mp.getContentType() != null)
-		 * charset = MimeTypes.getCharsetFromContentType(mp.getContentType());
-		 * 
-		 * String content=new String(mp.getBytes(),charset==null?StringUtil.__UTF8:charset); getParameter(""); //cause
-		 * params to be evaluated getParameters().add(mp.getName(), content); } } } return
-		 * _multiPartInputStream.getPart(name);
-		 */
-		throw new UnsupportedOperationException();
+		return getMultipartFormData().getPart(name);
 	}
 
 	/* ------------------------------------------------------------ */
 	@Override
 	public Collection<Part> getParts() throws IOException, ServletException
 	{
-		/*
-		 * if (getContentType() == null || !getContentType().startsWith("multipart/form-data")) throw new
-		 * ServletException("Content-Type != multipart/form-data");
-		 * 
-		 * if (_multiPartInputStream == null) { MultipartConfigElement config =
-		 * (MultipartConfigElement)getAttribute(__MULTIPART_CONFIG_ELEMENT);
-		 * 
-		 * if (config == null) throw new IllegalStateException("No multipart config for servlet");
-		 * 
-		 * _multiPartInputStream = new MultiPartInputStreamParser(getInputStream(), getContentType(), config,
-		 * (servletContext != null?(File)servletContext.getAttribute("javax.servlet.context.tempdir"):null));
-		 * 
-		 * setAttribute(__MULTIPART_INPUT_STREAM, _multiPartInputStream); setAttribute(__MULTIPART_CONTEXT,
-		 * servletContext); Collection<Part> parts = _multiPartInputStream.getParts(); //causes parsing for (Part
-		 * p:parts) { MultiPartInputStreamParser.MultiPart mp = (MultiPartInputStreamParser.MultiPart)p; if
-		 * (mp.getContentDispositionFilename() == null && mp.getFile() == null) { //Servlet Spec 3.0 pg 23, parts
-		 * without filenames must be put into init params String charset = null; if (mp.getContentType() != null)
-		 * charset = MimeTypes.getCharsetFromContentType(mp.getContentType());
-		 * 
-		 * String content=new String(mp.getBytes(),charset==null?StringUtil.__UTF8:charset); getParameter(""); //cause
-		 * params to be evaluated getParameters().add(mp.getName(), content); } } } return
-		 * _multiPartInputStream.getParts();
-		 */
-		throw new UnsupportedOperationException();
+		return getMultipartFormData().getParts();
+	}
+
+	/**
+	 * 取得multipart/form-data请求体的解析结果.
+	 *
+	 * 请求体通常已被MultipartStreamHandler在到达时流式解析;否则(请求体已被聚合)在第一次调用时解析聚合后的请求体.
+	 *
+	 * @throws ServletException
+	 *             Content-Type不是multipart/form-data
+	 * @throws IllegalStateException
+	 *             Servlet没有配置MultipartConfigElement
+	 */
+	private MultipartFormData getMultipartFormData() throws IOException, ServletException
+	{
+		if (_multipartFormData != null)
+			return _multipartFormData;
+
+		String boundary = MultipartParser.getBoundary(getContentType());
+
+		if (boundary == null)
+			throw new ServletException("Content-Type != multipart/form-data");
+
+		MultipartConfigElement config = _invocation != null ? _invocation.getFilterChainInvocation().getMultipartConfig() : null;
+
+		if (config == null)
+			throw new IllegalStateException("No multipart config for servlet");
+
+		String encoding = getCharacterEncoding();
+
+		Charset headerCharset = encoding != null && Charset.isSupported(encoding) ? Charset.forName(encoding) : null;
+
+		MultipartParser parser = new MultipartParser(boundary, config, _webApp.getTempDir(), headerCharset);
+
+		// [0,writerIndex) of body,不受getInputStream()读取的影响
+		ByteBuf content = body.content().duplicate();
+		content.readerIndex(0);
+
+		try
+		{
+			parser.offer(content);
+		}
+		catch (IllegalStateException e)
+		{
+			// 由MultipartFormData#getParts()抛出
+		}
+		catch (IOException e)
+		{
+			// 由MultipartFormData#getParts()抛出
+		}
+
+		_multipartFormData = parser.finish();
+
+		return _multipartFormData;
+	}
+
+	/**
+	 * @param formData
+	 *            已被流式解析的multipart/form-data请求体,其Content-Length被恢复为原请求体的长度
+	 */
+	public void setMultipartFormData(MultipartFormData formData)
+	{
+		_multipartFormData = formData;
+
+		if (formData != null && formData.getContentLength() >= 0)
+			HttpHeaders.setContentLength(request, formData.getContentLength());
+	}
+
+	/**
+	 * 请求结束:释放multipart/form-data的part占用的内存,删除临时文件
+	 */
+	public void releaseMultipartFormData()
+	{
+		if (_multipartFormData != null)
+		{
+			_multipartFormData.release();
+			_multipartFormData = null;
+		}
 	}
 
 	/* ------------------------------------------------------------ */
@@ -2454,8 +2494,11 @@ public class HttpServletRequestImpl implements HttpServletRequest
 		return request;
 	}
 
-	public Map<String, List<String>> getParameters()
+	public UrlEncodedParameters getParameters()
 	{
+		if (!_paramsExtracted)
+			extractParameters();
+
 		return _parameters;
 	}
 
@@ -0,0 +1,133 @@
+package org.ireland.jnetty.http.multipart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.Part;
+
+/**
+ * 一个multipart/form-data请求体的解析结果
+ *
+ * 请求处理完毕后须调用release(),释放part占用的内存及删除临时文件.
+ *
+ * @author KEN
+ *
+ */
+public class MultipartFormData
+{
+	private final List<MultipartPart> _parts;
+
+	// 解析失败的原因,成功时为null
+	private final Exception _failure;
+
+	// 请求体的长度,未知时为-1
+	private long _contentLength = -1;
+
+	MultipartFormData(List<MultipartPart> parts, Exception failure)
+	{
+		_parts = parts;
+		_failure = failure;
+	}
+
+	/**
+	 * @return 请求体的长度(流式解析的请求被HttpObjectAggregator改为0),未知时为-1
+	 */
+	public long getContentLength()
+	{
+		return _contentLength;
+	}
+
+	public void setContentLength(long contentLength)
+	{
+		_contentLength = contentLength;
+	}
+
+	/**
+	 * @return 所有的part
+	 * @throws IllegalStateException
+	 *             请求超出了MultipartConfigElement的限制
+	 * @throws IOException
+	 *             请求体格式错误
+	 */
+	public Collection<Part> getParts() throws IOException
+	{
+		checkFailure();
+
+		return Collections.<Part> unmodifiableList(_parts);
+	}
+
+	/**
+	 * @param name
+	 * @return 第一个名为name的part,不存在时返回null
+	 */
+	public Part getPart(String name) throws IOException
+	{
+		checkFailure();
+
+		for (MultipartPart part : _parts)
+		{
+			if (part.getName().equals(name))
+				return part;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return 没有filename的part(即普通的表单字段),解析失败时为空
+	 */
+	public List<MultipartPart> getFormFields()
+	{
+		if (_failure != null)
+			return Collections.emptyList();
+
+		List<MultipartPart> fields = new ArrayList<MultipartPart>();
+
+		for (MultipartPart part : _parts)
+		{
+			if (part.getSubmittedFileName() == null)
+				fields.add(part);
+		}
+
+		return fields;
+	}
+
+	public boolean isFailed()
+	{
+		return _failure != null;
+	}
+
+	private void checkFailure() throws IOException
+	{
+		if (_failure == null)
+			return;
+
+		if (_failure instanceof IllegalStateException)
+			throw new IllegalStateException(_failure.getMessage(), _failure);
+
+		if (_failure instanceof IOException)
+			throw new IOException(_failure.getMessage(), _failure);
+
+		throw new IOException(_failure.toString(), _failure);
+	}
+
+	/**
+	 * 释放所有part的内存及删除临时文件
+	 */
+	public void release()
+	{
+		for (MultipartPart part : _parts)
+		{
+			part.release();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[parts=" + _parts + (_failure != null ? ",failure=" + _failure : "") + "]";
+	}
+}
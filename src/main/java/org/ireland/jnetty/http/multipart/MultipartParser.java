@@ -0,0 +1,614 @@
+package org.ireland.jnetty.http.multipart;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.MultipartConfigElement;
+
+/**
+ * multipart/form-data的增量解析器(RFC 2046 / RFC 2388)
+ *
+ * 请求体可以按任意大小的片段(如Netty的HttpContent)依次传给offer(),解析器只保存当前part的header及"可能是分隔符"的几个字节,
+ * part的内容被逐段写入MultipartPart(不超过fileSizeThreshold时保存在池化的内存中,超出后写入临时文件),故解析一个2G的文件也只占用固定的堆内存.
+ *
+ * 分隔符为"\r\n--boundary",由于boundary中不能有'\r',部分匹配失败时只需要从当前字节重新开始匹配.
+ *
+ * 遵守MultipartConfigElement的限制:超出maxFileSize或maxRequestSize时解析失败(IllegalStateException),之后的数据被忽略.
+ *
+ * 非线程安全.
+ *
+ * @author KEN
+ *
+ */
+public class MultipartParser
+{
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// 一个part的所有header的最大字节数
+	private static final int MAX_HEADER_SIZE = 8192;
+
+	// 第一个分隔符之前的内容(忽略)
+	private static final int PREAMBLE = 0;
+
+	// 分隔符之后:"--"(结束) 或 "\r\n"(下一个part的header)
+	private static final int DELIMITER_TAIL = 1;
+
+	private static final int HEADERS = 2;
+
+	private static final int BODY = 3;
+
+	// 最后一个分隔符之后的内容(忽略)
+	private static final int EPILOGUE = 4;
+
+	private static final int FAILED = 5;
+
+	// "\r\n--" + boundary
+	private final byte[] _delimiter;
+
+	private final File _location;
+
+	private final long _maxFileSize;
+
+	private final long _maxRequestSize;
+
+	private final int _fileSizeThreshold;
+
+	// header的字符集(浏览器以页面的字符集发送filename)
+	private final Charset _headerCharset;
+
+	private int _state = PREAMBLE;
+
+	// 已匹配的分隔符字节数
+	private int _matched;
+
+	// 本次offer()之前已匹配(而未写入part)的分隔符字节数
+	private int _held;
+
+	// 本次offer()中分隔符开始匹配的位置
+	private int _matchStart;
+
+	// DELIMITER_TAIL状态已读到的字符
+	private int _tail;
+
+	private byte[] _header = new byte[256];
+
+	private int _headerLength;
+
+	private MultipartPart _part;
+
+	private final List<MultipartPart> _parts = new ArrayList<MultipartPart>();
+
+	private long _requestSize;
+
+	private Exception _failure;
+
+	// 非堆内存的ByteBuf按块复制到这里解析
+	private byte[] _scratch;
+
+	/**
+	 * @param boundary
+	 *            Content-Type中的boundary参数
+	 * @param config
+	 *            Servlet的MultipartConfigElement
+	 * @param tempDir
+	 *            WebApp的临时目录,config.getLocation()为相对路径时相对于该目录
+	 * @param headerCharset
+	 *            part的header的字符集,null时为UTF-8
+	 */
+	public MultipartParser(String boundary, MultipartConfigElement config, File tempDir, Charset headerCharset)
+	{
+		_delimiter = ("\r\n--" + boundary).getBytes(ISO_8859_1);
+
+		String location = config.getLocation();
+
+		if (location == null || location.length() == 0)
+			_location = tempDir;
+		else if (new File(location).isAbsolute())
+			_location = new File(location);
+		else
+			_location = new File(tempDir, location);
+
+		_maxFileSize = config.getMaxFileSize();
+		_maxRequestSize = config.getMaxRequestSize();
+		_fileSizeThreshold = config.getFileSizeThreshold();
+
+		_headerCharset = headerCharset != null ? headerCharset : UTF_8;
+
+		// 第一个分隔符前面可以没有"\r\n"
+		_matched = 2;
+		_held = 2;
+	}
+
+	/**
+	 * 取得Content-Type中的boundary参数
+	 *
+	 * @param contentType
+	 * @return 不是multipart/form-data或没有boundary时返回null
+	 */
+	public static String getBoundary(String contentType)
+	{
+		if (contentType == null || !contentType.regionMatches(true, 0, "multipart/form-data", 0, 19))
+			return null;
+
+		String boundary = getParameter(contentType, "boundary");
+
+		return boundary != null && boundary.length() > 0 ? boundary : null;
+	}
+
+	/**
+	 * 解析请求体的一个片段(不改变ByteBuf的readerIndex)
+	 *
+	 * @throws IllegalStateException
+	 *             超出maxFileSize或maxRequestSize
+	 * @throws IOException
+	 *             格式错误或写入临时文件失败
+	 */
+	public void offer(ByteBuf content) throws IOException
+	{
+		int index = content.readerIndex();
+		int length = content.readableBytes();
+
+		if (content.hasArray())
+		{
+			offer(content.array(), content.arrayOffset() + index, length);
+			return;
+		}
+
+		if (_scratch == null)
+			_scratch = new byte[8192];
+
+		while (length > 0)
+		{
+			int n = Math.min(length, _scratch.length);
+
+			content.getBytes(index, _scratch, 0, n);
+
+			offer(_scratch, 0, n);
+
+			index += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * 解析请求体的一个片段
+	 *
+	 * @throws IllegalStateException
+	 *             超出maxFileSize或maxRequestSize
+	 * @throws IOException
+	 *             格式错误或写入临时文件失败
+	 */
+	public void offer(byte[] buf, int offset, int length) throws IOException
+	{
+		if (_state == FAILED)
+			return;
+
+		try
+		{
+			_requestSize += length;
+
+			if (_maxRequestSize > 0 && _requestSize > _maxRequestSize)
+				throw new IllegalStateException("Request exceeds maxRequestSize " + _maxRequestSize);
+
+			parse(buf, offset, offset + length);
+		}
+		catch (IOException e)
+		{
+			fail(e);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			fail(e);
+			throw e;
+		}
+	}
+
+	private void parse(byte[] buf, int i, int end) throws IOException
+	{
+		while (i < end)
+		{
+			switch (_state)
+			{
+			case PREAMBLE:
+			case BODY:
+				i = parseBody(buf, i, end);
+				break;
+
+			case DELIMITER_TAIL:
+				i = parseDelimiterTail(buf, i, end);
+				break;
+
+			case HEADERS:
+				i = parseHeaders(buf, i, end);
+				break;
+
+			default:
+				// EPILOGUE
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 查找分隔符,分隔符之前的内容写入当前的part(PREAMBLE状态时丢弃)
+	 *
+	 * @return 已处理到的位置
+	 */
+	private int parseBody(byte[] buf, int offset, int end) throws IOException
+	{
+		byte[] delimiter = _delimiter;
+
+		int runStart = offset;
+
+		int i = offset;
+
+		while (i < end)
+		{
+			if (buf[i] == delimiter[_matched])
+			{
+				if (_matched == 0)
+					_matchStart = i;
+
+				_matched++;
+				i++;
+
+				if (_matched == delimiter.length)
+				{
+					// 分隔符之前的内容(分隔符从上一个片段开始时,本片段中没有内容)
+					writeContent(buf, runStart, (_held > 0 ? offset : _matchStart) - runStart);
+
+					_matched = 0;
+					_held = 0;
+
+					endPart();
+
+					_state = DELIMITER_TAIL;
+					_tail = 0;
+
+					return i;
+				}
+			}
+			else if (_matched > 0)
+			{
+				// 部分匹配失败:之前匹配的字节是内容.上一个片段中匹配的字节已不在buf中,从分隔符中取回
+				if (_held > 0)
+				{
+					writeContent(delimiter, 0, _held);
+					_held = 0;
+				}
+
+				// 分隔符的第一个字节'\r'不会出现在分隔符的其它位置,从当前字节重新开始匹配即可
+				_matched = 0;
+			}
+			else
+			{
+				i++;
+			}
+		}
+
+		if (_matched > 0)
+		{
+			// 片段末尾可能是分隔符的开始,暂不写入
+			writeContent(buf, runStart, (_held > 0 ? offset : _matchStart) - runStart);
+
+			_held = _matched;
+		}
+		else
+		{
+			writeContent(buf, runStart, end - runStart);
+		}
+
+		return end;
+	}
+
+	private void writeContent(byte[] buf, int offset, int length) throws IOException
+	{
+		if (_part != null && length > 0)
+			_part.write(buf, offset, length);
+	}
+
+	private void endPart() throws IOException
+	{
+		if (_part != null)
+		{
+			_part.close();
+			_part = null;
+		}
+	}
+
+	/**
+	 * 分隔符之后: "--"表示结束,否则跳过空白直到"\r\n"
+	 */
+	private int parseDelimiterTail(byte[] buf, int i, int end) throws IOException
+	{
+		while (i < end)
+		{
+			byte b = buf[i++];
+
+			if (_tail == '-')
+			{
+				if (b != '-')
+					throw new IOException("Bad multipart delimiter");
+
+				_state = EPILOGUE;
+				return end;
+			}
+			else if (_tail == '\r')
+			{
+				if (b != '\n')
+					throw new IOException("Bad multipart delimiter");
+
+				_state = HEADERS;
+				_headerLength = 0;
+				return i;
+			}
+			else if (b == '-' || b == '\r')
+			{
+				_tail = b;
+			}
+			else if (b != ' ' && b != '\t')
+			{
+				throw new IOException("Bad multipart delimiter");
+			}
+		}
+
+		return end;
+	}
+
+	/**
+	 * 读取part的header直到空行
+	 */
+	private int parseHeaders(byte[] buf, int i, int end) throws IOException
+	{
+		while (i < end)
+		{
+			byte b = buf[i++];
+
+			if (_headerLength == _header.length)
+			{
+				if (_headerLength >= MAX_HEADER_SIZE)
+					throw new IOException("Multipart headers exceed " + MAX_HEADER_SIZE + " bytes");
+
+				byte[] header = new byte[_header.length * 2];
+				System.arraycopy(_header, 0, header, 0, _headerLength);
+				_header = header;
+			}
+
+			_header[_headerLength++] = b;
+
+			// 空行: 没有header的"\r\n" 或 "...\r\n\r\n"
+			if (b == '\n' && endsWithBlankLine())
+			{
+				startPart(new String(_header, 0, _headerLength, _headerCharset));
+
+				_state = BODY;
+				return i;
+			}
+		}
+
+		return end;
+	}
+
+	private boolean endsWithBlankLine()
+	{
+		int n = _headerLength;
+
+		if (n == 2)
+			return _header[0] == '\r';
+
+		return n >= 4 && _header[n - 2] == '\r' && _header[n - 3] == '\n' && _header[n - 4] == '\r';
+	}
+
+	private void startPart(String headerBlock) throws IOException
+	{
+		Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>(4);
+
+		String lastName = null;
+
+		for (String line : headerBlock.split("\r\n"))
+		{
+			if (line.length() == 0)
+				continue;
+
+			char c = line.charAt(0);
+
+			// 折行(obsolete line folding)
+			if ((c == ' ' || c == '\t') && lastName != null)
+			{
+				List<String> values = headers.get(lastName);
+				values.set(values.size() - 1, values.get(values.size() - 1) + " " + line.trim());
+				continue;
+			}
+
+			int colon = line.indexOf(':');
+
+			if (colon <= 0)
+				throw new IOException("Bad multipart header: " + line);
+
+			lastName = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+
+			List<String> values = headers.get(lastName);
+
+			if (values == null)
+			{
+				values = new ArrayList<String>(1);
+				headers.put(lastName, values);
+			}
+
+			values.add(line.substring(colon + 1).trim());
+		}
+
+		List<String> disposition = headers.get("content-disposition");
+
+		if (disposition == null)
+			throw new IOException("Missing Content-Disposition in multipart");
+
+		String name = getParameter(disposition.get(0), "name");
+
+		if (name == null)
+			throw new IOException("Missing name in Content-Disposition: " + disposition.get(0));
+
+		String fileName = getParameter(disposition.get(0), "filename");
+
+		_part = new MultipartPart(this, name, fileName, headers);
+
+		_parts.add(_part);
+	}
+
+	/**
+	 * 取得header中的参数值(如 form-data; name="file"; filename="a.txt" 中的name),去掉引号
+	 */
+	static String getParameter(String header, String name)
+	{
+		int i = indexOfParameter(header, name);
+
+		if (i < 0)
+			return null;
+
+		int length = header.length();
+
+		if (i < length && header.charAt(i) == '"')
+		{
+			StringBuilder sb = new StringBuilder();
+
+			for (i++; i < length; i++)
+			{
+				char c = header.charAt(i);
+
+				if (c == '"')
+					break;
+
+				// 只转义引号及反斜杠,IE会发送不转义的Windows路径
+				if (c == '\\' && i + 1 < length && (header.charAt(i + 1) == '"' || header.charAt(i + 1) == '\\'))
+					c = header.charAt(++i);
+
+				sb.append(c);
+			}
+
+			return sb.toString();
+		}
+
+		int end = header.indexOf(';', i);
+
+		return (end < 0 ? header.substring(i) : header.substring(i, end)).trim();
+	}
+
+	/**
+	 * @return 参数name的值的开始位置(跳过'='后的空白),不存在时返回-1
+	 */
+	private static int indexOfParameter(String header, String name)
+	{
+		int length = header.length();
+
+		int i = header.indexOf(';');
+
+		while (i >= 0)
+		{
+			int start = i + 1;
+
+			int eq = header.indexOf('=', start);
+
+			if (eq < 0)
+				return -1;
+
+			if (header.substring(start, eq).trim().equalsIgnoreCase(name))
+			{
+				int value = eq + 1;
+
+				while (value < length && (header.charAt(value) == ' ' || header.charAt(value) == '\t'))
+					value++;
+
+				return value;
+			}
+
+			i = nextSemicolon(header, eq + 1);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * 查找下一个不在引号中的';'
+	 */
+	private static int nextSemicolon(String header, int from)
+	{
+		boolean quoted = false;
+
+		for (int i = from; i < header.length(); i++)
+		{
+			char c = header.charAt(i);
+
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == '\\' && quoted)
+				i++;
+			else if (c == ';' && !quoted)
+				return i;
+		}
+
+		return -1;
+	}
+
+	private void fail(Exception e)
+	{
+		_state = FAILED;
+		_failure = e;
+
+		for (MultipartPart part : _parts)
+		{
+			part.release();
+		}
+
+		_part = null;
+	}
+
+	/**
+	 * 请求体已全部传入
+	 *
+	 * @return 解析的结果(解析失败时,MultipartFormData#getParts()抛出失败的原因)
+	 */
+	public MultipartFormData finish()
+	{
+		if (_state != EPILOGUE && _state != FAILED)
+			fail(new IOException("Incomplete multipart request body"));
+
+		return new MultipartFormData(_parts, _failure);
+	}
+
+	/**
+	 * 放弃解析(如连接中断),释放所有part
+	 */
+	public void abort()
+	{
+		if (_state != FAILED)
+			fail(new IOException("Multipart request aborted"));
+	}
+
+	// config----------------------------------------------------------------
+
+	File getLocation()
+	{
+		return _location;
+	}
+
+	long getMaxFileSize()
+	{
+		return _maxFileSize;
+	}
+
+	int getFileSizeThreshold()
+	{
+		return _fileSizeThreshold;
+	}
+}
@@ -0,0 +1,336 @@
+package org.ireland.jnetty.http.multipart;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.Part;
+
+/**
+ * multipart/form-data中的一个part
+ *
+ * part的内容在解析时被逐段写入:不超过fileSizeThreshold时保存在池化的ByteBuf中,超出后转存到临时文件中(之后的内容直接写入文件).
+ *
+ * @author KEN
+ *
+ */
+public class MultipartPart implements Part
+{
+	private final String _name;
+
+	private final String _fileName;
+
+	// <小写的header名称,values>
+	private final Map<String, List<String>> _headers;
+
+	private final MultipartParser _parser;
+
+	private ByteBuf _memory;
+
+	private File _file;
+
+	// _file是否是解析时创建的临时文件(被write(fileName)改名后不再是)
+	private boolean _temporary;
+
+	private OutputStream _out;
+
+	private long _size;
+
+	MultipartPart(MultipartParser parser, String name, String fileName, Map<String, List<String>> headers)
+	{
+		_parser = parser;
+		_name = name;
+		_fileName = fileName;
+		_headers = headers;
+	}
+
+	/**
+	 * 追加part的内容
+	 *
+	 * @throws IllegalStateException
+	 *             超出maxFileSize
+	 */
+	void write(byte[] buf, int offset, int length) throws IOException
+	{
+		if (length == 0)
+			return;
+
+		_size += length;
+
+		long maxFileSize = _parser.getMaxFileSize();
+
+		if (maxFileSize > 0 && _size > maxFileSize)
+			throw new IllegalStateException("Part '" + _name + "' exceeds maxFileSize " + maxFileSize);
+
+		if (_out == null && _size > _parser.getFileSizeThreshold())
+			spill();
+
+		if (_out != null)
+		{
+			_out.write(buf, offset, length);
+		}
+		else
+		{
+			if (_memory == null)
+				_memory = PooledByteBufAllocator.DEFAULT.heapBuffer(length);
+
+			_memory.writeBytes(buf, offset, length);
+		}
+	}
+
+	/**
+	 * 超出fileSizeThreshold:把内存中的内容转存到临时文件中
+	 */
+	private void spill() throws IOException
+	{
+		File dir = _parser.getLocation();
+
+		if (!dir.exists())
+			dir.mkdirs();
+
+		_file = File.createTempFile("MultiPart", "", dir);
+		_temporary = true;
+
+		// 请求体按HttpContent分成很多小块到达,不缓冲时每一块都是一次系统调用
+		_out = new BufferedOutputStream(new FileOutputStream(_file), 64 * 1024);
+
+		if (_memory != null)
+		{
+			_memory.readBytes(_out, _memory.readableBytes());
+
+			_memory.release();
+			_memory = null;
+		}
+	}
+
+	/**
+	 * part的内容已写完
+	 */
+	void close() throws IOException
+	{
+		if (_out != null)
+		{
+			_out.close();
+			_out = null;
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		if (_file != null)
+			return new FileInputStream(_file);
+
+		if (_memory == null)
+			return new ByteArrayInputStream(new byte[0]);
+
+		return new ByteArrayInputStream(_memory.array(), _memory.arrayOffset() + _memory.readerIndex(), _memory.readableBytes());
+	}
+
+	/**
+	 * @return part的内容按charset转换的字符串
+	 */
+	public String getString(Charset charset) throws IOException
+	{
+		if (_memory != null)
+			return _memory.toString(charset);
+
+		if (_file == null)
+			return "";
+
+		InputStream in = getInputStream();
+
+		try
+		{
+			byte[] bytes = new byte[(int) _size];
+
+			int n = 0;
+
+			while (n < bytes.length)
+			{
+				int len = in.read(bytes, n, bytes.length - n);
+
+				if (len < 0)
+					break;
+
+				n += len;
+			}
+
+			return new String(bytes, 0, n, charset);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	@Override
+	public String getContentType()
+	{
+		return getHeader("content-type");
+	}
+
+	@Override
+	public String getName()
+	{
+		return _name;
+	}
+
+	/**
+	 * @return Content-Disposition中的filename,不是文件上传的part返回null
+	 */
+	public String getSubmittedFileName()
+	{
+		return _fileName;
+	}
+
+	@Override
+	public long getSize()
+	{
+		return _size;
+	}
+
+	/**
+	 * @return 转存的临时文件,内容保存在内存中时返回null
+	 */
+	public File getFile()
+	{
+		return _file;
+	}
+
+	@Override
+	public void write(String fileName) throws IOException
+	{
+		File target = new File(fileName);
+
+		if (!target.isAbsolute())
+			target = new File(_parser.getLocation(), fileName);
+
+		close();
+
+		// 已转存到文件:直接改名
+		if (_file != null && _file.renameTo(target))
+		{
+			_file = target;
+			_temporary = false;
+			return;
+		}
+
+		InputStream in = getInputStream();
+
+		try
+		{
+			OutputStream out = new FileOutputStream(target);
+
+			try
+			{
+				byte[] buf = new byte[8192];
+
+				int len;
+
+				while ((len = in.read(buf)) > 0)
+				{
+					out.write(buf, 0, len);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	@Override
+	public void delete() throws IOException
+	{
+		release();
+
+		if (_file != null)
+		{
+			_file.delete();
+			_file = null;
+		}
+	}
+
+	/**
+	 * 请求结束时释放part占用的资源:释放内存,删除临时文件(已被write(fileName)保存的文件不删除)
+	 */
+	void release()
+	{
+		if (_memory != null)
+		{
+			_memory.release();
+			_memory = null;
+		}
+
+		if (_out != null)
+		{
+			try
+			{
+				_out.close();
+			}
+			catch (IOException e)
+			{
+			}
+
+			_out = null;
+		}
+
+		if (_file != null && _temporary)
+		{
+			_file.delete();
+			_file = null;
+		}
+	}
+
+	@Override
+	public String getHeader(String name)
+	{
+		List<String> values = _headers.get(name.toLowerCase(Locale.ENGLISH));
+
+		return values == null ? null : values.get(0);
+	}
+
+	@Override
+	public Collection<String> getHeaders(String name)
+	{
+		List<String> values = _headers.get(name.toLowerCase(Locale.ENGLISH));
+
+		if (values == null)
+			return Collections.emptyList();
+
+		return new ArrayList<String>(values);
+	}
+
+	@Override
+	public Collection<String> getHeaderNames()
+	{
+		return new ArrayList<String>(_headers.keySet());
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + _name + (_fileName != null ? "," + _fileName : "") + ",size=" + _size
+				+ (_file != null ? "," + _file : "") + "]";
+	}
+}
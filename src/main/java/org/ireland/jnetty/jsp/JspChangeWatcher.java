@@ -0,0 +1,200 @@
+package org.ireland.jnetty.jsp;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 基于WatchService(Linux下即inotify)的JSP文件变更检测
+ *
+ * 由一条后台线程监听WebApp根目录(及其所有子目录)下文件的变更,只让受影响的JSP页面(页面本身或其include的文件发生了变化)的
+ * JspServletWrapper失效,下次请求时再重新编译.这样请求路径及周期性的检查都不需要再stat JSP文件.
+ *
+ * @author KEN
+ *
+ */
+public class JspChangeWatcher implements Runnable
+{
+	private static final Log log = LogFactory.getLog(JspChangeWatcher.class);
+
+	private static final boolean debug = log.isDebugEnabled();
+
+	private final JspServletComposite _jspServlet;
+
+	// WebApp的根目录
+	private final Path _root;
+
+	private final WatchService _watchService;
+
+	private Thread _thread;
+
+	private volatile boolean _closed;
+
+	public JspChangeWatcher(JspServletComposite jspServlet, String rootDirectory) throws IOException
+	{
+		_jspServlet = jspServlet;
+		_root = Paths.get(rootDirectory).toAbsolutePath().normalize();
+		_watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * 注册所有目录,并启动监听线程
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException
+	{
+		registerAll(_root);
+
+		_thread = new Thread(this, "jsp-watcher");
+		_thread.setDaemon(true);
+		_thread.start();
+
+		log.info("watching JSP changes under " + _root);
+	}
+
+	/**
+	 * 停止监听
+	 */
+	public void close()
+	{
+		_closed = true;
+
+		try
+		{
+			_watchService.close();
+		}
+		catch (IOException e)
+		{
+			log.debug(e.toString(), e);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (!_closed)
+		{
+			WatchKey key;
+
+			try
+			{
+				key = _watchService.take();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			catch (ClosedWatchServiceException e)
+			{
+				return;
+			}
+
+			Path dir = (Path) key.watchable();
+
+			for (WatchEvent<?> event : key.pollEvents())
+			{
+				try
+				{
+					handleEvent(dir, event);
+				}
+				catch (Exception e)
+				{
+					log.warn(e.toString(), e);
+				}
+			}
+
+			key.reset();
+		}
+	}
+
+	/**
+	 * 处理一个文件变更事件
+	 *
+	 * @param dir
+	 * @param event
+	 * @throws IOException
+	 */
+	private void handleEvent(Path dir, WatchEvent<?> event) throws IOException
+	{
+		// 事件丢失,无法知道哪些文件发生了变化,只能让所有的JSP页面失效
+		if (event.kind() == OVERFLOW)
+		{
+			log.warn("JSP watch events overflowed, invalidating all JSPs");
+
+			_jspServlet.invalidateAll();
+
+			return;
+		}
+
+		Path path = dir.resolve((Path) event.context());
+
+		// 新建的目录也需要监听
+		if (event.kind() == ENTRY_CREATE && Files.isDirectory(path))
+		{
+			registerAll(path);
+			return;
+		}
+
+		String uri = toURI(path);
+
+		if (debug)
+			log.debug(event.kind().name() + ": " + uri);
+
+		_jspServlet.invalidate(uri);
+	}
+
+	/**
+	 * 递归地注册目录及其所有子目录
+	 *
+	 * @param start
+	 * @throws IOException
+	 */
+	private void registerAll(Path start) throws IOException
+	{
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				dir.register(_watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * 把文件的路径转换为相对于WebApp根目录的URI,如: /WEB-INF/jsp/header.jspf
+	 *
+	 * @param path
+	 * @return
+	 */
+	private String toURI(Path path)
+	{
+		String relative = _root.relativize(path).toString();
+
+		if (File.separatorChar != '/')
+			relative = relative.replace(File.separatorChar, '/');
+
+		return "/" + relative;
+	}
+}
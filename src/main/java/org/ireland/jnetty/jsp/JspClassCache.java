@@ -0,0 +1,477 @@
+package org.ireland.jnetty.jsp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jasper.servlet.JspServletWrapper;
+
+/**
+ * 跨重启持久化的JSP编译结果缓存
+ *
+ * Jasper把编译后的.java/.class文件写在scratchDir中,但只按文件的修改时间(lastModified)判断是否需要重新编译,
+ * 每次重新部署后JSP文件的修改时间都会改变,导致所有的JSP页面都被重新编译.
+ *
+ * JspClassCache在scratchDir中保存一个清单文件,记录每个JSP页面及其include文件的内容哈希(SHA-1),编译时的修改时间,以及编译结果(.class/.java)的位置.
+ * 启动时,若JSP页面及其include文件的内容没有变化,则把编译结果的修改时间设为JSP页面当前的修改时间,Jasper即会直接加载已编译的类,而不会重新编译.
+ *
+ * 只修改scratchDir中自己的输出,从不修改WebApp中的文件.Jasper把include文件编译时的修改时间写在生成的类中,
+ * 所以include文件的修改时间改变了的页面(即使内容相同)仍需重新编译.
+ *
+ * @author KEN
+ *
+ */
+public class JspClassCache
+{
+	private static final Log log = LogFactory.getLog(JspClassCache.class);
+
+	private static final boolean debug = log.isDebugEnabled();
+
+	// 清单文件名
+	static final String MANIFEST_FILE = "jsp-class-cache.properties";
+
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final ServletContext _context;
+
+	private final File _workDir;
+
+	private final File _manifestFile;
+
+	// <jspUri,Entry> 从清单文件中加载的,或本次运行中记录的缓存项
+	private final Map<String, CacheEntry> _entries = new ConcurrentHashMap<String, CacheEntry>();
+
+	// 本次运行中被编译或执行过的JSP页面,关闭时需要重新记录
+	private final Set<String> _touched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public JspClassCache(ServletContext context, File workDir)
+	{
+		_context = context;
+		_workDir = workDir;
+		_manifestFile = new File(workDir, MANIFEST_FILE);
+	}
+
+	/**
+	 * 加载清单文件,并把内容未改变的JSP页面的编译结果标记为最新
+	 *
+	 * @return 可重用已编译类的JSP页面数
+	 */
+	public int load()
+	{
+		if (!_manifestFile.isFile())
+			return 0;
+
+		long start = System.currentTimeMillis();
+
+		Properties props = new Properties();
+
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(_manifestFile);
+			props.load(in);
+		}
+		catch (IOException e)
+		{
+			log.warn("failed to load " + _manifestFile + ": " + e, e);
+			return 0;
+		}
+		finally
+		{
+			close(in);
+		}
+
+		int reused = 0;
+
+		for (String jspUri : props.stringPropertyNames())
+		{
+			CacheEntry entry = CacheEntry.parse(props.getProperty(jspUri));
+
+			if (entry == null)
+				continue;
+
+			if (restore(jspUri, entry))
+			{
+				_entries.put(jspUri, entry);
+				reused++;
+			}
+			else if (debug)
+			{
+				log.debug("compiled class of " + jspUri + " is stale");
+			}
+		}
+
+		log.info("reusing compiled classes of " + reused + "/" + props.size() + " JSP(s) from " + _manifestFile.getParent() + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+
+		return reused;
+	}
+
+	/**
+	 * 检查JSP页面及其include文件的内容是否与编译时一致,一致则把编译结果的修改时间设为JSP页面当前的修改时间
+	 *
+	 * Jasper要求类文件的修改时间与JSP页面的相同,include文件的修改时间与编译时(写在生成的类中)的相同
+	 *
+	 * @param jspUri
+	 * @param entry
+	 * @return true:已编译的类可重用
+	 */
+	private boolean restore(String jspUri, CacheEntry entry)
+	{
+		try
+		{
+			long jspLastModified = getFile(jspUri).lastModified();
+
+			if (jspLastModified <= 0)
+				return false;
+
+			// include文件(第一项是页面本身)
+			for (Entry<String, Long> file : entry._files.entrySet())
+			{
+				if (!file.getKey().equals(jspUri) && getFile(file.getKey()).lastModified() != file.getValue())
+					return false;
+			}
+
+			File[] outputs = new File[entry._outputs.length];
+
+			for (int i = 0; i < outputs.length; i++)
+			{
+				outputs[i] = new File(_workDir, entry._outputs[i]);
+
+				// 第一项是类文件,必须存在
+				if (i == 0 && !outputs[i].isFile())
+					return false;
+			}
+
+			if (!entry._hash.equals(hash(entry._files.keySet())))
+				return false;
+
+			for (File output : outputs)
+			{
+				if (output.isFile() && output.lastModified() != jspLastModified && !output.setLastModified(jspLastModified))
+					return false;
+			}
+
+			return true;
+		}
+		catch (IOException e)
+		{
+			if (debug)
+				log.debug(e.toString(), e);
+
+			return false;
+		}
+	}
+
+	/**
+	 * 标记JSP页面在本次运行中被编译或执行过
+	 *
+	 * @param jspUri
+	 */
+	public void touch(String jspUri)
+	{
+		_touched.add(jspUri);
+	}
+
+	/**
+	 * 记录一个已编译的JSP页面的内容哈希及修改时间
+	 *
+	 * 只有当Jasper认为已编译的类是最新的(类文件与JSP页面,include文件与编译时的修改时间都一致)时才记录
+	 *
+	 * @param jspUri
+	 * @param wrapper
+	 */
+	public void record(String jspUri, JspServletWrapper wrapper)
+	{
+		try
+		{
+			File classFile = new File(wrapper.getJspEngineContext().getClassFileName());
+
+			File jspFile = getFile(jspUri);
+
+			String classPath = relativePath(classFile);
+
+			if (classPath == null || !classFile.isFile() || classFile.lastModified() != jspFile.lastModified())
+			{
+				_entries.remove(jspUri);
+				return;
+			}
+
+			String javaPath = relativePath(new File(wrapper.getJspEngineContext().getServletJavaFileName()));
+
+			String[] outputs = javaPath != null ? new String[] { classPath, javaPath } : new String[] { classPath };
+
+			Map<String, Long> files = new LinkedHashMap<String, Long>();
+
+			files.put(jspUri, jspFile.lastModified());
+
+			Map<String, Long> dependants = wrapper.getDependants();
+
+			if (dependants != null)
+			{
+				for (Entry<String, Long> dependant : dependants.entrySet())
+				{
+					String path = dependant.getKey();
+
+					// 只记录WebApp内的文件(jar中的tld等由Jasper自行检查)
+					if (!path.startsWith("/"))
+						continue;
+
+					File file = getFile(path);
+
+					if (file.lastModified() != dependant.getValue())
+					{
+						_entries.remove(jspUri);
+						return;
+					}
+
+					files.put(path, dependant.getValue());
+				}
+			}
+
+			_entries.put(jspUri, new CacheEntry(hash(files.keySet()), outputs, files));
+		}
+		catch (Exception e)
+		{
+			_entries.remove(jspUri);
+
+			if (debug)
+				log.debug("failed to record " + jspUri + ": " + e, e);
+		}
+	}
+
+	/**
+	 * 重新记录本次运行中被编译或执行过的JSP页面,并保存清单文件
+	 *
+	 * @param composite
+	 */
+	public void save(JspServletComposite composite)
+	{
+		for (String jspUri : _touched)
+		{
+			JspServletWrapper wrapper = composite.getLoadedWrapper(jspUri);
+
+			if (wrapper != null)
+				record(jspUri, wrapper);
+		}
+
+		Properties props = new Properties();
+
+		for (Entry<String, CacheEntry> entry : _entries.entrySet())
+		{
+			props.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+
+		OutputStream out = null;
+		try
+		{
+			_manifestFile.getParentFile().mkdirs();
+
+			out = new FileOutputStream(_manifestFile);
+			props.store(out, "JNetty compiled JSP cache");
+
+			if (debug)
+				log.debug("saved " + props.size() + " JSP(s) to " + _manifestFile);
+		}
+		catch (IOException e)
+		{
+			log.warn("failed to save " + _manifestFile + ": " + e, e);
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+
+	/**
+	 * 计算一组文件内容的SHA-1哈希
+	 *
+	 * @param paths
+	 * @return
+	 * @throws IOException
+	 */
+	private String hash(Iterable<String> paths) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		byte[] buffer = new byte[8192];
+
+		for (String path : paths)
+		{
+			digest.update(path.getBytes("UTF-8"));
+
+			InputStream in = new FileInputStream(getFile(path));
+			try
+			{
+				int len;
+				while ((len = in.read(buffer)) > 0)
+				{
+					digest.update(buffer, 0, len);
+				}
+			}
+			finally
+			{
+				close(in);
+			}
+		}
+
+		byte[] bytes = digest.digest();
+
+		char[] chars = new char[bytes.length * 2];
+
+		for (int i = 0; i < bytes.length; i++)
+		{
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+
+		return new String(chars);
+	}
+
+	/**
+	 * @return 编译结果相对于scratchDir的路径,不在scratchDir中或无法写入清单时返回null
+	 */
+	private String relativePath(File file)
+	{
+		String dir = _workDir.getAbsolutePath() + File.separator;
+		String path = file.getAbsolutePath();
+
+		if (!path.startsWith(dir))
+			return null;
+
+		path = path.substring(dir.length());
+
+		if (path.indexOf(';') >= 0 || path.indexOf('|') >= 0)
+			return null;
+
+		return path;
+	}
+
+	private File getFile(String path) throws IOException
+	{
+		String realPath = _context.getRealPath(path);
+
+		if (realPath == null)
+			throw new IOException("can't find real path of " + path);
+
+		return new File(realPath);
+	}
+
+	private static void close(Closeable closeable)
+	{
+		if (closeable == null)
+			return;
+
+		try
+		{
+			closeable.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * 清单文件中的一项: hash|classFile|javaFile;path1:lastModified1;path2:lastModified2...
+	 */
+	static class CacheEntry
+	{
+		final String _hash;
+
+		// 编译结果相对于scratchDir的路径,第一项是类文件
+		final String[] _outputs;
+
+		// <path,lastModified> JSP页面及其include文件在编译时的修改时间
+		final Map<String, Long> _files;
+
+		CacheEntry(String hash, String[] outputs, Map<String, Long> files)
+		{
+			_hash = hash;
+			_outputs = outputs;
+			_files = files;
+		}
+
+		static CacheEntry parse(String value)
+		{
+			if (value == null)
+				return null;
+
+			String[] parts = value.split(";");
+
+			Map<String, Long> files = new LinkedHashMap<String, Long>();
+
+			try
+			{
+				for (int i = 1; i < parts.length; i++)
+				{
+					int p = parts[i].lastIndexOf(':');
+
+					files.put(parts[i].substring(0, p), Long.parseLong(parts[i].substring(p + 1)));
+				}
+			}
+			catch (RuntimeException e)
+			{
+				return null;
+			}
+
+			if (files.isEmpty())
+				return null;
+
+			String[] head = parts[0].split("\\|");
+
+			// 旧格式的清单没有记录编译结果
+			if (head.length < 2)
+				return null;
+
+			String[] outputs = new String[head.length - 1];
+			System.arraycopy(head, 1, outputs, 0, outputs.length);
+
+			return new CacheEntry(head[0], outputs, files);
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder(_hash);
+
+			for (String output : _outputs)
+			{
+				sb.append('|').append(output);
+			}
+
+			for (Entry<String, Long> file : _files.entrySet())
+			{
+				sb.append(';').append(file.getKey()).append(':').append(file.getValue());
+			}
+
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package org.ireland.jnetty.jsp;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jasper.servlet.JspServletWrapper;
+
+/**
+ * 启动时并行预编译WebApp下所有的JSP页面
+ *
+ * 从WebApp的根目录开始递归查找所有 *.jsp 文件,每个目录及每个页面都作为一个ForkJoin任务,在ForkJoinPool中并行编译,
+ * 避免部署后第一批用户访问时才编译JSP而出现的长时间停顿.
+ *
+ * 每个页面的编译耗时及失败原因都会被记录下来并输出到日志中.
+ *
+ * @author KEN
+ *
+ */
+public class JspPrecompiler
+{
+	private static final Log log = LogFactory.getLog(JspPrecompiler.class);
+
+	private static final String JSP_EXTENSION = ".jsp";
+
+	private final JspServletComposite _jspServlet;
+
+	private final ServletContext _context;
+
+	// ForkJoinPool的并行度
+	private final int _parallelism;
+
+	// 每个页面的编译结果(由多条线程并发添加)
+	private final ConcurrentLinkedQueue<PageResult> _results = new ConcurrentLinkedQueue<PageResult>();
+
+	public JspPrecompiler(JspServletComposite jspServlet, ServletContext context, int parallelism)
+	{
+		_jspServlet = jspServlet;
+		_context = context;
+		_parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * 并行编译所有JSP页面,直到全部完成才返回
+	 *
+	 * @return 每个页面的编译结果
+	 */
+	public List<PageResult> precompile()
+	{
+		long start = System.currentTimeMillis();
+
+		ForkJoinPool pool = new ForkJoinPool(_parallelism);
+
+		try
+		{
+			pool.invoke(new DirectoryTask("/"));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		List<PageResult> results = new ArrayList<PageResult>(_results);
+
+		int failed = 0;
+
+		for (PageResult result : results)
+		{
+			if (!result.isSuccess())
+				failed++;
+		}
+
+		log.info("precompiled " + results.size() + " JSP(s) in " + (System.currentTimeMillis() - start) + " ms with " + _parallelism + " thread(s), "
+				+ failed + " failed");
+
+		return Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * 编译单个JSP页面,并记录耗时
+	 *
+	 * @param jspUri
+	 */
+	void compile(String jspUri)
+	{
+		Thread thread = Thread.currentThread();
+
+		ClassLoader oldLoader = thread.getContextClassLoader();
+
+		// 使JSP编译器与ServletContext使用一致的类加载器
+		thread.setContextClassLoader(_context.getClassLoader());
+
+		long start = System.nanoTime();
+
+		Throwable error = null;
+
+		try
+		{
+			JspServletWrapper wrapper = _jspServlet.getWrapper(jspUri);
+
+			if (wrapper == null)
+				throw new FileNotFoundException(jspUri);
+
+			wrapper.getJspEngineContext().compile();
+
+			// 加载并初始化编译后的Servlet
+			wrapper.getServlet();
+		}
+		catch (Throwable e)
+		{
+			error = e;
+		}
+		finally
+		{
+			thread.setContextClassLoader(oldLoader);
+		}
+
+		PageResult result = new PageResult(jspUri, (System.nanoTime() - start) / 1000000L, error);
+
+		_results.add(result);
+
+		if (error == null)
+			log.info("precompiled " + jspUri + " in " + result.getCompileTime() + " ms");
+		else
+			log.warn("failed to precompile " + jspUri + " in " + result.getCompileTime() + " ms: " + error, error);
+	}
+
+	/**
+	 * 递归查找一个目录下所有的JSP页面及子目录,并fork出相应的任务
+	 */
+	private class DirectoryTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String _path;
+
+		DirectoryTask(String path)
+		{
+			_path = path;
+		}
+
+		@Override
+		protected void compute()
+		{
+			Set<String> paths = _context.getResourcePaths(_path);
+
+			if (paths == null)
+				return;
+
+			List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+			for (String path : paths)
+			{
+				if (path.endsWith("/"))
+					tasks.add(new DirectoryTask(path));
+				else if (path.endsWith(JSP_EXTENSION))
+					tasks.add(new PageTask(path));
+			}
+
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * 编译单个JSP页面的任务
+	 */
+	private class PageTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String _jspUri;
+
+		PageTask(String jspUri)
+		{
+			_jspUri = jspUri;
+		}
+
+		@Override
+		protected void compute()
+		{
+			compile(_jspUri);
+		}
+	}
+
+	/**
+	 * 单个JSP页面的编译结果
+	 */
+	public static class PageResult
+	{
+		private final String _jspUri;
+
+		// 编译耗时(ms)
+		private final long _compileTime;
+
+		// 编译失败的原因,成功时为null
+		private final Throwable _error;
+
+		PageResult(String jspUri, long compileTime, Throwable error)
+		{
+			_jspUri = jspUri;
+			_compileTime = compileTime;
+			_error = error;
+		}
+
+		public String getJspUri()
+		{
+			return _jspUri;
+		}
+
+		public long getCompileTime()
+		{
+			return _compileTime;
+		}
+
+		public Throwable getError()
+		{
+			return _error;
+		}
+
+		public boolean isSuccess()
+		{
+			return _error == null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return getClass().getSimpleName() + "[" + _jspUri + "," + _compileTime + "ms" + (_error != null ? "," + _error : "") + "]";
+		}
+	}
+}
@@ -17,9 +17,17 @@
 
 package org.ireland.jnetty.jsp;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletConfig;
@@ -73,7 +81,26 @@ public class JspServletComposite extends HttpServlet implements PeriodicEventLis
 	//存放了所有JSP页面编译后的JspServletWrapper
 	private transient JspRuntimeContext rctxt;
 
-	
+	//启动时是否并行预编译所有的JSP页面(init-param: precompile)
+	private boolean precompile;
+
+	//预编译时ForkJoinPool的并行度(init-param: precompileThreads),缺省为CPU核数
+	private int precompileThreads;
+
+	//跨重启持久化的JSP编译结果缓存(位于scratchDir中)
+	private transient JspClassCache classCache;
+
+	//生产模式(init-param: watch):由WatchService检测JSP文件的变更,请求路径及周期性检查都不再stat JSP文件
+	private transient JspChangeWatcher watcher;
+
+	//所有已创建JspServletWrapper的jspUri
+	private final Set<String> jspUris = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	//是否缓存纯静态JSP页面的输出(init-param: staticCache)
+	private boolean staticCache;
+
+	//<jspUri,StaticJspPage> 编译时检测到的纯静态JSP页面
+	private final Map<String, StaticJspPage> staticPages = new ConcurrentHashMap<String, StaticJspPage>();
 
 
 	/*
@@ -131,6 +158,62 @@ public class JspServletComposite extends HttpServlet implements PeriodicEventLis
 			log.debug(Localizer.getMessage("jsp.message.scratch.dir.is", options.getScratchDir().toString()));
 			log.debug(Localizer.getMessage("jsp.message.dont.modify.servlets"));
 		}
+
+		staticCache = Boolean.parseBoolean(config.getInitParameter("staticCache"));
+
+		//内容未改变的JSP页面直接重用scratchDir中已编译的类
+		classCache = new JspClassCache(context, options.getScratchDir());
+		classCache.load();
+
+		if (Boolean.parseBoolean(config.getInitParameter("watch")))
+		{
+			startWatcher();
+		}
+
+		precompile = Boolean.parseBoolean(config.getInitParameter("precompile"));
+
+		String threads = config.getInitParameter("precompileThreads");
+		if (threads != null)
+		{
+			precompileThreads = Integer.parseInt(threads.trim());
+		}
+
+		//在接受请求之前,并行预编译所有的JSP页面
+		if (precompile)
+		{
+			precompile();
+
+			classCache.save(this);
+		}
+	}
+
+	/**
+	 * 启动WatchService,监听WebApp根目录下文件的变更
+	 */
+	private void startWatcher()
+	{
+		try
+		{
+			watcher = new JspChangeWatcher(this, context.getRealPath("/"));
+			watcher.start();
+		}
+		catch (IOException e)
+		{
+			//无法使用WatchService时,退回到周期性检查文件的修改时间
+			log.warn("failed to watch JSP changes, falling back to periodic checks: " + e, e);
+
+			watcher = null;
+		}
+	}
+
+	/**
+	 * 并行预编译WebApp下所有的JSP页面
+	 * 
+	 * @return 每个页面的编译结果
+	 */
+	public List<JspPrecompiler.PageResult> precompile()
+	{
+		return new JspPrecompiler(this, context, precompileThreads).precompile();
 	}
 
 	/**
@@ -356,6 +439,13 @@ public class JspServletComposite extends HttpServlet implements PeriodicEventLis
 			log.debug("JspServlet.destroy()");
 		}
 
+		if (watcher != null)
+		{
+			watcher.close();
+		}
+
+		classCache.save(this);
+
 		rctxt.destroy();
 	}
 
@@ -363,7 +453,98 @@ public class JspServletComposite extends HttpServlet implements PeriodicEventLis
 	public void periodicEvent()
 	{
 		rctxt.checkUnload();
-		rctxt.checkCompile();
+
+		//由WatchService检测文件变更时,不需要再周期性地stat所有JSP文件
+		if (watcher == null)
+		{
+			rctxt.checkCompile();
+
+			checkStaticPages();
+		}
+	}
+
+	/**
+	 * 纯静态JSP页面的输出被缓存了,不会再经过Jasper的检查,故文件改变时需要使其失效
+	 */
+	private void checkStaticPages()
+	{
+		for (StaticJspPage page : staticPages.values())
+		{
+			String realPath = context.getRealPath(page.getJspUri());
+
+			if (realPath == null || new File(realPath).lastModified() != page.getLastModified())
+			{
+				invalidate(page.getJspUri());
+			}
+		}
+	}
+
+	/**
+	 * WebApp下的一个文件发生了变化,使该JSP页面及所有include了该文件的JSP页面的JspServletWrapper失效,下次请求时再重新编译
+	 * 
+	 * @param uri
+	 *            发生变化的文件,如: /WEB-INF/jsp/header.jspf
+	 */
+	public void invalidate(String uri)
+	{
+		for (String jspUri : jspUris)
+		{
+			JspServletWrapper wrapper = rctxt.getWrapper(jspUri);
+
+			if (wrapper == null)
+			{
+				jspUris.remove(jspUri);
+				continue;
+			}
+
+			if (jspUri.equals(uri) || dependsOn(wrapper, uri))
+			{
+				unloadWrapper(jspUri, wrapper);
+			}
+		}
+	}
+
+	/**
+	 * 使所有的JspServletWrapper失效
+	 */
+	public void invalidateAll()
+	{
+		for (String jspUri : jspUris)
+		{
+			JspServletWrapper wrapper = rctxt.getWrapper(jspUri);
+
+			if (wrapper != null)
+			{
+				unloadWrapper(jspUri, wrapper);
+			}
+		}
+	}
+
+	private static boolean dependsOn(JspServletWrapper wrapper, String uri)
+	{
+		Map<String, Long> dependants = wrapper.getDependants();
+
+		return dependants != null && dependants.containsKey(uri);
+	}
+
+	private void unloadWrapper(String jspUri, JspServletWrapper wrapper)
+	{
+		synchronized (this)
+		{
+			if (rctxt.getWrapper(jspUri) != wrapper)
+				return;
+
+			rctxt.removeWrapper(jspUri);
+			jspUris.remove(jspUri);
+			staticPages.remove(jspUri);
+		}
+
+		wrapper.destroy();
+
+		if (debug)
+		{
+			log.debug("JSP " + jspUri + " changed, unloaded");
+		}
 	}
 
 	// -------------------------------------------------------- Private Methods
@@ -380,7 +561,49 @@ public class JspServletComposite extends HttpServlet implements PeriodicEventLis
 	private void serviceJspFile(HttpServletRequest request, HttpServletResponse response, String jspUri, boolean isPreCompile) throws ServletException,
 			IOException
 	{
+		//纯静态的JSP页面直接输出缓存的字节
+		StaticJspPage staticPage = isPreCompile ? null : staticPages.get(jspUri);
+		if (staticPage != null && staticPage.isCacheable(request) && staticPage.serve(request, response))
+		{
+			return;
+		}
+
+		JspServletWrapper wrapper = getWrapper(jspUri);
+		if (wrapper == null)
+		{
+			handleMissingResource(request, response, jspUri);				//找不到jsp文件
+			return;
+		}
+
+		try
+		{
+			staticPage = isPreCompile ? null : staticPages.get(jspUri);
 
+			if (staticPage != null && staticPage.isCacheable(request))
+			{
+				staticPage.render(wrapper, request, response);				//执行一次Servlet,并缓存其输出
+			}
+			else
+			{
+				wrapper.service(request, response, isPreCompile);
+			}
+		}
+		catch (FileNotFoundException fnfe)
+		{
+			handleMissingResource(request, response, jspUri);
+		}
+
+	}
+
+	/**
+	 * 取得jspUri对应的JspServletWrapper,不存在时则创建
+	 * 
+	 * @param jspUri
+	 * @return jsp文件不存在时返回null
+	 * @throws IOException
+	 */
+	JspServletWrapper getWrapper(String jspUri) throws IOException
+	{
 		JspServletWrapper wrapper = rctxt.getWrapper(jspUri);
 		if (wrapper == null)
 		{
@@ -393,27 +616,91 @@ public class JspServletComposite extends HttpServlet implements PeriodicEventLis
 					// creating unnecessary directories and files.
 					if (null == context.getResource(jspUri))
 					{
-						handleMissingResource(request, response, jspUri);				//找不到jsp文件
-						return;
+						return null;
 					}
 					wrapper = new JspServletWrapper(config, options, jspUri, rctxt);
 					rctxt.addWrapper(jspUri, wrapper);
+					jspUris.add(jspUri);
+
+					classCache.touch(jspUri);
+
+					if (staticCache)
+					{
+						detectStaticPage(jspUri);
+					}
 				}
 			}
 		}
+		return wrapper;
+	}
 
+	/**
+	 * 检测JSP页面是否为纯静态的页面(输出与请求无关)
+	 * 
+	 * @param jspUri
+	 */
+	private void detectStaticPage(String jspUri)
+	{
+		// jsp-property-group(include-prelude/include-coda,el-ignored等)作用于该页面时,输出不只由页面源文件决定
 		try
 		{
-			wrapper.service(request, response, isPreCompile);
+			if (options.getJspConfig().isJspPage(jspUri))
+				return;
 		}
-		catch (FileNotFoundException fnfe)
+		catch (Exception e)
 		{
-			handleMissingResource(request, response, jspUri);
+			log.debug(e.toString(), e);
+			return;
 		}
 
+		String realPath = context.getRealPath(jspUri);
+
+		if (realPath == null)
+		{
+			return;
+		}
+
+		File file = new File(realPath);
+
+		long lastModified = file.lastModified();
+
+		try
+		{
+			InputStream in = new FileInputStream(file);
+			try
+			{
+				if (StaticJspPage.isStaticSource(in))
+				{
+					staticPages.put(jspUri, new StaticJspPage(jspUri, lastModified));
+
+					if (debug)
+					{
+						log.debug("JSP " + jspUri + " is static, its output will be cached");
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			log.debug(e.toString(), e);
+		}
+	}
+
+	/**
+	 * 取得jspUri对应的已存在的JspServletWrapper
+	 * 
+	 * @param jspUri
+	 * @return 不存在时返回null
+	 */
+	JspServletWrapper getLoadedWrapper(String jspUri)
+	{
+		return rctxt.getWrapper(jspUri);
 	}
 
-	
 	/**
 	 * 无法找到jsp文件
 	 * @param request
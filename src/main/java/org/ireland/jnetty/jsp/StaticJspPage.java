@@ -0,0 +1,415 @@
+package org.ireland.jnetty.jsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.jasper.servlet.JspServletWrapper;
+
+/**
+ * 纯静态的JSP页面(不含脚本,标签,EL及include,输出与请求无关)
+ *
+ * 页面必须声明session="false"(否则从缓存输出会跳过隐式创建HttpSession),并且不属于任何jsp-property-group
+ * (其include-prelude/include-coda等的输出不在页面源文件中,可能依赖于请求,由JspServletComposite检查).
+ *
+ * 此类页面只需要执行一次编译后的Servlet,把输出的(已编码的)字节缓存起来,以后的GET/HEAD请求直接输出缓存的字节,
+ * 不再执行Servlet,也不再经过JspWriter编码.与静态文件一样支持ETag/Last-Modified及条件请求(304 Not Modified).
+ *
+ * @author KEN
+ *
+ */
+public class StaticJspPage
+{
+	private final String _jspUri;
+
+	// JSP文件的修改时间
+	private final long _lastModified;
+
+	// 以下为执行一次Servlet后缓存的内容
+	private volatile Content _content;
+
+	StaticJspPage(String jspUri, long lastModified)
+	{
+		_jspUri = jspUri;
+		_lastModified = lastModified;
+	}
+
+	public String getJspUri()
+	{
+		return _jspUri;
+	}
+
+	public long getLastModified()
+	{
+		return _lastModified;
+	}
+
+	/**
+	 * 判断JSP源文件是否为纯静态的页面:除<%@ page %>指令及JSP注释外,不含任何脚本,指令,标签及EL,并且声明了session="false"
+	 *
+	 * 源文件按ISO-8859-1读取,对于需要查找的ASCII标记来说,与页面的实际编码无关
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static boolean isStaticSource(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = in.read(buffer)) > 0)
+		{
+			bytes.write(buffer, 0, len);
+		}
+
+		return isStaticSource(bytes.toString("ISO-8859-1"));
+	}
+
+	static boolean isStaticSource(String source)
+	{
+		// EL表达式及JSP标准动作
+		if (source.indexOf("${") >= 0 || source.indexOf("#{") >= 0 || source.indexOf("<jsp:") >= 0)
+			return false;
+
+		int i = 0;
+
+		boolean sessionFalse = false;
+
+		while ((i = source.indexOf("<%", i)) >= 0)
+		{
+			// JSP注释 <%-- --%>
+			if (source.startsWith("<%--", i))
+			{
+				int end = source.indexOf("--%>", i + 4);
+
+				if (end < 0)
+					return false;
+
+				i = end + 4;
+				continue;
+			}
+
+			// 只允许<%@ page %>指令,include及taglib指令都会使输出依赖于其它文件或标签
+			if (!source.startsWith("<%@", i))
+				return false;
+
+			int end = source.indexOf("%>", i + 3);
+
+			if (end < 0)
+				return false;
+
+			String directive = source.substring(i + 3, end).trim();
+
+			if (!directive.startsWith("page") || directive.length() == 4 || !Character.isWhitespace(directive.charAt(4)))
+				return false;
+
+			String attributes = directive.replaceAll("\\s", "").replace('\'', '"');
+
+			// 错误页面的输出依赖于异常
+			if (attributes.contains("isErrorPage=\"true\""))
+				return false;
+
+			if (attributes.contains("session=\"false\""))
+				sessionFalse = true;
+
+			i = end + 2;
+		}
+
+		return sessionFalse;
+	}
+
+	/**
+	 * 当前请求是否可以从缓存输出:只有非include的GET/HEAD请求可以
+	 *
+	 * @param request
+	 * @return
+	 */
+	boolean isCacheable(HttpServletRequest request)
+	{
+		if (request.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) != null)
+			return false;
+
+		String method = request.getMethod();
+
+		return "GET".equals(method) || "HEAD".equals(method);
+	}
+
+	/**
+	 * 执行一次编译后的Servlet,缓存其输出,并输出到response
+	 *
+	 * @param wrapper
+	 * @param request
+	 * @param response
+	 * @throws ServletException
+	 * @throws IOException
+	 */
+	void render(JspServletWrapper wrapper, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		CaptureResponse capture = new CaptureResponse(response);
+
+		wrapper.service(request, capture, false);
+
+		if (capture.isCacheable())
+		{
+			_content = new Content(capture.toByteArray(), capture.getContentType(), _lastModified);
+
+			serve(request, response);
+		}
+		else if (!capture.isPassedThrough())
+		{
+			capture.writeTo(response);
+		}
+	}
+
+	/**
+	 * 从缓存输出页面
+	 *
+	 * @param request
+	 * @param response
+	 * @return false:页面还未执行过,没有缓存的内容
+	 * @throws IOException
+	 */
+	boolean serve(HttpServletRequest request, HttpServletResponse response) throws IOException
+	{
+		Content content = _content;
+
+		if (content == null)
+			return false;
+
+		response.setHeader("ETag", content._etag);
+		response.setDateHeader("Last-Modified", content._lastModified);
+
+		if (isNotModified(request, content))
+		{
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+
+		if (content._contentType != null)
+			response.setContentType(content._contentType);
+
+		response.setContentLength(content._bytes.length);
+
+		if (!"HEAD".equals(request.getMethod()))
+			response.getOutputStream().write(content._bytes);
+
+		return true;
+	}
+
+	/**
+	 * 条件请求:If-None-Match优先,其次If-Modified-Since
+	 */
+	private static boolean isNotModified(HttpServletRequest request, Content content)
+	{
+		String ifNoneMatch = request.getHeader("If-None-Match");
+
+		if (ifNoneMatch != null)
+		{
+			if ("*".equals(ifNoneMatch.trim()))
+				return true;
+
+			for (String etag : ifNoneMatch.split(","))
+			{
+				if (content._etag.equals(etag.trim()))
+					return true;
+			}
+
+			return false;
+		}
+
+		long ifModifiedSince;
+		try
+		{
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+
+		// HTTP日期只精确到秒
+		return ifModifiedSince >= 0 && content._lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * 缓存的页面内容
+	 */
+	private static class Content
+	{
+		final byte[] _bytes;
+
+		final String _contentType;
+
+		final long _lastModified;
+
+		// 与静态文件相同的格式: W/"length-lastModified"
+		final String _etag;
+
+		Content(byte[] bytes, String contentType, long lastModified)
+		{
+			_bytes = bytes;
+			_contentType = contentType;
+			_lastModified = lastModified;
+			_etag = "W/\"" + bytes.length + "-" + lastModified + "\"";
+		}
+	}
+
+	/**
+	 * 截获Servlet输出的Response,只在Servlet正常输出(200)时才可缓存
+	 */
+	private static class CaptureResponse extends HttpServletResponseWrapper
+	{
+		private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+
+		private ServletOutputStream _outputStream;
+
+		private PrintWriter _writer;
+
+		private int _status = SC_OK;
+
+		// sendError/sendRedirect等已直接作用于原response
+		private boolean _passedThrough;
+
+		CaptureResponse(HttpServletResponse response)
+		{
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException
+		{
+			if (_writer != null)
+				throw new IllegalStateException("Already using Writer");
+
+			if (_outputStream == null)
+			{
+				_outputStream = new ServletOutputStream()
+				{
+					@Override
+					public void write(int b) throws IOException
+					{
+						_buffer.write(b);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException
+					{
+						_buffer.write(b, off, len);
+					}
+				};
+			}
+
+			return _outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException
+		{
+			if (_outputStream != null)
+				throw new IllegalStateException("Already using OutputStream");
+
+			if (_writer == null)
+				_writer = new PrintWriter(new OutputStreamWriter(_buffer, getCharacterEncoding()));
+
+			return _writer;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException
+		{
+			if (_writer != null)
+				_writer.flush();
+		}
+
+		@Override
+		public boolean isCommitted()
+		{
+			return _passedThrough;
+		}
+
+		@Override
+		public void resetBuffer()
+		{
+			if (_writer != null)
+				_writer.flush();
+
+			_buffer.reset();
+		}
+
+		@Override
+		public void reset()
+		{
+			super.reset();
+			resetBuffer();
+			_status = SC_OK;
+		}
+
+		@Override
+		public void setStatus(int sc)
+		{
+			_status = sc;
+			super.setStatus(sc);
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException
+		{
+			_passedThrough = true;
+			super.sendError(sc, msg);
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException
+		{
+			_passedThrough = true;
+			super.sendError(sc);
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException
+		{
+			_passedThrough = true;
+			super.sendRedirect(location);
+		}
+
+		boolean isPassedThrough()
+		{
+			return _passedThrough;
+		}
+
+		boolean isCacheable()
+		{
+			return !_passedThrough && _status == SC_OK;
+		}
+
+		byte[] toByteArray()
+		{
+			if (_writer != null)
+				_writer.flush();
+
+			return _buffer.toByteArray();
+		}
+
+		/**
+		 * 把截获的输出写到原response
+		 */
+		void writeTo(HttpServletResponse response) throws IOException
+		{
+			byte[] bytes = toByteArray();
+
+			response.setContentLength(bytes.length);
+			response.getOutputStream().write(bytes);
+		}
+	}
+}
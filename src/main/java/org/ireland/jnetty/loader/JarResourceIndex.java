@@ -0,0 +1,571 @@
+package org.ireland.jnetty.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ireland.jnetty.util.PrivateFiles;
+
+/**
+ * WEB-INF/lib中的jar的索引:包(目录)名 -> 包含该包的jar
+ *
+ * URLClassLoader按顺序在每个jar中查找类和资源,jar很多时,找不到的名字(及排在后面的jar中的名字)要经过所有的jar.
+ * 有了索引,查找只需访问包含该包的jar(通常只有一个),不包含的直接跳过,没有用到的jar也不会被打开.
+ *
+ * 索引可以保存到文件中,下次启动时按jar的路径,长度及修改时间验证:只重新扫描改变了的jar.
+ * 索引决定了类从哪个jar加载,故索引文件只有本进程的用户可以读写;不是本进程的用户写入的,格式不正确的,
+ * 或含有不在jar列表中的jar的索引文件被忽略(重新扫描所有的jar).
+ *
+ * 文件格式:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    jar数
+ * 每个jar: UTF 路径, long 长度, long 修改时间, int 包数, UTF 包名...
+ * </pre>
+ *
+ * @author KEN
+ *
+ */
+public final class JarResourceIndex
+{
+	private static final Log log = LogFactory.getLog(JarResourceIndex.class.getName());
+
+	// "JNJI"
+	private static final int MAGIC = 0x4A4E4A49;
+
+	private static final int VERSION = 1;
+
+	private static final int[] NONE = new int[0];
+
+	private final Jar[] _jars;
+
+	// 包名("org/ireland/",默认包为"") -> 包含该包的jar的序号(升序)
+	private final Map<String, int[]> _packages;
+
+	// 本次打开时扫描的jar数
+	private final int _scannedCount;
+
+	private JarResourceIndex(Jar[] jars, int scannedCount)
+	{
+		_jars = jars;
+		_scannedCount = scannedCount;
+
+		Map<String, List<Integer>> packages = new HashMap<String, List<Integer>>();
+
+		for (int i = 0; i < jars.length; i++)
+		{
+			for (String name : jars[i]._packages)
+			{
+				List<Integer> list = packages.get(name);
+
+				if (list == null)
+				{
+					list = new ArrayList<Integer>(1);
+					packages.put(name, list);
+				}
+
+				list.add(i);
+			}
+		}
+
+		_packages = new HashMap<String, int[]>(packages.size() * 2);
+
+		for (Map.Entry<String, List<Integer>> entry : packages.entrySet())
+		{
+			List<Integer> list = entry.getValue();
+
+			int[] indexes = new int[list.size()];
+
+			for (int i = 0; i < indexes.length; i++)
+				indexes[i] = list.get(i);
+
+			_packages.put(entry.getKey(), indexes);
+		}
+	}
+
+	/**
+	 * 建立jars的索引
+	 *
+	 * @param jars
+	 *            按查找顺序
+	 * @param indexFile
+	 *            保存的索引,其中与jar的路径,长度及修改时间一致的部分被重用;有jar被扫描时重新写入.可以为null
+	 */
+	public static JarResourceIndex open(List<File> jars, File indexFile)
+	{
+		Map<String, Jar> saved = indexFile != null ? read(indexFile, jars) : new HashMap<String, Jar>();
+
+		Jar[] result = new Jar[jars.size()];
+
+		int scanned = 0;
+
+		for (int i = 0; i < result.length; i++)
+		{
+			File file = jars.get(i);
+
+			Jar jar = saved.get(file.getPath());
+
+			if (jar == null || jar._length != file.length() || jar._lastModified != file.lastModified())
+			{
+				jar = scan(file);
+				scanned++;
+			}
+
+			result[i] = jar;
+		}
+
+		if (indexFile != null && (scanned > 0 || saved.size() != result.length))
+			write(indexFile, result);
+
+		if (log.isDebugEnabled())
+			log.debug("indexed " + result.length + " jars, " + scanned + " scanned");
+
+		return new JarResourceIndex(result, scanned);
+	}
+
+	/**
+	 * 列出一个jar中的所有包
+	 */
+	private static Jar scan(File file)
+	{
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		Set<String> packages = new LinkedHashSet<String>();
+
+		JarFile jarFile = null;
+
+		try
+		{
+			jarFile = new JarFile(file);
+
+			Enumeration<JarEntry> entries = jarFile.entries();
+
+			while (entries.hasMoreElements())
+			{
+				packages.add(packageOf(entries.nextElement().getName()));
+			}
+		}
+		catch (IOException e)
+		{
+			log.warn("can't index " + file + ": " + e, e);
+		}
+		finally
+		{
+			if (jarFile != null)
+			{
+				try
+				{
+					jarFile.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+
+		return new Jar(file, length, lastModified, packages.toArray(new String[packages.size()]));
+	}
+
+	/**
+	 * @param expected
+	 *            当前的jar列表,索引中的jar必须都在其中
+	 * @return 索引文件无效时返回空的Map
+	 */
+	private static Map<String, Jar> read(File indexFile, List<File> expected)
+	{
+		Map<String, Jar> jars = new HashMap<String, Jar>();
+
+		if (!indexFile.isFile())
+			return jars;
+
+		DataInputStream in = null;
+
+		try
+		{
+			if (!PrivateFiles.isPrivate(indexFile))
+			{
+				log.warn("ignore jar index " + indexFile + ": not owned by " + System.getProperty("user.name") + " or writable by other users");
+				return jars;
+			}
+
+			Set<String> paths = new HashSet<String>();
+
+			for (File file : expected)
+				paths.add(file.getPath());
+
+			// 每个jar至少占22字节(空路径,长度,修改时间,包数),每个包至少占2字节
+			long fileLength = indexFile.length();
+
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024));
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				log.warn("ignore invalid jar index " + indexFile);
+				return jars;
+			}
+
+			int count = in.readInt();
+
+			if (count < 0 || count > fileLength / 22)
+				throw new IOException("invalid jar count " + count);
+
+			for (int i = 0; i < count; i++)
+			{
+				File file = new File(in.readUTF());
+				long length = in.readLong();
+				long lastModified = in.readLong();
+
+				if (!paths.contains(file.getPath()))
+					throw new IOException("unknown jar " + file);
+
+				int packageCount = in.readInt();
+
+				if (packageCount < 0 || packageCount > fileLength / 2)
+					throw new IOException("invalid package count " + packageCount + " of " + file);
+
+				String[] packages = new String[packageCount];
+
+				for (int j = 0; j < packages.length; j++)
+					packages[j] = in.readUTF();
+
+				jars.put(file.getPath(), new Jar(file, length, lastModified, packages));
+			}
+		}
+		catch (IOException e)
+		{
+			log.warn("ignore invalid jar index " + indexFile + ": " + e, e);
+
+			jars.clear();
+		}
+		catch (RuntimeException e)
+		{
+			log.warn("ignore invalid jar index " + indexFile + ": " + e, e);
+
+			jars.clear();
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+
+		return jars;
+	}
+
+	private static void write(File indexFile, Jar[] jars)
+	{
+		File temp = new File(indexFile.getPath() + ".tmp");
+
+		try
+		{
+			File dir = indexFile.getAbsoluteFile().getParentFile();
+
+			if (dir != null)
+				PrivateFiles.createDirectories(dir);
+
+			// 上次未完成的临时文件被删除
+			PrivateFiles.recreateFile(temp);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(jars.length);
+
+				for (Jar jar : jars)
+				{
+					out.writeUTF(jar._file.getPath());
+					out.writeLong(jar._length);
+					out.writeLong(jar._lastModified);
+					out.writeInt(jar._packages.length);
+
+					for (String name : jar._packages)
+						out.writeUTF(name);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if (indexFile.exists() && !indexFile.delete())
+				throw new IOException("can't replace " + indexFile);
+
+			if (!temp.renameTo(indexFile))
+				throw new IOException("can't rename " + temp + " to " + indexFile);
+		}
+		catch (IOException e)
+		{
+			log.warn("can't write jar index " + indexFile + ": " + e, e);
+
+			temp.delete();
+		}
+	}
+
+	/**
+	 * 资源所在的包:"org/ireland/Foo.class" -> "org/ireland/",目录"org/ireland/" -> "org/"
+	 */
+	static String packageOf(String name)
+	{
+		int end = name.endsWith("/") ? name.length() - 1 : name.length();
+
+		int slash = name.lastIndexOf('/', end - 1);
+
+		return slash < 0 ? "" : name.substring(0, slash + 1);
+	}
+
+	private int[] candidates(String name)
+	{
+		int[] indexes = _packages.get(packageOf(name));
+
+		return indexes != null ? indexes : NONE;
+	}
+
+	/**
+	 * @param name
+	 *            资源名,如"org/ireland/Foo.class"
+	 * @return 第一个包含该资源的jar,没有时返回null
+	 */
+	public Jar find(String name)
+	{
+		for (int index : candidates(name))
+		{
+			Jar jar = _jars[index];
+
+			if (jar.getEntry(name) != null)
+				return jar;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return 所有包含该资源的jar(按查找顺序)
+	 */
+	public List<Jar> findAll(String name)
+	{
+		List<Jar> jars = new ArrayList<Jar>(1);
+
+		for (int index : candidates(name))
+		{
+			Jar jar = _jars[index];
+
+			if (jar.getEntry(name) != null)
+				jars.add(jar);
+		}
+
+		return jars;
+	}
+
+	/**
+	 * @return 所有jar的URL(按查找顺序)
+	 */
+	public List<URL> getURLs()
+	{
+		List<URL> urls = new ArrayList<URL>(_jars.length);
+
+		for (Jar jar : _jars)
+			urls.add(jar.getURL());
+
+		return urls;
+	}
+
+	public int size()
+	{
+		return _jars.length;
+	}
+
+	public int getPackageCount()
+	{
+		return _packages.size();
+	}
+
+	int getScannedCount()
+	{
+		return _scannedCount;
+	}
+
+	/**
+	 * 关闭打开了的jar
+	 */
+	public void close()
+	{
+		for (Jar jar : _jars)
+			jar.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[jars=" + _jars.length + ",packages=" + _packages.size() + "]";
+	}
+
+	/**
+	 * 索引中的一个jar,第一次查找时才被打开
+	 */
+	public static final class Jar
+	{
+		private final File _file;
+
+		private final long _length;
+
+		private final long _lastModified;
+
+		private final String[] _packages;
+
+		private final URL _url;
+
+		private JarFile _jarFile;
+
+		private boolean _isClosed;
+
+		private Manifest _manifest;
+
+		private boolean _isManifestRead;
+
+		Jar(File file, long length, long lastModified, String[] packages)
+		{
+			_file = file;
+			_length = length;
+			_lastModified = lastModified;
+			_packages = packages;
+
+			URL url;
+
+			try
+			{
+				url = file.toURI().toURL();
+			}
+			catch (MalformedURLException e)
+			{
+				throw new IllegalArgumentException(file + ": " + e, e);
+			}
+
+			_url = url;
+		}
+
+		public File getFile()
+		{
+			return _file;
+		}
+
+		public URL getURL()
+		{
+			return _url;
+		}
+
+		/**
+		 * @return 打开失败或已关闭时返回null
+		 */
+		public synchronized JarFile getJarFile()
+		{
+			if (_jarFile == null && !_isClosed)
+			{
+				try
+				{
+					_jarFile = new JarFile(_file);
+				}
+				catch (IOException e)
+				{
+					log.warn("can't open " + _file + ": " + e, e);
+
+					_isClosed = true;
+				}
+			}
+
+			return _jarFile;
+		}
+
+		public JarEntry getEntry(String name)
+		{
+			JarFile jarFile = getJarFile();
+
+			return jarFile != null ? jarFile.getJarEntry(name) : null;
+		}
+
+		/**
+		 * @return 资源的URL("jar:file:...!/name")
+		 */
+		public URL getResource(String name)
+		{
+			try
+			{
+				return new URL("jar:" + _url.toExternalForm() + "!/" + name);
+			}
+			catch (MalformedURLException e)
+			{
+				return null;
+			}
+		}
+
+		public synchronized Manifest getManifest() throws IOException
+		{
+			if (!_isManifestRead)
+			{
+				JarFile jarFile = getJarFile();
+
+				_manifest = jarFile != null ? jarFile.getManifest() : null;
+				_isManifestRead = true;
+			}
+
+			return _manifest;
+		}
+
+		synchronized void close()
+		{
+			_isClosed = true;
+
+			if (_jarFile != null)
+			{
+				try
+				{
+					_jarFile.close();
+				}
+				catch (IOException e)
+				{
+				}
+
+				_jarFile = null;
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return getClass().getSimpleName() + "[" + _file + "]";
+		}
+	}
+}
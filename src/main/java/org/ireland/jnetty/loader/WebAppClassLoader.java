@@ -18,13 +18,22 @@
 
 package org.ireland.jnetty.loader;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 import org.apache.commons.logging.Log;
@@ -42,6 +51,14 @@ import org.apache.commons.logging.LogFactory;
  * If no parent class loader is provided, then the current thread context classloader will be used. If that is null then
  * the classloader that loaded this class is used as the parent.
  * 
+ * The loader is parallel capable: classes of different names are loaded concurrently, each name under its own lock
+ * (getClassLoadingLock). Classes already returned and names which weren't found are cached in concurrent maps, so
+ * repeated lookups, e.g. by the servlet initialisation threads or the JSP compiler, take no lock at all.
+ * 
+ * The jars of WEB-INF/lib may be added as an indexed set (addJars): a class or resource is then looked up only in the
+ * jars containing its package, instead of probing every jar in turn, and jars holding no requested package are never
+ * opened. The other class path entries are searched by URLClassLoader after the indexed jars.
+ * 
  */
 public class WebAppClassLoader extends URLClassLoader
 {
@@ -49,9 +66,26 @@ public class WebAppClassLoader extends URLClassLoader
 	
 	private static final boolean isDebugEnabled = LOG.isDebugEnabled();
 
+	// the negative cache is dropped when it grows beyond this
+	private static final int MAX_NOT_FOUND = 4096;
+
+	static
+	{
+		registerAsParallelCapable();
+	}
+
+	// classes returned by loadClass, from this loader or the parent
+	private final ConcurrentMap<String, Class<?>> _loaded = new ConcurrentHashMap<String, Class<?>>();
+
+	// names which couldn't be found, cleared when the class path changes
+	private final ConcurrentMap<String, Boolean> _notFound = new ConcurrentHashMap<String, Boolean>();
+
 	//Default: SystemClassLoader
 	private final ClassLoader _parent;
 
+	// the indexed jars, searched before the URLs of URLClassLoader
+	private volatile JarResourceIndex _jarIndex;
+
 	
 	private String _name = String.valueOf(hashCode());
 
@@ -122,6 +156,18 @@ public class WebAppClassLoader extends URLClassLoader
 		addURL(classPath);
 	}
 
+	/* ------------------------------------------------------------ */
+	/**
+	 * Adds a URL to the class path, the names not found so far may be found there.
+	 */
+	@Override
+	protected void addURL(URL url)
+	{
+		super.addURL(url);
+
+		_notFound.clear();
+	}
+
 
 
 	/* ------------------------------------------------------------ */
@@ -136,6 +182,217 @@ public class WebAppClassLoader extends URLClassLoader
 		addURL(jarFile);
 	}
 
+	/* ------------------------------------------------------------ */
+	/**
+	 * Add the jars (e.g. of WEB-INF/lib) as an indexed set, searched before the other class path entries. Can only be
+	 * called once, later jars are added with addJar.
+	 * 
+	 * @param jars
+	 *            the jars in search order
+	 * @param indexFile
+	 *            where the index is kept between restarts, only the jars changed since are scanned again. May be null
+	 */
+	public void addJars(List<File> jars, File indexFile)
+	{
+		if (_jarIndex != null)
+			throw new IllegalStateException("jars already added to " + this);
+
+		long start = System.currentTimeMillis();
+
+		_jarIndex = JarResourceIndex.open(jars, indexFile);
+
+		_notFound.clear();
+
+		if (isDebugEnabled)
+			LOG.debug(this + " indexed " + _jarIndex + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/* ------------------------------------------------------------ */
+	/**
+	 * @return the index of the jars added with addJars, or null
+	 */
+	public JarResourceIndex getJarIndex()
+	{
+		return _jarIndex;
+	}
+
+	/* ------------------------------------------------------------ */
+	/**
+	 * @return the indexed jars followed by the other class path entries, e.g. for the JSP compiler
+	 */
+	@Override
+	public URL[] getURLs()
+	{
+		JarResourceIndex index = _jarIndex;
+
+		if (index == null)
+			return super.getURLs();
+
+		List<URL> urls = index.getURLs();
+
+		urls.addAll(Arrays.asList(super.getURLs()));
+
+		return urls.toArray(new URL[urls.size()]);
+	}
+
+	/* ------------------------------------------------------------ */
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException
+	{
+		JarResourceIndex index = _jarIndex;
+
+		if (index != null)
+		{
+			String path = name.replace('.', '/').concat(".class");
+
+			JarResourceIndex.Jar jar = index.find(path);
+
+			if (jar != null)
+			{
+				try
+				{
+					return defineClass(name, path, jar);
+				}
+				catch (IOException e)
+				{
+					throw new ClassNotFoundException(name, e);
+				}
+			}
+		}
+
+		return super.findClass(name);
+	}
+
+	/* ------------------------------------------------------------ */
+	/**
+	 * Define a class from an indexed jar, as URLClassLoader does for the jars on its class path
+	 */
+	private Class<?> defineClass(String name, String path, JarResourceIndex.Jar jar) throws IOException
+	{
+		int dot = name.lastIndexOf('.');
+
+		if (dot > 0)
+		{
+			String packageName = name.substring(0, dot);
+
+			if (getPackage(packageName) == null)
+			{
+				try
+				{
+					Manifest manifest = jar.getManifest();
+
+					if (manifest != null)
+						definePackage(packageName, manifest, jar.getURL());
+					else
+						definePackage(packageName, null, null, null, null, null, null, null);
+				}
+				catch (IllegalArgumentException e)
+				{
+					// defined by another thread loading a class of the same package
+				}
+			}
+		}
+
+		JarFile jarFile = jar.getJarFile();
+		JarEntry entry = jarFile != null ? jarFile.getJarEntry(path) : null;
+
+		if (entry == null)
+			throw new IOException(path + " not found in " + jar.getFile());
+
+		byte[] bytes = readFully(jarFile.getInputStream(entry), entry.getSize());
+
+		// the signers are known only after the entry has been read
+		CodeSource codeSource = new CodeSource(jar.getURL(), entry.getCodeSigners());
+
+		return defineClass(name, bytes, 0, bytes.length, codeSource);
+	}
+
+	/* ------------------------------------------------------------ */
+	private static byte[] readFully(InputStream in, long size) throws IOException
+	{
+		try
+		{
+			byte[] bytes = new byte[size >= 0 ? (int) size : 8192];
+			int length = 0;
+			int n;
+
+			while ((n = in.read(bytes, length, bytes.length - length)) > 0)
+			{
+				length += n;
+
+				if (length == bytes.length)
+				{
+					if (size >= 0)
+						break;
+
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+			}
+
+			return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/* ------------------------------------------------------------ */
+	@Override
+	public URL findResource(String name)
+	{
+		JarResourceIndex index = _jarIndex;
+
+		if (index != null)
+		{
+			JarResourceIndex.Jar jar = index.find(name);
+
+			if (jar != null)
+				return jar.getResource(name);
+		}
+
+		return super.findResource(name);
+	}
+
+	/* ------------------------------------------------------------ */
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException
+	{
+		JarResourceIndex index = _jarIndex;
+
+		if (index == null)
+			return super.findResources(name);
+
+		List<URL> urls = new ArrayList<URL>();
+
+		for (JarResourceIndex.Jar jar : index.findAll(name))
+		{
+			URL url = jar.getResource(name);
+
+			if (url != null)
+				urls.add(url);
+		}
+
+		urls.addAll(toList(super.findResources(name)));
+
+		return Collections.enumeration(urls);
+	}
+
+	/* ------------------------------------------------------------ */
+	/**
+	 * Close the indexed jars as well as the class path of URLClassLoader
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		JarResourceIndex index = _jarIndex;
+
+		if (index != null)
+			index.close();
+
+		super.close();
+	}
+
 
 	/* ------------------------------------------------------------ */
 	@Override
@@ -229,9 +486,40 @@ public class WebAppClassLoader extends URLClassLoader
 
 	/* ------------------------------------------------------------ */
 	@Override
-	protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
 	{
-		Class<?> clazz = loadClass0(name);
+		Class<?> clazz = _loaded.get(name);
+
+		if (clazz == null)
+		{
+			if (_notFound.containsKey(name))
+				throw new ClassNotFoundException(name);
+
+			// only the threads loading the same name wait for each other
+			synchronized (getClassLoadingLock(name))
+			{
+				clazz = _loaded.get(name);
+
+				if (clazz == null)
+				{
+					try
+					{
+						clazz = loadClass0(name);
+					}
+					catch (ClassNotFoundException e)
+					{
+						if (_notFound.size() >= MAX_NOT_FOUND)
+							_notFound.clear();
+
+						_notFound.put(name, Boolean.TRUE);
+
+						throw e;
+					}
+
+					_loaded.put(name, clazz);
+				}
+			}
+		}
 
 		if (clazz != null)
 		{
@@ -246,12 +534,12 @@ public class WebAppClassLoader extends URLClassLoader
 
 	
 	/**
-	 * Load class but not resolve
+	 * Load class but not resolve, called with the lock of the class name held
 	 * @param name
 	 * @return
 	 * @throws ClassNotFoundException
 	 */
-	protected synchronized Class<?> loadClass0(String name) throws ClassNotFoundException
+	protected Class<?> loadClass0(String name) throws ClassNotFoundException
 	{
 		// (0) Check our previously loaded class cache
 
@@ -33,6 +33,7 @@ package org.ireland.jnetty.server.session;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
 import javax.servlet.http.HttpSessionAttributeListener;
 import javax.servlet.http.HttpSessionBindingEvent;
 import javax.servlet.http.HttpSessionBindingListener;
@@ -45,12 +46,14 @@ import org.apache.commons.logging.LogFactory;
 
 import org.ireland.jnetty.webapp.WebApp;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Implements a HTTP session.
@@ -68,20 +71,20 @@ public class HttpSessionImpl implements HttpSession
 	protected SessionManager _manager;
 	// the session objectStore
 
-	// Map containing the actual values.
-	protected Map<String, Object> _values;
+	// the attributes, read without locking
+	protected SessionAttributes _values;
 
 	// time the session was created
 	private long _creationTime;
 	
 	// time the session was last accessed
-	private long _accessTime;
+	private volatile long _accessTime;
 
 	// maximum time the session may stay alive.
-	private long _idleTimeout;
+	private volatile long _idleTimeout;
 	
 
-	private long _lastUseTime;
+	private volatile long _lastUseTime;
 
 
 
@@ -89,7 +92,34 @@ public class HttpSessionImpl implements HttpSession
 	private boolean _isNew = true;
 
 	// true if the session is still valid, i.e. not invalidated
-	private boolean _isValid = true;
+	private volatile boolean _isValid = true;
+
+	// true once invalidate() or timeout() has started destroying the session
+	private boolean _isDestroying;
+
+	// true once the session was written to the overflow store, a new object is loaded when it's accessed again
+	private volatile boolean _isPassivated;
+
+	// true while the session is written to the overflow store, no request can join it meanwhile; guarded by this
+	private boolean _isPassivating;
+
+	// requests using the session, from getSession() until the request ends; guarded by this
+	private int _requestCount;
+
+	// true if the session was evicted from the in-heap store while requests used it; guarded by this
+	private boolean _isEvictedInUse;
+
+	// version of the session in the manager's external SessionStore, 0 until it's written the first time
+	private long _storeVersion;
+
+	// the last use time written to the external SessionStore
+	private long _storeUseTime;
+
+	// names of the attributes changed since the session was last written to the external SessionStore
+	private Set<String> _dirtyAttributes;
+
+	// true if the max-inactive-interval changed since the session was last written to the external SessionStore
+	private boolean _isTimeoutDirty;
 
 	/**
 	 * Create a new session object.
@@ -124,9 +154,9 @@ public class HttpSessionImpl implements HttpSession
 	/**
 	 * Create the map used to objectStore values.
 	 */
-	protected Map<String, Object> createValueMap()
+	protected SessionAttributes createValueMap()
 	{
-		return new TreeMap<String, Object>();
+		return new SessionAttributes();
 	}
 
 	/**
@@ -187,10 +217,30 @@ public class HttpSessionImpl implements HttpSession
 	@Override
 	public void setMaxInactiveInterval(int value)
 	{
+		if (_isPassivated)
+		{
+			getLiveCopy("setMaxInactiveInterval(int)").setMaxInactiveInterval(value);
+			return;
+		}
+
+		long oldIdleTimeout = _idleTimeout;
+
 		if (value < 0)
 			_idleTimeout = Long.MAX_VALUE / 2;
 		else
 			_idleTimeout = ((long) value) * 1000;
+
+		// a longer timeout is picked up lazily by the expiration wheel, a shorter one needs an earlier slot
+		if (_idleTimeout < oldIdleTimeout)
+			_manager.scheduleExpiration(this);
+
+		if (_idleTimeout != oldIdleTimeout && _manager.getSessionStore() != null)
+		{
+			synchronized (this)
+			{
+				_isTimeoutDirty = true;
+			}
+		}
 	}
 
 	/**
@@ -260,12 +310,31 @@ public class HttpSessionImpl implements HttpSession
 		return _lastUseTime;
 	}
 
+	/**
+	 * Returns the time in milliseconds when the session will time out if it isn't accessed again.
+	 */
+	long getExpirationTime()
+	{
+		return _lastUseTime + _idleTimeout;
+	}
+
+	/**
+	 * Marks the session as accessed by a request which joined it.
+	 */
+	public void access(long now)
+	{
+		_accessTime = now;
+		_lastUseTime = now;
+
+		_isNew = false;
+	}
+
 	/**
 	 * Returns true if the session is empty.
 	 */
 	public boolean isEmpty()
 	{
-		return _values == null || _values.size() == 0;
+		return _values == null || _values.isEmpty();
 	}
 
 	//
@@ -281,12 +350,10 @@ public class HttpSessionImpl implements HttpSession
 		if (!_isValid)
 			throw new IllegalStateException(this+": can't call getAttribute() when session is no longer valid.");
 
-		synchronized (_values)
-		{
-			Object value = _values.get(name);
+		if (_isPassivated)
+			return getLiveCopy("getAttribute()").getAttribute(name);
 
-			return value;
-		}
+		return _values.get(name);
 	}
 
 	/**
@@ -304,6 +371,12 @@ public class HttpSessionImpl implements HttpSession
 		if (!_isValid)
 			throw new IllegalStateException(this+": can't call setAttribute(String, Object) when session is no longer valid.");
 
+		if (_isPassivated)
+		{
+			getLiveCopy("setAttribute(String, Object)").setAttribute(name, value);
+			return;
+		}
+
 		Object oldValue;
 
 		if (value != null && !(value instanceof Serializable) && debug)
@@ -311,14 +384,13 @@ public class HttpSessionImpl implements HttpSession
 			log.debug(this+" attribute '"+name+"' value is non-serializable type '"+value.getClass().getName()+"'");
 		}
 
-		synchronized (_values)
-		{
-			if (value != null)
-				oldValue = _values.put(name, value);
-			else
-				oldValue = _values.remove(name);
-		}
+		if (value != null)
+			oldValue = _values.put(name, value);
+		else
+			oldValue = _values.remove(name);
 
+		if (value != null || oldValue != null)
+			markDirty(name);
 
 		if (oldValue instanceof HttpSessionBindingListener)
 		{
@@ -373,16 +445,38 @@ public class HttpSessionImpl implements HttpSession
 		if (!_isValid)
 			throw new IllegalStateException(this+": can't call removeAttribute(String) when session is no longer valid.");
 
-		Object oldValue;
-
-		synchronized (_values)
+		if (_isPassivated)
 		{
-			oldValue = _values.remove(name);
+			getLiveCopy("removeAttribute(String)").removeAttribute(name);
+			return;
 		}
 
+		Object oldValue = _values.remove(name);
+
+		if (oldValue != null)
+			markDirty(name);
+
 		notifyAttributeRemoved(name, oldValue);
 	}
 
+	/**
+	 * Marks an attribute to be written to the external SessionStore at the end of the request. Values modified in
+	 * place must be set again with setAttribute() to be written.
+	 */
+	private void markDirty(String name)
+	{
+		if (_manager.getSessionStore() == null)
+			return;
+
+		synchronized (this)
+		{
+			if (_dirtyAttributes == null)
+				_dirtyAttributes = new HashSet<String>();
+
+			_dirtyAttributes.add(name);
+		}
+	}
+
 	/**
 	 * Notify any Attribute unbound listeners.
 	 */
@@ -425,13 +519,13 @@ public class HttpSessionImpl implements HttpSession
 	@Override
 	public Enumeration<String> getAttributeNames()
 	{
-		synchronized (_values)
-		{
-			if (!_isValid)
-				throw new IllegalStateException(this+" can't call getAttributeNames() when session is no longer valid.");
+		if (!_isValid)
+			throw new IllegalStateException(this+" can't call getAttributeNames() when session is no longer valid.");
 
-			return Collections.enumeration(_values.keySet());
-		}
+		if (_isPassivated)
+			return getLiveCopy("getAttributeNames()").getAttributeNames();
+
+		return Collections.enumeration(_values.getNames());
 	}
 
 	/**
@@ -463,23 +557,15 @@ public class HttpSessionImpl implements HttpSession
 	 */
 	public String[] getValueNames()
 	{
-		synchronized (_values)
-		{
-			if (!_isValid)
-				throw new IllegalStateException(this+" can't call getValueNames() when session is no longer valid.");
-
-			if (_values == null)
-				return new String[0];
+		if (!_isValid)
+			throw new IllegalStateException(this+" can't call getValueNames() when session is no longer valid.");
 
-			String[] s = new String[_values.size()];
+		if (_values == null)
+			return new String[0];
 
-			Enumeration<String> e = getAttributeNames();
-			int count = 0;
-			while (e.hasMoreElements())
-				s[count++] = (String) e.nextElement();
+		List<String> names = _values.getNames();
 
-			return s;
-		}
+		return names.toArray(new String[names.size()]);
 	}
 
 	//
@@ -522,44 +608,74 @@ public class HttpSessionImpl implements HttpSession
 	{
 		if (debug)
 			log.debug(this + " invalidate");
-		
-		clearAllAttributes();
-		
-		_isValid = false;
 
-		_manager.removeSession(this);
+		// the live copy is in the overflow store, or was activated since: it's activated and destroyed, so the overflow
+		// record is removed and sessionDestroyed is published
+		if (_isPassivated)
+		{
+			HttpSessionImpl session = _manager.getSession(_id);
+
+			if (session != null && session != this)
+				session.invalidate();
+
+			return;
+		}
+
+		destroy();
 	}
 
 	/**
-	 * Cleans up the session.
+	 * Publishes sessionDestroyed, clears the attributes and removes the session from its manager. Only the first of
+	 * concurrent invalidate()/timeout() calls destroys the session.
+	 * 
+	 * @return true if this call destroyed the session
 	 */
-	void clearAllAttributes()
+	private boolean destroy()
 	{
-		if (_values.size() == 0)
-			return;
-
-		// ClusterObject clusterObject = _clusterObject;
+		synchronized (this)
+		{
+			// the session lives on in the overflow store, invalidate() destroys the live copy
+			if (_isDestroying || !_isValid || _isPassivated)
+				return false;
 
-		ArrayList<String> names = new ArrayList<String>();
-		ArrayList<Object> values = new ArrayList<Object>();
+			_isDestroying = true;
+		}
 
-		synchronized (_values)
+		try
 		{
+			// the listeners may still read the attributes
+			publishSessionDestroyed();
 
-			for (Map.Entry<String, Object> entry : _values.entrySet())
-			{
-				names.add(entry.getKey());
-				values.add(entry.getValue());
-			}
+			clearAllAttributes();
+		}
+		finally
+		{
+			_isValid = false;
 
-			_values.clear();
+			_manager.removeSession(this);
 		}
 
+		return true;
+	}
+
+	/**
+	 * Cleans up the session.
+	 */
+	void clearAllAttributes()
+	{
+		if (_values.isEmpty())
+			return;
+
+		// ClusterObject clusterObject = _clusterObject;
+
+		// [name0, value0, name1, value1, ...]
+		Object[] removed = _values.clear();
+
 		// server/015a
-		for (int i = 0; i < names.size(); i++)
+		for (int i = 0; i < removed.length; i += 2)
 		{
-			String name = names.get(i);
-			Object value = values.get(i);
+			String name = (String) removed[i];
+			Object value = removed[i + 1];
 
 			notifyValueUnbound(name, value);
 		}
@@ -601,16 +717,22 @@ public class HttpSessionImpl implements HttpSession
 
 
 	
-	  /**
-	   * Invalidates a session based on a timeout
-	   */
-	  void timeout()
-	  {
-		  clearAllAttributes();
-	  }
+	/**
+	 * Invalidates a session based on a timeout
+	 * 
+	 * @return true if this call destroyed the session
+	 */
+	boolean timeout()
+	{
+		if (debug)
+			log.debug(this + " timeout");
+
+		return destroy();
+	}
 
 	/**
-	 * Callback when the session is removed from the session cache, generally because the session cache is full.
+	 * Callback when the session is removed from the session cache, generally because the session cache is full. The
+	 * session can't be found any more, so it's destroyed like a timed out one.
 	 */
 	public void removeEvent()
 	{
@@ -618,14 +740,332 @@ public class HttpSessionImpl implements HttpSession
 		if (debug)
 			log.debug(this + " remove");
 
-		long now = System.currentTimeMillis();
+		destroy();
+	}
+
+	//
+	// passivation
+	//
+
+	/**
+	 * Returns true if the session was moved to the overflow store.
+	 */
+	boolean isPassivated()
+	{
+		return _isPassivated;
+	}
+
+	/**
+	 * Marks the session as moved to the overflow store. The requests waiting in beginRequest() load the passivated
+	 * copy, and the calls on this object are forwarded to the live copy.
+	 */
+	synchronized void setPassivated()
+	{
+		_isPassivated = true;
+		_isPassivating = false;
+
+		notifyAll();
+	}
 
-		// server/015k, server/10g2
-		if (_accessTime + getMaxInactiveInterval() < now)
+	/**
+	 * Called when the session was evicted from the in-heap store, before it's passivated.
+	 * 
+	 * @return false if requests still use the session: it isn't passivated, endRequest() of the last one reports it
+	 */
+	synchronized boolean beginPassivation()
+	{
+		if (_requestCount > 0)
 		{
-			publishSessionDestroyed();
+			_isEvictedInUse = true;
+
+			return false;
+		}
+
+		_isPassivating = true;
+
+		return true;
+	}
+
+	/**
+	 * The session couldn't be passivated, it's destroyed.
+	 */
+	synchronized void cancelPassivation()
+	{
+		_isPassivating = false;
+
+		notifyAll();
+	}
+
+	/**
+	 * Registers a request using the session, it isn't passivated until the request calls endRequest(). Waits if the
+	 * session is being passivated.
+	 * 
+	 * @return false if the session was passivated: the request must look it up again
+	 */
+	synchronized boolean beginRequest()
+	{
+		boolean isInterrupted = false;
+
+		while (_isPassivating)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				isInterrupted = true;
+			}
+		}
+
+		if (isInterrupted)
+			Thread.currentThread().interrupt();
+
+		if (_isPassivated)
+			return false;
+
+		_requestCount++;
+
+		return true;
+	}
+
+	/**
+	 * Unregisters a request registered by beginRequest().
+	 * 
+	 * @return true if it was the last request using a session evicted meanwhile, which must be put back
+	 */
+	synchronized boolean endRequest()
+	{
+		if (--_requestCount > 0 || !_isEvictedInUse)
+			return false;
+
+		_isEvictedInUse = false;
+
+		return true;
+	}
+
+	/**
+	 * Returns the live copy of a passivated session, activating it from the overflow store. Code holding on to this
+	 * object outside of a request still reaches the session.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the session expired or was invalidated since
+	 */
+	private HttpSessionImpl getLiveCopy(String method)
+	{
+		HttpSessionImpl session = _manager.getSession(_id);
+
+		if (session == null || session == this)
+			throw new IllegalStateException(this + ": can't call " + method + " when session is no longer valid.");
+
+		return session;
+	}
+
+	/**
+	 * Notifies the attributes and the activation listeners that the session is about to be passivated.
+	 */
+	void notifyWillPassivate()
+	{
+		HttpSessionEvent event = new HttpSessionEvent(this);
+
+		Object[] attributes = _values.toArray();
+
+		for (int i = 1; i < attributes.length; i += 2)
+		{
+			if (attributes[i] instanceof HttpSessionActivationListener)
+				((HttpSessionActivationListener) attributes[i]).sessionWillPassivate(event);
+		}
+
+		ArrayList<HttpSessionActivationListener> listeners = _manager.getActivationListeners();
+
+		if (listeners != null)
+		{
+			for (int i = 0; i < listeners.size(); i++)
+			{
+				listeners.get(i).sessionWillPassivate(event);
+			}
+		}
+	}
+
+	/**
+	 * Notifies the attributes and the activation listeners that the session was activated.
+	 */
+	void notifyDidActivate()
+	{
+		HttpSessionEvent event = new HttpSessionEvent(this);
+
+		Object[] attributes = _values.toArray();
+
+		for (int i = 1; i < attributes.length; i += 2)
+		{
+			if (attributes[i] instanceof HttpSessionActivationListener)
+				((HttpSessionActivationListener) attributes[i]).sessionDidActivate(event);
+		}
+
+		ArrayList<HttpSessionActivationListener> listeners = _manager.getActivationListeners();
+
+		if (listeners != null)
+		{
+			for (int i = 0; i < listeners.size(); i++)
+			{
+				listeners.get(i).sessionDidActivate(event);
+			}
+		}
+	}
+
+	/**
+	 * Writes the state of the session, the times relative to the creation time. The attributes must be serializable
+	 * or have a codec.
+	 */
+	void store(SessionSerializer serializer, SessionSerializer.Output out) throws IOException
+	{
+		out.writeString(_id);
+		out.writeVarLong(_creationTime);
+		out.writeSignedVarLong(_accessTime - _creationTime);
+		out.writeSignedVarLong(_lastUseTime - _creationTime);
+		out.writeVarLong(_idleTimeout);
+		out.writeBoolean(_isNew);
+
+		Object[] attributes = _values.toArray();
+
+		out.writeVarInt(attributes.length / 2);
+
+		for (int i = 0; i < attributes.length; i += 2)
+		{
+			out.writeString((String) attributes[i]);
+			serializer.writeValue(out, attributes[i + 1]);
+		}
+	}
+
+	/**
+	 * Reads a session written by store().
+	 */
+	static HttpSessionImpl load(SessionManager manager, SessionSerializer serializer, SessionSerializer.Input in) throws IOException,
+			ClassNotFoundException
+	{
+		String id = in.readString();
+
+		long creationTime = in.readVarLong();
+
+		HttpSessionImpl session = new HttpSessionImpl(manager, id, creationTime);
+
+		session._accessTime = creationTime + in.readSignedVarLong();
+		session._lastUseTime = creationTime + in.readSignedVarLong();
+		session._idleTimeout = in.readVarLong();
+		session._isNew = in.readBoolean();
+
+		int count = in.readVarInt();
+
+		for (int i = 0; i < count; i++)
+		{
+			String name = in.readString();
+
+			session._values.put(name, serializer.readValue(in));
+		}
+
+		return session;
+	}
+
+	//
+	// external SessionStore
+	//
+
+	/**
+	 * Returns the version of the session in the external SessionStore, 0 if it wasn't written yet.
+	 */
+	synchronized long getStoreVersion()
+	{
+		return _storeVersion;
+	}
+
+	/**
+	 * Returns true if the session must be written to the external SessionStore: it's new, an attribute or the timeout
+	 * changed, or the last use time in the store is older than 'touchInterval'.
+	 */
+	synchronized boolean isStoreDirty(long touchInterval)
+	{
+		return _storeVersion == 0 || _isTimeoutDirty || _dirtyAttributes != null && !_dirtyAttributes.isEmpty()
+				|| _lastUseTime - _storeUseTime >= touchInterval;
+	}
+
+	/**
+	 * Returns the names of the attributes changed since the last write and resets them.
+	 * 
+	 * @return null if no attribute changed
+	 */
+	synchronized String[] takeDirtyAttributes()
+	{
+		_isTimeoutDirty = false;
+
+		if (_dirtyAttributes == null || _dirtyAttributes.isEmpty())
+			return null;
+
+		String[] names = _dirtyAttributes.toArray(new String[_dirtyAttributes.size()]);
+
+		_dirtyAttributes.clear();
+
+		return names;
+	}
+
+	/**
+	 * Marks the attributes as changed again after a failed write.
+	 */
+	synchronized void restoreDirtyAttributes(String[] names)
+	{
+		_isTimeoutDirty = true;
+
+		if (names == null)
+			return;
+
+		if (_dirtyAttributes == null)
+			_dirtyAttributes = new HashSet<String>();
+
+		for (String name : names)
+		{
+			_dirtyAttributes.add(name);
 		}
+	}
+
+	/**
+	 * Records a successful write to the external SessionStore.
+	 */
+	synchronized void setStored(long version, long useTime)
+	{
+		_storeVersion = version;
+		_storeUseTime = useTime;
+	}
+
+	/**
+	 * Returns the time information written to the external SessionStore.
+	 * 
+	 * @param grace
+	 *            added to the expiration time: the store may keep the session a little longer, as the last use time
+	 *            isn't written by every request
+	 */
+	SessionData createSessionData(long grace)
+	{
+		long lastUseTime = _lastUseTime;
+		long idleTimeout = _idleTimeout;
+
+		return new SessionData(_storeVersion, _creationTime, lastUseTime, idleTimeout, lastUseTime + idleTimeout + grace);
+	}
+
+	/**
+	 * Creates a session read from the external SessionStore, the attributes are added by the manager.
+	 */
+	static HttpSessionImpl create(SessionManager manager, String id, SessionData data)
+	{
+		HttpSessionImpl session = new HttpSessionImpl(manager, id, data.getCreationTime());
+
+		session._accessTime = data.getAccessTime();
+		session._lastUseTime = data.getAccessTime();
+		session._idleTimeout = data.getMaxInactiveInterval();
+		session._isNew = false;
+
+		session._storeVersion = data.getVersion();
+		session._storeUseTime = data.getAccessTime();
 
+		return session;
 	}
 
 	/**
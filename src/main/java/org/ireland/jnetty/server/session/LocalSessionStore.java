@@ -0,0 +1,172 @@
+package org.ireland.jnetty.server.session;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的SessionStore,代替外部存储用于测试及单机部署
+ *
+ * 几个SessionManager共享同一个LocalSessionStore时,其行为与共享一个外部存储的多个节点相同.每次load()/save()/remove()都被计数,
+ * 用来验证每个请求的访问次数(相当于网络往返的次数).
+ *
+ * 过期的Session在load()时或每1024次save()时被删除.
+ *
+ * @author KEN
+ *
+ */
+public class LocalSessionStore implements SessionStore
+{
+	private static final int PURGE_INTERVAL = 1024;
+
+	private final ConcurrentMap<String, SessionData> _sessions = new ConcurrentHashMap<String, SessionData>();
+
+	private final AtomicLong _loadCount = new AtomicLong();
+
+	private final AtomicLong _saveCount = new AtomicLong();
+
+	private final AtomicLong _removeCount = new AtomicLong();
+
+	@Override
+	public SessionData load(String id, long knownVersion)
+	{
+		_loadCount.incrementAndGet();
+
+		SessionData data = _sessions.get(id);
+
+		if (data == null)
+			return null;
+
+		if (data.getExpirationTime() <= System.currentTimeMillis())
+		{
+			_sessions.remove(id, data);
+			return null;
+		}
+
+		return data.getVersion() == knownVersion ? SessionData.NOT_MODIFIED : data;
+	}
+
+	@Override
+	public long save(String id, long expectedVersion, SessionData delta)
+	{
+		if (_saveCount.incrementAndGet() % PURGE_INTERVAL == 0)
+			removeExpired(System.currentTimeMillis());
+
+		while (true)
+		{
+			SessionData old = _sessions.get(id);
+
+			if (old != null && old.getExpirationTime() <= System.currentTimeMillis())
+			{
+				_sessions.remove(id, old);
+				old = null;
+			}
+
+			if (old == null)
+			{
+				// 已被删除或已过期的Session不重新创建
+				if (expectedVersion != 0)
+					return -1;
+
+				SessionData data = merge(null, delta, 1);
+
+				if (_sessions.putIfAbsent(id, data) == null)
+					return 1;
+			}
+			else
+			{
+				// id已被其它Session使用
+				if (expectedVersion == 0)
+					return -1;
+
+				SessionData data = merge(old, delta, old.getVersion() + 1);
+
+				if (_sessions.replace(id, old, data))
+					return data.getVersion();
+			}
+		}
+	}
+
+	private static SessionData merge(SessionData old, SessionData delta, long version)
+	{
+		long creationTime = old != null ? old.getCreationTime() : delta.getCreationTime();
+
+		SessionData data = new SessionData(version, creationTime, delta.getAccessTime(), delta.getMaxInactiveInterval(), delta.getExpirationTime());
+
+		if (old != null)
+		{
+			for (Map.Entry<String, byte[]> entry : old.getAttributes().entrySet())
+			{
+				if (!delta.getAttributes().containsKey(entry.getKey()))
+					data.putAttribute(entry.getKey(), entry.getValue());
+			}
+		}
+
+		for (Map.Entry<String, byte[]> entry : delta.getAttributes().entrySet())
+		{
+			if (entry.getValue() != null)
+				data.putAttribute(entry.getKey(), entry.getValue());
+		}
+
+		return data;
+	}
+
+	@Override
+	public void remove(String id)
+	{
+		_removeCount.incrementAndGet();
+
+		_sessions.remove(id);
+	}
+
+	/**
+	 * 删除已过期的Session
+	 *
+	 * @return 删除的个数
+	 */
+	public int removeExpired(long now)
+	{
+		int count = 0;
+
+		Iterator<SessionData> iter = _sessions.values().iterator();
+
+		while (iter.hasNext())
+		{
+			if (iter.next().getExpirationTime() <= now)
+			{
+				iter.remove();
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	public int size()
+	{
+		return _sessions.size();
+	}
+
+	public long getLoadCount()
+	{
+		return _loadCount.get();
+	}
+
+	public long getSaveCount()
+	{
+		return _saveCount.get();
+	}
+
+	public long getRemoveCount()
+	{
+		return _removeCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[size=" + size() + "]";
+	}
+}
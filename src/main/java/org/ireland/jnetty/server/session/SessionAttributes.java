@@ -0,0 +1,273 @@
+package org.ireland.jnetty.server.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session的属性表,替换每次访问都需要同步的TreeMap
+ *
+ * 大部分Session只有2~5个属性,TreeMap每个属性一个Entry(40字节)再加上TreeMap本身,节点的开销远大于属性本身.SessionAttributes分两种形态:
+ *
+ * 1:属性不超过THRESHOLD个时,保存在一个扁平的数组中[name0, value0, name1, value1, ...],没有属性时共享同一个空数组.
+ * 写操作(同步)复制出新的数组后替换(copy-on-write),读操作读取volatile的数组后顺序查找,不需要锁.
+ *
+ * 2:超过THRESHOLD个后改用ConcurrentHashMap(之后不再变回数组),读操作同样不需要锁.
+ *
+ * @author KEN
+ *
+ */
+public class SessionAttributes
+{
+	// 超过此数量的属性改用ConcurrentHashMap
+	static final int THRESHOLD = 8;
+
+	private static final Object[] EMPTY = new Object[0];
+
+	// [name0, value0, name1, value1, ...],使用_map后为null
+	private volatile Object[] _table = EMPTY;
+
+	private volatile ConcurrentHashMap<String, Object> _map;
+
+	/**
+	 * @return name对应的值,不存在时返回null(无锁)
+	 */
+	public Object get(String name)
+	{
+		Object[] table = _table;
+
+		if (table == null)
+		{
+			ConcurrentHashMap<String, Object> map = _map;
+
+			// 与clear()并发:已被清空
+			return map != null ? map.get(name) : null;
+		}
+
+		for (int i = 0; i < table.length; i += 2)
+		{
+			if (name.equals(table[i]))
+				return table[i + 1];
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 *            不能为null
+	 * @return 旧的值
+	 */
+	public synchronized Object put(String name, Object value)
+	{
+		if (value == null)
+			throw new NullPointerException("value");
+
+		Object[] table = _table;
+
+		if (table == null)
+			return _map.put(name, value);
+
+		int index = indexOf(table, name);
+
+		if (index >= 0)
+		{
+			Object oldValue = table[index + 1];
+
+			Object[] newTable = table.clone();
+			newTable[index + 1] = value;
+
+			_table = newTable;
+
+			return oldValue;
+		}
+
+		if (table.length / 2 >= THRESHOLD)
+		{
+			ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<String, Object>(4 * THRESHOLD, 0.75f, 1);
+
+			for (int i = 0; i < table.length; i += 2)
+			{
+				map.put((String) table[i], table[i + 1]);
+			}
+
+			map.put(name, value);
+
+			// 先发布_map,读线程看到_table为null时_map必然可见
+			_map = map;
+			_table = null;
+
+			return null;
+		}
+
+		Object[] newTable = Arrays.copyOf(table, table.length + 2);
+		newTable[table.length] = name;
+		newTable[table.length + 1] = value;
+
+		_table = newTable;
+
+		return null;
+	}
+
+	/**
+	 * @return 被移除的值,不存在时返回null
+	 */
+	public synchronized Object remove(String name)
+	{
+		Object[] table = _table;
+
+		if (table == null)
+			return _map.remove(name);
+
+		int index = indexOf(table, name);
+
+		if (index < 0)
+			return null;
+
+		Object oldValue = table[index + 1];
+
+		if (table.length == 2)
+		{
+			_table = EMPTY;
+		}
+		else
+		{
+			Object[] newTable = new Object[table.length - 2];
+
+			System.arraycopy(table, 0, newTable, 0, index);
+			System.arraycopy(table, index + 2, newTable, index, table.length - index - 2);
+
+			_table = newTable;
+		}
+
+		return oldValue;
+	}
+
+	/**
+	 * 移除所有的属性
+	 *
+	 * @return 被移除的属性[name0, value0, name1, value1, ...]
+	 */
+	public synchronized Object[] clear()
+	{
+		Object[] table = _table;
+
+		if (table != null)
+		{
+			_table = EMPTY;
+
+			return table;
+		}
+
+		ConcurrentHashMap<String, Object> map = _map;
+
+		Object[] removed = new Object[2 * map.size()];
+
+		int i = 0;
+
+		for (Map.Entry<String, Object> entry : map.entrySet())
+		{
+			if (i == removed.length)
+				break;
+
+			removed[i++] = entry.getKey();
+			removed[i++] = entry.getValue();
+		}
+
+		_table = EMPTY;
+		_map = null;
+
+		map.clear();
+
+		return i == removed.length ? removed : Arrays.copyOf(removed, i);
+	}
+
+	/**
+	 * @return 所有属性的快照[name0, value0, name1, value1, ...]
+	 */
+	public Object[] toArray()
+	{
+		Object[] table = _table;
+
+		if (table != null)
+			return table;
+
+		ConcurrentHashMap<String, Object> map = _map;
+
+		if (map == null)
+			return EMPTY;
+
+		List<Object> pairs = new ArrayList<Object>(2 * map.size());
+
+		for (Map.Entry<String, Object> entry : map.entrySet())
+		{
+			pairs.add(entry.getKey());
+			pairs.add(entry.getValue());
+		}
+
+		return pairs.toArray();
+	}
+
+	/**
+	 * @return 所有属性名的快照
+	 */
+	public List<String> getNames()
+	{
+		Object[] table = _table;
+
+		if (table == null)
+		{
+			ConcurrentHashMap<String, Object> map = _map;
+
+			return map != null ? new ArrayList<String>(map.keySet()) : new ArrayList<String>();
+		}
+
+		List<String> names = new ArrayList<String>(table.length / 2);
+
+		for (int i = 0; i < table.length; i += 2)
+		{
+			names.add((String) table[i]);
+		}
+
+		return names;
+	}
+
+	public int size()
+	{
+		Object[] table = _table;
+
+		if (table == null)
+		{
+			ConcurrentHashMap<String, Object> map = _map;
+
+			return map != null ? map.size() : 0;
+		}
+
+		return table.length / 2;
+	}
+
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	private static int indexOf(Object[] table, String name)
+	{
+		for (int i = 0; i < table.length; i += 2)
+		{
+			if (name.equals(table[i]))
+				return i;
+		}
+
+		return -1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + getNames();
+	}
+}
@@ -0,0 +1,97 @@
+package org.ireland.jnetty.server.session;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 在SessionStore中存取的Session:时间信息及已序列化的属性
+ *
+ * 作为SessionStore.save()的参数时是一个增量,只包含被改变的属性,值为null表示该属性被删除.
+ *
+ * @author KEN
+ *
+ */
+public final class SessionData
+{
+	/**
+	 * SessionStore.load()的返回值:存储中的版本与本地副本相同
+	 */
+	public static final SessionData NOT_MODIFIED = new SessionData(-1, 0, 0, 0, 0);
+
+	private final long _version;
+
+	private final long _creationTime;
+
+	private final long _accessTime;
+
+	// ms
+	private final long _maxInactiveInterval;
+
+	private final long _expirationTime;
+
+	private final Map<String, byte[]> _attributes = new LinkedHashMap<String, byte[]>();
+
+	/**
+	 * @param version
+	 *            由SessionStore分配,作为增量时被忽略
+	 * @param expirationTime
+	 *            存储可以在这之后删除该Session
+	 */
+	public SessionData(long version, long creationTime, long accessTime, long maxInactiveInterval, long expirationTime)
+	{
+		_version = version;
+		_creationTime = creationTime;
+		_accessTime = accessTime;
+		_maxInactiveInterval = maxInactiveInterval;
+		_expirationTime = expirationTime;
+	}
+
+	public long getVersion()
+	{
+		return _version;
+	}
+
+	public long getCreationTime()
+	{
+		return _creationTime;
+	}
+
+	public long getAccessTime()
+	{
+		return _accessTime;
+	}
+
+	public long getMaxInactiveInterval()
+	{
+		return _maxInactiveInterval;
+	}
+
+	public long getExpirationTime()
+	{
+		return _expirationTime;
+	}
+
+	/**
+	 * @param value
+	 *            已序列化的值,null表示删除该属性
+	 */
+	public void putAttribute(String name, byte[] value)
+	{
+		_attributes.put(name, value);
+	}
+
+	/**
+	 * @return 属性名 -> 已序列化的值(只读)
+	 */
+	public Map<String, byte[]> getAttributes()
+	{
+		return Collections.unmodifiableMap(_attributes);
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[version=" + _version + ",attributes=" + _attributes.keySet() + "]";
+	}
+}
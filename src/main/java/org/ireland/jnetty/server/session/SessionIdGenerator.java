@@ -0,0 +1,173 @@
+package org.ireland.jnetty.server.session;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * SessionId的生成器,代替对共享的RandomUtil的多次调用
+ *
+ * 1:每条线程有自己的SecureRandom(SHA1PRNG,纯Java实现,不像NativePRNG那样共享一把全局锁),线程之间没有竞争,吞吐量随线程数增长.
+ * 每生成RESEED_INTERVAL个id,从共享的系统随机源补充一次种子.
+ *
+ * 2:随机字节按每6位一个字符直接编码到该线程预先分配的char数组中,不使用StringBuilder.
+ *
+ * 3:可选的节点前缀(如集群中的节点编号)放在随机字符之前,负载均衡器可以按前缀把请求路由到创建该Session的节点.
+ *
+ * 字符集与SessionManager.convert()相同:a-z A-Z 0-9 _ -
+ *
+ * @author KEN
+ *
+ */
+final class SessionIdGenerator
+{
+	// 每条线程每生成多少个id补充一次种子
+	static final int RESEED_INTERVAL = 1 << 16;
+
+	private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_-".toCharArray();
+
+	// 种子的来源,只在创建及补充种子时访问
+	private static final SecureRandom SEEDER = new SecureRandom();
+
+	private final char[] _prefix;
+
+	// 随机字符的个数
+	private final int _length;
+
+	private final ThreadLocal<State> _state = new ThreadLocal<State>()
+	{
+		@Override
+		protected State initialValue()
+		{
+			return new State(_prefix, _length);
+		}
+	};
+
+	/**
+	 * @param prefix
+	 *            节点前缀,只能包含ALPHABET中的字符,可以为null
+	 * @param length
+	 *            随机字符的个数(每个字符6位)
+	 */
+	SessionIdGenerator(String prefix, int length)
+	{
+		if (length <= 0)
+			throw new IllegalArgumentException("length must be positive: " + length);
+
+		_prefix = prefix != null ? prefix.toCharArray() : new char[0];
+		_length = length;
+
+		for (char ch : _prefix)
+		{
+			if (!isValid(ch))
+				throw new IllegalArgumentException("invalid character '" + ch + "' in session id prefix '" + prefix + "'");
+		}
+	}
+
+	static boolean isValid(char ch)
+	{
+		return ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' || ch == '_' || ch == '-';
+	}
+
+	String getPrefix()
+	{
+		return new String(_prefix);
+	}
+
+	int getLength()
+	{
+		return _length;
+	}
+
+	String generate()
+	{
+		return _state.get().generate();
+	}
+
+	/**
+	 * 一条线程的随机源及缓冲区
+	 */
+	private static final class State
+	{
+		private final SecureRandom _random;
+
+		private final char[] _chars;
+
+		private final int _offset;
+
+		// 3个字节编码为4个字符
+		private final byte[] _bytes;
+
+		// 自上次设置种子以来生成的id数
+		private int _count;
+
+		State(char[] prefix, int length)
+		{
+			_random = createRandom();
+
+			_chars = new char[prefix.length + length];
+			System.arraycopy(prefix, 0, _chars, 0, prefix.length);
+
+			_offset = prefix.length;
+
+			_bytes = new byte[(length + 3) / 4 * 3];
+		}
+
+		private static SecureRandom createRandom()
+		{
+			SecureRandom random;
+
+			try
+			{
+				random = SecureRandom.getInstance("SHA1PRNG");
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				random = new SecureRandom();
+			}
+
+			// 在第一次使用前设置种子,替代SHA1PRNG的自我播种
+			random.setSeed(seed());
+
+			return random;
+		}
+
+		private static byte[] seed()
+		{
+			byte[] seed = new byte[32];
+
+			SEEDER.nextBytes(seed);
+
+			return seed;
+		}
+
+		String generate()
+		{
+			if (++_count > RESEED_INTERVAL)
+			{
+				// 补充(而不是替换)种子
+				_random.setSeed(seed());
+
+				_count = 1;
+			}
+
+			byte[] bytes = _bytes;
+			char[] chars = _chars;
+
+			_random.nextBytes(bytes);
+
+			int end = chars.length;
+
+			for (int i = 0, j = _offset; j < end; i += 3)
+			{
+				int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+
+				for (int shift = 18; shift >= 0 && j < end; shift -= 6)
+				{
+					chars[j++] = ALPHABET[(bits >>> shift) & 0x3f];
+				}
+			}
+
+			return new String(chars);
+		}
+	}
+}
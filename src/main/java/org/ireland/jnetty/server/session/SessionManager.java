@@ -29,8 +29,17 @@
 
 package org.ireland.jnetty.server.session;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
@@ -43,13 +52,12 @@ import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
 import org.ireland.jnetty.config.ConfigException;
+import org.ireland.jnetty.util.ExpirationWheel;
+import org.ireland.jnetty.util.PrivateFiles;
 import org.ireland.jnetty.webapp.WebApp;
 
 import com.caucho.util.Crc64;
 
-import com.caucho.util.LruCache;
-import com.caucho.util.RandomUtil;
-
 /**
  * Manages sessions in a web-webApp.
  */
@@ -68,10 +76,75 @@ public final class SessionManager implements SessionCookieConfig
 
 	private static final int[] DECODE;
 
+	// precision of the session expiration
+	private static final long EXPIRATION_TICK = 1000L;
+
+	// one revolution of the expiration wheel covers the default 30 minute timeout
+	private static final int EXPIRATION_TICKS_PER_WHEEL = 2048;
+
+	// size of one mapped segment of the overflow store, also the largest session which can be passivated
+	private static final int OVERFLOW_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	// number of locks serializing the activation of the same session id
+	private static final int ACTIVATION_LOCKS = 64;
+
 	private final WebApp _webApp;
 
 	// active sessions
-	private LruCache<String, HttpSessionImpl> _sessions;
+	private ShardedSessionStore _sessions;
+
+	// expires the sessions which haven't been accessed for their max-inactive-interval
+	private final SessionExpirationWheel _expirationWheel;
+
+	// the thread advancing the expiration wheel, started with the first session
+	private volatile Thread _reaper;
+
+	// maximum size of the overflow store in bytes, 0 disables passivation
+	private long _sessionOverflowMax = 256L * 1024 * 1024;
+
+	// sessions evicted from the full in-heap store, created with the first eviction
+	private volatile SessionOverflowStore _overflow;
+
+	// expires the passivated sessions
+	private final OverflowExpirationWheel _overflowWheel;
+
+	private final Object[] _activationLocks = new Object[ACTIVATION_LOCKS];
+
+	// sessions evicted from the in-heap store which are still used by requests (put back when the last one ends) or
+	// are being passivated
+	private final ConcurrentHashMap<String, HttpSessionImpl> _evictedSessions = new ConcurrentHashMap<String, HttpSessionImpl>();
+
+	// sessions are written to a snapshot on close() and loaded back lazily after a restart, off by default: the
+	// snapshot holds the serialized attributes
+	private boolean _isSessionPersistent;
+
+	private File _sessionSnapshotFile;
+
+	// the snapshot of the previous run, opened with the first lookup
+	private volatile SessionSnapshot _snapshot;
+
+	private volatile boolean _isSnapshotOpened;
+
+	// shared with the other nodes, the in-heap store is only a near-cache when it's set
+	private volatile SessionStore _sessionStore;
+
+	// writes the sessions for the overflow store, the snapshot and the external store
+	private final SessionSerializer _serializer;
+
+	// statistics
+	private final AtomicLong _sessionCreateCount = new AtomicLong();
+
+	private final AtomicLong _sessionTimeoutCount = new AtomicLong();
+
+	private final AtomicLong _sessionPassivateCount = new AtomicLong();
+
+	private final AtomicLong _sessionActivateCount = new AtomicLong();
+
+	private final AtomicLong _sessionStoreLoadCount = new AtomicLong();
+
+	private final AtomicLong _sessionStoreSaveCount = new AtomicLong();
+
+	private final AtomicLong _sessionStoreConflictCount = new AtomicLong();
 
 
 	// allow session rewriting
@@ -109,6 +182,12 @@ public final class SessionManager implements SessionCookieConfig
 
 	private int _cookieLength = 21;
 
+	// prepended to the random part of the session ids, routes the requests to the node which created the session
+	private String _sessionIdPrefix;
+
+	// created with the first session id, again when the cookie length or the prefix changes
+	private volatile SessionIdGenerator _idGenerator;
+
 	// Servlet 3.0 plain | ssl session tracking cookies become secure when set to true
 	private boolean _isSecure;
 
@@ -133,7 +212,16 @@ public final class SessionManager implements SessionCookieConfig
 	{
 		_webApp = webApp;
 
-		_sessions = new LruCache<String, HttpSessionImpl>(_sessionMax);
+		_sessions = new ShardedSessionStore(this, _sessionMax);
+
+		_serializer = new SessionSerializer(webApp.getClassLoader());
+
+		_expirationWheel = new SessionExpirationWheel(System.currentTimeMillis());
+
+		_overflowWheel = new OverflowExpirationWheel(System.currentTimeMillis());
+
+		for (int i = 0; i < ACTIVATION_LOCKS; i++)
+			_activationLocks[i] = new Object();
 
 		_cookiePath = _webApp.getContextPath();
 
@@ -204,6 +292,11 @@ public final class SessionManager implements SessionCookieConfig
 	{
 		if (_sessions == null)
 			return -1;
+
+		SessionOverflowStore overflow = _overflow;
+
+		if (overflow != null)
+			return _sessions.size() + overflow.size();
 		else
 			return _sessions.size();
 	}
@@ -216,6 +309,164 @@ public final class SessionManager implements SessionCookieConfig
 		return getActiveSessionCount();
 	}
 
+	/**
+	 * Returns the number of sessions created since the manager started.
+	 */
+	public long getSessionCreateCount()
+	{
+		return _sessionCreateCount.get();
+	}
+
+	/**
+	 * Returns the number of sessions destroyed because they timed out.
+	 */
+	public long getSessionTimeoutCount()
+	{
+		return _sessionTimeoutCount.get();
+	}
+
+	/**
+	 * Returns the number of sessions dropped because their shard of the session store was full.
+	 */
+	public long getSessionEvictionCount()
+	{
+		return _sessions.getEvictionCount();
+	}
+
+	/**
+	 * Returns the number of sessions currently held in the overflow store.
+	 */
+	public int getPassivatedSessionCount()
+	{
+		SessionOverflowStore overflow = _overflow;
+
+		return overflow != null ? overflow.size() : 0;
+	}
+
+	/**
+	 * Returns the number of sessions moved to the overflow store.
+	 */
+	public long getSessionPassivateCount()
+	{
+		return _sessionPassivateCount.get();
+	}
+
+	/**
+	 * Returns the number of sessions loaded back from the overflow store.
+	 */
+	public long getSessionActivateCount()
+	{
+		return _sessionActivateCount.get();
+	}
+
+	/**
+	 * Returns true if the sessions survive a restart of the web-app.
+	 */
+	public boolean isSessionPersistent()
+	{
+		return _isSessionPersistent;
+	}
+
+	/**
+	 * Sets if the sessions are written to a snapshot when the web-app is closed gracefully, and loaded back on demand
+	 * after it's restarted. The snapshot is only readable by the user running the server, and a snapshot owned by
+	 * another user or writable by other users is ignored.
+	 */
+	public void setSessionPersistent(boolean isPersistent)
+	{
+		_isSessionPersistent = isPersistent;
+	}
+
+	/**
+	 * Returns the snapshot file, by default "sessions[context-path].snapshot" in the web-app's temp dir.
+	 */
+	public File getSessionSnapshotFile()
+	{
+		if (_sessionSnapshotFile != null)
+			return _sessionSnapshotFile;
+
+		String contextPath = _webApp.getContextPath();
+
+		String name = contextPath == null || contextPath.length() == 0 ? "sessions" : "sessions" + contextPath.replace('/', '_');
+
+		return new File(_webApp.getTempDir(), name + ".snapshot");
+	}
+
+	public void setSessionSnapshotFile(File file)
+	{
+		_sessionSnapshotFile = file;
+	}
+
+	/**
+	 * Returns the serializer of the session attributes, where codecs for the application's attribute types are
+	 * registered.
+	 */
+	public SessionSerializer getSessionSerializer()
+	{
+		return _serializer;
+	}
+
+	/**
+	 * Returns the external session store, null if the sessions are only kept in this process.
+	 */
+	public SessionStore getSessionStore()
+	{
+		return _sessionStore;
+	}
+
+	/**
+	 * Sets an external session store shared by several nodes, before the first request. The in-heap store becomes a
+	 * near-cache of the hot sessions: a request reads its session from the store once, with the version of the cached
+	 * copy, and writes back only the attributes it changed. Passivation and the snapshot aren't used, the sessions
+	 * live in the store.
+	 */
+	public void setSessionStore(SessionStore store)
+	{
+		_sessionStore = store;
+	}
+
+	/**
+	 * Returns the number of sessions read from the external store, cached copies which were still current not
+	 * included.
+	 */
+	public long getSessionStoreLoadCount()
+	{
+		return _sessionStoreLoadCount.get();
+	}
+
+	/**
+	 * Returns the number of writes to the external store.
+	 */
+	public long getSessionStoreSaveCount()
+	{
+		return _sessionStoreSaveCount.get();
+	}
+
+	/**
+	 * Returns the number of writes which found the session changed by another node.
+	 */
+	public long getSessionStoreConflictCount()
+	{
+		return _sessionStoreConflictCount.get();
+	}
+
+	/**
+	 * Returns the maximum size in bytes of the memory mapped overflow store.
+	 */
+	public long getSessionOverflowMax()
+	{
+		return _sessionOverflowMax;
+	}
+
+	/**
+	 * Sets the maximum size in bytes of the memory mapped overflow store. Sessions evicted from the full in-heap store
+	 * are passivated there instead of being destroyed, 0 disables passivation.
+	 */
+	public void setSessionOverflowMax(long max)
+	{
+		_sessionOverflowMax = max;
+	}
+
 	/**
 	 * Adds a new HttpSessionListener.
 	 */
@@ -325,6 +576,10 @@ public final class SessionManager implements SessionCookieConfig
 			throw new ConfigException("session-max '["+max+"]' is too small.  session-max must be a positive number");
 
 		_sessionMax = max;
+
+		// configured before the first request: the shards are sized for the new maximum
+		if (_sessions.size() == 0)
+			_sessions = new ShardedSessionStore(this, max);
 	}
 
 
@@ -552,6 +807,7 @@ public final class SessionManager implements SessionCookieConfig
 			cookieLength = 7;
 
 		_cookieLength = cookieLength;
+		_idGenerator = null;
 	}
 
 	/**
@@ -562,12 +818,41 @@ public final class SessionManager implements SessionCookieConfig
 		return _cookieLength;
 	}
 
+	/**
+	 * Returns the prefix of the session ids, null if there's none.
+	 */
+	public String getSessionIdPrefix()
+	{
+		return _sessionIdPrefix;
+	}
+
+	/**
+	 * Sets a prefix of the session ids identifying this node, so a load balancer can route a session to the node which
+	 * created it. The prefix is prepended to the cookie-length random characters and may only contain the characters
+	 * of the ids (a-z A-Z 0-9 _ -). A one character prefix is the node index read by getServerCode(id, 0).
+	 */
+	public void setSessionIdPrefix(String prefix)
+	{
+		if (prefix != null && prefix.length() == 0)
+			prefix = null;
+
+		// validates the prefix
+		_idGenerator = new SessionIdGenerator(prefix, _cookieLength);
+
+		_sessionIdPrefix = prefix;
+	}
+
 	/**
 	 * Returns true if the session exists in this manager.
 	 */
 	public boolean containsSession(String id)
 	{
-		return _sessions.get(id) != null;
+		if (id == null)
+			return false;
+
+		SessionOverflowStore overflow = _overflow;
+
+		return _sessions.peek(id) != null || overflow != null && overflow.contains(id);
 	}
 
 	/**
@@ -596,7 +881,7 @@ public final class SessionManager implements SessionCookieConfig
 		do
 		{
 			id = createSessionIdImpl(request);
-		} while (create && getSession(id, 0, create, true) != null);
+		} while (create && isSessionIdUsed(id));
 
 		if (id == null || id.equals(""))
 			throw new RuntimeException();
@@ -604,57 +889,40 @@ public final class SessionManager implements SessionCookieConfig
 		return id;
 	}
 
+	/**
+	 * Returns true if a new id is already taken. With an external store only the near-cache is checked, a collision of
+	 * the random ids is caught by SessionStore.save() when the session is written.
+	 */
+	private boolean isSessionIdUsed(String id)
+	{
+		if (_sessionStore != null)
+			return _sessions.peek(id) != null;
+
+		return getSession(id, 0, true, true) != null;
+	}
+
 	public String createSessionIdImpl(HttpServletRequest request)
 	{
 		return createCookieValue();
 	}
 
 	/**
-	 * 生成随机的SessionId(用作Cookie)
+	 * 生成随机的SessionId(用作Cookie):节点前缀 + cookieLength个随机字符,每条线程使用自己的随机源
 	 * 
-	 * @param owner
 	 * @return
 	 */
 	protected String createCookieValue()
 	{
-		StringBuilder sb = new StringBuilder();
-		// this section is the host specific session index
-		// the most random bit is the high bit
-
-		int length = _cookieLength;
-
-		length -= sb.length();
-
-		long random = RandomUtil.getRandomLong();
-
-		for (int i = 0; i < 11 && length-- > 0; i++)
-		{
-			sb.append(convert(random));
-			random = random >> 6;
-		}
+		SessionIdGenerator generator = _idGenerator;
 
-		if (length > 0)
+		if (generator == null)
 		{
-			long time = System.currentTimeMillis();
-
-			for (int i = 0; i < 7 && length-- > 0; i++)
-			{
-				sb.append(convert(time));
-				time = time >> 6;
-			}
-		}
+			generator = new SessionIdGenerator(_sessionIdPrefix, _cookieLength);
 
-		while (length > 0)
-		{
-			random = RandomUtil.getRandomLong();
-			for (int i = 0; i < 11 && length-- > 0; i++)
-			{
-				sb.append(convert(random));
-				random = random >> 6;
-			}
+			_idGenerator = generator;
 		}
 
-		return sb.toString();
+		return generator.generate();
 	}
 
 	/**
@@ -677,7 +945,7 @@ public final class SessionManager implements SessionCookieConfig
 		if (_sessions == null)
 			return null;
 
-		HttpSessionImpl session = _sessions.get(sessionId);
+		HttpSessionImpl session = sessionId != null ? lookup(sessionId) : null;
 
 		if (session != null && !session.isValid())
 		{
@@ -698,7 +966,7 @@ public final class SessionManager implements SessionCookieConfig
 		{
 			if (session.isTimeout(now))
 			{
-				session.timeout();
+				timeout(session);
 				session = null;
 			}
 
@@ -716,10 +984,14 @@ public final class SessionManager implements SessionCookieConfig
 
 		// If another thread has created and stored a new session,
 		// putIfNew will return the old session
-		session = _sessions.putIfNew(sessionId, session);
+		// If another thread has created and stored a new session,
+		// putIfAbsent will return the old session
+		HttpSessionImpl oldSession = _sessions.putIfAbsent(session);
 
-		if (!sessionId.equals(session.getId()))
-			throw new IllegalStateException(sessionId + " != " + session.getId());
+		if (oldSession != null)
+			session = oldSession;
+		else
+			sessionCreated(session);
 
 		session.create(now, true);
 
@@ -747,7 +1019,7 @@ public final class SessionManager implements SessionCookieConfig
 		if (_sessions == null)
 			return null;
 
-		session = _sessions.get(key);
+		session = lookup(key);
 
 		if (session != null && !session.getId().equals(key))
 			throw new IllegalStateException(key + " != " + session.getId());
@@ -768,7 +1040,7 @@ public final class SessionManager implements SessionCookieConfig
 
 		if (killSession && (!create))
 		{
-			_sessions.remove(key);
+			_sessions.remove(session);
 			// XXX:
 			// session._isValid = false;
 
@@ -787,108 +1059,400 @@ public final class SessionManager implements SessionCookieConfig
 		if (_sessions == null || key == null)
 			return null;
 
-		return _sessions.get(key);
+		return lookup(key);
 	}
 
 	/**
-	 * Create a new session.
+	 * Returns the session from the in-heap store, or activates it from the overflow store.
+	 */
+	private HttpSessionImpl lookup(String id)
+	{
+		SessionStore store = _sessionStore;
+
+		if (store != null)
+			return load(store, id);
+
+		HttpSessionImpl session = _sessions.get(id);
+
+		if (session == null)
+			session = _evictedSessions.get(id);
+
+		if (session == null && (_overflow != null || getSnapshot() != null))
+			session = activate(id);
+
+		return session;
+	}
+
+	/**
+	 * Returns the session and registers the calling request with it: the session isn't passivated until the request
+	 * ends and calls releaseSession().
 	 * 
-	 * @param oldId
-	 *            the id passed to the request. Reuse if possible.
-	 * @param request
-	 *            - current HttpServletRequest
-	 * @param fromCookie
+	 * @return null if there's no such session
 	 */
-	public HttpSessionImpl createSession(String oldId, long now, HttpServletRequest request, boolean fromCookie)
+	public HttpSessionImpl acquireSession(String id)
 	{
-		if (_sessions == null)
+		if (_sessions == null || id == null)
+			return null;
+
+		while (true)
 		{
-			log.debug(this + " createSession called when sessionManager closed");
+			HttpSessionImpl session = lookup(id);
 
-			return null;
+			if (session == null || session.beginRequest())
+				return session;
+
+			// passivated after the lookup, the next one activates it
 		}
+	}
 
-		String id = oldId;
+	/**
+	 * Called when a request which acquired the session ends. A session evicted while it was used is put back in the
+	 * in-heap store.
+	 */
+	public void releaseSession(HttpSessionImpl session)
+	{
+		if (!session.endRequest())
+			return;
 
-		if (id == null || id.length() < 4)
+		if (session.isValid())
 		{
-
-			id = createSessionId(request, true);
+			// put back before it's removed, so lookups always find it
+			if (_sessions.putIfAbsent(session) == null)
+				scheduleExpiration(session);
 		}
 
-		HttpSessionImpl session = create(id, now, true);
+		_evictedSessions.remove(session.getId(), session);
+	}
 
-		if (session == null)
-			return null;
+	/**
+	 * Reads a session from the external store, with the version of the near-cached copy: the attributes are only
+	 * transferred and deserialized if another node changed the session.
+	 */
+	private HttpSessionImpl load(SessionStore store, String id)
+	{
+		HttpSessionImpl cached = _sessions.get(id);
 
-		synchronized (session)
+		SessionData data;
+
+		try
 		{
-			session.create(now, true);
+			data = store.load(id, cached != null ? cached.getStoreVersion() : 0);
 		}
+		catch (IOException e)
+		{
+			log.warn(this + " can't load session " + id + " from " + store + ": " + e, e);
 
-		// after load so a reset doesn't clear any setting
-		handleCreateListeners(session);
+			// serve the cached copy while the store is unavailable
+			return cached;
+		}
 
-		return session;
-	}
+		if (data == SessionData.NOT_MODIFIED)
+			return cached;
 
-	public HttpSessionImpl createNewSession(HttpServletRequest request)
-	{
-		if (_sessions == null)
+		if (data == null)
 		{
-			log.debug(this + " createSession called when sessionManager closed");
+			// invalidated or expired on another node
+			if (cached != null)
+				_sessions.remove(cached);
 
 			return null;
 		}
 
-		long creationTime = System.currentTimeMillis();
+		_sessionStoreLoadCount.incrementAndGet();
 
-		String id = createSessionId(request, true);
+		HttpSessionImpl session = HttpSessionImpl.create(this, id, data);
 
-		HttpSessionImpl session = create(id, creationTime, true);
+		try
+		{
+			for (Map.Entry<String, byte[]> entry : data.getAttributes().entrySet())
+			{
+				session._values.put(entry.getKey(), _serializer.deserialize(entry.getValue()));
+			}
+		}
+		catch (Exception e)
+		{
+			log.warn(this + " can't load session " + id + " from " + store + ": " + e, e);
 
-		if (session == null)
 			return null;
+		}
 
-		// after load so a reset doesn't clear any setting
-		handleCreateListeners(session);
-
-		return session;
-	}
+		session.notifyDidActivate();
 
-	/**
-	 * Creates a session. It's already been established that the key does not currently have a session.
-	 */
-	private HttpSessionImpl create(String key, long creationTime, boolean isCreate)
-	{
-		HttpSessionImpl session = new HttpSessionImpl(this, key, creationTime);
+		// replaces the outdated copy
+		_sessions.put(session);
 
-		// If another thread has created and stored a new session,
-		// putIfNew will return the old session
-		session = _sessions.putIfNew(key, session);
+		scheduleExpiration(session);
 
-		if (!key.equals(session.getId()))
-			throw new IllegalStateException(key + " != " + session.getId());
+		if (_reaper == null)
+			startReaper();
 
 		return session;
 	}
 
 	/**
-	 * 发布SessionCreated事件
-	 * 
-	 * @param session
+	 * Writes the changes of a request to the external store, called before the response is sent. Nothing is written
+	 * if no attribute changed, except the last use time once per quarter of the session timeout: the store keeps the
+	 * session for that grace period after its expiration time.
 	 */
-	private void handleCreateListeners(HttpSessionImpl session)
+	public void saveSession(HttpSessionImpl session)
 	{
-		if (_listeners != null)
+		SessionStore store = _sessionStore;
+
+		if (store == null || session == null || !session.isValid())
+			return;
+
+		// concurrent requests of the same session write one after the other
+		synchronized (session)
 		{
-			HttpSessionEvent event = new HttpSessionEvent(session);
+			long touchInterval = getStoreTouchInterval(session);
 
-			for (int i = 0; i < _listeners.size(); i++)
-			{
-				HttpSessionListener listener = _listeners.get(i);
+			if (!session.isStoreDirty(touchInterval))
+				return;
 
-				listener.sessionCreated(event);
+			String[] names = session.takeDirtyAttributes();
+
+			SessionData delta = session.createSessionData(touchInterval);
+
+			if (names != null)
+			{
+				for (String name : names)
+				{
+					Object value = session._values.get(name);
+
+					try
+					{
+						delta.putAttribute(name, value != null ? _serializer.serialize(value) : null);
+					}
+					catch (IOException e)
+					{
+						log.warn(session + " attribute '" + name + "' can't be written to " + store + ": " + e, e);
+					}
+				}
+			}
+
+			long expectedVersion = session.getStoreVersion();
+
+			long version;
+
+			try
+			{
+				version = store.save(session.getId(), expectedVersion, delta);
+			}
+			catch (IOException e)
+			{
+				log.warn(this + " can't save " + session + " to " + store + ": " + e, e);
+
+				// written with the next request
+				session.restoreDirtyAttributes(names);
+
+				return;
+			}
+
+			_sessionStoreSaveCount.incrementAndGet();
+
+			if (version == expectedVersion + 1)
+			{
+				session.setStored(version, delta.getAccessTime());
+			}
+			else
+			{
+				// removed by another node, or its changes are missing from the cached copy: reloaded by the next request
+				if (version > 0)
+					_sessionStoreConflictCount.incrementAndGet();
+
+				_sessions.remove(session);
+			}
+		}
+	}
+
+	/**
+	 * Returns how often the last use time of an unchanged session is written to the external store.
+	 */
+	private static long getStoreTouchInterval(HttpSessionImpl session)
+	{
+		int maxInactiveInterval = session.getMaxInactiveInterval();
+
+		if (maxInactiveInterval < 0)
+			return Long.MAX_VALUE / 4;
+
+		return maxInactiveInterval * 1000L / 4;
+	}
+
+	/**
+	 * Returns the snapshot written by the previous run, opening it with the first lookup. Only the header is read, the
+	 * sessions are loaded one by one when they're accessed.
+	 * 
+	 * @return null if there's no snapshot
+	 */
+	private SessionSnapshot getSnapshot()
+	{
+		if (_isSnapshotOpened)
+			return _snapshot;
+
+		synchronized (this)
+		{
+			if (!_isSnapshotOpened)
+			{
+				if (_isSessionPersistent)
+					_snapshot = SessionSnapshot.open(getSessionSnapshotFile());
+
+				_isSnapshotOpened = true;
+			}
+
+			return _snapshot;
+		}
+	}
+
+	/**
+	 * Create a new session.
+	 * 
+	 * @param oldId
+	 *            the id passed to the request. Reuse if possible.
+	 * @param request
+	 *            - current HttpServletRequest
+	 * @param fromCookie
+	 */
+	public HttpSessionImpl createSession(String oldId, long now, HttpServletRequest request, boolean fromCookie)
+	{
+		if (_sessions == null)
+		{
+			log.debug(this + " createSession called when sessionManager closed");
+
+			return null;
+		}
+
+		String id = oldId;
+
+		if (id == null || id.length() < 4)
+		{
+
+			id = createSessionId(request, true);
+		}
+
+		HttpSessionImpl session = create(id, now, true);
+
+		if (session == null)
+			return null;
+
+		synchronized (session)
+		{
+			session.create(now, true);
+		}
+
+		// after load so a reset doesn't clear any setting
+		handleCreateListeners(session);
+
+		return session;
+	}
+
+	/**
+	 * Creates a new session for the request, registered with it like a session returned by acquireSession().
+	 */
+	public HttpSessionImpl createNewSession(HttpServletRequest request)
+	{
+		if (_sessions == null)
+		{
+			log.debug(this + " createSession called when sessionManager closed");
+
+			return null;
+		}
+
+		long creationTime = System.currentTimeMillis();
+
+		String id = createSessionId(request, true);
+
+		HttpSessionImpl session = create(id, creationTime, true);
+
+		if (session == null)
+			return null;
+
+		// after load so a reset doesn't clear any setting
+		handleCreateListeners(session);
+
+		// used by the request like a session returned by acquireSession()
+		if (!session.beginRequest())
+			return acquireSession(id);
+
+		return session;
+	}
+
+	/**
+	 * Creates a session. It's already been established that the key does not currently have a session.
+	 */
+	private HttpSessionImpl create(String key, long creationTime, boolean isCreate)
+	{
+		HttpSessionImpl session = new HttpSessionImpl(this, key, creationTime);
+
+		// If another thread has created and stored a new session,
+		// putIfAbsent will return the old session
+		HttpSessionImpl oldSession = _sessions.putIfAbsent(session);
+
+		if (oldSession != null)
+			return oldSession;
+
+		sessionCreated(session);
+
+		return session;
+	}
+
+	/**
+	 * Starts tracking the expiration of a session which was just stored.
+	 */
+	private void sessionCreated(HttpSessionImpl session)
+	{
+		_sessionCreateCount.incrementAndGet();
+
+		scheduleExpiration(session);
+
+		if (_reaper == null)
+			startReaper();
+	}
+
+	/**
+	 * (Re)schedules the session in the expiration wheel, called when its timeout is shortened.
+	 */
+	void scheduleExpiration(HttpSessionImpl session)
+	{
+		_expirationWheel.schedule(session, session.getExpirationTime());
+	}
+
+	/**
+	 * Destroys a session which timed out.
+	 */
+	private void timeout(HttpSessionImpl session)
+	{
+		// the store expires the session, it may have been used on another node since: only the cached copy is dropped
+		if (_sessionStore != null)
+		{
+			_sessions.remove(session);
+			return;
+		}
+
+		if (session.timeout())
+		{
+			_sessionTimeoutCount.incrementAndGet();
+
+			if (debug)
+				log.debug(session + " timed out");
+		}
+	}
+
+	/**
+	 * 发布SessionCreated事件
+	 * 
+	 * @param session
+	 */
+	private void handleCreateListeners(HttpSessionImpl session)
+	{
+		if (_listeners != null)
+		{
+			HttpSessionEvent event = new HttpSessionEvent(session);
+
+			for (int i = 0; i < _listeners.size(); i++)
+			{
+				HttpSessionListener listener = _listeners.get(i);
+
+				listener.sessionCreated(event);
 			}
 		}
 	}
@@ -898,7 +1462,7 @@ public final class SessionManager implements SessionCookieConfig
 	 */
 	void addSession(HttpSessionImpl session)
 	{
-		_sessions.put(session.getId(), session);
+		_sessions.put(session);
 	}
 
 	/**
@@ -906,22 +1470,266 @@ public final class SessionManager implements SessionCookieConfig
 	 */
 	void removeSession(HttpSessionImpl session)
 	{
-		_sessions.remove(session.getId());
+		_sessions.remove(session);
+
+		_evictedSessions.remove(session.getId(), session);
+
+		SessionStore store = _sessionStore;
+
+		if (store != null)
+		{
+			try
+			{
+				store.remove(session.getId());
+			}
+			catch (IOException e)
+			{
+				log.warn(this + " can't remove " + session + " from " + store + ": " + e, e);
+			}
+		}
 	}
 
-	public String[] sessionIdList()
+	/**
+	 * Called while a full shard of the session store drops the session, under the shard's eviction lock: only keeps the
+	 * session where lookups find it until sessionEvicted() runs.
+	 */
+	void sessionEvicting(HttpSessionImpl session)
+	{
+		// only the near-cached copy is dropped
+		if (_sessionStore != null)
+			return;
+
+		// found by lookups until it's passivated or put back
+		if (session.isValid() && !session.isTimeout())
+			_evictedSessions.put(session.getId(), session);
+	}
+
+	/**
+	 * Called when a session was dropped because its shard of the session store was full, after the shard's eviction
+	 * lock is released. The session is passivated to the overflow store if possible, destroyed otherwise. A session
+	 * still used by requests is neither: it's kept aside and put back when the last request ends.
+	 */
+	void sessionEvicted(HttpSessionImpl session)
+	{
+		if (debug)
+			log.debug(session + " evicted from " + _sessions);
+
+		if (_sessionStore != null)
+			return;
+
+		// not invalidated since sessionEvicting()
+		if (session.isValid() && !session.isTimeout() && _evictedSessions.get(session.getId()) == session)
+		{
+			if (!session.beginPassivation())
+				return;
+
+			if (passivate(session))
+				return;
+
+			session.cancelPassivation();
+		}
+
+		_evictedSessions.remove(session.getId(), session);
+
+		session.removeEvent();
+	}
+
+	/**
+	 * Writes an evicted session to the overflow store.
+	 * 
+	 * @return false if the session can't be passivated (not serializable, overflow store full or disabled)
+	 */
+	private boolean passivate(HttpSessionImpl session)
+	{
+		SessionOverflowStore overflow = getOverflowStore();
+
+		if (overflow == null)
+			return false;
+
+		session.notifyWillPassivate();
+
+		try
+		{
+			long expirationTime = session.getExpirationTime();
+
+			if (overflow.write(session.getId(), serialize(session), expirationTime))
+			{
+				// lookups activate the passivated copy from now on
+				_evictedSessions.remove(session.getId(), session);
+
+				session.setPassivated();
+
+				_overflowWheel.schedule(session.getId(), expirationTime);
+
+				_sessionPassivateCount.incrementAndGet();
+
+				return true;
+			}
+
+			if (debug)
+				log.debug(overflow + " is full, " + session + " is destroyed");
+		}
+		catch (IOException e)
+		{
+			if (debug)
+				log.debug(this + " can't passivate " + session + ": " + e, e);
+		}
+
+		// still the live object until it's destroyed
+		session.notifyDidActivate();
+
+		return false;
+	}
+
+	/**
+	 * Moves a session from the overflow store back to the in-heap store.
+	 */
+	private HttpSessionImpl activate(String id)
+	{
+		synchronized (_activationLocks[(id.hashCode() & 0x7fffffff) % ACTIVATION_LOCKS])
+		{
+			// activated by another thread
+			HttpSessionImpl session = _sessions.get(id);
+
+			if (session != null)
+				return session;
+
+			session = loadPassivated(id);
+
+			if (session == null)
+				return null;
+
+			session.notifyDidActivate();
+
+			if (session.isTimeout(System.currentTimeMillis()))
+			{
+				timeout(session);
+
+				return null;
+			}
+
+			HttpSessionImpl oldSession = _sessions.putIfAbsent(session);
+
+			if (oldSession != null)
+				return oldSession;
+
+			_sessionActivateCount.incrementAndGet();
+
+			scheduleExpiration(session);
+
+			// loaded from the snapshot before any session was created
+			if (_reaper == null)
+				startReaper();
+
+			return session;
+		}
+	}
+
+	/**
+	 * Removes a session from the overflow store, or from the snapshot of the previous run, and deserializes it.
+	 * 
+	 * @return null if the session isn't stored or can't be loaded
+	 */
+	private HttpSessionImpl loadPassivated(String id)
+	{
+		SessionOverflowStore overflow = _overflow;
+
+		byte[] data = overflow != null ? overflow.remove(id) : null;
+
+		SessionSnapshot snapshot = _snapshot;
+
+		if (data == null && snapshot != null)
+		{
+			try
+			{
+				data = snapshot.remove(id, System.currentTimeMillis());
+			}
+			catch (IOException e)
+			{
+				log.warn(snapshot + " can't load session " + id + ": " + e, e);
+			}
+		}
+
+		if (data == null)
+			return null;
+
+		try
+		{
+			return deserialize(data);
+		}
+		catch (Exception e)
+		{
+			log.warn(this + " can't activate session " + id + ": " + e, e);
+
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the overflow store, creating it with the first eviction.
+	 * 
+	 * @return null if passivation is disabled
+	 */
+	private SessionOverflowStore getOverflowStore()
 	{
-		ArrayList<String> sessionIds = new ArrayList<String>();
+		SessionOverflowStore overflow = _overflow;
 
-		synchronized (_sessions)
+		if (overflow != null)
+			return overflow;
+
+		synchronized (this)
 		{
-			Iterator<LruCache.Entry<String, HttpSessionImpl>> sessionsIterator = _sessions.iterator();
+			if (_overflow != null || _sessionOverflowMax <= 0 || _isClosed)
+				return _overflow;
 
-			while (sessionsIterator.hasNext())
+			try
 			{
-				sessionIds.add(sessionsIterator.next().getKey());
+				// holds the serialized attributes: owner-only, in the web-app's work dir instead of the shared temp dir
+				File file = PrivateFiles.createTempFile(new File(_webApp.getJspWorkDir(), "sessions"), "sessions", ".overflow");
+
+				_overflow = new SessionOverflowStore(file, (int) Math.min(OVERFLOW_SEGMENT_SIZE, _sessionOverflowMax), _sessionOverflowMax);
+			}
+			catch (IOException e)
+			{
+				log.warn(this + " can't create the session overflow store, evicted sessions are destroyed: " + e, e);
+
+				_sessionOverflowMax = 0;
 			}
+
+			return _overflow;
 		}
+	}
+
+	private byte[] serialize(HttpSessionImpl session) throws IOException
+	{
+		SessionSerializer.Output out = new SessionSerializer.Output(256);
+
+		session.store(_serializer, out);
+
+		return out.toByteArray();
+	}
+
+	private HttpSessionImpl deserialize(byte[] data) throws IOException, ClassNotFoundException
+	{
+		SessionSerializer.Input in = new SessionSerializer.Input(data);
+
+		HttpSessionImpl session = HttpSessionImpl.load(this, _serializer, in);
+
+		if (in.remaining() != 0)
+			throw new StreamCorruptedException(in.remaining() + " bytes after " + session);
+
+		return session;
+	}
+
+	public String[] sessionIdList()
+	{
+		// each shard is walked on its own, requests are never blocked
+		List<String> sessionIds = _sessions.ids();
+
+		SessionOverflowStore overflow = _overflow;
+
+		if (overflow != null)
+			sessionIds.addAll(overflow.ids());
 
 		String[] ids = new String[sessionIds.size()];
 
@@ -931,13 +1739,54 @@ public final class SessionManager implements SessionCookieConfig
 	}
 
 	/**
-	 * 清理过期Session
+	 * 清理过期Session: 时间轮前进到当前时间,销毁经过的槽中已过期的Session(由reaper线程每秒调用一次)
 	 * 
-	 * @return number of live sessions for stats
+	 * @return number of sessions which timed out
 	 */
-	public void clearInvalidSession()
+	public int clearInvalidSession()
 	{
+		long now = System.currentTimeMillis();
 
+		return _expirationWheel.advance(now) + _overflowWheel.advance(now);
+	}
+
+	/**
+	 * Starts the daemon thread which expires the sessions.
+	 */
+	private synchronized void startReaper()
+	{
+		if (_reaper != null || _isClosed)
+			return;
+
+		Thread reaper = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (!_isClosed)
+				{
+					try
+					{
+						Thread.sleep(EXPIRATION_TICK);
+
+						clearInvalidSession();
+					}
+					catch (InterruptedException e)
+					{
+						// closed
+					}
+					catch (Throwable e)
+					{
+						log.warn(SessionManager.this + " session expiration failed: " + e, e);
+					}
+				}
+			}
+		}, "jnetty-session-reaper" + _webApp.getContextPath());
+
+		reaper.setDaemon(true);
+		reaper.start();
+
+		_reaper = reaper;
 	}
 
 	/**
@@ -952,6 +1801,19 @@ public final class SessionManager implements SessionCookieConfig
 			_isClosed = true;
 		}
 
+		Thread reaper = _reaper;
+
+		if (reaper != null)
+			reaper.interrupt();
+
+		if (_isSessionPersistent && _sessionStore == null)
+			saveSnapshot();
+
+		SessionOverflowStore overflow = _overflow;
+
+		if (overflow != null)
+			overflow.close();
+
 		if (_sessions == null)
 			return;
 
@@ -970,7 +1832,7 @@ public final class SessionManager implements SessionCookieConfig
 			try
 			{
 				if (session.isValid())
-					_sessions.remove(session.getId());
+					_sessions.remove(session);
 			}
 			catch (Exception e)
 			{
@@ -980,6 +1842,142 @@ public final class SessionManager implements SessionCookieConfig
 
 	}
 
+	/**
+	 * Writes all live sessions to the snapshot file: the in-heap sessions are serialized in parallel, the passivated
+	 * sessions and the sessions of the previous snapshot which weren't accessed are copied as they are.
+	 */
+	private void saveSnapshot()
+	{
+		File file = getSessionSnapshotFile();
+
+		long start = System.currentTimeMillis();
+
+		SessionSnapshot.Writer writer = new SessionSnapshot.Writer();
+
+		try
+		{
+			List<HttpSessionImpl> sessions = _sessions.sessions();
+
+			sessions.addAll(_evictedSessions.values());
+
+			serializeSessions(sessions, writer, start);
+
+			SessionOverflowStore overflow = _overflow;
+
+			if (overflow != null)
+			{
+				for (String id : overflow.ids())
+				{
+					long expirationTime = overflow.getExpirationTime(id);
+
+					byte[] data = overflow.remove(id);
+
+					if (data != null && expirationTime > start)
+						writer.add(id, expirationTime, data);
+				}
+			}
+
+			SessionSnapshot snapshot = getSnapshot();
+
+			if (snapshot != null)
+			{
+				snapshot.transferTo(writer, start);
+				snapshot.close();
+
+				_snapshot = null;
+			}
+
+			if (writer.size() == 0)
+			{
+				file.delete();
+				return;
+			}
+
+			writer.write(file);
+
+			if (log.isInfoEnabled())
+				log.info(this + " saved " + writer.size() + " sessions to " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (Exception e)
+		{
+			log.warn(this + " can't save the sessions to " + file + ": " + e, e);
+		}
+	}
+
+	/**
+	 * Serializes the sessions into the writer, split over one thread per CPU.
+	 */
+	private void serializeSessions(List<HttpSessionImpl> sessions, final SessionSnapshot.Writer writer, final long now) throws Exception
+	{
+		int chunkSize = 256;
+
+		int chunks = (sessions.size() + chunkSize - 1) / chunkSize;
+
+		int threads = Math.min(chunks, Runtime.getRuntime().availableProcessors());
+
+		if (threads <= 1)
+		{
+			serializeSessions(sessions, writer, now, 0, sessions.size());
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try
+		{
+			final List<HttpSessionImpl> list = sessions;
+
+			List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+
+			for (int i = 0; i < chunks; i++)
+			{
+				final int from = i * chunkSize;
+				final int to = Math.min(from + chunkSize, list.size());
+
+				futures.add(executor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serializeSessions(list, writer, now, from, to);
+					}
+				}));
+			}
+
+			for (Future<?> future : futures)
+			{
+				future.get();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private void serializeSessions(List<HttpSessionImpl> sessions, SessionSnapshot.Writer writer, long now, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+		{
+			HttpSessionImpl session = sessions.get(i);
+
+			if (!session.isValid() || session.isTimeout(now))
+				continue;
+
+			session.notifyWillPassivate();
+
+			try
+			{
+				writer.add(session.getId(), session.getExpirationTime(), serialize(session));
+			}
+			catch (IOException e)
+			{
+				if (debug)
+					log.debug(this + " can't save " + session + ": " + e, e);
+			}
+		}
+	}
+
 	/**
 	 * Converts an integer to a printable character
 	 */
@@ -1030,6 +2028,71 @@ public final class SessionManager implements SessionCookieConfig
 		return getClass().getSimpleName() + "[" + _webApp.getContextPath() + "]";
 	}
 
+	/**
+	 * Expiration wheel of the sessions. A session is looked at only when the slot of its expiration time comes up, an
+	 * access in the meantime just moves the expiration time and the session is put into a later slot.
+	 */
+	private final class SessionExpirationWheel extends ExpirationWheel<HttpSessionImpl>
+	{
+		SessionExpirationWheel(long startTime)
+		{
+			super(EXPIRATION_TICK, EXPIRATION_TICKS_PER_WHEEL, startTime);
+		}
+
+		@Override
+		protected long getExpirationTime(HttpSessionImpl session)
+		{
+			// invalidated or removed from the cache: nothing to expire
+			if (!session.isValid() || _sessions.peek(session.getId()) != session)
+				return -1;
+
+			return session.getExpirationTime();
+		}
+
+		@Override
+		protected void expire(HttpSessionImpl session)
+		{
+			timeout(session);
+		}
+	}
+
+	/**
+	 * Expiration wheel of the passivated sessions. A passivated session can't be accessed, so its expiration time is
+	 * fixed until it's activated.
+	 */
+	private final class OverflowExpirationWheel extends ExpirationWheel<String>
+	{
+		OverflowExpirationWheel(long startTime)
+		{
+			super(EXPIRATION_TICK, EXPIRATION_TICKS_PER_WHEEL, startTime);
+		}
+
+		@Override
+		protected long getExpirationTime(String id)
+		{
+			SessionOverflowStore overflow = _overflow;
+
+			return overflow != null ? overflow.getExpirationTime(id) : -1;
+		}
+
+		@Override
+		protected void expire(String id)
+		{
+			synchronized (_activationLocks[(id.hashCode() & 0x7fffffff) % ACTIVATION_LOCKS])
+			{
+				// loaded to publish sessionDestroyed and valueUnbound with the attributes
+				HttpSessionImpl session = loadPassivated(id);
+
+				if (session != null)
+				{
+					session.notifyDidActivate();
+
+					timeout(session);
+				}
+			}
+		}
+	}
+
 	static
 	{
 		DECODE = new int[128];
@@ -1051,10 +2114,18 @@ public final class SessionManager implements SessionCookieConfig
 		HttpSessionImpl trueSession = _sessions.get(session.getId());
 
 		if (trueSession == null)
+			trueSession = _evictedSessions.get(session.getId());
+
+		if (trueSession != session || !session.isValid())
 			return false;
 
-		if (trueSession == session && !trueSession.isTimeout())
-			return true;
+		// timed out between two ticks of the reaper (the external store decides when it was loaded)
+		if (_sessionStore == null && session.isTimeout())
+		{
+			timeout(session);
+
+			return false;
+		}
 
 		return true;
 	}
@@ -0,0 +1,375 @@
+package org.ireland.jnetty.server.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * 被钝化(passivate)的Session的溢出存储,基于内存映射文件
+ *
+ * Session的内存存储(ShardedSessionStore)已满时,被淘汰的Session序列化后保存在这里,而不是被丢弃;再次被访问时从这里取出并恢复.
+ * Session的数据不占用Java堆,堆中只保留每个Session的一条索引(id,位置,长度,过期时间).
+ *
+ * 文件被划分为固定大小的段,每段单独映射(MappedByteBuffer),需要时才映射新的段:
+ *
+ * 1:记录顺序追加到当前段,写满后换到一个空闲的段(其中的记录已全部被取出)或映射一个新的段.
+ *
+ * 2:所有的段都已映射且没有空闲的段时,把存活数据最少的段中的记录复制到预留的段中(压缩),该段成为新的预留段.
+ *
+ * 3:压缩后仍放不下时,write()返回false,由调用者决定如何处理(销毁该Session).
+ *
+ * 文件只在进程运行期间有效(不用于重启后恢复),close()时删除.所有方法都是同步的:只有淘汰和恢复Session时才访问,不在请求的常规路径上.
+ *
+ * @author KEN
+ *
+ */
+final class SessionOverflowStore
+{
+	private static final Log log = LogFactory.getLog(SessionOverflowStore.class.getName());
+
+	private final File _file;
+
+	private final int _segmentSize;
+
+	private final int _maxSegments;
+
+	private RandomAccessFile _raf;
+
+	private FileChannel _channel;
+
+	private final MappedByteBuffer[] _segments;
+
+	// 每个段中存活记录的字节数
+	private final int[] _live;
+
+	// 已映射的段数
+	private int _mappedCount;
+
+	// 当前追加的段及位置
+	private int _active = -1;
+
+	private int _activePosition;
+
+	// 压缩时的目标段(所有段都已映射后才使用)
+	private int _reserve = -1;
+
+	// 记录已全部被取出的段
+	private final ArrayDeque<Integer> _free = new ArrayDeque<Integer>();
+
+	private final Map<String, Record> _index = new HashMap<String, Record>();
+
+	private long _liveBytes;
+
+	/**
+	 * @param file
+	 *            映射的文件(已存在时被覆盖)
+	 * @param segmentSize
+	 *            每段的大小,也是单个Session的最大长度
+	 * @param maxSize
+	 *            文件的最大长度
+	 */
+	SessionOverflowStore(File file, int segmentSize, long maxSize) throws IOException
+	{
+		if (segmentSize <= 0)
+			throw new IllegalArgumentException("segmentSize must be positive: " + segmentSize);
+
+		_file = file;
+		_segmentSize = segmentSize;
+
+		// 至少一个数据段和一个预留段
+		_maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+
+		_segments = new MappedByteBuffer[_maxSegments];
+		_live = new int[_maxSegments];
+
+		_raf = new RandomAccessFile(file, "rw");
+		_raf.setLength(0);
+
+		_channel = _raf.getChannel();
+	}
+
+	/**
+	 * 保存一个Session的数据,id已存在时替换
+	 *
+	 * @param expirationTime
+	 *            Session的过期时间(ms)
+	 * @return 空间不足时返回false
+	 */
+	synchronized boolean write(String id, byte[] data, long expirationTime) throws IOException
+	{
+		if (_channel == null)
+			throw new IllegalStateException(this + " is closed");
+
+		Record old = _index.remove(id);
+
+		if (old != null)
+			release(old);
+
+		if (data.length > _segmentSize || !ensureRoom(data.length))
+			return false;
+
+		put(_active, _activePosition, data);
+
+		_index.put(id, new Record(_active, _activePosition, data.length, expirationTime));
+
+		_activePosition += data.length;
+		_live[_active] += data.length;
+		_liveBytes += data.length;
+
+		return true;
+	}
+
+	/**
+	 * 取出(并移除)一个Session的数据
+	 *
+	 * @return 不存在时返回null
+	 */
+	synchronized byte[] remove(String id)
+	{
+		Record record = _index.remove(id);
+
+		if (record == null)
+			return null;
+
+		byte[] data = new byte[record._length];
+
+		ByteBuffer buffer = _segments[record._segment].duplicate();
+		buffer.position(record._offset);
+		buffer.get(data);
+
+		release(record);
+
+		return data;
+	}
+
+	synchronized boolean contains(String id)
+	{
+		return _index.containsKey(id);
+	}
+
+	/**
+	 * @return id对应的Session的过期时间,不存在时返回-1
+	 */
+	synchronized long getExpirationTime(String id)
+	{
+		Record record = _index.get(id);
+
+		return record != null ? record._expirationTime : -1;
+	}
+
+	synchronized int size()
+	{
+		return _index.size();
+	}
+
+	synchronized List<String> ids()
+	{
+		return new ArrayList<String>(_index.keySet());
+	}
+
+	/**
+	 * @return 存活记录的总字节数
+	 */
+	synchronized long getLiveBytes()
+	{
+		return _liveBytes;
+	}
+
+	/**
+	 * @return 已映射的字节数
+	 */
+	synchronized long getMappedBytes()
+	{
+		return (long) _mappedCount * _segmentSize;
+	}
+
+	/**
+	 * 关闭并删除文件
+	 */
+	synchronized void close()
+	{
+		if (_channel == null)
+			return;
+
+		_index.clear();
+		_free.clear();
+
+		for (int i = 0; i < _segments.length; i++)
+		{
+			_segments[i] = null;
+		}
+
+		try
+		{
+			_channel.close();
+			_raf.close();
+		}
+		catch (IOException e)
+		{
+			log.debug(e.toString(), e);
+		}
+
+		_channel = null;
+		_raf = null;
+
+		// 映射在GC前可能仍然有效(Windows下不能删除),退出时再试一次
+		if (!_file.delete())
+			_file.deleteOnExit();
+	}
+
+	/**
+	 * 保证当前段中有length字节的空间
+	 */
+	private boolean ensureRoom(int length) throws IOException
+	{
+		if (_active >= 0 && _segmentSize - _activePosition >= length)
+			return true;
+
+		Integer free = _free.poll();
+
+		if (free != null)
+		{
+			activate(free, 0);
+			return true;
+		}
+
+		// 最后一段预留给压缩
+		if (_mappedCount < _maxSegments - 1)
+		{
+			activate(map(), 0);
+			return true;
+		}
+
+		return compact(length);
+	}
+
+	/**
+	 * 把存活数据最少的段压缩到预留段中
+	 */
+	private boolean compact(int length) throws IOException
+	{
+		int victim = -1;
+
+		for (int i = 0; i < _mappedCount; i++)
+		{
+			if (i != _reserve && (victim < 0 || _live[i] < _live[victim]))
+				victim = i;
+		}
+
+		if (victim < 0 || _segmentSize - _live[victim] < length)
+			return false;
+
+		if (_reserve < 0)
+			_reserve = map();
+
+		int target = _reserve;
+		int position = 0;
+
+		for (Record record : _index.values())
+		{
+			if (record._segment != victim)
+				continue;
+
+			ByteBuffer source = _segments[victim].duplicate();
+			source.position(record._offset);
+			source.limit(record._offset + record._length);
+
+			ByteBuffer dest = _segments[target].duplicate();
+			dest.position(position);
+			dest.put(source);
+
+			record._segment = target;
+			record._offset = position;
+
+			position += record._length;
+		}
+
+		_live[target] = _live[victim];
+		_live[victim] = 0;
+
+		_reserve = victim;
+
+		activate(target, position);
+
+		if (log.isDebugEnabled())
+			log.debug(this + " compacted segment " + victim + " into " + target);
+
+		return true;
+	}
+
+	private void activate(int segment, int position)
+	{
+		_active = segment;
+		_activePosition = position;
+	}
+
+	private int map() throws IOException
+	{
+		int segment = _mappedCount;
+
+		_segments[segment] = _channel.map(FileChannel.MapMode.READ_WRITE, (long) segment * _segmentSize, _segmentSize);
+
+		_mappedCount++;
+
+		return segment;
+	}
+
+	private void put(int segment, int offset, byte[] data)
+	{
+		ByteBuffer buffer = _segments[segment].duplicate();
+		buffer.position(offset);
+		buffer.put(data);
+	}
+
+	private void release(Record record)
+	{
+		int segment = record._segment;
+
+		_live[segment] -= record._length;
+		_liveBytes -= record._length;
+
+		if (_live[segment] > 0)
+			return;
+
+		if (segment == _active)
+			_activePosition = 0;
+		else if (segment != _reserve)
+			_free.add(segment);
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + _file + "]";
+	}
+
+	private static final class Record
+	{
+		int _segment;
+
+		int _offset;
+
+		final int _length;
+
+		final long _expirationTime;
+
+		Record(int segment, int offset, int length, long expirationTime)
+		{
+			_segment = segment;
+			_offset = offset;
+			_length = length;
+			_expirationTime = expirationTime;
+		}
+	}
+}
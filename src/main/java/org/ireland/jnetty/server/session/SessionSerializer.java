@@ -0,0 +1,566 @@
+package org.ireland.jnetty.server.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Session及其属性的二进制序列化,代替ObjectOutputStream
+ *
+ * 每个值写为一个类型标记(varint)加上该类型的Codec写出的内容:
+ *
+ * 1:常见的属性类型(String,Integer,Long,Boolean,Double,byte[],Date)有内置的Codec,整数及时间使用varint,不写入类描述等元数据.
+ *
+ * 2:应用可以为自己的类型注册Codec(按精确的类匹配,标记不小于MIN_CUSTOM_TAG).标记写入数据中,所有节点及重启前后必须使用相同的注册.
+ *
+ * 3:其它的Serializable值仍使用Java序列化,并用WebApp的ClassLoader解析类.
+ *
+ * Codec在配置时注册,注册表写时复制,序列化时不需要加锁.
+ *
+ * @author KEN
+ *
+ */
+public final class SessionSerializer
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// 内置类型的标记
+	private static final int TAG_NULL = 0;
+	private static final int TAG_STRING = 1;
+	private static final int TAG_INTEGER = 2;
+	private static final int TAG_LONG = 3;
+	private static final int TAG_TRUE = 4;
+	private static final int TAG_FALSE = 5;
+	private static final int TAG_DOUBLE = 6;
+	private static final int TAG_BYTES = 7;
+	private static final int TAG_DATE = 8;
+	private static final int TAG_SERIALIZABLE = 9;
+
+	/**
+	 * 应用注册的Codec可以使用的最小标记
+	 */
+	public static final int MIN_CUSTOM_TAG = 64;
+
+	private final ClassLoader _loader;
+
+	// 写时复制
+	private volatile Map<Class<?>, Registration> _byType = new HashMap<Class<?>, Registration>();
+
+	private volatile Map<Integer, Registration> _byTag = new HashMap<Integer, Registration>();
+
+	/**
+	 * @param loader
+	 *            解析Java序列化的值的类
+	 */
+	public SessionSerializer(ClassLoader loader)
+	{
+		_loader = loader;
+	}
+
+	/**
+	 * 为一个类型注册Codec,只匹配该类本身(不包括子类)
+	 *
+	 * @param tag
+	 *            写入数据中的标记,不小于MIN_CUSTOM_TAG
+	 */
+	public synchronized <T> void register(int tag, Class<T> type, Codec<? super T> codec)
+	{
+		if (tag < MIN_CUSTOM_TAG)
+			throw new IllegalArgumentException("tag " + tag + " is reserved, custom codecs start at " + MIN_CUSTOM_TAG);
+
+		Registration old = _byTag.get(tag);
+
+		if (old != null && old._type != type)
+			throw new IllegalStateException("tag " + tag + " is already registered for " + old._type.getName());
+
+		Registration registration = new Registration(tag, type, codec);
+
+		Map<Class<?>, Registration> byType = new HashMap<Class<?>, Registration>(_byType);
+		byType.put(type, registration);
+
+		Map<Integer, Registration> byTag = new HashMap<Integer, Registration>(_byTag);
+		byTag.put(tag, registration);
+
+		_byType = byType;
+		_byTag = byTag;
+	}
+
+	/**
+	 * 序列化一个值
+	 */
+	public byte[] serialize(Object value) throws IOException
+	{
+		Output out = new Output(32);
+
+		writeValue(out, value);
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * 反序列化serialize()写出的值
+	 */
+	public Object deserialize(byte[] data) throws IOException, ClassNotFoundException
+	{
+		Input in = new Input(data);
+
+		Object value = readValue(in);
+
+		if (in.remaining() != 0)
+			throw new StreamCorruptedException(in.remaining() + " bytes after the value");
+
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void writeValue(Output out, Object value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeVarInt(TAG_NULL);
+			return;
+		}
+
+		Class<?> type = value.getClass();
+
+		if (type == String.class)
+		{
+			out.writeVarInt(TAG_STRING);
+			out.writeString((String) value);
+		}
+		else if (type == Integer.class)
+		{
+			out.writeVarInt(TAG_INTEGER);
+			out.writeSignedVarLong((Integer) value);
+		}
+		else if (type == Long.class)
+		{
+			out.writeVarInt(TAG_LONG);
+			out.writeSignedVarLong((Long) value);
+		}
+		else if (type == Boolean.class)
+		{
+			out.writeVarInt((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		}
+		else if (type == Double.class)
+		{
+			out.writeVarInt(TAG_DOUBLE);
+			out.writeLong(Double.doubleToRawLongBits((Double) value));
+		}
+		else if (type == byte[].class)
+		{
+			out.writeVarInt(TAG_BYTES);
+			out.writeBytes((byte[]) value);
+		}
+		else if (type == Date.class)
+		{
+			out.writeVarInt(TAG_DATE);
+			out.writeSignedVarLong(((Date) value).getTime());
+		}
+		else
+		{
+			Registration registration = _byType.get(type);
+
+			if (registration != null)
+			{
+				out.writeVarInt(registration._tag);
+				((Codec<Object>) registration._codec).write(out, value);
+			}
+			else if (value instanceof Serializable)
+			{
+				out.writeVarInt(TAG_SERIALIZABLE);
+				out.writeBytes(javaSerialize(value));
+			}
+			else
+				throw new NotSerializableException(type.getName());
+		}
+	}
+
+	public Object readValue(Input in) throws IOException, ClassNotFoundException
+	{
+		int tag = in.readVarInt();
+
+		switch (tag)
+		{
+		case TAG_NULL:
+			return null;
+
+		case TAG_STRING:
+			return in.readString();
+
+		case TAG_INTEGER:
+			return (int) in.readSignedVarLong();
+
+		case TAG_LONG:
+			return in.readSignedVarLong();
+
+		case TAG_TRUE:
+			return Boolean.TRUE;
+
+		case TAG_FALSE:
+			return Boolean.FALSE;
+
+		case TAG_DOUBLE:
+			return Double.longBitsToDouble(in.readLong());
+
+		case TAG_BYTES:
+			return in.readBytes();
+
+		case TAG_DATE:
+			return new Date(in.readSignedVarLong());
+
+		case TAG_SERIALIZABLE:
+			return javaDeserialize(in.readBytes());
+
+		default:
+			Registration registration = _byTag.get(tag);
+
+			if (registration == null)
+				throw new StreamCorruptedException("no codec is registered for tag " + tag);
+
+			return registration._codec.read(in);
+		}
+	}
+
+	private static byte[] javaSerialize(Object value) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+		out.writeObject(value);
+
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	private Object javaDeserialize(byte[] data) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in = new SessionObjectInputStream(new ByteArrayInputStream(data), _loader);
+
+		try
+		{
+			return in.readObject();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * 一个类型的序列化方式
+	 */
+	public interface Codec<T>
+	{
+		void write(Output out, T value) throws IOException;
+
+		T read(Input in) throws IOException, ClassNotFoundException;
+	}
+
+	private static final class Registration
+	{
+		final int _tag;
+
+		final Class<?> _type;
+
+		final Codec<?> _codec;
+
+		Registration(int tag, Class<?> type, Codec<?> codec)
+		{
+			_tag = tag;
+			_type = type;
+			_codec = codec;
+		}
+	}
+
+	/**
+	 * 可增长的字节缓冲区
+	 */
+	public static final class Output
+	{
+		private byte[] _buffer;
+
+		private int _length;
+
+		public Output(int capacity)
+		{
+			_buffer = new byte[Math.max(capacity, 16)];
+		}
+
+		private void ensure(int count)
+		{
+			if (_length + count > _buffer.length)
+				_buffer = Arrays.copyOf(_buffer, Math.max(_buffer.length * 2, _length + count));
+		}
+
+		public void writeByte(int b)
+		{
+			ensure(1);
+
+			_buffer[_length++] = (byte) b;
+		}
+
+		public void writeBoolean(boolean value)
+		{
+			writeByte(value ? 1 : 0);
+		}
+
+		public void writeVarInt(int value)
+		{
+			writeVarLong(value & 0xffffffffL);
+		}
+
+		/**
+		 * 无符号varint:每字节7位,低位在前
+		 */
+		public void writeVarLong(long value)
+		{
+			ensure(10);
+
+			while ((value & ~0x7fL) != 0)
+			{
+				_buffer[_length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+
+			_buffer[_length++] = (byte) value;
+		}
+
+		/**
+		 * ZigZag编码的varint,绝对值小的负数也很短
+		 */
+		public void writeSignedVarLong(long value)
+		{
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		public void writeLong(long value)
+		{
+			ensure(8);
+
+			for (int shift = 56; shift >= 0; shift -= 8)
+			{
+				_buffer[_length++] = (byte) (value >>> shift);
+			}
+		}
+
+		public void write(byte[] data, int offset, int length)
+		{
+			ensure(length);
+
+			System.arraycopy(data, offset, _buffer, _length, length);
+
+			_length += length;
+		}
+
+		/**
+		 * 长度(varint)加内容
+		 */
+		public void writeBytes(byte[] data)
+		{
+			writeVarInt(data.length);
+			write(data, 0, data.length);
+		}
+
+		/**
+		 * UTF-8字节数(varint)加UTF-8编码
+		 */
+		public void writeString(String value)
+		{
+			int length = value.length();
+
+			// ASCII: 不需要经过编码器
+			int i = 0;
+			while (i < length && value.charAt(i) < 0x80)
+				i++;
+
+			if (i < length)
+			{
+				writeBytes(value.getBytes(UTF_8));
+				return;
+			}
+
+			writeVarInt(length);
+			ensure(length);
+
+			for (i = 0; i < length; i++)
+			{
+				_buffer[_length++] = (byte) value.charAt(i);
+			}
+		}
+
+		public int length()
+		{
+			return _length;
+		}
+
+		public byte[] toByteArray()
+		{
+			return Arrays.copyOf(_buffer, _length);
+		}
+	}
+
+	/**
+	 * 读取Output写出的数据
+	 */
+	public static final class Input
+	{
+		private final byte[] _buffer;
+
+		private int _offset;
+
+		private final int _limit;
+
+		public Input(byte[] buffer)
+		{
+			this(buffer, 0, buffer.length);
+		}
+
+		public Input(byte[] buffer, int offset, int length)
+		{
+			_buffer = buffer;
+			_offset = offset;
+			_limit = offset + length;
+		}
+
+		private void require(int count) throws EOFException
+		{
+			if (count < 0 || _limit - _offset < count)
+				throw new EOFException("unexpected end of session data");
+		}
+
+		public int readByte() throws IOException
+		{
+			require(1);
+
+			return _buffer[_offset++] & 0xff;
+		}
+
+		public boolean readBoolean() throws IOException
+		{
+			return readByte() != 0;
+		}
+
+		public int readVarInt() throws IOException
+		{
+			long value = readVarLong();
+
+			if ((value & ~0xffffffffL) != 0)
+				throw new StreamCorruptedException("varint out of range: " + value);
+
+			return (int) value;
+		}
+
+		public long readVarLong() throws IOException
+		{
+			long value = 0;
+
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				int b = readByte();
+
+				value |= (long) (b & 0x7f) << shift;
+
+				if ((b & 0x80) == 0)
+					return value;
+			}
+
+			throw new StreamCorruptedException("malformed varint");
+		}
+
+		public long readSignedVarLong() throws IOException
+		{
+			long value = readVarLong();
+
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		public long readLong() throws IOException
+		{
+			require(8);
+
+			long value = 0;
+
+			for (int i = 0; i < 8; i++)
+			{
+				value = (value << 8) | (_buffer[_offset++] & 0xff);
+			}
+
+			return value;
+		}
+
+		public byte[] readBytes() throws IOException
+		{
+			int length = readVarInt();
+
+			require(length);
+
+			byte[] data = Arrays.copyOfRange(_buffer, _offset, _offset + length);
+
+			_offset += length;
+
+			return data;
+		}
+
+		public String readString() throws IOException
+		{
+			int length = readVarInt();
+
+			require(length);
+
+			String value = new String(_buffer, _offset, length, UTF_8);
+
+			_offset += length;
+
+			return value;
+		}
+
+		public int remaining()
+		{
+			return _limit - _offset;
+		}
+	}
+
+	/**
+	 * Resolves the classes of the session attributes with the web-app's class loader.
+	 */
+	private static final class SessionObjectInputStream extends ObjectInputStream
+	{
+		private final ClassLoader _loader;
+
+		SessionObjectInputStream(InputStream in, ClassLoader loader) throws IOException
+		{
+			super(in);
+
+			_loader = loader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			try
+			{
+				return Class.forName(desc.getName(), false, _loader);
+			}
+			catch (ClassNotFoundException e)
+			{
+				return super.resolveClass(desc);
+			}
+		}
+	}
+}
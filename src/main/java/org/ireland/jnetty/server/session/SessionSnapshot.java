@@ -0,0 +1,452 @@
+package org.ireland.jnetty.server.session;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ireland.jnetty.util.PrivateFiles;
+
+/**
+ * 重启前保存的Session快照
+ *
+ * WebApp正常关闭时,SessionManager把所有Session(已序列化)写入快照文件;重启后按需从快照中取出,而不是在启动时全部读入:
+ * 打开快照只读取文件头,启动时间与Session的数量无关.
+ *
+ * 文件格式:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    记录数
+ * int    桶数(2的幂)
+ * 桶表:  每个桶 long 第一条记录的位置, int 第一条记录的序号, int 记录数
+ * 记录:  short id的长度, byte[] id(UTF-8), long 过期时间, int 数据长度, byte[] 数据
+ * </pre>
+ *
+ * 记录按id的hash分桶连续存放,查找一个id只需读取桶表中的一项及该桶中的记录(平均不到一条).取出的记录被标记为已使用,不会被再次取出.
+ *
+ * 所有的读操作都使用FileChannel的定位读取,可由多条线程同时调用.
+ *
+ * 快照中的数据会被反序列化(可能经过Java序列化),故快照文件只有本进程的用户可以读写;打开时不是本进程的用户所有,
+ * 或其他用户可写的文件被拒绝.
+ *
+ * @author KEN
+ *
+ */
+final class SessionSnapshot
+{
+	private static final Log log = LogFactory.getLog(SessionSnapshot.class.getName());
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// "JNSS"
+	private static final int MAGIC = 0x4A4E5353;
+
+	// 2: sessions written by SessionSerializer
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int BUCKET_SIZE = 16;
+
+	private final File _file;
+
+	private final RandomAccessFile _raf;
+
+	private final FileChannel _channel;
+
+	private final int _count;
+
+	private final int _bucketMask;
+
+	// 已被取出的记录(按序号)
+	private final BitSet _consumed;
+
+	private int _consumedCount;
+
+	private SessionSnapshot(File file, RandomAccessFile raf, int count, int bucketCount)
+	{
+		_file = file;
+		_raf = raf;
+		_channel = raf.getChannel();
+		_count = count;
+		_bucketMask = bucketCount - 1;
+		_consumed = new BitSet();
+	}
+
+	/**
+	 * 打开快照文件(只读取文件头)
+	 *
+	 * @return 文件不存在,格式不正确或不是本进程的用户写入的时返回null
+	 */
+	static SessionSnapshot open(File file)
+	{
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile raf = null;
+
+		try
+		{
+			if (!PrivateFiles.isPrivate(file))
+			{
+				log.warn("ignore session snapshot " + file + ": not owned by " + System.getProperty("user.name") + " or writable by other users");
+
+				return null;
+			}
+
+			raf = new RandomAccessFile(file, "r");
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+			readFully(raf.getChannel(), header, 0);
+
+			int count = header.getInt(8);
+			int bucketCount = header.getInt(12);
+
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || count < 0 || bucketCount <= 0 || Integer.bitCount(bucketCount) != 1)
+			{
+				log.warn("ignore invalid session snapshot " + file);
+
+				raf.close();
+				return null;
+			}
+
+			return new SessionSnapshot(file, raf, count, bucketCount);
+		}
+		catch (IOException e)
+		{
+			log.warn("can't open session snapshot " + file + ": " + e, e);
+
+			if (raf != null)
+			{
+				try
+				{
+					raf.close();
+				}
+				catch (IOException e1)
+				{
+				}
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * 取出id对应的Session的数据,之后不能再次取出
+	 *
+	 * @param now
+	 *            已过期的Session不再取出
+	 * @return 不存在,已过期或已被取出时返回null
+	 */
+	byte[] remove(String id, long now) throws IOException
+	{
+		byte[] key = id.getBytes(UTF_8);
+
+		ByteBuffer bucket = ByteBuffer.allocate(BUCKET_SIZE);
+
+		readFully(_channel, bucket, HEADER_SIZE + (long) (hash(key) & _bucketMask) * BUCKET_SIZE);
+
+		long position = bucket.getLong(0);
+		int ordinal = bucket.getInt(8);
+		int count = bucket.getInt(12);
+
+		for (int i = 0; i < count; i++, ordinal++)
+		{
+			RecordHeader record = readRecordHeader(position);
+
+			if (Arrays.equals(key, record._id))
+			{
+				if (record._expirationTime <= now || !consume(ordinal))
+					return null;
+
+				ByteBuffer data = ByteBuffer.allocate(record._length);
+
+				readFully(_channel, data, record._dataPosition);
+
+				return data.array();
+			}
+
+			position = record._dataPosition + record._length;
+		}
+
+		return null;
+	}
+
+	/**
+	 * 把所有未被取出且未过期的记录复制到writer中(不需要反序列化)
+	 */
+	void transferTo(Writer writer, long now) throws IOException
+	{
+		long position = HEADER_SIZE + (long) (_bucketMask + 1) * BUCKET_SIZE;
+
+		for (int ordinal = 0; ordinal < _count; ordinal++)
+		{
+			RecordHeader record = readRecordHeader(position);
+
+			position = record._dataPosition + record._length;
+
+			if (record._expirationTime <= now || isConsumed(ordinal))
+				continue;
+
+			ByteBuffer data = ByteBuffer.allocate(record._length);
+
+			readFully(_channel, data, record._dataPosition);
+
+			writer.add(new String(record._id, UTF_8), record._expirationTime, data.array());
+		}
+	}
+
+	private RecordHeader readRecordHeader(long position) throws IOException
+	{
+		ByteBuffer length = ByteBuffer.allocate(2);
+
+		readFully(_channel, length, position);
+
+		int idLength = length.getShort(0) & 0xffff;
+
+		ByteBuffer header = ByteBuffer.allocate(idLength + 12);
+
+		readFully(_channel, header, position + 2);
+
+		byte[] id = new byte[idLength];
+		header.get(id);
+
+		long expirationTime = header.getLong();
+		int dataLength = header.getInt();
+
+		return new RecordHeader(id, expirationTime, dataLength, position + 2 + idLength + 12);
+	}
+
+	private synchronized boolean consume(int ordinal)
+	{
+		if (_consumed.get(ordinal))
+			return false;
+
+		_consumed.set(ordinal);
+		_consumedCount++;
+
+		return true;
+	}
+
+	private synchronized boolean isConsumed(int ordinal)
+	{
+		return _consumed.get(ordinal);
+	}
+
+	/**
+	 * @return 还未被取出的记录数(包括已过期的)
+	 */
+	synchronized int getRemaining()
+	{
+		return _count - _consumedCount;
+	}
+
+	File getFile()
+	{
+		return _file;
+	}
+
+	void close()
+	{
+		try
+		{
+			_raf.close();
+		}
+		catch (IOException e)
+		{
+			log.debug(e.toString(), e);
+		}
+	}
+
+	private static int hash(byte[] id)
+	{
+		int h = Arrays.hashCode(id);
+
+		return h ^ (h >>> 16);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int n = channel.read(buffer, position + buffer.position());
+
+			if (n < 0)
+				throw new EOFException("unexpected end of session snapshot");
+		}
+
+		buffer.flip();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + _file + ",remaining=" + getRemaining() + "]";
+	}
+
+	private static final class RecordHeader
+	{
+		final byte[] _id;
+
+		final long _expirationTime;
+
+		final int _length;
+
+		final long _dataPosition;
+
+		RecordHeader(byte[] id, long expirationTime, int length, long dataPosition)
+		{
+			_id = id;
+			_expirationTime = expirationTime;
+			_length = length;
+			_dataPosition = dataPosition;
+		}
+	}
+
+	/**
+	 * 收集已序列化的Session,最后一次性按桶写入快照文件
+	 *
+	 * add()可由多条线程同时调用.
+	 */
+	static final class Writer
+	{
+		private final List<Record> _records = new ArrayList<Record>();
+
+		synchronized void add(String id, long expirationTime, byte[] data)
+		{
+			byte[] key = id.getBytes(UTF_8);
+
+			if (key.length > 0xffff)
+				throw new IllegalArgumentException("session id too long: " + id);
+
+			_records.add(new Record(key, expirationTime, data));
+		}
+
+		synchronized int size()
+		{
+			return _records.size();
+		}
+
+		/**
+		 * 写入file(先写入只有本进程的用户可以读写的临时文件,完成后替换file)
+		 */
+		synchronized void write(File file) throws IOException
+		{
+			int count = _records.size();
+
+			int bucketCount = 1;
+			while (bucketCount < count)
+				bucketCount <<= 1;
+
+			int mask = bucketCount - 1;
+
+			// 按桶排序(计数排序)
+			int[] bucketStart = new int[bucketCount + 1];
+
+			for (Record record : _records)
+			{
+				bucketStart[(hash(record._id) & mask) + 1]++;
+			}
+
+			for (int i = 0; i < bucketCount; i++)
+			{
+				bucketStart[i + 1] += bucketStart[i];
+			}
+
+			Record[] sorted = new Record[count];
+			int[] next = Arrays.copyOf(bucketStart, bucketCount);
+
+			for (Record record : _records)
+			{
+				sorted[next[hash(record._id) & mask]++] = record;
+			}
+
+			File temp = new File(file.getPath() + ".tmp");
+
+			// 上次未完成的临时文件被删除
+			PrivateFiles.recreateFile(temp);
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeInt(bucketCount);
+
+				long position = HEADER_SIZE + (long) bucketCount * BUCKET_SIZE;
+
+				int ordinal = 0;
+
+				for (int b = 0; b < bucketCount; b++)
+				{
+					out.writeLong(position);
+					out.writeInt(ordinal);
+					out.writeInt(bucketStart[b + 1] - bucketStart[b]);
+
+					for (int i = bucketStart[b]; i < bucketStart[b + 1]; i++)
+					{
+						position += sorted[i].size();
+						ordinal++;
+					}
+				}
+
+				for (Record record : sorted)
+				{
+					out.writeShort(record._id.length);
+					out.write(record._id);
+					out.writeLong(record._expirationTime);
+					out.writeInt(record._data.length);
+					out.write(record._data);
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if (file.exists() && !file.delete())
+				throw new IOException("can't replace session snapshot " + file);
+
+			if (!temp.renameTo(file))
+				throw new IOException("can't rename " + temp + " to " + file);
+		}
+	}
+
+	private static final class Record
+	{
+		final byte[] _id;
+
+		final long _expirationTime;
+
+		final byte[] _data;
+
+		Record(byte[] id, long expirationTime, byte[] data)
+		{
+			_id = id;
+			_expirationTime = expirationTime;
+			_data = data;
+		}
+
+		long size()
+		{
+			return 2 + _id.length + 12 + _data.length;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package org.ireland.jnetty.server.session;
+
+import java.io.IOException;
+
+/**
+ * 外部的(进程外的)Session存储,如Redis,Memcached或数据库等Key-Value存储
+ *
+ * 设置到SessionManager后,多个节点可以共享Session,负载均衡器不需要把同一个Session的请求都发到同一个节点(non-sticky).
+ * SessionManager在本地的ShardedSessionStore中保留最近使用的Session(near-cache),并用版本号判断本地的副本是否已过时:
+ *
+ * 1:每个请求最多调用一次load():带上本地副本的版本号,存储中的版本相同时只返回NOT_MODIFIED,不需要传输属性.
+ *
+ * 2:请求结束时只有Session的状态改变了才调用save(),且只写入自请求开始以来被setAttribute/removeAttribute改变的属性(增量).
+ *
+ * 每个属性的值单独序列化为byte[],存储不需要理解其内容.存储负责按SessionData.getExpirationTime()删除过期的Session(如使用TTL),
+ * 由存储删除的Session不会发布sessionDestroyed事件.
+ *
+ * 实现必须是线程安全的.
+ *
+ * @author KEN
+ *
+ */
+public interface SessionStore
+{
+	/**
+	 * 读取一个Session
+	 *
+	 * @param id
+	 *            SessionId
+	 * @param knownVersion
+	 *            本地副本的版本号,没有本地副本时为0
+	 * @return 不存在或已过期时返回null,版本号等于knownVersion时返回SessionData.NOT_MODIFIED,否则返回完整的Session(不能被修改)
+	 */
+	SessionData load(String id, long knownVersion) throws IOException;
+
+	/**
+	 * 把增量合并到存储的Session中:delta中的属性替换存储中的同名属性,值为null的属性被删除;创建时间以外的时间信息被delta中的替换.
+	 *
+	 * expectedVersion为0时创建Session.
+	 *
+	 * @param expectedVersion
+	 *            写入方所知的版本号
+	 * @return 合并后的版本号;若不等于expectedVersion + 1,说明其它节点在此期间也写入了该Session.Session已不存在(已被删除或已过期)时返回-1,
+	 *         不会重新创建
+	 */
+	long save(String id, long expectedVersion, SessionData delta) throws IOException;
+
+	/**
+	 * 删除一个Session(Session被invalidate)
+	 */
+	void remove(String id) throws IOException;
+}
@@ -0,0 +1,275 @@
+package org.ireland.jnetty.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ireland.jnetty.util.ConcurrentLruCache;
+
+/**
+ * 分片的Session存储,替换SessionManager中全局同步的com.caucho.util.LruCache
+ *
+ * 按SessionId的hash把Session分散到N个互相独立的分片中,每个分片是一个ConcurrentLruCache:
+ *
+ * 1:get()不需要任何锁.
+ *
+ * 2:每个分片有自己的容量(sessionMax / N),计数器及淘汰锁,put()只在本分片内竞争,超出容量时也只在本分片内淘汰.
+ *
+ * 3:遍历(sessionIdList等)逐个分片进行,不阻塞请求线程.
+ *
+ * @author KEN
+ *
+ */
+final class ShardedSessionStore
+{
+	private final Shard[] _shards;
+
+	private final int _mask;
+
+	private final int _capacity;
+
+	/**
+	 * @param manager
+	 *            被淘汰的Session交给manager处理
+	 * @param capacity
+	 *            所有分片的总容量
+	 */
+	ShardedSessionStore(SessionManager manager, int capacity)
+	{
+		this(manager, capacity, defaultShardCount(capacity));
+	}
+
+	/**
+	 * @param manager
+	 *            被淘汰的Session交给manager处理
+	 * @param capacity
+	 *            所有分片的总容量
+	 * @param shardCount
+	 *            分片数(向上取整为2的幂)
+	 */
+	ShardedSessionStore(SessionManager manager, int capacity, int shardCount)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		int n = 1;
+		while (n < shardCount)
+			n <<= 1;
+
+		_shards = new Shard[n];
+		_mask = n - 1;
+		_capacity = capacity;
+
+		// 向上取整,总容量不小于capacity
+		int shardCapacity = (capacity + n - 1) / n;
+
+		for (int i = 0; i < n; i++)
+		{
+			_shards[i] = new Shard(manager, "sessions-" + i, shardCapacity);
+		}
+	}
+
+	/**
+	 * 分片数: 不小于CPU核数2倍的2的幂,但每个分片至少容纳64个Session
+	 */
+	private static int defaultShardCount(int capacity)
+	{
+		int shards = 2 * Runtime.getRuntime().availableProcessors();
+
+		return Math.max(1, Math.min(shards, capacity / 64));
+	}
+
+	private Shard shardFor(String id)
+	{
+		int h = id.hashCode();
+
+		// SessionId的hash的低位已足够随机,再混合一次高位以防自定义的SessionId
+		h ^= (h >>> 16);
+
+		return _shards[h & _mask];
+	}
+
+	/**
+	 * @return id对应的Session,不存在时返回null(无锁)
+	 */
+	HttpSessionImpl get(String id)
+	{
+		return shardFor(id).get(id);
+	}
+
+	/**
+	 * 与get()相同,但不影响淘汰顺序及统计(用于后台任务)
+	 */
+	HttpSessionImpl peek(String id)
+	{
+		return shardFor(id).peek(id);
+	}
+
+	/**
+	 * 不存在同id的Session时才放入
+	 *
+	 * @return 已存在的Session,放入成功时返回null
+	 */
+	HttpSessionImpl putIfAbsent(HttpSessionImpl session)
+	{
+		String id = session.getId();
+
+		return shardFor(id).putIfAbsent(id, session);
+	}
+
+	void put(HttpSessionImpl session)
+	{
+		String id = session.getId();
+
+		shardFor(id).put(id, session);
+	}
+
+	/**
+	 * 只在存储的仍是该Session时移除(id可能已被新的Session占用)
+	 *
+	 * @return 是否已移除
+	 */
+	boolean remove(HttpSessionImpl session)
+	{
+		String id = session.getId();
+
+		return shardFor(id).remove(id, session);
+	}
+
+	/**
+	 * @return Session的总数
+	 */
+	int size()
+	{
+		int size = 0;
+
+		for (Shard shard : _shards)
+		{
+			size += shard.size();
+		}
+
+		return size;
+	}
+
+	int getCapacity()
+	{
+		return _capacity;
+	}
+
+	int getShardCount()
+	{
+		return _shards.length;
+	}
+
+	/**
+	 * @return 所有SessionId(弱一致性)
+	 */
+	List<String> ids()
+	{
+		List<String> ids = new ArrayList<String>();
+
+		for (Shard shard : _shards)
+		{
+			ids.addAll(shard.keySet());
+		}
+
+		return ids;
+	}
+
+	/**
+	 * @return 所有Session的快照
+	 */
+	List<HttpSessionImpl> sessions()
+	{
+		List<HttpSessionImpl> sessions = new ArrayList<HttpSessionImpl>();
+
+		for (Shard shard : _shards)
+		{
+			sessions.addAll(shard.values());
+		}
+
+		return sessions;
+	}
+
+	// statistics----------------------------------------------------------------
+
+	long getHitCount()
+	{
+		long count = 0;
+
+		for (Shard shard : _shards)
+		{
+			count += shard.getHitCount();
+		}
+
+		return count;
+	}
+
+	long getMissCount()
+	{
+		long count = 0;
+
+		for (Shard shard : _shards)
+		{
+			count += shard.getMissCount();
+		}
+
+		return count;
+	}
+
+	long getEvictionCount()
+	{
+		long count = 0;
+
+		for (Shard shard : _shards)
+		{
+			count += shard.getEvictionCount();
+		}
+
+		return count;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[size=" + size() + "/" + _capacity + ",shards=" + _shards.length + ",hits=" + getHitCount() + ",misses="
+				+ getMissCount() + ",evictions=" + getEvictionCount() + "]";
+	}
+
+	/**
+	 * 一个分片:超出容量被淘汰的Session交给SessionManager
+	 */
+	private static final class Shard extends ConcurrentLruCache<String, HttpSessionImpl>
+	{
+		private final SessionManager _manager;
+
+		Shard(SessionManager manager, String name, int capacity)
+		{
+			super(name, capacity);
+
+			_manager = manager;
+		}
+
+		/**
+		 * 刚放入的Session马上就会被请求使用,不能被它自己的放入淘汰(否则请求拿到的是已被销毁的Session)
+		 */
+		@Override
+		protected boolean isReferencedOnPut()
+		{
+			return true;
+		}
+
+		@Override
+		protected void evicting(String id, HttpSessionImpl session)
+		{
+			if (_manager != null)
+				_manager.sessionEvicting(session);
+		}
+
+		@Override
+		protected void evicted(String id, HttpSessionImpl session)
+		{
+			if (_manager != null)
+				_manager.sessionEvicted(session);
+		}
+	}
+}
@@ -0,0 +1,398 @@
+package org.ireland.jnetty.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 读操作无锁的近似LRU缓存,用于替换请求分派路径上需要同步的com.caucho.util.LruCache
+ *
+ * 基于ConcurrentHashMap实现,淘汰算法为CLOCK(second chance):
+ *
+ * 1:get()只读取ConcurrentHashMap,并设置节点的引用位,不需要任何锁.
+ *
+ * 2:put()后缓存超出容量时,由一条线程(tryLock)移动"时钟指针"遍历所有节点:引用位为true的节点清除引用位(给予第二次机会),引用位为false的节点被淘汰.
+ * 其它线程不会等待淘汰完成.淘汰的回调evicted()在释放锁之后调用,回调的耗时不会阻止其它线程的淘汰.
+ *
+ * 每个缓存都记录命中,未命中及淘汰次数(分段计数,避免计数本身成为竞争点).
+ *
+ * @author KEN
+ *
+ */
+public class ConcurrentLruCache<K, V>
+{
+	private final String _name;
+
+	private final int _capacity;
+
+	private final ConcurrentHashMap<K, Node<V>> _map;
+
+	// 缓存项的数量(ConcurrentHashMap#size()需要遍历所有Segment)
+	private final AtomicInteger _size = new AtomicInteger();
+
+	// 只允许一条线程执行淘汰
+	private final ReentrantLock _evictionLock = new ReentrantLock();
+
+	// 时钟指针,由_evictionLock保护
+	private Iterator<Map.Entry<K, Node<V>>> _clockHand;
+
+	// statistics
+	private final StripedCounter _hitCount = new StripedCounter();
+
+	private final StripedCounter _missCount = new StripedCounter();
+
+	private final StripedCounter _evictionCount = new StripedCounter();
+
+	public ConcurrentLruCache(int capacity)
+	{
+		this(null, capacity);
+	}
+
+	/**
+	 * @param name
+	 *            缓存的名称,用于统计信息的输出
+	 * @param capacity
+	 *            最大容量
+	 */
+	public ConcurrentLruCache(String name, int capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		_name = name;
+		_capacity = capacity;
+
+		int concurrencyLevel = Math.max(16, Runtime.getRuntime().availableProcessors());
+
+		_map = new ConcurrentHashMap<K, Node<V>>(capacity * 4 / 3 + 1, 0.75f, concurrencyLevel);
+	}
+
+	/**
+	 * 取得key对应的值(无锁)
+	 *
+	 * @param key
+	 * @return 不存在时返回null
+	 */
+	public V get(K key)
+	{
+		Node<V> node = _map.get(key);
+
+		if (node == null)
+		{
+			_missCount.increment();
+			return null;
+		}
+
+		// 已设置时不再写,避免无谓的缓存行失效
+		if (!node._referenced)
+			node._referenced = true;
+
+		_hitCount.increment();
+
+		return node._value;
+	}
+
+	/**
+	 * 取得key对应的值,不设置引用位,也不计入命中统计(用于后台任务的检查,不影响淘汰的顺序)
+	 *
+	 * @param key
+	 * @return 不存在时返回null
+	 */
+	public V peek(K key)
+	{
+		Node<V> node = _map.get(key);
+
+		return node != null ? node._value : null;
+	}
+
+	/**
+	 * 放入缓存,超出容量时淘汰最近未使用的项
+	 *
+	 * @param key
+	 * @param value
+	 * @return 旧的值
+	 */
+	public V put(K key, V value)
+	{
+		Node<V> old = _map.put(key, newNode(value));
+
+		if (old != null)
+			return old._value;
+
+		if (_size.incrementAndGet() > _capacity)
+			evict();
+
+		return null;
+	}
+
+	/**
+	 * 不存在时才放入缓存
+	 *
+	 * @param key
+	 * @param value
+	 * @return 已存在的值,不存在时返回null
+	 */
+	public V putIfAbsent(K key, V value)
+	{
+		Node<V> old = _map.putIfAbsent(key, newNode(value));
+
+		if (old != null)
+			return old._value;
+
+		if (_size.incrementAndGet() > _capacity)
+			evict();
+
+		return null;
+	}
+
+	public V remove(K key)
+	{
+		Node<V> old = _map.remove(key);
+
+		if (old == null)
+			return null;
+
+		_size.decrementAndGet();
+
+		return old._value;
+	}
+
+	/**
+	 * key当前对应的值是value时才移除
+	 *
+	 * @return 是否已移除
+	 */
+	public boolean remove(K key, V value)
+	{
+		Node<V> node = _map.get(key);
+
+		if (node == null || !node._value.equals(value))
+			return false;
+
+		if (!_map.remove(key, node))
+			return false;
+
+		_size.decrementAndGet();
+
+		return true;
+	}
+
+	/**
+	 * @return 所有key的只读视图(弱一致性,遍历时不需要同步)
+	 */
+	public Set<K> keySet()
+	{
+		return Collections.unmodifiableSet(_map.keySet());
+	}
+
+	/**
+	 * @return 当前所有值的快照
+	 */
+	public List<V> values()
+	{
+		List<V> values = new ArrayList<V>(size());
+
+		for (Node<V> node : _map.values())
+		{
+			values.add(node._value);
+		}
+
+		return values;
+	}
+
+	/**
+	 * 清空缓存(不需要外部同步)
+	 */
+	public void clear()
+	{
+		for (K key : _map.keySet())
+		{
+			remove(key);
+		}
+	}
+
+	public int size()
+	{
+		return _size.get();
+	}
+
+	public int getCapacity()
+	{
+		return _capacity;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	/**
+	 * CLOCK淘汰,直到缓存数量不超出容量
+	 */
+	private void evict()
+	{
+		// 其它线程正在淘汰
+		if (!_evictionLock.tryLock())
+			return;
+
+		List<Map.Entry<K, V>> evicted = null;
+
+		try
+		{
+			// 最多遍历两圈:第一圈清除所有引用位,第二圈必然能淘汰
+			int scanLimit = 2 * (_size.get() + 1);
+
+			while (_size.get() > _capacity)
+			{
+				if (_clockHand == null || !_clockHand.hasNext())
+				{
+					_clockHand = _map.entrySet().iterator();
+
+					if (!_clockHand.hasNext())
+						break;
+				}
+
+				Map.Entry<K, Node<V>> entry = _clockHand.next();
+
+				Node<V> node = entry.getValue();
+
+				// 最近被访问过,给予第二次机会
+				if (node._referenced && scanLimit-- > 0)
+				{
+					node._referenced = false;
+					continue;
+				}
+
+				if (_map.remove(entry.getKey(), node))
+				{
+					_size.decrementAndGet();
+					_evictionCount.increment();
+
+					evicting(entry.getKey(), node._value);
+
+					if (evicted == null)
+						evicted = new ArrayList<Map.Entry<K, V>>();
+
+					evicted.add(new AbstractMap.SimpleImmutableEntry<K, V>(entry.getKey(), node._value));
+				}
+			}
+		}
+		finally
+		{
+			_evictionLock.unlock();
+		}
+
+		if (evicted != null)
+		{
+			for (Map.Entry<K, V> entry : evicted)
+				evicted(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private Node<V> newNode(V value)
+	{
+		Node<V> node = new Node<V>(value);
+
+		if (isReferencedOnPut())
+			node._referenced = true;
+
+		return node;
+	}
+
+	/**
+	 * 新放入的项是否设置引用位,子类可覆盖
+	 *
+	 * 默认为false:只放入而从未被get()的项最先被淘汰.为true时刚放入的项至少在时钟指针经过一次后才会被淘汰(适用于放入后马上就要使用的项).
+	 */
+	protected boolean isReferencedOnPut()
+	{
+		return false;
+	}
+
+	/**
+	 * 缓存项因超出容量被移除时的回调,在持有淘汰锁时调用(其它线程的淘汰被跳过),只能做很少的工作,子类可覆盖
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	protected void evicting(K key, V value)
+	{
+	}
+
+	/**
+	 * 缓存项因超出容量被淘汰后的回调(在执行淘汰的线程中,释放淘汰锁之后调用),子类可覆盖
+	 *
+	 * @param key
+	 * @param value
+	 */
+	protected void evicted(K key, V value)
+	{
+	}
+
+	// statistics----------------------------------------------------------------
+
+	public long getHitCount()
+	{
+		return _hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return _missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return _evictionCount.get();
+	}
+
+	/**
+	 * @return 命中率(0~1),没有任何访问时返回0
+	 */
+	public double getHitRate()
+	{
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * 重置统计数据
+	 */
+	public void resetStatistics()
+	{
+		_hitCount.reset();
+		_missCount.reset();
+		_evictionCount.reset();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + (_name != null ? _name + "," : "") + "size=" + size() + "/" + _capacity + ",hits=" + getHitCount()
+				+ ",misses=" + getMissCount() + ",evictions=" + getEvictionCount() + ",hitRate=" + String.format("%.2f%%", getHitRate() * 100) + "]";
+	}
+
+	/**
+	 * 缓存节点:值 + CLOCK算法的引用位
+	 */
+	private static final class Node<V>
+	{
+		final V _value;
+
+		volatile boolean _referenced;
+
+		Node(V value)
+		{
+			_value = value;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package org.ireland.jnetty.util;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按到期时间淘汰对象的哈希时间轮(Hashed Timing Wheel)
+ *
+ * 时间被划分为长度为tickDuration的tick,每个tick对应环形数组中的一个槽(tick & mask).对象按其到期时间放入对应的槽中,
+ * advance(now)每前进一个tick只处理一个槽,与被跟踪的对象总数无关.到期时间超过一圈的对象在槽中多停留几圈.
+ *
+ * 对象的到期时间可能在放入后改变(例如Session被访问),时间轮不跟踪这些改变:槽被处理时才通过getExpirationTime()取得对象当前的到期时间,
+ * 已到期的调用expire(),未到期的重新放入新的槽中.因此延长到期时间是O(1)且无锁的(只需改变对象自己的字段).
+ *
+ * schedule()可由任意线程调用(无锁,先放入待处理队列);advance()同一时刻只由一条线程执行,其它线程调用时直接返回.
+ *
+ * @author KEN
+ *
+ */
+public abstract class ExpirationWheel<E>
+{
+	private final long _tickDuration;
+
+	private final long _startTime;
+
+	private final int _mask;
+
+	// 每个槽一个列表,只由执行advance()的线程访问
+	private final ArrayList<Node<E>>[] _wheel;
+
+	// schedule()放入的对象,由advance()移入槽中
+	private final Queue<Node<E>> _pending = new ConcurrentLinkedQueue<Node<E>>();
+
+	// 只允许一条线程前进时间轮
+	private final ReentrantLock _advanceLock = new ReentrantLock();
+
+	// 已处理的最后一个tick,由_advanceLock保护
+	private long _currentTick;
+
+	/**
+	 * @param tickDuration
+	 *            每个tick的长度(ms),即到期的精度
+	 * @param ticksPerWheel
+	 *            槽的数量(向上取整为2的幂)
+	 * @param startTime
+	 *            时间轮的起始时间(ms)
+	 */
+	@SuppressWarnings("unchecked")
+	public ExpirationWheel(long tickDuration, int ticksPerWheel, long startTime)
+	{
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+			throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+
+		int n = 1;
+		while (n < ticksPerWheel)
+			n <<= 1;
+
+		_tickDuration = tickDuration;
+		_startTime = startTime;
+		_mask = n - 1;
+
+		_wheel = new ArrayList[n];
+	}
+
+	/**
+	 * @param e
+	 * @return e当前的到期时间(ms),小于0表示不再需要跟踪(例如已被移除)
+	 */
+	protected abstract long getExpirationTime(E e);
+
+	/**
+	 * e已到期
+	 */
+	protected abstract void expire(E e);
+
+	/**
+	 * 开始跟踪e,e在expirationTime之后的第一次advance()中到期(除非其到期时间被延长)
+	 *
+	 * @param e
+	 * @param expirationTime
+	 *            到期时间(ms)
+	 */
+	public void schedule(E e, long expirationTime)
+	{
+		_pending.add(new Node<E>(e, tickOf(expirationTime)));
+	}
+
+	/**
+	 * 前进到now,处理经过的每个槽
+	 *
+	 * @param now
+	 *            当前时间(ms)
+	 * @return 本次到期的对象数,其它线程正在前进时返回0
+	 */
+	public int advance(long now)
+	{
+		if (!_advanceLock.tryLock())
+			return 0;
+
+		try
+		{
+			transferPending();
+
+			long targetTick = (now - _startTime) / _tickDuration;
+
+			// 落后超过一圈时,每个槽只需要处理一次
+			long steps = Math.min(targetTick - _currentTick, _wheel.length);
+
+			int expired = 0;
+
+			for (long i = 1; i <= steps; i++)
+			{
+				expired += processBucket((int) ((_currentTick + i) & _mask), targetTick);
+			}
+
+			if (targetTick > _currentTick)
+				_currentTick = targetTick;
+
+			return expired;
+		}
+		finally
+		{
+			_advanceLock.unlock();
+		}
+	}
+
+	/**
+	 * 处理一个槽中到期tick不晚于targetTick的对象
+	 */
+	private int processBucket(int index, long targetTick)
+	{
+		ArrayList<Node<E>> bucket = _wheel[index];
+
+		if (bucket == null || bucket.isEmpty())
+			return 0;
+
+		// 处理过程中重新放入的对象可能回到同一个槽
+		_wheel[index] = null;
+
+		int expired = 0;
+
+		for (int i = 0; i < bucket.size(); i++)
+		{
+			Node<E> node = bucket.get(i);
+
+			// 还要再转几圈
+			if (node._tick > targetTick)
+			{
+				add(node);
+				continue;
+			}
+
+			long expirationTime = getExpirationTime(node._value);
+
+			if (expirationTime < 0)
+				continue;
+
+			long tick = tickOf(expirationTime);
+
+			if (tick <= targetTick)
+			{
+				expire(node._value);
+				expired++;
+			}
+			else
+			{
+				node._tick = tick;
+				add(node);
+			}
+		}
+
+		return expired;
+	}
+
+	private void transferPending()
+	{
+		Node<E> node;
+
+		while ((node = _pending.poll()) != null)
+		{
+			// 已经过去的tick:放入下一个要处理的槽
+			if (node._tick <= _currentTick)
+				node._tick = _currentTick + 1;
+
+			add(node);
+		}
+	}
+
+	private void add(Node<E> node)
+	{
+		int index = (int) (node._tick & _mask);
+
+		ArrayList<Node<E>> bucket = _wheel[index];
+
+		if (bucket == null)
+		{
+			bucket = new ArrayList<Node<E>>();
+			_wheel[index] = bucket;
+		}
+
+		bucket.add(node);
+	}
+
+	/**
+	 * @return 不早于time的第一个tick(向上取整,保证处理该tick时time已经过去)
+	 */
+	private long tickOf(long time)
+	{
+		long elapsed = time - _startTime;
+
+		if (elapsed <= 0)
+			return 0;
+
+		return (elapsed + _tickDuration - 1) / _tickDuration;
+	}
+
+	public long getTickDuration()
+	{
+		return _tickDuration;
+	}
+
+	private static final class Node<E>
+	{
+		private final E _value;
+
+		private long _tick;
+
+		Node(E value, long tick)
+		{
+			_value = value;
+			_tick = tick;
+		}
+	}
+}
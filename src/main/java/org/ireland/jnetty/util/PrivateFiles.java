@@ -0,0 +1,146 @@
+package org.ireland.jnetty.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+
+/**
+ * 只有本进程的用户可以读写的文件及目录
+ *
+ * 服务器自己写入,之后又读回的文件(Session快照,jar索引等)可能含有会被反序列化的数据或影响类加载的数据,
+ * 不能被其他用户读取,也不能由其他用户预先放置或替换.
+ *
+ * @author KEN
+ *
+ */
+public final class PrivateFiles
+{
+	private PrivateFiles()
+	{
+	}
+
+	/**
+	 * 创建一个只有本进程的用户可以读写的空文件,文件已存在时(可能是其他用户预先放置的,或是一个符号链接)失败
+	 */
+	public static void createFile(File file) throws IOException
+	{
+		Path path = file.toPath();
+
+		if (isPosix(path))
+		{
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		else
+		{
+			Files.createFile(path);
+
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+	}
+
+	/**
+	 * 先删除(上次未完成的)文件,再以createFile()创建
+	 */
+	public static void recreateFile(File file) throws IOException
+	{
+		Files.deleteIfExists(file.toPath());
+
+		createFile(file);
+	}
+
+	/**
+	 * 在目录中创建一个名字不重复,只有本进程的用户可以读写的空文件,目录不存在时以createDirectories()创建
+	 */
+	public static File createTempFile(File dir, String prefix, String suffix) throws IOException
+	{
+		createDirectories(dir);
+
+		Path path = dir.toPath();
+
+		if (isPosix(path))
+			return Files.createTempFile(path, prefix, suffix, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+
+		File file = Files.createTempFile(path, prefix, suffix).toFile();
+
+		file.setReadable(false, false);
+		file.setWritable(false, false);
+		file.setReadable(true, true);
+		file.setWritable(true, true);
+
+		return file;
+	}
+
+	/**
+	 * 创建目录(及不存在的父目录),新建的目录只有本进程的用户可以访问.已存在的目录不做修改
+	 */
+	public static void createDirectories(File dir) throws IOException
+	{
+		if (dir.isDirectory())
+			return;
+
+		File parent = dir.getAbsoluteFile().getParentFile();
+
+		if (parent != null)
+			createDirectories(parent);
+
+		Path path = dir.toPath();
+
+		if (isPosix(path))
+		{
+			Files.createDirectory(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		}
+		else
+		{
+			Files.createDirectory(path);
+
+			dir.setReadable(false, false);
+			dir.setWritable(false, false);
+			dir.setExecutable(false, false);
+			dir.setReadable(true, true);
+			dir.setWritable(true, true);
+			dir.setExecutable(true, true);
+		}
+	}
+
+	/**
+	 * @return 是本进程的用户所有,其他用户不可写的普通文件(不是符号链接)
+	 */
+	public static boolean isPrivate(File file) throws IOException
+	{
+		Path path = file.toPath();
+
+		if (!Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+			return false;
+
+		UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+
+		if (!user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS)))
+			return false;
+
+		PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+
+		if (posix == null)
+			return true;
+
+		Set<PosixFilePermission> permissions = posix.readAttributes().permissions();
+
+		return !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+	}
+
+	private static boolean isPosix(Path path)
+	{
+		Path parent = path.toAbsolutePath().getParent();
+
+		return Files.getFileAttributeView(parent != null ? parent : path.toAbsolutePath(), PosixFileAttributeView.class) != null;
+	}
+}
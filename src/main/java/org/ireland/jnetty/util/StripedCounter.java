@@ -0,0 +1,77 @@
+package org.ireland.jnetty.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段计数器
+ *
+ * 多条线程高频率地累加同一个AtomicLong时,会在同一个缓存行上产生激烈的竞争.StripedCounter把计数分散到多个(按缓存行填充的)槽中,
+ * 每条线程按其id选择一个槽累加,读取时再把所有槽相加.
+ *
+ * @author KEN
+ *
+ */
+public class StripedCounter
+{
+	// 每个槽占用一个缓存行(64字节 = 8个long),避免伪共享
+	private static final int PADDING = 8;
+
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray _cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * 槽数: 不小于CPU核数的2的幂
+	 */
+	private static int stripes()
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		int n = 1;
+		while (n < cpus)
+			n <<= 1;
+
+		return n;
+	}
+
+	public void increment()
+	{
+		add(1);
+	}
+
+	public void add(long delta)
+	{
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+
+		_cells.addAndGet(stripe * PADDING, delta);
+	}
+
+	/**
+	 * @return 所有槽之和(并发累加时只是一个近似值)
+	 */
+	public long get()
+	{
+		long sum = 0;
+
+		for (int i = 0; i < STRIPES; i++)
+		{
+			sum += _cells.get(i * PADDING);
+		}
+
+		return sum;
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < STRIPES; i++)
+		{
+			_cells.set(i * PADDING, 0);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(get());
+	}
+}
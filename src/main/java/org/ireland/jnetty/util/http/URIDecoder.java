@@ -38,6 +38,7 @@ import com.caucho.vfs.ByteToChar;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
@@ -56,6 +57,8 @@ public class URIDecoder
 
 	private static final FreeList<ByteToChar> _freeConverters = new FreeList<ByteToChar>(256);
 
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
 	// The character encoding
 	private String _encoding = "UTF-8";
 
@@ -182,25 +185,35 @@ public class URIDecoder
 	 */
 	public void splitQueryAndUnescape(HttpInvocation invocation, byte[] rawURI, int uriLength) throws IOException
 	{
+		// 不含%xx转义的纯ASCII的URI,解码前后是相同的
+		boolean plainAscii = true;
+
 		for (int i = 0; i < uriLength; i++)
 		{
-			if (rawURI[i] == '?')
+			int ch = rawURI[i];
+
+			if (ch == '?')
 			{
 				i++;
 
 				// XXX: should be the host encoding?
-				String queryString = byteToChar(rawURI, i, uriLength - i, "ISO-8859-1");
+				// ISO-8859-1是单字节一一对应的编码,不需要ByteToChar
+				String queryString = new String(rawURI, i, uriLength - i, ISO_8859_1);
 				invocation.setQueryString(queryString);
 
 				uriLength = i - 1;
 				break;
 			}
+			else if (ch == '%' || ch < 0x20 || ch >= 0x7f)
+			{
+				plainAscii = false;
+			}
 		}
 
-		String rawURIString = byteToChar(rawURI, 0, uriLength, "ISO-8859-1");
+		String rawURIString = new String(rawURI, 0, uriLength, ISO_8859_1);
 		invocation.setRawContextURI(rawURIString);
 
-		String decodedURI = normalizeUriEscape(rawURI, 0, uriLength, _encoding);
+		String decodedURI = plainAscii ? rawURIString : normalizeUriEscape(rawURI, 0, uriLength, _encoding);
 
 		if (_sessionSuffix != null)
 		{
@@ -362,13 +375,17 @@ public class URIDecoder
 	 */
 	public String normalizeUri(String uri, boolean isWindows)
 	{
-		CharBuffer cb = new CharBuffer();
-
 		int len = uri.length();
 
 		if (_maxURILength < len)
 			throw new IllegalArgumentException("The request contains an illegal URL because it is too long.");
 
+		// 已经是规范化的URI(绝大多数的请求),直接返回,不需要复制
+		if (isNormalized(uri, isWindows))
+			return uri;
+
+		CharBuffer cb = new CharBuffer();
+
 		char ch;
 		if (len == 0 || (ch = uri.charAt(0)) != '/' && ch != '\\')
 			cb.append('/');
@@ -442,6 +459,53 @@ public class URIDecoder
 		return cb.toString();
 	}
 
+	/**
+	 * 预先扫描URI,判断normalizeUri()是否会改变它:
+	 * 
+	 * 以'/'开头,不含'\\',NUL,"//"及"/."(点号路径段),在Windows下路径段也不以'.'或' '结尾
+	 * 
+	 * @param uri
+	 * @param isWindows
+	 * @return true:URI已经是规范化的
+	 */
+	static boolean isNormalized(String uri, boolean isWindows)
+	{
+		int len = uri.length();
+
+		if (len == 0 || uri.charAt(0) != '/')
+			return false;
+
+		char prev = '/';
+
+		for (int i = 1; i < len; i++)
+		{
+			char ch = uri.charAt(i);
+
+			if (ch == '/')
+			{
+				// "//" 或 "/." 或 (Windows下) 以'.'或' '结尾的路径段
+				if (prev == '/' || (isWindows && (prev == '.' || prev == ' ')))
+					return false;
+			}
+			else if (ch == '.')
+			{
+				if (prev == '/')
+					return false;
+			}
+			else if (ch == '\\' || ch == 0)
+			{
+				return false;
+			}
+
+			prev = ch;
+		}
+
+		if (isWindows && (prev == '.' || prev == ' '))
+			return false;
+
+		return true;
+	}
+
 	/**
 	 * Converts the escaped URI to a string.
 	 * 
@@ -0,0 +1,511 @@
+package org.ireland.jnetty.util.http;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 延迟解码的请求参数(query string 及 application/x-www-form-urlencoded 的请求体)
+ *
+ * 添加参数源时只扫描一遍原始数据,以int数组记录每个参数的name和value的位置,不创建任何String.
+ *
+ * getParameter(name)时才按name查找,并只解码第一个匹配的value(解码结果会被缓存);
+ * getParameterMap()/getParameterNames()被调用时才建立(并缓存)Map视图.
+ *
+ * 故一个带20个参数而只读取其中一两个的请求,只需要解码被读取的那一两个value.
+ *
+ * 请求体直接从(聚合后的)ByteBuf中读取,不会复制整个请求体:堆内的ByteBuf直接访问其底层数组,其它的ByteBuf按绝对下标读取(不改变readerIndex).
+ * 解码一个value时只遍历一次,"%XX"及'+'直接解码到一个不超过该value长度的字节数组中.
+ *
+ * 参数的顺序为添加参数源的顺序(先query string,后请求体),同名参数的值按出现的顺序排列.
+ *
+ * 非线程安全(一个请求同一时刻只被一条线程处理).
+ *
+ * @author KEN
+ *
+ */
+public class UrlEncodedParameters
+{
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// 与QueryStringDecoder的默认值一致,超出的参数被忽略
+	public static final int MAX_PARAMETERS = 1024;
+
+	// 每个参数在_offsets中占用的int数: nameStart, nameEnd, valueEnd, flags
+	private static final int STRIDE = 4;
+
+	// name不含'%','+'及非ASCII字符,可以直接与字符串比较
+	private static final int PLAIN_NAME = 1;
+
+	// value不含'%','+'及非ASCII字符,不需要解码
+	private static final int PLAIN_VALUE = 2;
+
+	private static final String[] NO_VALUES = new String[0];
+
+	private int[] _offsets = new int[8 * STRIDE];
+
+	// 每个参数所在的参数源(已解码的参数为null)
+	private Source[] _sources = new Source[8];
+
+	private int _size;
+
+	// 已解码的name及value
+	private String[] _names = new String[8];
+
+	private String[] _values = new String[8];
+
+	private Map<String, String[]> _map;
+
+	/**
+	 * 添加query string中的参数
+	 *
+	 * @param uri
+	 *            原始的URI(请求行中的URI按ISO-8859-1解码,每个字符即一个字节)
+	 * @param start
+	 *            query string的开始位置('?'之后)
+	 * @param charset
+	 *            percent-encoding的字符集
+	 */
+	public void addQueryString(String uri, int start, Charset charset)
+	{
+		index(new StringSource(uri, charset), start, uri.length());
+	}
+
+	/**
+	 * 添加application/x-www-form-urlencoded格式的请求体中的参数
+	 *
+	 * 只记录参数的位置,故在参数被读取完之前,content不能被释放或修改
+	 *
+	 * @param content
+	 *            请求体
+	 * @param index
+	 *            开始位置(绝对下标)
+	 * @param length
+	 * @param charset
+	 *            percent-encoding的字符集
+	 */
+	public void addContent(ByteBuf content, int index, int length, Charset charset)
+	{
+		if (content.hasArray())
+		{
+			int offset = content.arrayOffset() + index;
+
+			index(new ArraySource(content.array(), charset), offset, offset + length);
+		}
+		else
+		{
+			index(new ByteBufSource(content, charset), index, index + length);
+		}
+	}
+
+	/**
+	 * 添加一个已解码的参数(如multipart/form-data中没有filename的part)
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void addParameter(String name, String value)
+	{
+		if (_size >= MAX_PARAMETERS)
+			return;
+
+		add(null, 0, 0, 0, 0);
+
+		_names[_size - 1] = name;
+		_values[_size - 1] = value;
+	}
+
+	/**
+	 * 扫描[start,end),记录每个参数的位置('&'或';'分隔,name与value以第一个'='分隔)
+	 */
+	private void index(Source source, int start, int end)
+	{
+		int nameStart = start;
+		int nameEnd = -1;
+		int flags = PLAIN_NAME | PLAIN_VALUE;
+
+		for (int i = start; i <= end; i++)
+		{
+			int b = i < end ? source.byteAt(i) & 0xff : '&';
+
+			if (b == '&' || b == ';')
+			{
+				if (nameEnd < 0)
+					nameEnd = i;
+
+				// 忽略name为空的参数
+				if (nameEnd > nameStart)
+				{
+					if (_size >= MAX_PARAMETERS)
+						return;
+
+					add(source, nameStart, nameEnd, i, flags);
+				}
+
+				nameStart = i + 1;
+				nameEnd = -1;
+				flags = PLAIN_NAME | PLAIN_VALUE;
+			}
+			else if (b == '=' && nameEnd < 0)
+			{
+				nameEnd = i;
+			}
+			else if (b == '%' || b == '+' || b >= 0x80)
+			{
+				flags &= nameEnd < 0 ? ~PLAIN_NAME : ~PLAIN_VALUE;
+			}
+		}
+	}
+
+	private void add(Source source, int nameStart, int nameEnd, int valueEnd, int flags)
+	{
+		if (_size == _sources.length)
+		{
+			int capacity = _size * 2;
+
+			int[] offsets = new int[capacity * STRIDE];
+			System.arraycopy(_offsets, 0, offsets, 0, _size * STRIDE);
+			_offsets = offsets;
+
+			Source[] sources = new Source[capacity];
+			System.arraycopy(_sources, 0, sources, 0, _size);
+			_sources = sources;
+
+			String[] names = new String[capacity];
+			System.arraycopy(_names, 0, names, 0, _size);
+			_names = names;
+
+			String[] values = new String[capacity];
+			System.arraycopy(_values, 0, values, 0, _size);
+			_values = values;
+		}
+
+		int p = _size * STRIDE;
+
+		_offsets[p] = nameStart;
+		_offsets[p + 1] = nameEnd;
+		_offsets[p + 2] = valueEnd;
+		_offsets[p + 3] = flags;
+
+		_sources[_size] = source;
+
+		_size++;
+
+		// 已建立的视图失效
+		_map = null;
+	}
+
+	/**
+	 * @return 参数的个数(同名参数计算多次)
+	 */
+	public int size()
+	{
+		return _size;
+	}
+
+	/**
+	 * @param name
+	 * @return 第一个名为name的参数的值,不存在时返回null
+	 */
+	public String getParameter(String name)
+	{
+		for (int i = 0; i < _size; i++)
+		{
+			if (nameEquals(i, name))
+				return getValue(i);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param name
+	 * @return 所有名为name的参数的值,不存在时返回null
+	 */
+	public String[] getParameterValues(String name)
+	{
+		if (_map != null)
+		{
+			String[] values = _map.get(name);
+
+			return values == null ? null : values.clone();
+		}
+
+		int count = 0;
+
+		for (int i = 0; i < _size; i++)
+		{
+			if (nameEquals(i, name))
+				count++;
+		}
+
+		if (count == 0)
+			return null;
+
+		String[] values = new String[count];
+
+		for (int i = 0, j = 0; j < count; i++)
+		{
+			if (nameEquals(i, name))
+				values[j++] = getValue(i);
+		}
+
+		return values;
+	}
+
+	public Enumeration<String> getParameterNames()
+	{
+		return Collections.enumeration(getParameterMap().keySet());
+	}
+
+	/**
+	 * @return 不可修改的<name,values>,第一次调用时才建立
+	 */
+	public Map<String, String[]> getParameterMap()
+	{
+		if (_map == null)
+		{
+			LinkedHashMap<String, String[]> map = new LinkedHashMap<String, String[]>(_size * 4 / 3 + 1);
+
+			for (int i = 0; i < _size; i++)
+			{
+				String name = getName(i);
+
+				String[] values = map.get(name);
+
+				if (values == null)
+					values = NO_VALUES;
+
+				String[] newValues = new String[values.length + 1];
+				System.arraycopy(values, 0, newValues, 0, values.length);
+				newValues[values.length] = getValue(i);
+
+				map.put(name, newValues);
+			}
+
+			_map = Collections.unmodifiableMap(map);
+		}
+
+		return _map;
+	}
+
+	/**
+	 * 比较第i个参数的name,name不需要解码时直接与原始数据比较
+	 */
+	private boolean nameEquals(int i, String name)
+	{
+		int p = i * STRIDE;
+
+		if ((_offsets[p + 3] & PLAIN_NAME) == 0)
+			return getName(i).equals(name);
+
+		int start = _offsets[p];
+		int length = _offsets[p + 1] - start;
+
+		if (length != name.length())
+			return false;
+
+		Source source = _sources[i];
+
+		for (int k = 0; k < length; k++)
+		{
+			if (name.charAt(k) != (source.byteAt(start + k) & 0xff))
+				return false;
+		}
+
+		return true;
+	}
+
+	private String getName(int i)
+	{
+		String name = _names[i];
+
+		if (name == null)
+		{
+			int p = i * STRIDE;
+
+			name = decode(_sources[i], _offsets[p], _offsets[p + 1], (_offsets[p + 3] & PLAIN_NAME) != 0);
+
+			_names[i] = name;
+		}
+
+		return name;
+	}
+
+	private String getValue(int i)
+	{
+		String value = _values[i];
+
+		if (value == null)
+		{
+			int p = i * STRIDE;
+
+			int nameEnd = _offsets[p + 1];
+			int valueEnd = _offsets[p + 2];
+
+			// 没有'='时value为""
+			int valueStart = nameEnd < valueEnd ? nameEnd + 1 : valueEnd;
+
+			value = decode(_sources[i], valueStart, valueEnd, (_offsets[p + 3] & PLAIN_VALUE) != 0);
+
+			_values[i] = value;
+		}
+
+		return value;
+	}
+
+	/**
+	 * 解码[start,end): '+'解码为空格,"%XX"解码为一个字节,然后按参数源的字符集转为字符串.不合法的"%XX"保持原样.
+	 */
+	private static String decode(Source source, int start, int end, boolean plain)
+	{
+		if (start == end)
+			return "";
+
+		if (plain)
+			return source.toString(start, end, ISO_8859_1);
+
+		byte[] bytes = new byte[end - start];
+		int n = 0;
+
+		for (int i = start; i < end; i++)
+		{
+			byte b = source.byteAt(i);
+
+			if (b == '+')
+			{
+				b = ' ';
+			}
+			else if (b == '%' && i + 2 < end)
+			{
+				int hi = hexValue(source.byteAt(i + 1));
+				int lo = hexValue(source.byteAt(i + 2));
+
+				if (hi >= 0 && lo >= 0)
+				{
+					b = (byte) ((hi << 4) + lo);
+					i += 2;
+				}
+			}
+
+			bytes[n++] = b;
+		}
+
+		return new String(bytes, 0, n, source._charset);
+	}
+
+	private static int hexValue(byte b)
+	{
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+
+		return -1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[size=" + _size + "]";
+	}
+
+	/**
+	 * 参数源:原始的(未解码的)字节序列
+	 */
+	private static abstract class Source
+	{
+		final Charset _charset;
+
+		Source(Charset charset)
+		{
+			_charset = charset;
+		}
+
+		abstract byte byteAt(int index);
+
+		/**
+		 * @return [start,end)按charset转换的字符串
+		 */
+		abstract String toString(int start, int end, Charset charset);
+	}
+
+	private static final class StringSource extends Source
+	{
+		private final String _string;
+
+		StringSource(String string, Charset charset)
+		{
+			super(charset);
+
+			_string = string;
+		}
+
+		@Override
+		byte byteAt(int index)
+		{
+			return (byte) _string.charAt(index);
+		}
+
+		@Override
+		String toString(int start, int end, Charset charset)
+		{
+			// 每个字符即一个字节,只有ASCII的数据才会走到这里
+			return _string.substring(start, end);
+		}
+	}
+
+	private static final class ArraySource extends Source
+	{
+		private final byte[] _bytes;
+
+		ArraySource(byte[] bytes, Charset charset)
+		{
+			super(charset);
+
+			_bytes = bytes;
+		}
+
+		@Override
+		byte byteAt(int index)
+		{
+			return _bytes[index];
+		}
+
+		@Override
+		String toString(int start, int end, Charset charset)
+		{
+			return new String(_bytes, start, end - start, charset);
+		}
+	}
+
+	private static final class ByteBufSource extends Source
+	{
+		private final ByteBuf _buf;
+
+		ByteBufSource(ByteBuf buf, Charset charset)
+		{
+			super(charset);
+
+			_buf = buf;
+		}
+
+		@Override
+		byte byteAt(int index)
+		{
+			return _buf.getByte(index);
+		}
+
+		@Override
+		String toString(int start, int end, Charset charset)
+		{
+			return _buf.toString(start, end - start, charset);
+		}
+	}
+}
@@ -52,9 +52,12 @@ import org.apache.commons.logging.LogFactory;
  * 
  * 对于每一个请求,要生成一个与之对应的RequestDispatcher
  * 
- * 对于相同的rawContextURI的多个不同的请求,其生成的RequestDispatcherImpl是一样的, 故可以根据rawContextURI来缓存RequestDispatcherImpl
+ * 对于相同的ContextURI的多个不同的请求,其生成的RequestDispatcherImpl是一样的, 故可以根据(规范化后的)ContextURI来缓存RequestDispatcherImpl
  * 
- * 只要rawContextURI相同(即包括参数也相同),并发的情况下也是可重用的和共享的,像单例一般的重用
+ * 被缓存的RequestDispatcherImpl不带参数,并发的情况下是可重用的和共享的,像单例一般的重用.
+ * 
+ * 带参数(QueryString)或原始路径未规范化(如"/a//b")的请求使用withQueryString(...)生成的RequestDispatcherImpl,它与被缓存的RequestDispatcherImpl
+ * 共享HttpInvocation的创建结果,只在每次分派时生成一个带原始路径及参数的HttpInvocation副本
  * 
  * @author KEN
  * 
@@ -70,6 +73,12 @@ public class RequestDispatcherImpl implements RequestDispatcher
 
 	private final String _rawContextURI;
 
+	// 被缓存的(不带参数的)RequestDispatcherImpl,HttpInvocation只在其中创建一次
+	private final RequestDispatcherImpl _shared;
+
+	// URI上的参数,可以为null
+	private final String _queryString;
+
 	private HttpInvocation _dispatchInvocation;
 	private HttpInvocation _forwardInvocation;
 	private HttpInvocation _includeInvocation;
@@ -78,11 +87,45 @@ public class RequestDispatcherImpl implements RequestDispatcher
 
 	// private HttpInvocation _asyncInvocation;
 
-	public RequestDispatcherImpl(WebApp webApp, String rawContextURI)
+	/**
+	 * @param webApp
+	 * @param contextURI
+	 *            不带参数的URI
+	 */
+	public RequestDispatcherImpl(WebApp webApp, String contextURI)
 	{
 		_webApp = webApp;
 
+		_rawContextURI = contextURI;
+
+		_shared = this;
+
+		_queryString = null;
+	}
+
+	private RequestDispatcherImpl(RequestDispatcherImpl shared, String rawContextURI, String queryString)
+	{
+		_webApp = shared._webApp;
+
 		_rawContextURI = rawContextURI;
+
+		_shared = shared;
+
+		_queryString = queryString;
+	}
+
+	/**
+	 * 返回一个带原始路径及参数的RequestDispatcherImpl,与本RequestDispatcherImpl共享HttpInvocation
+	 * 
+	 * @param rawContextURI
+	 *            未规范化的URI(不带参数)
+	 * @param queryString
+	 *            URI上的参数('?'之后的部分),可以为null
+	 * @return
+	 */
+	public RequestDispatcherImpl withQueryString(String rawContextURI, String queryString)
+	{
+		return new RequestDispatcherImpl(_shared, rawContextURI, queryString);
 	}
 
 	/**
@@ -101,13 +144,18 @@ public class RequestDispatcherImpl implements RequestDispatcher
 		if (response.isCommitted())
 			throw new IllegalStateException("dispatch() not allowed after buffer has committed.");
 
-		// build invocation,if not exist
-		if (_dispatchInvocation == null)
-		{
-			_dispatchInvocation = buildDispatchInvocation(_rawContextURI);
-		}
+		doDispatch(request, response, getDispatchInvocation());
+	}
 
-		doDispatch(request, response, _dispatchInvocation);
+	/**
+	 * 取得处理该URI的Servlet的MultipartConfigElement(用于在请求体到达之前决定是否流式解析multipart/form-data)
+	 *
+	 * @return 该Servlet不支持multipart时返回null
+	 * @throws ServletException
+	 */
+	public MultipartConfigElement getMultipartConfig() throws ServletException
+	{
+		return getDispatchInvocation().getFilterChainInvocation().getMultipartConfig();
 	}
 
 	private void doDispatch(HttpServletRequest request, HttpServletResponse response, HttpInvocation invocation) throws ServletException, IOException
@@ -119,7 +167,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 		// Set the invocation into HttpServlerRequestImpl
 		if (request instanceof HttpServletRequestImpl)
 		{
-			((HttpServletRequestImpl) request).setInvocation(_dispatchInvocation);
+			((HttpServletRequestImpl) request).setInvocation(invocation);
 			((HttpServletRequestImpl) request).setDispatcherType(DispatcherType.REQUEST);
 		}
 
@@ -143,7 +191,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 			// server/106r, ioc/0310
 			if (isValid)
 			{
-				finishResponse(response);
+				finishResponse(request, response);
 			}
 		}
 	}
@@ -155,13 +203,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 		if (response.isCommitted())
 			throw new IllegalStateException("forward() not allowed after buffer has committed.");
 
-		// build invocation,if not exist
-		if (_forwardInvocation == null)
-		{
-			_forwardInvocation = buildForwardInvocation(_rawContextURI);
-		}
-
-		doForward((HttpServletRequest) request, (HttpServletResponse) response, _forwardInvocation);
+		doForward((HttpServletRequest) request, (HttpServletResponse) response, getForwardInvocation());
 	}
 
 	private void doForward(HttpServletRequest request, HttpServletResponse response, HttpInvocation invocation) throws ServletException, IOException
@@ -209,7 +251,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 			// server/106r, ioc/0310
 			if (isValid)
 			{
-				finishResponse(response);
+				finishResponse(request, response);
 			}
 		}
 	}
@@ -223,13 +265,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 		if (response.isCommitted())
 			throw new IllegalStateException("include() not allowed after buffer has committed.");
 
-		// build invocation,if not exist
-		if (_includeInvocation == null)
-		{
-			_includeInvocation = buildIncludeInvocation(_rawContextURI);
-		}
-
-		doInclude((HttpServletRequest) request, (HttpServletResponse) response, _forwardInvocation);
+		doInclude((HttpServletRequest) request, (HttpServletResponse) response, getIncludeInvocation());
 	}
 
 	private void doInclude(HttpServletRequest request, HttpServletResponse response, HttpInvocation invocation) throws ServletException, IOException
@@ -274,7 +310,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 			// server/106r, ioc/0310
 			if (isValid)
 			{
-				finishResponse(response);
+				finishResponse(request, response);
 			}
 		}
 	}
@@ -294,13 +330,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 		if (response.isCommitted())
 			throw new IllegalStateException("error() not allowed after buffer has committed.");
 
-		// build invocation,if not exist
-		if (_errorInvocation == null)
-		{
-			_errorInvocation = buildErrorInvocation(_rawContextURI);
-		}
-
-		doError((HttpServletRequest) request, (HttpServletResponse) response, _errorInvocation);
+		doError((HttpServletRequest) request, (HttpServletResponse) response, getErrorInvocation());
 	}
 
 	private void doError(HttpServletRequest request, HttpServletResponse response, HttpInvocation invocation) throws ServletException, IOException
@@ -335,13 +365,88 @@ public class RequestDispatcherImpl implements RequestDispatcher
 			// server/106r, ioc/0310
 			if (isValid)
 			{
-				finishResponse(response);
+				finishResponse(request, response);
 			}
 		}
 	}
 	
 	// -----------------------------------------------------------------------------------
 
+	/**
+	 * 取得Dispatch类型的HttpInvocation(不存在时在被缓存的RequestDispatcherImpl中创建)
+	 */
+	private HttpInvocation getDispatchInvocation() throws ServletException
+	{
+		RequestDispatcherImpl shared = _shared;
+
+		// build invocation,if not exist
+		if (shared._dispatchInvocation == null)
+		{
+			shared._dispatchInvocation = buildDispatchInvocation(shared._rawContextURI);
+		}
+
+		return withQueryString(shared._dispatchInvocation);
+	}
+
+	/**
+	 * 取得Forward类型的HttpInvocation(不存在时在被缓存的RequestDispatcherImpl中创建)
+	 */
+	private HttpInvocation getForwardInvocation() throws ServletException
+	{
+		RequestDispatcherImpl shared = _shared;
+
+		// build invocation,if not exist
+		if (shared._forwardInvocation == null)
+		{
+			shared._forwardInvocation = buildForwardInvocation(shared._rawContextURI);
+		}
+
+		return withQueryString(shared._forwardInvocation);
+	}
+
+	/**
+	 * 取得Include类型的HttpInvocation(不存在时在被缓存的RequestDispatcherImpl中创建)
+	 */
+	private HttpInvocation getIncludeInvocation() throws ServletException
+	{
+		RequestDispatcherImpl shared = _shared;
+
+		// build invocation,if not exist
+		if (shared._includeInvocation == null)
+		{
+			shared._includeInvocation = buildIncludeInvocation(shared._rawContextURI);
+		}
+
+		return withQueryString(shared._includeInvocation);
+	}
+
+	/**
+	 * 取得Error类型的HttpInvocation(不存在时在被缓存的RequestDispatcherImpl中创建)
+	 */
+	private HttpInvocation getErrorInvocation() throws ServletException
+	{
+		RequestDispatcherImpl shared = _shared;
+
+		// build invocation,if not exist
+		if (shared._errorInvocation == null)
+		{
+			shared._errorInvocation = buildErrorInvocation(shared._rawContextURI);
+		}
+
+		return withQueryString(shared._errorInvocation);
+	}
+
+	/**
+	 * 被缓存的RequestDispatcherImpl直接返回共享的HttpInvocation,否则返回一个带原始路径及参数的副本
+	 */
+	private HttpInvocation withQueryString(HttpInvocation invocation)
+	{
+		if (_shared == this)
+			return invocation;
+
+		return invocation.withQueryString(_rawContextURI, _queryString);
+	}
+
 	/**
 	 * Fills the invocation with uri.
 	 * 
@@ -387,8 +492,13 @@ public class RequestDispatcherImpl implements RequestDispatcher
 	}
 
 	// ------------------------------------------------------------------------------------
-	private void finishResponse(ServletResponse res) throws ServletException, IOException
+	private void finishResponse(ServletRequest req, ServletResponse res) throws ServletException, IOException
 	{
+		// 外部SessionStore中的Session须在响应到达客户端之前更新,客户端的下一个请求可能被发到其它节点
+		ServletRequest request = unwarp(req);
+
+		if (request instanceof HttpServletRequestImpl)
+			((HttpServletRequestImpl) request).saveSession();
 
 		if (res instanceof HttpServletResponseImpl)
 		{
@@ -421,7 +531,7 @@ public class RequestDispatcherImpl implements RequestDispatcher
 	@Override
 	public String toString()
 	{
-		return (getClass().getSimpleName() + "[" + _dispatchInvocation.getRawContextURI() + "]");
+		return (getClass().getSimpleName() + "[" + _rawContextURI + "]");
 	}
 
 	// Util------------------------------------------------------------
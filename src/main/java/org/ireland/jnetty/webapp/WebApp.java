@@ -44,6 +44,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.DispatcherType;
@@ -80,7 +84,7 @@ import org.ireland.jnetty.dispatch.filter.FilterManager;
 import org.ireland.jnetty.dispatch.filter.FilterMapper;
 import org.ireland.jnetty.dispatch.filter.FilterMapping;
 import org.ireland.jnetty.dispatch.filterchain.ExceptionFilterChain;
-import org.ireland.jnetty.dispatch.filterchain.ServletRequestListenerFilterChain;
+import org.ireland.jnetty.dispatch.filterchain.FlatFilterChain;
 import org.ireland.jnetty.dispatch.servlet.ServletConfigImpl;
 import org.ireland.jnetty.dispatch.servlet.ServletManager;
 import org.ireland.jnetty.dispatch.servlet.ServletMapper;
@@ -88,11 +92,11 @@ import org.ireland.jnetty.dispatch.servlet.ServletMapping;
 import org.ireland.jnetty.jsp.JspServletComposite;
 import org.ireland.jnetty.loader.WebAppClassLoader;
 import org.ireland.jnetty.server.session.SessionManager;
+import org.ireland.jnetty.util.ConcurrentLruCache;
 import org.ireland.jnetty.util.http.URIDecoder;
 
 import org.springframework.util.Assert;
 
-import com.caucho.util.LruCache;
 
 /**
  * Resin's webApp implementation.
@@ -152,14 +156,14 @@ public class WebApp extends ServletContextImpl
 
 	// The FilterChain Cache
 
-	// 用LRU算法Cache最近最常使用的url与FilterChain之间的映射关系()
-	private LruCache<String, FilterChainInvocation> _dispatchFilterChainCache = new LruCache<String, FilterChainInvocation>(128);
-	private LruCache<String, FilterChainInvocation> _forwardFilterChainCache = new LruCache<String, FilterChainInvocation>(128);
-	private LruCache<String, FilterChainInvocation> _includeFilterChainCache = new LruCache<String, FilterChainInvocation>(32);
-	private LruCache<String, FilterChainInvocation> _errorFilterChainCache = new LruCache<String, FilterChainInvocation>(32);
+	// 用LRU算法Cache最近最常使用的url与FilterChain之间的映射关系(读操作无锁)
+	private final ConcurrentLruCache<String, FilterChainInvocation> _dispatchFilterChainCache = new ConcurrentLruCache<String, FilterChainInvocation>("dispatchFilterChain", 128);
+	private final ConcurrentLruCache<String, FilterChainInvocation> _forwardFilterChainCache = new ConcurrentLruCache<String, FilterChainInvocation>("forwardFilterChain", 128);
+	private final ConcurrentLruCache<String, FilterChainInvocation> _includeFilterChainCache = new ConcurrentLruCache<String, FilterChainInvocation>("includeFilterChain", 32);
+	private final ConcurrentLruCache<String, FilterChainInvocation> _errorFilterChainCache = new ConcurrentLruCache<String, FilterChainInvocation>("errorFilterChain", 32);
 
-	// <rowContextURI,_requestDispatcherCache>
-	private LruCache<String, RequestDispatcherImpl> _requestDispatcherCache;
+	// <contextURI,RequestDispatcherImpl>: 以规范化后的不带参数的URI为键,URI上的参数不会使缓存失效
+	private final ConcurrentLruCache<String, RequestDispatcherImpl> _requestDispatcherCache = new ConcurrentLruCache<String, RequestDispatcherImpl>("requestDispatcher", 1024);
 
 	// True for SSL secure.
 	private boolean _isSecure;
@@ -169,7 +173,7 @@ public class WebApp extends ServletContextImpl
 
 	private String errorPage;
 
-	private LruCache<String, String> _realPathCache = new LruCache<String, String>(1024);
+	private final ConcurrentLruCache<String, String> _realPathCache = new ConcurrentLruCache<String, String>("realPath", 1024);
 
 	// real-path mapping
 	// private RewriteRealPath _rewriteRealPath;
@@ -212,6 +216,21 @@ public class WebApp extends ServletContextImpl
 
 	private String _characterEncoding;
 
+	// 启动时是否并行预编译所有的JSP页面(缺省关闭,可用 -Djnetty.jsp.precompile=true 开启)
+	private boolean _jspPrecompile = Boolean.getBoolean("jnetty.jsp.precompile");
+
+	// 生产模式:由WatchService(inotify)检测JSP文件的变更,请求路径上不再检查JSP文件(可用 -Djnetty.jsp.watch=true 开启)
+	private boolean _jspWatch = Boolean.getBoolean("jnetty.jsp.watch");
+
+	// 是否缓存纯静态JSP页面(不含脚本,标签及EL,session="false",不属于任何jsp-property-group)的输出(缺省关闭,可用 -Djnetty.jsp.staticCache=true 开启)
+	private boolean _jspStaticCache = Boolean.getBoolean("jnetty.jsp.staticCache");
+
+	// 启动时并行初始化Filter及Servlet的线程数(缺省为CPU数,可用 -Djnetty.init.threads=N 设置),1:在启动线程中依次初始化
+	private int _initThreads = Integer.getInteger("jnetty.init.threads", Runtime.getRuntime().availableProcessors());
+
+	// JSP编译结果(.java/.class)的持久化工作目录,重启后内容未改变的JSP可直接重用已编译的类
+	private String _jspWorkDir;
+
 	/**
 	 * true: use a separate WebAppClassLoader for separate WebApp false: add class path of the WebApp to
 	 * SystemClassLoader(sun.misc.Launcher.AppClassLoader) by reflect false: only use for single WebApp mode
@@ -260,6 +279,8 @@ public class WebApp extends ServletContextImpl
 
 	/**
 	 * 使用自定义的类加载器,将/WEB-INF/classes和/WEB-INF/lib/*.jar加入类加载器的classPath
+	 * 
+	 * /WEB-INF/lib/*.jar以带索引的方式加入(包名 -> jar),索引保存在getJarIndexFile()中,重启时只扫描改变了的jar
 	 */
 	protected WebAppClassLoader createWebAppClassLoader()
 	{
@@ -278,7 +299,7 @@ public class WebApp extends ServletContextImpl
 			e.printStackTrace();
 		}
 
-		List<URL> urls = new ArrayList<URL>();
+		List<File> jars = new ArrayList<File>();
 
 		// JarFile: "/WEB-INF/lib"
 		File libPath = new File(getRealPath("/WEB-INF/lib"));
@@ -289,23 +310,13 @@ public class WebApp extends ServletContextImpl
 			{
 				if (file.getPath().endsWith(".jar"))
 				{
-					try
-					{
-						URL url = file.toURI().toURL();
-						urls.add(url);
-					}
-					catch (MalformedURLException e)
-					{
-						e.printStackTrace();
-					}
+					jars.add(file);
 				}
 			}
 		}
 
-		for (URL jarFile : urls)
-		{
-			webAppClassLoader.addJar(jarFile);
-		}
+		if (!jars.isEmpty())
+			webAppClassLoader.addJars(jars, getJarIndexFile());
 
 		// ClassPath: "/WEB-INF/classes/"
 		URL classPath = null;
@@ -764,6 +775,82 @@ public class WebApp extends ServletContextImpl
 		}
 	}
 
+	/**
+	 * Sets the number of threads initializing the filters and the load-on-startup servlets in parallel, 1 initializes
+	 * them one after another in the starting thread.
+	 */
+	public void setInitThreads(int initThreads)
+	{
+		_initThreads = initThreads;
+	}
+
+	public int getInitThreads()
+	{
+		return _initThreads;
+	}
+
+	/**
+	 * Sets whether all JSPs are precompiled in parallel when the webApp starts.
+	 */
+	public void setJspPrecompile(boolean jspPrecompile)
+	{
+		_jspPrecompile = jspPrecompile;
+	}
+
+	public boolean isJspPrecompile()
+	{
+		return _jspPrecompile;
+	}
+
+	/**
+	 * Sets whether JSP changes are detected by a WatchService instead of checking the files.
+	 */
+	public void setJspWatch(boolean jspWatch)
+	{
+		_jspWatch = jspWatch;
+	}
+
+	public boolean isJspWatch()
+	{
+		return _jspWatch;
+	}
+
+	/**
+	 * Sets whether the output of static-only JSPs is cached and served as bytes.
+	 */
+	public void setJspStaticCache(boolean jspStaticCache)
+	{
+		_jspStaticCache = jspStaticCache;
+	}
+
+	public boolean isJspStaticCache()
+	{
+		return _jspStaticCache;
+	}
+
+	/**
+	 * Sets the persistent work directory of the compiled JSPs.
+	 */
+	public void setJspWorkDir(String jspWorkDir)
+	{
+		_jspWorkDir = jspWorkDir;
+	}
+
+	/**
+	 * Returns the persistent work directory of the compiled JSPs, defaults to ${user.dir}/work/${contextName}
+	 */
+	public String getJspWorkDir()
+	{
+		if (_jspWorkDir == null)
+		{
+			String contextName = _contextPath.length() == 0 ? "ROOT" : _contextPath.substring(1).replace('/', '_');
+
+			_jspWorkDir = System.getProperty("user.dir") + File.separator + "work" + File.separator + contextName;
+		}
+
+		return _jspWorkDir;
+	}
+
 	/**
 	 * Returns the character encoding.
 	 */
@@ -1112,6 +1199,26 @@ public class WebApp extends ServletContextImpl
 		_tempDir = path;
 	}
 
+	/**
+	 * Returns the temporary directory(未设置时为JVM的临时目录)
+	 */
+	public File getTempDir()
+	{
+		if (_tempDir == null)
+			return new File(System.getProperty("java.io.tmpdir"));
+
+		return new File(_tempDir);
+	}
+
+	/**
+	 * /WEB-INF/lib中jar的索引文件,在本WebApp的工作目录(getJspWorkDir())中:在构造函数中创建类加载器时临时目录还未设置,
+	 * 而共享的临时目录中可预测的文件名可能被其他用户预先放置
+	 */
+	protected File getJarIndexFile()
+	{
+		return new File(getJspWorkDir(), "lib.index");
+	}
+
 	/**
 	 * Returns an extension.
 	 */
@@ -1198,17 +1305,24 @@ public class WebApp extends ServletContextImpl
 
 			// Servlet 3.0
 
+			// 先并行初始化所有Filter,再按load-on-startup分组并行初始化Servlet
+			ExecutorService executor = createInitExecutor();
+
 			try
 			{
-				_filterManager.init();
-				_servletManager.init();
+				_filterManager.init(executor);
+				_servletManager.init(executor);
 
 			}
-			catch (Exception e)
+			finally
 			{
-				throw e;
+				if (executor != null)
+					executor.shutdown();
 			}
 
+			// 所有的<servlet-mapping>都已确定(包括ServletContextListener中动态添加的),编译为路由表
+			_servletMapper.compile();
+
 			clearCache();
 
 		}
@@ -1222,6 +1336,37 @@ public class WebApp extends ServletContextImpl
 		}
 	}
 
+	/**
+	 * 初始化Filter及Servlet的线程池,最多getInitThreads()条线程,按需创建.线程的ContextClassLoader为WebApp的ClassLoader
+	 * 
+	 * @return 只用一条线程时返回null
+	 */
+	private ExecutorService createInitExecutor()
+	{
+		if (_initThreads <= 1)
+			return null;
+
+		final ClassLoader loader = getClassLoader();
+
+		final String prefix = "init" + _contextPath.replace('/', '-') + "-";
+
+		return Executors.newFixedThreadPool(_initThreads, new ThreadFactory()
+		{
+			private final AtomicInteger _count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, prefix + _count.incrementAndGet());
+
+				thread.setDaemon(true);
+				thread.setContextClassLoader(loader);
+
+				return thread;
+			}
+		});
+	}
+
 	/**
 	 * 配置JSP相关的 JspServletComposite的ServletConfig配置信息
 	 * 
@@ -1237,6 +1382,25 @@ public class WebApp extends ServletContextImpl
 		// 缺省情况下,关闭development模式,提高性能
 		config.setInitParameter("development", "false");
 
+		// 编译结果放在持久化的工作目录中,以便重启后重用
+		File workDir = new File(getJspWorkDir());
+		workDir.mkdirs();
+		config.setInitParameter("scratchdir", workDir.getAbsolutePath());
+
+		config.setInitParameter("staticCache", String.valueOf(_jspStaticCache));
+
+		if (_jspWatch)
+		{
+			config.setInitParameter("watch", "true");
+		}
+
+		// 预编译JSP:在所有load-on-startup的Servlet之后初始化JspServletComposite,并在其init()中并行编译所有的JSP页面
+		if (_jspPrecompile)
+		{
+			config.setInitParameter("precompile", "true");
+			config.setLoadOnStartup(Integer.MAX_VALUE);
+		}
+
 		_servletManager.addServlet(config);
 	}
 
@@ -1296,29 +1460,43 @@ public class WebApp extends ServletContextImpl
 	 */
 	public void clearCache()
 	{
-		_requestDispatcherCache = null;
+		_requestDispatcherCache.clear();
 		
 		// server/1kg1
-		synchronized (_dispatchFilterChainCache)
-		{
-			_dispatchFilterChainCache.clear();
-		}
+		_dispatchFilterChainCache.clear();
 		
-		synchronized (_forwardFilterChainCache)
-		{
-			_forwardFilterChainCache.clear();
-		}
+		_forwardFilterChainCache.clear();
 		
-		synchronized (_includeFilterChainCache)
-		{
-			_includeFilterChainCache.clear();
-		}
+		_includeFilterChainCache.clear();
 		
-		synchronized (_errorFilterChainCache)
-		{
-			_errorFilterChainCache.clear();
-		}
+		_errorFilterChainCache.clear();
 
+		_servletMapper.clearCache();
+	}
+
+	/**
+	 * Returns the hit rate (0~1) of the request dispatcher cache.
+	 */
+	public double getRequestDispatcherCacheHitRate()
+	{
+		return _requestDispatcherCache.getHitRate();
+	}
+
+	/**
+	 * Returns the caches of the dispatch path, for monitoring (hit, miss and eviction counts).
+	 */
+	public List<ConcurrentLruCache<String, ?>> getDispatchCaches()
+	{
+		List<ConcurrentLruCache<String, ?>> caches = new ArrayList<ConcurrentLruCache<String, ?>>();
+
+		caches.add(_requestDispatcherCache);
+		caches.add(_dispatchFilterChainCache);
+		caches.add(_forwardFilterChainCache);
+		caches.add(_includeFilterChainCache);
+		caches.add(_errorFilterChainCache);
+		caches.add(_servletMapper.getServletChainCache());
+
+		return caches;
 	}
 
 	/**
@@ -1359,8 +1537,8 @@ public class WebApp extends ServletContextImpl
 			//Old Chain
 			FilterChain filterChain = fcInvocation.getFilterChain();
 			
-			//wraped chain 
-			filterChain = new ServletRequestListenerFilterChain(filterChain, this, _requestListeners);
+			//wraped chain: 监听器与Filter在同一个FlatFilterChain中执行
+			filterChain = FlatFilterChain.withRequestListeners(filterChain, this, _requestListeners);
 			
 			fcInvocation.setFilterChain(filterChain);
 		}
@@ -1568,7 +1746,7 @@ public class WebApp extends ServletContextImpl
 	{
 		if (getRequestListeners() != null && getRequestListeners().size() > 0)
 		{
-			chain = new ServletRequestListenerFilterChain(chain, this, getRequestListeners());
+			chain = FlatFilterChain.withRequestListeners(chain, this, getRequestListeners());
 		}
 
 		return chain;
@@ -1586,21 +1764,41 @@ public class WebApp extends ServletContextImpl
 		else if (!rawContextURI.startsWith("/"))
 			throw new IllegalArgumentException("request dispatcher url '" + rawContextURI + "' must be absolute");
 
-		// 尝试从缓存中取出RequestDispatcher
-		RequestDispatcherImpl disp = getRequestDispatcherCache().get(rawContextURI);
-
-		if (disp != null)
-			return disp;
-
 		try
 		{
-			// 将Invocation的创建延迟到RequestDispatcher的具体的dispatch或forward方法调用时再进行(很情况下不需要所有DispatcherType都创建)
-			disp = new RequestDispatcherImpl(this, rawContextURI);
+			// 分离出URI上的参数
+			String queryString = null;
+			String rawPath = rawContextURI;
+
+			int p = rawContextURI.indexOf('?');
+			if (p > 0)
+			{
+				queryString = rawContextURI.substring(p + 1);
+				rawPath = rawContextURI.substring(0, p);
+			}
 
-			// 缓存RequestDispatcher
-			getRequestDispatcherCache().put(rawContextURI, disp);
+			String contextURI = _uriDecoder.normalizeUri(rawPath);
 
-			return disp;
+			// 尝试从缓存中取出RequestDispatcher
+			RequestDispatcherImpl disp = _requestDispatcherCache.get(contextURI);
+
+			if (disp == null)
+			{
+				// 将Invocation的创建延迟到RequestDispatcher的具体的dispatch或forward方法调用时再进行(很情况下不需要所有DispatcherType都创建)
+				disp = new RequestDispatcherImpl(this, contextURI);
+
+				// 缓存RequestDispatcher
+				RequestDispatcherImpl old = _requestDispatcherCache.putIfAbsent(contextURI, disp);
+
+				if (old != null)
+					disp = old;
+			}
+
+			if (queryString == null && rawPath.equals(contextURI))
+				return disp;
+
+			// 原始路径及参数只属于本次请求,规范化的路径只用作缓存的键
+			return disp.withQueryString(rawPath, queryString);
 		}
 		catch (RuntimeException e)
 		{
@@ -1614,21 +1812,6 @@ public class WebApp extends ServletContextImpl
 		}
 	}
 
-	private LruCache<String, RequestDispatcherImpl> getRequestDispatcherCache()
-	{
-		LruCache<String, RequestDispatcherImpl> cache = _requestDispatcherCache;
-
-		if (cache != null)
-			return cache;
-
-		synchronized (this)
-		{
-			cache = new LruCache<String, RequestDispatcherImpl>(1024);
-			_requestDispatcherCache = cache;
-			return cache;
-		}
-	}
-
 	/**
 	 * Returns a dispatcher for the named servlet. 返回一个转发到指定名称的Servlet的dispatcher
 	 */
@@ -1782,6 +1965,12 @@ public class WebApp extends ServletContextImpl
 
 		long beginStop = System.currentTimeMillis();
 
+		if (log.isInfoEnabled())
+		{
+			for (ConcurrentLruCache<String, ?> cache : getDispatchCaches())
+				log.info(cache);
+		}
+
 		clearCache();
 
 		ServletContextEvent event = new ServletContextEvent(this);
@@ -0,0 +1,120 @@
+package org.ireland.jnetty;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpHeaders.Names.EXPECT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.embedded.EmbeddedMessageChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import org.junit.Test;
+
+public class ExpectContinueHandlerTest
+{
+	// HttpObjectAggregator的maxContentLength
+	private static final long MAX_CONTENT_LENGTH = 1024;
+
+	/**
+	 * 非multipart/form-data的请求不会用到WebApp
+	 */
+	private static EmbeddedMessageChannel newChannel()
+	{
+		return new EmbeddedMessageChannel(new ExpectContinueHandler(null, MAX_CONTENT_LENGTH));
+	}
+
+	private static HttpRequest post(HttpVersion version, String expect, long contentLength)
+	{
+		HttpRequest request = new DefaultHttpRequest(version, HttpMethod.POST, "/upload");
+
+		request.headers().set(EXPECT, expect);
+		request.headers().set(CONTENT_LENGTH, contentLength);
+
+		return request;
+	}
+
+	@Test
+	public void continueWithinLimit()
+	{
+		EmbeddedMessageChannel channel = newChannel();
+
+		HttpRequest request = post(HttpVersion.HTTP_1_1, HttpHeaders.Values.CONTINUE, MAX_CONTENT_LENGTH);
+
+		channel.writeInbound(request);
+
+		HttpResponse response = (HttpResponse) channel.readOutbound();
+		assertEquals(HttpResponseStatus.CONTINUE, response.getStatus());
+
+		// 之后的Handler不再重复回应
+		assertSame(request, channel.readInbound());
+		assertNull(HttpHeaders.getHeader(request, EXPECT));
+
+		assertTrue(channel.isOpen());
+	}
+
+	@Test
+	public void tooLarge()
+	{
+		EmbeddedMessageChannel channel = newChannel();
+
+		channel.writeInbound(post(HttpVersion.HTTP_1_1, HttpHeaders.Values.CONTINUE, MAX_CONTENT_LENGTH + 1));
+
+		HttpResponse response = (HttpResponse) channel.readOutbound();
+		assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, response.getStatus());
+
+		assertNull(channel.readInbound());
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	public void unknownExpectation()
+	{
+		EmbeddedMessageChannel channel = newChannel();
+
+		channel.writeInbound(post(HttpVersion.HTTP_1_1, "x-foo", 10));
+
+		HttpResponse response = (HttpResponse) channel.readOutbound();
+		assertEquals(HttpResponseStatus.EXPECTATION_FAILED, response.getStatus());
+
+		assertNull(channel.readInbound());
+		assertFalse(channel.isOpen());
+	}
+
+	@Test
+	// HTTP/1.0的请求原样通过,未知的Expect及超长的请求体都由之后的Handler处理
+	public void http10PassesThrough()
+	{
+		EmbeddedMessageChannel channel = newChannel();
+
+		HttpRequest request = post(HttpVersion.HTTP_1_0, "x-foo", MAX_CONTENT_LENGTH + 1);
+
+		channel.writeInbound(request);
+
+		assertNull(channel.readOutbound());
+		assertSame(request, channel.readInbound());
+		assertEquals("x-foo", HttpHeaders.getHeader(request, EXPECT));
+
+		assertTrue(channel.isOpen());
+	}
+
+	@Test
+	public void withoutExpect()
+	{
+		EmbeddedMessageChannel channel = newChannel();
+
+		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+
+		channel.writeInbound(request);
+
+		assertNull(channel.readOutbound());
+		assertSame(request, channel.readInbound());
+	}
+}
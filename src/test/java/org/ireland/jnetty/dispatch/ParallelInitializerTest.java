@@ -0,0 +1,160 @@
+package org.ireland.jnetty.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+
+import org.junit.Test;
+
+public class ParallelInitializerTest
+{
+	/**
+	 * 模拟一个init()很慢的Servlet
+	 */
+	private static Callable<Void> slowInit(final long millis, final List<String> done, final String name)
+	{
+		return new Callable<Void>()
+		{
+			@Override
+			public Void call() throws Exception
+			{
+				Thread.sleep(millis);
+
+				done.add(name);
+
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void sequentialWithoutExecutor() throws Exception
+	{
+		List<String> done = Collections.synchronizedList(new ArrayList<String>());
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		tasks.add(slowInit(20, done, "a"));
+		tasks.add(slowInit(0, done, "b"));
+
+		ParallelInitializer.invokeAll(tasks, null);
+
+		assertEquals("[a, b]", done.toString());
+	}
+
+	@Test
+	// 同一组的任务并行执行,组与组之间依次执行
+	public void groupsInOrder() throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+
+		try
+		{
+			List<String> done = Collections.synchronizedList(new ArrayList<String>());
+
+			long start = System.currentTimeMillis();
+
+			for (int group = 1; group <= 2; group++)
+			{
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+				for (int i = 0; i < 4; i++)
+					tasks.add(slowInit(300, done, "group" + group));
+
+				ParallelInitializer.invokeAll(tasks, executor);
+
+				// 返回时该组的任务已全部完成
+				assertEquals(group * 4, done.size());
+			}
+
+			long time = System.currentTimeMillis() - start;
+
+			// 依次执行需要 8 * 300 ms
+			assertTrue("took " + time + " ms", time < 1800);
+
+			for (int i = 0; i < 8; i++)
+				assertEquals(i < 4 ? "group1" : "group2", done.get(i));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	// 失败在所有任务完成后才抛出
+	public void failureAfterAllTasks() throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try
+		{
+			final AtomicInteger completed = new AtomicInteger();
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+			tasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					throw new ServletException("init failed");
+				}
+			});
+
+			tasks.add(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					Thread.sleep(200);
+
+					completed.incrementAndGet();
+
+					return null;
+				}
+			});
+
+			try
+			{
+				ParallelInitializer.invokeAll(tasks, executor);
+				fail();
+			}
+			catch (ServletException e)
+			{
+				assertEquals("init failed", e.getMessage());
+			}
+
+			assertEquals(1, completed.get());
+
+			try
+			{
+				ParallelInitializer.invokeAll(Collections.singletonList(new Callable<Void>()
+				{
+					@Override
+					public Void call()
+					{
+						throw new IllegalStateException("bad config");
+					}
+				}), executor);
+				fail();
+			}
+			catch (IllegalStateException e)
+			{
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package org.ireland.jnetty.dispatch.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FilterPatternIndexTest
+{
+	private static final List<Collection<String>> URL_PATTERNS = new ArrayList<Collection<String>>();
+
+	static
+	{
+		URL_PATTERNS.add(Arrays.asList("/*")); // 0
+		URL_PATTERNS.add(Arrays.asList("/user/*", "/admin/*")); // 1
+		URL_PATTERNS.add(Arrays.asList("*.do")); // 2
+		URL_PATTERNS.add(Arrays.asList("/user/home/*", "*.htm")); // 3
+		URL_PATTERNS.add(Arrays.asList("/login")); // 4
+		URL_PATTERNS.add(Arrays.asList("/home/*.do")); // 5
+	}
+
+	private static final FilterPatternIndex index = new FilterPatternIndex(URL_PATTERNS);
+
+	@Test
+	public void match()
+	{
+		assertMatch("/login", 0, 4);
+		assertMatch("/login/", 0);
+		assertMatch("/user", 0, 1);
+		assertMatch("/user/", 0, 1);
+		assertMatch("/username", 0);
+		assertMatch("/admin/a.do", 0, 1, 2);
+		assertMatch("/user/home/a.htm", 0, 1, 3);
+		assertMatch("/user/homes/a.htm", 0, 1, 3);
+		assertMatch("/home/a.do", 0, 2);
+		assertMatch("/home/*.do", 0, 2, 5);
+		assertMatch("/a.do/b", 0);
+		assertMatch("/a.", 0);
+	}
+
+	@Test
+	public void emptyIndex()
+	{
+		FilterPatternIndex empty = new FilterPatternIndex(new ArrayList<Collection<String>>());
+
+		assertEquals(new BitSet(), empty.match("/user/home"));
+	}
+
+	private static void assertMatch(String uri, int... expected)
+	{
+		BitSet bits = new BitSet();
+
+		for (int i : expected)
+			bits.set(i);
+
+		assertEquals(uri, bits, index.match(uri));
+	}
+}
@@ -0,0 +1,164 @@
+package org.ireland.jnetty.dispatch.filterchain;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.junit.Test;
+
+public class FlatFilterChainTest
+{
+	private final List<String> calls = new ArrayList<String>();
+
+	@Test
+	public void filtersRunInOrderThenServlet() throws Exception
+	{
+		FlatFilterChain chain = new FlatFilterChain(new Filter[] { new NamedFilter("a", true), new NamedFilter("b", true) }, new Servlet());
+
+		chain.doFilter(request(), null);
+
+		assertEquals("[a, b, servlet, /b, /a]", calls.toString());
+	}
+
+	@Test
+	public void filterCanStopTheChain() throws Exception
+	{
+		FlatFilterChain chain = new FlatFilterChain(new Filter[] { new NamedFilter("a", true), new NamedFilter("b", false) }, new Servlet());
+
+		chain.doFilter(request(), null);
+
+		assertEquals("[a, b, /a]", calls.toString());
+	}
+
+	@Test
+	// 嵌套的执行(如Filter中forward到同一个FilterChain)使用各自的游标
+	public void reentrant() throws Exception
+	{
+		final FlatFilterChain[] self = new FlatFilterChain[1];
+
+		Filter forwarding = new NamedFilter("f", true)
+		{
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+			{
+				calls.add("f");
+
+				if (calls.size() == 1)
+					self[0].doFilter(request, response);
+
+				chain.doFilter(request, response);
+			}
+		};
+
+		self[0] = new FlatFilterChain(new Filter[] { forwarding }, new Servlet());
+
+		self[0].doFilter(request(), null);
+
+		assertEquals("[f, f, servlet, servlet]", calls.toString());
+	}
+
+	@Test
+	// Filter调用两次chain.doFilter()(如重试):第二次也执行其后所有的Filter
+	public void repeatedDoFilter() throws Exception
+	{
+		Filter retrying = new NamedFilter("r", true)
+		{
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+			{
+				calls.add("r");
+
+				chain.doFilter(request, response);
+				chain.doFilter(request, response);
+			}
+		};
+
+		FlatFilterChain chain = new FlatFilterChain(new Filter[] { new NamedFilter("a", true), retrying, new NamedFilter("b", true),
+				new NamedFilter("c", true) }, new Servlet());
+
+		chain.doFilter(request(), null);
+
+		assertEquals("[a, r, b, c, servlet, /c, /b, b, c, servlet, /c, /b, /a]", calls.toString());
+	}
+
+	@Test
+	// 游标被回收后,不同请求的执行互不影响
+	public void recycled() throws Exception
+	{
+		FlatFilterChain chain = new FlatFilterChain(new Filter[] { new NamedFilter("a", true) }, new Servlet());
+
+		for (int i = 0; i < 3; i++)
+			chain.doFilter(request(), null);
+
+		assertEquals("[a, servlet, /a, a, servlet, /a, a, servlet, /a]", calls.toString());
+	}
+
+	private static ServletRequest request()
+	{
+		return (ServletRequest) Proxy.newProxyInstance(FlatFilterChainTest.class.getClassLoader(), new Class<?>[] { ServletRequest.class },
+				new InvocationHandler()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+					}
+				});
+	}
+
+	private class Servlet implements FilterChain
+	{
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response)
+		{
+			calls.add("servlet");
+		}
+	}
+
+	private class NamedFilter implements Filter
+	{
+		private final String name;
+
+		private final boolean proceed;
+
+		NamedFilter(String name, boolean proceed)
+		{
+			this.name = name;
+			this.proceed = proceed;
+		}
+
+		@Override
+		public void init(FilterConfig filterConfig)
+		{
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+		{
+			calls.add(name);
+
+			if (proceed)
+			{
+				chain.doFilter(request, response);
+				calls.add("/" + name);
+			}
+		}
+
+		@Override
+		public void destroy()
+		{
+		}
+	}
+}
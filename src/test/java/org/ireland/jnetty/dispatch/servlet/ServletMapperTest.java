@@ -1,5 +1,12 @@
 package org.ireland.jnetty.dispatch.servlet;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 
@@ -16,6 +23,14 @@ public class ServletMapperTest
 	
 	private static UrlMap<ServletMapping> _servletMappings = new UrlMap<ServletMapping>();
 	
+	private static ServletRouter router;
+	
+	private static ServletConfigImpl jspServlet;
+	
+	private static final String[] URIS = { "/FirstServlet", "/SecondServlet", "/123", "/user", "/user/", "/user/123", "/username",
+			"/user/home", "/user/home/123", "/user/home/123.do", "/123.do", "/123.doj", "/123.htm", "/123.html", "/home/123.do", "/home/*.do",
+			"/a.b/c", "/123.", "/" };
+	
 	
 	@BeforeClass
 	public static void init() throws ServletException
@@ -57,6 +72,90 @@ public class ServletMapperTest
 		mapper.addUrlMapping("*.htm", mapping2);
 		mapper.addUrlMapping("*.doj", mapping2);
 		mapper.addUrlMapping("/home/*.do", mapping2);
+		
+		
+		Map<String, ServletConfigImpl> urlPatterns = new LinkedHashMap<String, ServletConfigImpl>();
+		
+		urlPatterns.put("/FirstServlet", firstServlet);
+		urlPatterns.put("/*", firstServlet);
+		urlPatterns.put("/user/*", firstServlet);
+		urlPatterns.put("*.do", firstServlet);
+		urlPatterns.put("*.html", firstServlet);
+		
+		urlPatterns.put("/SecondServlet", secondServlet);
+		urlPatterns.put("/user/home/*", secondServlet);
+		urlPatterns.put("*.htm", secondServlet);
+		urlPatterns.put("*.doj", secondServlet);
+		urlPatterns.put("/home/*.do", secondServlet);
+		
+		jspServlet = new ServletConfigImpl(null, null, null, null);
+		jspServlet.setServletName("JspServlet");
+		
+		router = new ServletRouter(urlPatterns, jspServlet, null);
+	}
+	
+	
+	@Test
+	public void routerSameAsLinearMapper()
+	{
+		for (String uri : URIS)
+		{
+			assertSame(uri, mapper.mapServlet(uri), router.route(uri).getServletConfig());
+		}
+	}
+	
+	@Test
+	public void routerServletPathAndPathInfo()
+	{
+		// Exact Match
+		assertRoute("/FirstServlet", "FirstServlet", "/FirstServlet", null);
+		
+		// Longest Prefix Match
+		assertRoute("/user", "FirstServlet", "/user", null);
+		assertRoute("/user/", "FirstServlet", "/user", "/");
+		assertRoute("/user/123", "FirstServlet", "/user", "/123");
+		assertRoute("/user/home/123", "SecondServlet", "/user/home", "/123");
+		assertRoute("/username", "FirstServlet", "", "/username");
+		assertRoute("/123.do", "FirstServlet", "", "/123.do");
+	}
+	
+	@Test
+	public void routerExtensionJspAndDefault()
+	{
+		ServletConfigImpl extServlet = new ServletConfigImpl(null, null, null, null);
+		extServlet.setServletName("ExtServlet");
+		
+		ServletConfigImpl defaultServlet = new ServletConfigImpl(null, null, null, null);
+		defaultServlet.setServletName("DefaultServlet");
+		
+		Map<String, ServletConfigImpl> urlPatterns = new LinkedHashMap<String, ServletConfigImpl>();
+		urlPatterns.put("/api/*", extServlet);
+		urlPatterns.put("*.do", extServlet);
+		
+		ServletRouter router = new ServletRouter(urlPatterns, jspServlet, defaultServlet);
+		
+		assertSame(extServlet, router.route("/home/123.do").getServletConfig());
+		assertEquals("/home/123.do", router.route("/home/123.do").getServletPath());
+		assertNull(router.route("/home/123.do").getPathInfo());
+		
+		assertSame(jspServlet, router.route("/index.jsp").getServletConfig());
+		
+		// 前缀匹配优先于扩展名匹配
+		assertSame(extServlet, router.route("/api/index.jsp").getServletConfig());
+		
+		assertSame(defaultServlet, router.route("/index.html").getServletConfig());
+		assertSame(defaultServlet, router.route("/a.jsp/b").getServletConfig());
+		
+		assertNull(new ServletRouter(urlPatterns, null, null).route("/index.html"));
+	}
+	
+	private static void assertRoute(String uri, String servletName, String servletPath, String pathInfo)
+	{
+		ServletRouter.Match match = router.route(uri);
+		
+		assertEquals(uri, servletName, match.getServletConfig().getServletName());
+		assertEquals(uri, servletPath, match.getServletPath());
+		assertEquals(uri, pathInfo, match.getPathInfo());
 	}
 	
 
@@ -196,6 +295,38 @@ public class ServletMapperTest
 		}
 	}
 	
+	@Test
+	// 数百个url-pattern时,查找的代价应与pattern的数量无关
+	public void speedTest3()
+	{
+		Map<String, ServletConfigImpl> urlPatterns = new LinkedHashMap<String, ServletConfigImpl>();
+		
+		for (int i = 0; i < 500; i++)
+		{
+			ServletConfigImpl config = new ServletConfigImpl(null, null, null, null);
+			config.setServletName("Servlet" + i);
+			
+			urlPatterns.put("/exact/" + i, config);
+			urlPatterns.put("/prefix/" + i + "/*", config);
+			urlPatterns.put("*.ext" + i, config);
+		}
+		
+		ServletRouter router = new ServletRouter(urlPatterns, null, null);
+		
+		long start = System.currentTimeMillis();
+		
+		for (int i = 0; i < 1000000; i++)
+		{
+			router.route("/exact/" + (i % 500));
+			router.route("/prefix/" + (i % 500) + "/a/b");
+			router.route("/page/a.ext" + (i % 500));
+		}
+		
+		System.out.println("ServletRouter: " + (System.currentTimeMillis() - start) + " ms");
+		
+		assertEquals("Servlet499", router.route("/prefix/499/a").getServletConfig().getServletName());
+	}
+	
 	@Test//0.639s
 	public void speedTest2()
 	{
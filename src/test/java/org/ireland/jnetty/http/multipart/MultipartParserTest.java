@@ -0,0 +1,193 @@
+package org.ireland.jnetty.http.multipart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.Part;
+
+import org.junit.Test;
+
+public class MultipartParserTest
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+	private static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir"));
+
+	// 内容中包含分隔符的前缀
+	private static final String FILE_CONTENT = "line1\r\n--" + BOUNDARY.substring(0, 10) + "\r\n\r\r\n-line2";
+
+	private static final String BODY = "preamble\r\n" //
+			+ "--" + BOUNDARY + "\r\n" //
+			+ "Content-Disposition: form-data; name=\"title\"\r\n" //
+			+ "\r\n" //
+			+ "中文标题\r\n" //
+			+ "--" + BOUNDARY + "\r\n" //
+			+ "Content-Disposition: form-data; name=\"file\"; filename=\"a;b.txt\"\r\n" //
+			+ "Content-Type: text/plain\r\n" //
+			+ "\r\n" //
+			+ FILE_CONTENT + "\r\n" //
+			+ "--" + BOUNDARY + "\r\n" //
+			+ "Content-Disposition: form-data; name=\"empty\"\r\n" //
+			+ "\r\n" //
+			+ "\r\n" //
+			+ "--" + BOUNDARY + "--\r\n" //
+			+ "epilogue";
+
+	private static MultipartFormData parse(byte[] body, int chunkSize, MultipartConfigElement config) throws IOException
+	{
+		MultipartParser parser = new MultipartParser(BOUNDARY, config, TEMP_DIR, UTF_8);
+
+		for (int i = 0; i < body.length; i += chunkSize)
+		{
+			try
+			{
+				parser.offer(body, i, Math.min(chunkSize, body.length - i));
+			}
+			catch (IllegalStateException e)
+			{
+				// 超出限制,之后的数据被忽略
+			}
+		}
+
+		return parser.finish();
+	}
+
+	@Test
+	public void parseInChunks() throws IOException
+	{
+		byte[] body = BODY.getBytes(UTF_8);
+
+		for (int chunkSize : new int[] { 1, 2, 3, 7, 13, 64, body.length })
+		{
+			MultipartFormData formData = parse(body, chunkSize, new MultipartConfigElement(""));
+
+			List<Part> parts = new ArrayList<Part>(formData.getParts());
+
+			assertEquals(3, parts.size());
+
+			assertEquals("title", parts.get(0).getName());
+			assertEquals("中文标题", ((MultipartPart) parts.get(0)).getString(UTF_8));
+
+			MultipartPart file = (MultipartPart) formData.getPart("file");
+			assertEquals("a;b.txt", file.getSubmittedFileName());
+			assertEquals("text/plain", file.getContentType());
+			assertEquals(FILE_CONTENT, read(file));
+			assertEquals(FILE_CONTENT.length(), file.getSize());
+
+			assertEquals(0, formData.getPart("empty").getSize());
+			assertNull(formData.getPart("none"));
+
+			assertEquals(2, formData.getFormFields().size());
+
+			formData.release();
+		}
+	}
+
+	@Test
+	public void spillToFile() throws IOException
+	{
+		byte[] body = BODY.getBytes(UTF_8);
+
+		MultipartFormData formData = parse(body, 5, new MultipartConfigElement("", -1, -1, 8));
+
+		MultipartPart file = (MultipartPart) formData.getPart("file");
+
+		File temp = file.getFile();
+
+		assertNotNull(temp);
+		assertTrue(temp.exists());
+		assertEquals(FILE_CONTENT, read(file));
+
+		// 不超过fileSizeThreshold的part仍在内存中
+		assertNull(((MultipartPart) formData.getPart("empty")).getFile());
+
+		formData.release();
+
+		assertFalse(temp.exists());
+	}
+
+	@Test
+	public void maxFileSize() throws IOException
+	{
+		MultipartFormData formData = parse(BODY.getBytes(UTF_8), 16, new MultipartConfigElement("", 10, -1, 0));
+
+		assertTrue(formData.isFailed());
+
+		try
+		{
+			formData.getParts();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	@Test
+	public void maxRequestSize() throws IOException
+	{
+		MultipartFormData formData = parse(BODY.getBytes(UTF_8), 16, new MultipartConfigElement("", -1, 100, 0));
+
+		assertTrue(formData.isFailed());
+	}
+
+	@Test(expected = IOException.class)
+	public void incomplete() throws IOException
+	{
+		String body = BODY.substring(0, BODY.indexOf("epilogue") - 4);
+
+		parse(body.getBytes(UTF_8), 16, new MultipartConfigElement("")).getParts();
+	}
+
+	@Test
+	public void getBoundary()
+	{
+		assertEquals("abc", MultipartParser.getBoundary("multipart/form-data; boundary=abc"));
+		assertEquals("a b", MultipartParser.getBoundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+		assertNull(MultipartParser.getBoundary("multipart/form-data"));
+		assertNull(MultipartParser.getBoundary("application/x-www-form-urlencoded; boundary=abc"));
+		assertNull(MultipartParser.getBoundary(null));
+	}
+
+	private static String read(Part part) throws IOException
+	{
+		InputStream in = part.getInputStream();
+
+		try
+		{
+			byte[] bytes = new byte[(int) part.getSize()];
+
+			int n = 0;
+
+			while (n < bytes.length)
+			{
+				int len = in.read(bytes, n, bytes.length - n);
+
+				if (len < 0)
+					break;
+
+				n += len;
+			}
+
+			return new String(bytes, 0, n, UTF_8);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package org.ireland.jnetty.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Test;
+
+public class JarResourceIndexTest
+{
+	public static class Probe
+	{
+	}
+
+	private static File createDir() throws IOException
+	{
+		File dir = File.createTempFile("lib", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+
+		return dir;
+	}
+
+	/**
+	 * @param entries
+	 *            名字,内容,名字,内容...
+	 */
+	private static File createJar(File dir, String name, Object... entries) throws IOException
+	{
+		File file = new File(dir, name);
+
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+
+		try
+		{
+			for (int i = 0; i < entries.length; i += 2)
+			{
+				out.putNextEntry(new JarEntry((String) entries[i]));
+
+				Object content = entries[i + 1];
+				out.write(content instanceof byte[] ? (byte[]) content : ((String) content).getBytes("UTF-8"));
+
+				out.closeEntry();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	private static byte[] classBytes(Class<?> clazz) throws IOException
+	{
+		InputStream in = clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class");
+
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static String read(URL url) throws IOException
+	{
+		InputStream in = url.openStream();
+
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int ch;
+
+			while ((ch = in.read()) >= 0)
+				out.write(ch);
+
+			return out.toString("UTF-8");
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	@Test
+	public void packageOf()
+	{
+		assertEquals("org/ireland/", JarResourceIndex.packageOf("org/ireland/Foo.class"));
+		assertEquals("org/", JarResourceIndex.packageOf("org/ireland/"));
+		assertEquals("", JarResourceIndex.packageOf("log4j.properties"));
+		assertEquals("", JarResourceIndex.packageOf("org/"));
+	}
+
+	@Test
+	public void findInOrder() throws IOException
+	{
+		File dir = createDir();
+
+		List<File> jars = new ArrayList<File>();
+		jars.add(createJar(dir, "a.jar", "a/A.txt", "a", "shared/x.txt", "from a"));
+		jars.add(createJar(dir, "b.jar", "b/B.txt", "b", "shared/x.txt", "from b"));
+
+		JarResourceIndex index = JarResourceIndex.open(jars, null);
+
+		try
+		{
+			assertEquals(3, index.getPackageCount());
+
+			assertEquals(jars.get(0), index.find("a/A.txt").getFile());
+			assertEquals(jars.get(1), index.find("b/B.txt").getFile());
+			assertEquals(jars.get(0), index.find("shared/x.txt").getFile());
+			assertEquals(2, index.findAll("shared/x.txt").size());
+
+			// 包存在但资源不存在,包不存在
+			assertNull(index.find("a/missing.txt"));
+			assertNull(index.find("c/C.txt"));
+
+			assertEquals("from b", read(index.findAll("shared/x.txt").get(1).getResource("shared/x.txt")));
+		}
+		finally
+		{
+			index.close();
+		}
+	}
+
+	@Test
+	// 重启时只重新扫描改变了的jar
+	public void persistedIndex() throws IOException
+	{
+		File dir = createDir();
+
+		List<File> jars = new ArrayList<File>();
+		jars.add(createJar(dir, "a.jar", "a/A.txt", "a"));
+		jars.add(createJar(dir, "b.jar", "b/B.txt", "b"));
+
+		File indexFile = new File(dir, "lib.index");
+		indexFile.deleteOnExit();
+
+		assertEquals(2, JarResourceIndex.open(jars, indexFile).getScannedCount());
+		assertTrue(indexFile.isFile());
+
+		JarResourceIndex index = JarResourceIndex.open(jars, indexFile);
+		assertEquals(0, index.getScannedCount());
+		assertNotNull(index.find("b/B.txt"));
+		index.close();
+
+		// b.jar被替换
+		createJar(dir, "b.jar", "b2/B.txt", "b2");
+		jars.get(1).setLastModified(jars.get(1).lastModified() + 2000);
+
+		index = JarResourceIndex.open(jars, indexFile);
+		assertEquals(1, index.getScannedCount());
+		assertNull(index.find("b/B.txt"));
+		assertNotNull(index.find("b2/B.txt"));
+		index.close();
+
+		// 损坏的索引文件被忽略
+		FileOutputStream out = new FileOutputStream(indexFile);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+
+		assertEquals(2, JarResourceIndex.open(jars, indexFile).getScannedCount());
+		assertEquals(0, JarResourceIndex.open(jars, indexFile).getScannedCount());
+	}
+
+	@Test
+	// 数量越界,含有不在jar列表中的jar,或其他用户可写的索引文件被忽略
+	public void untrustedIndex() throws IOException
+	{
+		File dir = createDir();
+
+		List<File> jars = new ArrayList<File>();
+		jars.add(createJar(dir, "a.jar", "a/A.txt", "a"));
+		jars.add(createJar(dir, "b.jar", "b/B.txt", "b"));
+
+		File indexFile = new File(dir, "lib.index");
+		indexFile.deleteOnExit();
+
+		assertEquals(2, JarResourceIndex.open(jars, indexFile).getScannedCount());
+
+		// jar的数量(MAGIC,VERSION之后)
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+		raf.seek(8);
+		raf.writeInt(Integer.MAX_VALUE);
+		raf.close();
+
+		assertEquals(2, JarResourceIndex.open(jars, indexFile).getScannedCount());
+
+		raf = new RandomAccessFile(indexFile, "rw");
+		raf.seek(8);
+		raf.writeInt(-1);
+		raf.close();
+
+		assertEquals(2, JarResourceIndex.open(jars, indexFile).getScannedCount());
+
+		// 索引中的b.jar不在jar列表中
+		assertEquals(1, JarResourceIndex.open(jars.subList(0, 1), indexFile).getScannedCount());
+		assertEquals(0, JarResourceIndex.open(jars.subList(0, 1), indexFile).getScannedCount());
+
+		// 新写入的索引文件只有本用户可以读写
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(indexFile.toPath())));
+
+		Files.setPosixFilePermissions(indexFile.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+
+		assertEquals(1, JarResourceIndex.open(jars.subList(0, 1), indexFile).getScannedCount());
+	}
+
+	@Test
+	public void classLoader() throws Exception
+	{
+		File dir = createDir();
+
+		String path = Probe.class.getName().replace('.', '/') + ".class";
+
+		List<File> jars = new ArrayList<File>();
+		jars.add(createJar(dir, "other.jar", "other/O.txt", "o"));
+		jars.add(createJar(dir, "probe.jar", path, classBytes(Probe.class), "META-INF/probe.txt", "probe"));
+
+		WebAppClassLoader loader = new WebAppClassLoader(new URLClassLoader(new URL[0], null));
+
+		loader.addJars(jars, null);
+
+		try
+		{
+			Class<?> clazz = loader.loadClass(Probe.class.getName());
+
+			assertSame(loader, clazz.getClassLoader());
+			assertEquals(jars.get(1).toURI().toURL(), clazz.getProtectionDomain().getCodeSource().getLocation());
+			assertNotNull(clazz.getPackage());
+
+			assertEquals("probe", read(loader.getResource("META-INF/probe.txt")));
+			assertEquals(1, Collections.list(loader.getResources("META-INF/probe.txt")).size());
+			assertNull(loader.getResource("other/missing.txt"));
+
+			// JSP编译器使用的class path包含索引中的jar
+			assertEquals(2, loader.getURLs().length);
+
+			try
+			{
+				loader.loadClass("other.Missing");
+				fail();
+			}
+			catch (ClassNotFoundException e)
+			{
+			}
+		}
+		finally
+		{
+			loader.close();
+		}
+	}
+
+	@Test
+	// 很多jar时查找不存在的类:URLClassLoader逐个jar查找 与 按索引查找
+	public void compareWithUrlClassLoader() throws Exception
+	{
+		File dir = createDir();
+
+		int jarCount = 150;
+
+		List<File> jars = new ArrayList<File>();
+		URL[] urls = new URL[jarCount];
+
+		for (int i = 0; i < jarCount; i++)
+		{
+			Object[] entries = new Object[40];
+
+			for (int j = 0; j < entries.length; j += 2)
+			{
+				entries[j] = "lib" + i + "/p" + j + "/C.class";
+				entries[j + 1] = "x";
+			}
+
+			jars.add(createJar(dir, "lib" + i + ".jar", entries));
+			urls[i] = jars.get(i).toURI().toURL();
+		}
+
+		int lookups = 2000;
+
+		long start = System.nanoTime();
+
+		URLClassLoader plain = new URLClassLoader(urls, null);
+
+		for (int i = 0; i < lookups; i++)
+			assertNull(plain.findResource("missing/M" + i + ".class"));
+
+		long plainTime = System.nanoTime() - start;
+
+		plain.close();
+
+		start = System.nanoTime();
+
+		JarResourceIndex index = JarResourceIndex.open(jars, null);
+
+		long openTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+
+		for (int i = 0; i < lookups; i++)
+			assertNull(index.find("missing/M" + i + ".class"));
+
+		long indexTime = System.nanoTime() - start;
+
+		index.close();
+
+		System.out.println(jarCount + " jars, " + lookups + " missing lookups: URLClassLoader " + plainTime / 1000000 + " ms; index " + indexTime
+				/ 1000000 + " ms (+ " + openTime / 1000000 + " ms to build)");
+	}
+}
@@ -0,0 +1,165 @@
+package org.ireland.jnetty.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WebAppClassLoaderTest
+{
+	public static class ProbeA
+	{
+	}
+
+	public static class ProbeB
+	{
+	}
+
+	public static class ProbeC
+	{
+	}
+
+	private static final Class<?>[] PROBES = { ProbeA.class, ProbeB.class, ProbeC.class };
+
+	/**
+	 * 把Probe类的class文件复制到一个临时目录中,作为WebApp的class path
+	 */
+	private static URL createClassPath() throws IOException
+	{
+		File dir = File.createTempFile("classes", "");
+		dir.delete();
+
+		for (Class<?> probe : PROBES)
+		{
+			String path = probe.getName().replace('.', '/') + ".class";
+
+			File file = new File(dir, path);
+			file.getParentFile().mkdirs();
+
+			InputStream in = WebAppClassLoaderTest.class.getClassLoader().getResourceAsStream(path);
+			OutputStream out = new FileOutputStream(file);
+
+			try
+			{
+				byte[] buffer = new byte[4096];
+				int n;
+
+				while ((n = in.read(buffer)) > 0)
+					out.write(buffer, 0, n);
+			}
+			finally
+			{
+				in.close();
+				out.close();
+			}
+
+			file.deleteOnExit();
+		}
+
+		return dir.toURI().toURL();
+	}
+
+	/**
+	 * 父加载器只能加载JDK的类
+	 */
+	private static WebAppClassLoader createLoader() throws IOException
+	{
+		return new WebAppClassLoader(new URLClassLoader(new URL[0], null));
+	}
+
+	@Test
+	public void notFoundUntilClassPathAdded() throws Exception
+	{
+		WebAppClassLoader loader = createLoader();
+
+		String name = ProbeA.class.getName();
+
+		for (int i = 0; i < 2; i++)
+		{
+			try
+			{
+				loader.loadClass(name);
+				fail();
+			}
+			catch (ClassNotFoundException e)
+			{
+			}
+		}
+
+		loader.addClassPath(createClassPath());
+
+		Class<?> clazz = loader.loadClass(name);
+
+		assertSame(loader, clazz.getClassLoader());
+		assertNotSame(ProbeA.class, clazz);
+		assertSame(clazz, loader.loadClass(name));
+
+		assertSame(String.class, loader.loadClass("java.lang.String"));
+	}
+
+	@Test
+	// 多条线程同时加载同一批类:每个类只被定义一次
+	public void concurrentLoading() throws Exception
+	{
+		final WebAppClassLoader loader = createLoader();
+
+		loader.addClassPath(createClassPath());
+
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		final Class<?>[][] loaded = new Class<?>[threads][PROBES.length];
+
+		for (int t = 0; t < threads; t++)
+		{
+			final int index = t;
+
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+
+						for (int i = 0; i < PROBES.length; i++)
+							loaded[index][i] = loader.loadClass(PROBES[(i + index) % PROBES.length].getName());
+					}
+					catch (Throwable e)
+					{
+						errors.incrementAndGet();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		start.countDown();
+		done.await();
+
+		assertEquals(0, errors.get());
+
+		for (int t = 0; t < threads; t++)
+		{
+			for (int i = 0; i < PROBES.length; i++)
+				assertSame(loader.loadClass(PROBES[(i + t) % PROBES.length].getName()), loaded[t][i]);
+		}
+	}
+}
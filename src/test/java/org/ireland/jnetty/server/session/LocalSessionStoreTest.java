@@ -0,0 +1,122 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LocalSessionStoreTest
+{
+	private static SessionData delta(long accessTime)
+	{
+		return new SessionData(0, 1000, accessTime, 60000, System.currentTimeMillis() + 60000);
+	}
+
+	private static byte[] bytes(String value)
+	{
+		return value.getBytes();
+	}
+
+	@Test
+	public void createAndLoad()
+	{
+		LocalSessionStore store = new LocalSessionStore();
+
+		SessionData delta = delta(2000);
+		delta.putAttribute("user", bytes("ken"));
+
+		assertEquals(1, store.save("s1", 0, delta));
+
+		SessionData data = store.load("s1", 0);
+
+		assertEquals(1, data.getVersion());
+		assertEquals(1000, data.getCreationTime());
+		assertEquals(2000, data.getAccessTime());
+		assertArrayEquals(bytes("ken"), data.getAttributes().get("user"));
+
+		// 本地副本仍是最新的
+		assertSame(SessionData.NOT_MODIFIED, store.load("s1", 1));
+
+		assertNull(store.load("none", 0));
+	}
+
+	@Test
+	// 增量只替换/删除其中的属性
+	public void mergeDelta()
+	{
+		LocalSessionStore store = new LocalSessionStore();
+
+		SessionData delta = delta(2000);
+		delta.putAttribute("a", bytes("A"));
+		delta.putAttribute("b", bytes("B"));
+
+		store.save("s1", 0, delta);
+
+		delta = delta(3000);
+		delta.putAttribute("a", null);
+		delta.putAttribute("c", bytes("C"));
+
+		assertEquals(2, store.save("s1", 1, delta));
+
+		SessionData data = store.load("s1", 1);
+
+		assertEquals(3000, data.getAccessTime());
+		assertEquals(1000, data.getCreationTime());
+		assertFalse(data.getAttributes().containsKey("a"));
+		assertArrayEquals(bytes("B"), data.getAttributes().get("b"));
+		assertArrayEquals(bytes("C"), data.getAttributes().get("c"));
+	}
+
+	@Test
+	// 两个节点基于同一版本写入:后写入的一方得知存在冲突
+	public void concurrentWriters()
+	{
+		LocalSessionStore store = new LocalSessionStore();
+
+		store.save("s1", 0, delta(2000));
+
+		SessionData a = delta(3000);
+		a.putAttribute("a", bytes("A"));
+
+		SessionData b = delta(3000);
+		b.putAttribute("b", bytes("B"));
+
+		assertEquals(2, store.save("s1", 1, a));
+		assertEquals(3, store.save("s1", 1, b));
+
+		SessionData data = store.load("s1", 0);
+
+		assertEquals(2, data.getAttributes().size());
+	}
+
+	@Test
+	public void removedOrExpired()
+	{
+		LocalSessionStore store = new LocalSessionStore();
+
+		store.save("s1", 0, delta(2000));
+		store.remove("s1");
+
+		// 不重新创建已删除的Session
+		assertEquals(-1, store.save("s1", 1, delta(3000)));
+		assertNull(store.load("s1", 0));
+
+		// 已使用的id
+		store.save("s2", 0, delta(2000));
+		assertEquals(-1, store.save("s2", 0, delta(2000)));
+
+		store.save("s3", 0, new SessionData(0, 1000, 2000, 60000, System.currentTimeMillis() - 1));
+
+		assertNull(store.load("s3", 0));
+		assertEquals(0, store.removeExpired(System.currentTimeMillis()));
+		assertEquals(1, store.size());
+
+		assertTrue(store.getLoadCount() > 0);
+		assertEquals(5, store.getSaveCount());
+		assertEquals(1, store.getRemoveCount());
+	}
+}
@@ -0,0 +1,195 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class SessionAttributesTest
+{
+	@Test
+	public void putGetRemove()
+	{
+		SessionAttributes attributes = new SessionAttributes();
+
+		assertTrue(attributes.isEmpty());
+		assertNull(attributes.get("user"));
+
+		assertNull(attributes.put("user", "ken"));
+		assertNull(attributes.put("locale", "zh_CN"));
+		assertEquals("ken", attributes.put("user", "ireland"));
+
+		assertEquals("ireland", attributes.get("user"));
+		assertEquals(2, attributes.size());
+		assertEquals(Arrays.asList("user", "locale"), attributes.getNames());
+
+		assertEquals("ireland", attributes.remove("user"));
+		assertNull(attributes.remove("user"));
+		assertEquals(Arrays.asList("locale"), attributes.getNames());
+
+		assertEquals("zh_CN", attributes.remove("locale"));
+		assertTrue(attributes.isEmpty());
+	}
+
+	@Test
+	public void growIntoMap()
+	{
+		SessionAttributes attributes = new SessionAttributes();
+
+		int count = SessionAttributes.THRESHOLD * 3;
+
+		for (int i = 0; i < count; i++)
+			attributes.put("a" + i, i);
+
+		assertEquals(count, attributes.size());
+
+		for (int i = 0; i < count; i++)
+			assertEquals(i, attributes.get("a" + i));
+
+		assertEquals(5, attributes.remove("a5"));
+		assertEquals(count - 1, attributes.getNames().size());
+
+		Object[] removed = attributes.clear();
+
+		assertEquals(2 * (count - 1), removed.length);
+		assertTrue(attributes.isEmpty());
+		assertNull(attributes.get("a1"));
+
+		// 清空后重新使用数组
+		attributes.put("a", "A");
+		assertEquals("A", attributes.get("a"));
+	}
+
+	@Test
+	// 读线程与写线程并发,读线程不加锁
+	public void concurrentReads() throws InterruptedException
+	{
+		final SessionAttributes attributes = new SessionAttributes();
+
+		attributes.put("fixed", "F");
+
+		final int threads = 8;
+		final CountDownLatch latch = new CountDownLatch(threads + 1);
+		final AtomicInteger errors = new AtomicInteger();
+
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < 200000; i++)
+				{
+					String name = "n" + (i % (3 * SessionAttributes.THRESHOLD));
+
+					if ((i & 1) == 0)
+						attributes.put(name, i);
+					else
+						attributes.remove(name);
+				}
+
+				latch.countDown();
+			}
+		}.start();
+
+		for (int t = 0; t < threads; t++)
+		{
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 200000; i++)
+					{
+						if (!"F".equals(attributes.get("fixed")))
+							errors.incrementAndGet();
+					}
+
+					latch.countDown();
+				}
+			}.start();
+		}
+
+		latch.await();
+
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	@Ignore("benchmark: allocates a million maps and relies on System.gc(), run manually")
+	// 一百万个Session,每个3个属性:TreeMap与SessionAttributes的内存占用(只输出报告,System.gc()只是建议,读数不可靠,不作断言)
+	public void memoryReport()
+	{
+		int sessions = 1000000;
+
+		String[] names = { "user", "locale", "cart" };
+		Object value = "value";
+
+		long before = usedMemory();
+
+		List<Object> treeMaps = new ArrayList<Object>(sessions);
+
+		for (int i = 0; i < sessions; i++)
+		{
+			TreeMap<String, Object> map = new TreeMap<String, Object>();
+
+			for (String name : names)
+				map.put(name, value);
+
+			treeMaps.add(map);
+		}
+
+		long treeMapBytes = usedMemory() - before;
+
+		treeMaps = null;
+
+		before = usedMemory();
+
+		List<Object> compact = new ArrayList<Object>(sessions);
+
+		for (int i = 0; i < sessions; i++)
+		{
+			SessionAttributes attributes = new SessionAttributes();
+
+			for (String name : names)
+				attributes.put(name, value);
+
+			compact.add(attributes);
+		}
+
+		long compactBytes = usedMemory() - before;
+
+		System.out.println("attributes per session: TreeMap " + treeMapBytes / sessions + " bytes, SessionAttributes " + compactBytes / sessions
+				+ " bytes (" + sessions + " sessions, " + names.length + " attributes)");
+
+		assertEquals(sessions, compact.size());
+	}
+
+	private static long usedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e)
+			{
+			}
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,175 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class SessionIdGeneratorTest
+{
+	@Test
+	public void format()
+	{
+		SessionIdGenerator generator = new SessionIdGenerator(null, 21);
+
+		for (int i = 0; i < 1000; i++)
+		{
+			String id = generator.generate();
+
+			assertEquals(21, id.length());
+
+			for (int j = 0; j < id.length(); j++)
+				assertTrue(id, SessionIdGenerator.isValid(id.charAt(j)));
+		}
+	}
+
+	@Test
+	public void nodePrefix()
+	{
+		SessionIdGenerator generator = new SessionIdGenerator("c", 16);
+
+		String id = generator.generate();
+
+		assertEquals(17, id.length());
+		assertTrue(id.startsWith("c"));
+
+		// 节点编号:'c' = 2
+		assertEquals(2, SessionManager.getServerCode(id, 0));
+
+		try
+		{
+			new SessionIdGenerator("a.b", 16);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	// 跨越补充种子的边界仍不重复
+	public void unique()
+	{
+		SessionIdGenerator generator = new SessionIdGenerator(null, 21);
+
+		int count = SessionIdGenerator.RESEED_INTERVAL * 3;
+
+		Set<String> ids = new HashSet<String>(count * 2);
+
+		for (int i = 0; i < count; i++)
+			assertTrue(ids.add(generator.generate()));
+	}
+
+	/**
+	 * 之前的做法:共享的随机源,每个id多次调用,用StringBuilder拼接
+	 */
+	private static final SecureRandom SHARED = new SecureRandom();
+
+	private static String sharedRandomId()
+	{
+		StringBuilder sb = new StringBuilder();
+
+		long random;
+
+		synchronized (SHARED)
+		{
+			random = SHARED.nextLong();
+		}
+
+		for (int i = 0; i < 11; i++)
+		{
+			sb.append((char) ('a' + (random & 0xf)));
+			random >>= 6;
+		}
+
+		synchronized (SHARED)
+		{
+			random = SHARED.nextLong();
+		}
+
+		for (int i = 0; i < 10; i++)
+		{
+			sb.append((char) ('a' + (random & 0xf)));
+			random >>= 6;
+		}
+
+		return sb.toString();
+	}
+
+	private static long run(int threads, final int perThread, final SessionIdGenerator generator) throws InterruptedException
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++)
+		{
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+					}
+
+					for (int i = 0; i < perThread; i++)
+					{
+						if (generator != null)
+							generator.generate();
+						else
+							sharedRandomId();
+					}
+
+					done.countDown();
+				}
+			}.start();
+		}
+
+		long begin = System.nanoTime();
+
+		start.countDown();
+		done.await();
+
+		return System.nanoTime() - begin;
+	}
+
+	@Test
+	@Ignore("benchmark: only prints throughput, run manually")
+	// 吞吐量随线程数的变化:每线程的随机源 与 共享的随机源
+	public void throughput() throws InterruptedException
+	{
+		int perThread = 50000;
+
+		SessionIdGenerator generator = new SessionIdGenerator(null, 21);
+
+		// 预热
+		run(2, perThread, generator);
+		run(2, perThread, null);
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+
+		StringBuilder report = new StringBuilder("session ids per ms (" + cpus + " cpus):");
+
+		for (int threads = 1; threads <= Math.max(4, 2 * cpus); threads *= 2)
+		{
+			long striped = run(threads, perThread, generator);
+			long shared = run(threads, perThread, null);
+
+			report.append(" ").append(threads).append(" threads striped ").append((long) threads * perThread * 1000000 / striped);
+			report.append(" shared ").append((long) threads * perThread * 1000000 / shared).append(";");
+		}
+
+		System.out.println(report);
+	}
+}
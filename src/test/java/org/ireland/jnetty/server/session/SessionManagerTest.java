@@ -0,0 +1,327 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.ireland.jnetty.webapp.WebApp;
+import org.junit.Test;
+
+public class SessionManagerTest
+{
+	// 只有一个分片,淘汰的顺序是确定的
+	private static final int SESSION_MAX = 64;
+
+	/**
+	 * 记录Session的事件:"created id","willPassivate id","didActivate id","destroyed id"
+	 */
+	private static class Recorder implements HttpSessionListener, HttpSessionActivationListener
+	{
+		final List<String> _events = new ArrayList<String>();
+
+		@Override
+		public synchronized void sessionCreated(HttpSessionEvent se)
+		{
+			_events.add("created " + se.getSession().getId());
+		}
+
+		@Override
+		public synchronized void sessionDestroyed(HttpSessionEvent se)
+		{
+			_events.add("destroyed " + se.getSession().getId());
+		}
+
+		@Override
+		public synchronized void sessionWillPassivate(HttpSessionEvent se)
+		{
+			_events.add("willPassivate " + se.getSession().getId());
+		}
+
+		@Override
+		public synchronized void sessionDidActivate(HttpSessionEvent se)
+		{
+			_events.add("didActivate " + se.getSession().getId());
+		}
+
+		synchronized boolean contains(String event)
+		{
+			return _events.contains(event);
+		}
+	}
+
+	private static File createDir() throws IOException
+	{
+		File dir = File.createTempFile("work", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+
+		return dir;
+	}
+
+	private static SessionManager createManager(File workDir)
+	{
+		return createManager(workDir, null);
+	}
+
+	/**
+	 * @param store
+	 *            不为null时,Session保存在外部存储中,SessionManager只保留本地副本(near-cache)
+	 */
+	private static SessionManager createManager(File workDir, SessionStore store)
+	{
+		// WebApp的构造函数设置当前线程的ContextClassLoader
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+		try
+		{
+			WebApp webApp = new WebApp(workDir.getPath(), "localhost", "/sessions");
+			webApp.setJspWorkDir(workDir.getPath());
+
+			SessionManager manager = new SessionManager(webApp);
+			manager.setSessionMax(SESSION_MAX);
+			manager.setSessionStore(store);
+
+			return manager;
+		}
+		finally
+		{
+			Thread.currentThread().setContextClassLoader(loader);
+		}
+	}
+
+	/**
+	 * 创建并结束count个请求的Session,使之前的Session被淘汰
+	 */
+	private static void fill(SessionManager manager, int count)
+	{
+		for (int i = 0; i < count; i++)
+			manager.releaseSession(manager.createNewSession(null));
+	}
+
+	@Test
+	// 淘汰 -> 钝化 -> 下次getSession()时激活 -> 失效
+	public void passivateAndActivate() throws IOException
+	{
+		SessionManager manager = createManager(createDir());
+
+		Recorder recorder = new Recorder();
+		manager.addListener(recorder);
+		manager.addActivationListener(recorder);
+
+		try
+		{
+			HttpSessionImpl session = manager.createNewSession(null);
+			String id = session.getId();
+
+			session.setAttribute("k", "v");
+			manager.releaseSession(session);
+
+			fill(manager, 5 * SESSION_MAX);
+
+			assertTrue(session.isPassivated());
+			assertTrue(recorder.contains("willPassivate " + id));
+			assertFalse(recorder.contains("didActivate " + id));
+			assertTrue(manager.getSessionPassivateCount() > 0);
+
+			HttpSessionImpl live = manager.acquireSession(id);
+
+			assertNotNull(live);
+			assertNotSame(session, live);
+			assertEquals("v", live.getAttribute("k"));
+			assertTrue(recorder.contains("didActivate " + id));
+
+			// 已被钝化的对象转发到激活的Session
+			session.setAttribute("k2", "v2");
+			assertEquals("v2", live.getAttribute("k2"));
+
+			manager.releaseSession(live);
+
+			live.invalidate();
+
+			assertNull(manager.getSession(id));
+			assertTrue(recorder.contains("destroyed " + id));
+		}
+		finally
+		{
+			manager.close();
+		}
+	}
+
+	@Test
+	// 请求仍在使用的Session被淘汰时不被钝化,请求结束后放回
+	public void inUseNeverPassivated() throws IOException
+	{
+		SessionManager manager = createManager(createDir());
+
+		Recorder recorder = new Recorder();
+		manager.addActivationListener(recorder);
+
+		try
+		{
+			// 已登记到创建它的请求
+			HttpSessionImpl session = manager.createNewSession(null);
+			String id = session.getId();
+
+			session.setAttribute("k", "v");
+
+			fill(manager, 5 * SESSION_MAX);
+
+			assertFalse(session.isPassivated());
+			assertFalse(recorder.contains("willPassivate " + id));
+			assertSame(session, manager.getSession(id));
+			assertTrue(manager.isValid(session));
+
+			session.setAttribute("k2", "v2");
+
+			manager.releaseSession(session);
+
+			assertSame(session, manager.getSession(id));
+
+			// 不再使用后可以被钝化
+			fill(manager, 5 * SESSION_MAX);
+
+			assertTrue(session.isPassivated());
+			assertTrue(recorder.contains("willPassivate " + id));
+			assertEquals("v2", manager.getSession(id).getAttribute("k2"));
+		}
+		finally
+		{
+			manager.close();
+		}
+	}
+
+	/**
+	 * 一个请求:取得Session,修改,在响应之前写入外部存储(RequestDispatcherImpl.finishResponse()),结束
+	 */
+	private static HttpSessionImpl request(SessionManager manager, String id, String name, String value)
+	{
+		HttpSessionImpl session = manager.acquireSession(id);
+
+		assertNotNull(session);
+
+		if (name != null)
+			session.setAttribute(name, value);
+
+		manager.saveSession(session);
+		manager.releaseSession(session);
+
+		return session;
+	}
+
+	@Test
+	// 两个节点共享一个外部存储:每个请求只读一次,未修改时重用本地副本,只有修改过的Session才写入
+	public void nearCache() throws IOException
+	{
+		LocalSessionStore store = new LocalSessionStore();
+
+		SessionManager a = createManager(createDir(), store);
+		SessionManager b = createManager(createDir(), store);
+
+		try
+		{
+			HttpSessionImpl created = a.createNewSession(null);
+			String id = created.getId();
+
+			created.setAttribute("k", "v");
+			a.saveSession(created);
+			a.releaseSession(created);
+
+			assertEquals(1, store.getSaveCount());
+
+			// 本地副本未过时:只比较版本号,不传输也不反序列化属性
+			long loads = store.getLoadCount();
+
+			assertSame(created, request(a, id, null, null));
+			assertEquals(loads + 1, store.getLoadCount());
+			assertEquals(0, a.getSessionStoreLoadCount());
+
+			// 未修改的Session不写入
+			assertEquals(1, store.getSaveCount());
+
+			// 另一个节点没有本地副本
+			HttpSessionImpl onB = request(b, id, "k", "w");
+
+			assertNotSame(created, onB);
+			assertEquals(1, b.getSessionStoreLoadCount());
+			assertEquals(2, store.getSaveCount());
+
+			// 本地副本已过时,被替换
+			HttpSessionImpl reloaded = request(a, id, null, null);
+
+			assertNotSame(created, reloaded);
+			assertEquals("w", reloaded.getAttribute("k"));
+			assertEquals(1, a.getSessionStoreLoadCount());
+			assertEquals(2, store.getSaveCount());
+		}
+		finally
+		{
+			a.close();
+			b.close();
+		}
+	}
+
+	@Test
+	// 两个节点同时修改同一个Session:后写入的节点丢弃本地副本,下一个请求重新读取
+	public void versionConflict() throws IOException
+	{
+		LocalSessionStore store = new LocalSessionStore();
+
+		SessionManager a = createManager(createDir(), store);
+		SessionManager b = createManager(createDir(), store);
+
+		try
+		{
+			HttpSessionImpl created = a.createNewSession(null);
+			String id = created.getId();
+
+			a.saveSession(created);
+			a.releaseSession(created);
+
+			request(b, id, null, null);
+
+			// 两个节点上的并发请求
+			HttpSessionImpl onA = a.acquireSession(id);
+			HttpSessionImpl onB = b.acquireSession(id);
+
+			onB.setAttribute("from", "b");
+			b.saveSession(onB);
+			b.releaseSession(onB);
+
+			onA.setAttribute("other", "a");
+			a.saveSession(onA);
+			a.releaseSession(onA);
+
+			assertEquals(1, a.getSessionStoreConflictCount());
+			assertEquals(0, b.getSessionStoreConflictCount());
+
+			// 本地副本已被丢弃
+			long loadCount = a.getSessionStoreLoadCount();
+
+			HttpSessionImpl reloaded = request(a, id, null, null);
+
+			assertNotSame(onA, reloaded);
+			assertEquals(loadCount + 1, a.getSessionStoreLoadCount());
+			assertEquals("b", reloaded.getAttribute("from"));
+			assertEquals("a", reloaded.getAttribute("other"));
+		}
+		finally
+		{
+			a.close();
+			b.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SessionOverflowStoreTest
+{
+	private static SessionOverflowStore createStore(int segmentSize, long maxSize) throws IOException
+	{
+		File file = File.createTempFile("sessions", ".overflow");
+
+		return new SessionOverflowStore(file, segmentSize, maxSize);
+	}
+
+	private static byte[] data(int length, int seed)
+	{
+		byte[] data = new byte[length];
+
+		Arrays.fill(data, (byte) seed);
+
+		return data;
+	}
+
+	@Test
+	public void writeAndRemove() throws IOException
+	{
+		SessionOverflowStore store = createStore(1024, 4096);
+
+		try
+		{
+			assertTrue(store.write("a", data(100, 1), 1000));
+			assertTrue(store.write("b", data(200, 2), 2000));
+
+			assertEquals(2, store.size());
+			assertEquals(300, store.getLiveBytes());
+			assertEquals(2000, store.getExpirationTime("b"));
+
+			// 替换
+			assertTrue(store.write("a", data(50, 3), 3000));
+			assertEquals(250, store.getLiveBytes());
+
+			assertArrayEquals(data(50, 3), store.remove("a"));
+			assertArrayEquals(data(200, 2), store.remove("b"));
+
+			assertNull(store.remove("a"));
+			assertFalse(store.contains("b"));
+			assertEquals(-1, store.getExpirationTime("b"));
+			assertEquals(0, store.getLiveBytes());
+
+			// 超过一段的长度
+			assertFalse(store.write("c", data(1025, 4), 0));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	// 段中的记录全部取出后可以重新使用
+	public void reuseEmptySegments() throws IOException
+	{
+		SessionOverflowStore store = createStore(1000, 3000);
+
+		try
+		{
+			for (int round = 0; round < 100; round++)
+			{
+				for (int i = 0; i < 8; i++)
+					assertTrue(store.write("s" + i, data(200, i), 0));
+
+				for (int i = 0; i < 8; i++)
+					assertArrayEquals(data(200, i), store.remove("s" + i));
+			}
+
+			// 两个数据段 + 最多一个预留段
+			assertTrue(store.getMappedBytes() <= 3000);
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	// 没有空闲的段时,压缩存活数据最少的段
+	public void compactFragmentedSegments() throws IOException
+	{
+		SessionOverflowStore store = createStore(1000, 3000);
+
+		try
+		{
+			// 填满两个数据段
+			for (int i = 0; i < 10; i++)
+				assertTrue(store.write("s" + i, data(200, i), 0));
+
+			// 每段只留下一条记录
+			for (int i = 0; i < 10; i++)
+			{
+				if (i != 2 && i != 7)
+					store.remove("s" + i);
+			}
+
+			for (int i = 10; i < 16; i++)
+				assertTrue(store.write("s" + i, data(200, i), 0));
+
+			assertArrayEquals(data(200, 2), store.remove("s2"));
+			assertArrayEquals(data(200, 7), store.remove("s7"));
+
+			for (int i = 10; i < 16; i++)
+				assertArrayEquals(data(200, i), store.remove("s" + i));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void full() throws IOException
+	{
+		SessionOverflowStore store = createStore(1000, 3000);
+
+		try
+		{
+			for (int i = 0; i < 10; i++)
+				assertTrue(store.write("s" + i, data(200, i), 0));
+
+			assertFalse(store.write("s10", data(200, 10), 0));
+
+			// 已有的数据不受影响
+			for (int i = 0; i < 10; i++)
+				assertArrayEquals(data(200, i), store.remove("s" + i));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+}
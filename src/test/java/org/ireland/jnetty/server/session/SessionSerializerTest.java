@@ -0,0 +1,281 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class SessionSerializerTest
+{
+	private final SessionSerializer serializer = new SessionSerializer(getClass().getClassLoader());
+
+	private Object roundTrip(Object value) throws Exception
+	{
+		return serializer.deserialize(serializer.serialize(value));
+	}
+
+	@Test
+	public void builtinTypes() throws Exception
+	{
+		assertNull(roundTrip(null));
+		assertEquals("ken", roundTrip("ken"));
+		assertEquals("中文 ünïcode", roundTrip("中文 ünïcode"));
+		assertEquals("", roundTrip(""));
+		assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+		assertEquals(-1, roundTrip(-1));
+		assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+		assertEquals(Boolean.TRUE, roundTrip(true));
+		assertEquals(Boolean.FALSE, roundTrip(false));
+		assertEquals(3.25, roundTrip(3.25));
+		assertEquals(new Date(1234567890123L), roundTrip(new Date(1234567890123L)));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(new byte[] { 1, 2, 3 }));
+
+		// 小整数只占2个字节(标记 + varint)
+		assertEquals(2, serializer.serialize(42).length);
+
+		// 其它Serializable的值使用Java序列化
+		List<String> roles = new ArrayList<String>(Arrays.asList("admin", "user"));
+		assertEquals(roles, roundTrip(roles));
+	}
+
+	@Test
+	public void customCodec() throws Exception
+	{
+		serializer.register(SessionSerializer.MIN_CUSTOM_TAG, User.class, new UserCodec());
+
+		User user = (User) roundTrip(new User(7, "ken"));
+
+		assertEquals(7, user.id);
+		assertEquals("ken", user.name);
+
+		// 另一个节点未注册该Codec
+		try
+		{
+			new SessionSerializer(getClass().getClassLoader()).deserialize(serializer.serialize(user));
+			fail();
+		}
+		catch (StreamCorruptedException e)
+		{
+		}
+
+		try
+		{
+			serializer.register(1, User.class, new UserCodec());
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void invalidData() throws Exception
+	{
+		try
+		{
+			serializer.serialize(new Object());
+			fail();
+		}
+		catch (NotSerializableException e)
+		{
+		}
+
+		byte[] data = serializer.serialize("truncated");
+
+		try
+		{
+			serializer.deserialize(Arrays.copyOf(data, data.length - 1));
+			fail();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * 典型的Session:登录用户的几个简单属性及一个用户对象
+	 */
+	private static Map<String, Object> typicalSession(int i)
+	{
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+		attributes.put("userId", 100000L + i);
+		attributes.put("userName", "user" + i);
+		attributes.put("locale", "zh_CN");
+		attributes.put("loginTime", new Date(1380000000000L + i));
+		attributes.put("admin", Boolean.FALSE);
+		attributes.put("user", new User(i, "user" + i));
+
+		return attributes;
+	}
+
+	private byte[] writeBinary(Map<String, Object> attributes) throws IOException
+	{
+		SessionSerializer.Output out = new SessionSerializer.Output(128);
+
+		out.writeVarInt(attributes.size());
+
+		for (Map.Entry<String, Object> entry : attributes.entrySet())
+		{
+			out.writeString(entry.getKey());
+			serializer.writeValue(out, entry.getValue());
+		}
+
+		return out.toByteArray();
+	}
+
+	private Map<String, Object> readBinary(byte[] data) throws Exception
+	{
+		SessionSerializer.Input in = new SessionSerializer.Input(data);
+
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+		for (int i = in.readVarInt(); i > 0; i--)
+			attributes.put(in.readString(), serializer.readValue(in));
+
+		return attributes;
+	}
+
+	// 与之前HttpSessionImpl.store()相同的写法
+	private static byte[] writeJava(Map<String, Object> attributes) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+		out.writeInt(attributes.size());
+
+		for (Map.Entry<String, Object> entry : attributes.entrySet())
+		{
+			out.writeUTF(entry.getKey());
+			out.writeObject(entry.getValue());
+		}
+
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	private static Map<String, Object> readJava(byte[] data) throws Exception
+	{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+		for (int i = in.readInt(); i > 0; i--)
+			attributes.put(in.readUTF(), in.readObject());
+
+		return attributes;
+	}
+
+	@Test
+	@Ignore("benchmark: only prints sizes and timings, run manually")
+	// 与Java序列化比较:每个Session的字节数及写入+读取的时间
+	public void compareWithJavaSerialization() throws Exception
+	{
+		serializer.register(SessionSerializer.MIN_CUSTOM_TAG, User.class, new UserCodec());
+
+		int count = 100000;
+
+		assertEquals(typicalSession(1), readBinary(writeBinary(typicalSession(1))));
+		assertEquals(typicalSession(1), readJava(writeJava(typicalSession(1))));
+
+		long binaryBytes = 0;
+		long javaBytes = 0;
+
+		// 预热
+		for (int i = 0; i < count; i++)
+		{
+			readBinary(writeBinary(typicalSession(i)));
+			readJava(writeJava(typicalSession(i)));
+		}
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < count; i++)
+		{
+			byte[] data = writeBinary(typicalSession(i));
+			binaryBytes += data.length;
+			readBinary(data);
+		}
+
+		long binaryTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+
+		for (int i = 0; i < count; i++)
+		{
+			byte[] data = writeJava(typicalSession(i));
+			javaBytes += data.length;
+			readJava(data);
+		}
+
+		long javaTime = System.nanoTime() - start;
+
+		System.out.println("session of " + typicalSession(0).size() + " attributes: binary " + binaryBytes / count + " bytes, " + binaryTime / count
+				+ " ns; java serialization " + javaBytes / count + " bytes, " + javaTime / count + " ns (write + read)");
+
+		assertTrue(binaryBytes < javaBytes);
+	}
+
+	static final class User implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int id;
+
+		final String name;
+
+		User(int id, String name)
+		{
+			this.id = id;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof User && ((User) o).id == id && ((User) o).name.equals(name);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return id;
+		}
+	}
+
+	static final class UserCodec implements SessionSerializer.Codec<User>
+	{
+		@Override
+		public void write(SessionSerializer.Output out, User user)
+		{
+			out.writeVarInt(user.id);
+			out.writeString(user.name);
+		}
+
+		@Override
+		public User read(SessionSerializer.Input in) throws IOException
+		{
+			return new User(in.readVarInt(), in.readString());
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package org.ireland.jnetty.server.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class SessionSnapshotTest
+{
+	private static final long NOW = 1000000L;
+
+	private static byte[] data(int length, int seed)
+	{
+		byte[] data = new byte[length];
+
+		Arrays.fill(data, (byte) seed);
+
+		return data;
+	}
+
+	private static File tempFile() throws IOException
+	{
+		File file = File.createTempFile("sessions", ".snapshot");
+		file.deleteOnExit();
+
+		return file;
+	}
+
+	@Test
+	public void writeAndRemove() throws IOException
+	{
+		File file = tempFile();
+
+		SessionSnapshot.Writer writer = new SessionSnapshot.Writer();
+
+		for (int i = 0; i < 100; i++)
+			writer.add("id" + i, NOW + 1000, data(i, i));
+
+		writer.add("expired", NOW - 1, data(10, 1));
+
+		writer.write(file);
+
+		SessionSnapshot snapshot = SessionSnapshot.open(file);
+
+		assertNotNull(snapshot);
+		assertEquals(101, snapshot.getRemaining());
+
+		try
+		{
+			for (int i = 0; i < 100; i++)
+				assertArrayEquals(data(i, i), snapshot.remove("id" + i, NOW));
+
+			// 只能取出一次
+			assertNull(snapshot.remove("id1", NOW));
+
+			assertNull(snapshot.remove("expired", NOW));
+			assertNull(snapshot.remove("none", NOW));
+
+			assertEquals(1, snapshot.getRemaining());
+		}
+		finally
+		{
+			snapshot.close();
+		}
+	}
+
+	@Test
+	// 未被取出的记录转入新的快照
+	public void transfer() throws IOException
+	{
+		File file = tempFile();
+
+		SessionSnapshot.Writer writer = new SessionSnapshot.Writer();
+
+		for (int i = 0; i < 10; i++)
+			writer.add("id" + i, NOW + i * 100, data(20, i));
+
+		writer.write(file);
+
+		SessionSnapshot snapshot = SessionSnapshot.open(file);
+
+		snapshot.remove("id9", NOW);
+
+		SessionSnapshot.Writer next = new SessionSnapshot.Writer();
+
+		// id0 ~ id4已过期
+		snapshot.transferTo(next, NOW + 450);
+		snapshot.close();
+
+		next.add("new", NOW + 1000, data(5, 5));
+		next.write(file);
+
+		snapshot = SessionSnapshot.open(file);
+
+		try
+		{
+			assertEquals(5, snapshot.getRemaining());
+
+			assertNull(snapshot.remove("id4", 0));
+			assertNull(snapshot.remove("id9", 0));
+			assertArrayEquals(data(20, 5), snapshot.remove("id5", 0));
+			assertArrayEquals(data(5, 5), snapshot.remove("new", 0));
+		}
+		finally
+		{
+			snapshot.close();
+		}
+	}
+
+	@Test
+	public void emptyAndInvalid() throws IOException
+	{
+		File file = tempFile();
+
+		new SessionSnapshot.Writer().write(file);
+
+		SessionSnapshot snapshot = SessionSnapshot.open(file);
+
+		assertNotNull(snapshot);
+		assertNull(snapshot.remove("id", NOW));
+		snapshot.close();
+
+		file.delete();
+
+		assertNull(SessionSnapshot.open(file));
+	}
+
+	@Test
+	// 快照只有本进程的用户可以读写,其他用户可写的快照被拒绝
+	public void privateFile() throws IOException
+	{
+		File file = tempFile();
+
+		SessionSnapshot.Writer writer = new SessionSnapshot.Writer();
+		writer.add("id", NOW + 1000, data(10, 1));
+		writer.write(file);
+
+		if (Files.getFileAttributeView(file.toPath(), PosixFileAttributeView.class) == null)
+			return;
+
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+
+		Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+
+		assertNull(SessionSnapshot.open(file));
+	}
+
+	@Test
+	@Ignore("benchmark: writes a 50 MB snapshot, run manually")
+	// 写入及按需读取的吞吐量:10万个Session,每个512字节
+	public void speedTest() throws IOException
+	{
+		int count = 100000;
+
+		File file = tempFile();
+
+		long start = System.currentTimeMillis();
+
+		SessionSnapshot.Writer writer = new SessionSnapshot.Writer();
+
+		for (int i = 0; i < count; i++)
+			writer.add("session-" + i, NOW + 1000, data(512, i));
+
+		writer.write(file);
+
+		long written = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+
+		SessionSnapshot snapshot = SessionSnapshot.open(file);
+
+		long opened = System.currentTimeMillis() - start;
+
+		for (int i = 0; i < count; i++)
+			assertNotNull(snapshot.remove("session-" + i, NOW));
+
+		long read = System.currentTimeMillis() - start;
+
+		snapshot.close();
+
+		System.out.println("snapshot of " + count + " sessions (" + file.length() / 1024 + " KB): write " + written + " ms, open " + opened + " ms, read all "
+				+ read + " ms");
+	}
+}
@@ -0,0 +1,212 @@
+package org.ireland.jnetty.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class ConcurrentLruCacheTest
+{
+
+	@Test
+	public void getAndPut()
+	{
+		ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>("test", 4);
+
+		assertNull(cache.get("/a"));
+
+		cache.put("/a", "A");
+
+		assertEquals("A", cache.get("/a"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		cache.clear();
+
+		assertEquals(0, cache.size());
+		assertNull(cache.get("/a"));
+	}
+
+	@Test
+	public void evictNotRecentlyUsed()
+	{
+		ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>("test", 4);
+
+		for (int i = 0; i < 4; i++)
+			cache.put("/" + i, "" + i);
+
+		// 访问/0,使其获得第二次机会
+		cache.get("/0");
+
+		cache.put("/4", "4");
+
+		assertEquals(4, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals("0", cache.get("/0"));
+		assertEquals("4", cache.get("/4"));
+	}
+
+	@Test
+	public void neverExceedsCapacity()
+	{
+		ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>("test", 128);
+
+		for (int i = 0; i < 10000; i++)
+		{
+			cache.put(i, i);
+			cache.get(i / 2);
+		}
+
+		assertTrue(cache.size() <= 128);
+		assertEquals(10000 - cache.size(), cache.getEvictionCount());
+	}
+
+	@Test
+	public void evictedCallback()
+	{
+		final List<String> evicted = new ArrayList<String>();
+
+		ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>("test", 2)
+		{
+			@Override
+			protected void evicted(String key, String value)
+			{
+				evicted.add(key + "=" + value);
+			}
+		};
+
+		cache.put("/a", "A");
+		cache.put("/b", "B");
+
+		// peek()不设置引用位,/a仍会被淘汰
+		cache.get("/b");
+		assertEquals("A", cache.peek("/a"));
+		assertEquals(1, cache.getHitCount());
+
+		cache.put("/c", "C");
+
+		assertEquals(1, evicted.size());
+		assertEquals("/a=A", evicted.get(0));
+		assertEquals(2, cache.values().size());
+		assertTrue(cache.keySet().contains("/c"));
+	}
+
+	@Test
+	// evicted()在释放淘汰锁之后调用:回调期间其它线程的放入仍然会淘汰
+	public void evictedOutsideLock() throws InterruptedException
+	{
+		final List<String> evicting = new ArrayList<String>();
+		final List<String> evicted = new ArrayList<String>();
+
+		ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>("test", 2)
+		{
+			@Override
+			protected void evicting(String key, String value)
+			{
+				evicting.add(key);
+			}
+
+			@Override
+			protected void evicted(String key, String value)
+			{
+				synchronized (evicted)
+				{
+					evicted.add(key);
+
+					if (evicted.size() > 1)
+						return;
+				}
+
+				final ConcurrentLruCache<String, String> cache = this;
+
+				Thread other = new Thread()
+				{
+					@Override
+					public void run()
+					{
+						cache.put("/d", "D");
+					}
+				};
+
+				other.start();
+
+				try
+				{
+					other.join();
+				}
+				catch (InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+
+				assertTrue(size() <= 2);
+			}
+		};
+
+		cache.put("/a", "A");
+		cache.put("/b", "B");
+		cache.put("/c", "C");
+
+		assertEquals(2, evicted.size());
+		assertEquals(evicted, evicting);
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void conditionalRemove()
+	{
+		ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>("test", 4);
+
+		cache.put("/a", "A");
+
+		assertFalse(cache.remove("/a", "B"));
+		assertEquals(1, cache.size());
+
+		assertTrue(cache.remove("/a", "A"));
+		assertEquals(0, cache.size());
+		assertFalse(cache.remove("/a", "A"));
+	}
+
+	@Test
+	// 32条线程并发读
+	public void speedTest() throws InterruptedException
+	{
+		final ConcurrentLruCache<String, String> cache = new ConcurrentLruCache<String, String>("test", 1024);
+
+		for (int i = 0; i < 512; i++)
+			cache.put("/page/" + i, "" + i);
+
+		int threads = 32;
+
+		final CountDownLatch latch = new CountDownLatch(threads);
+
+		long start = System.currentTimeMillis();
+
+		for (int t = 0; t < threads; t++)
+		{
+			new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 1000000; i++)
+						cache.get("/page/" + (i & 511));
+
+					latch.countDown();
+				}
+			}.start();
+		}
+
+		latch.await();
+
+		System.out.println(cache + " in " + (System.currentTimeMillis() - start) + " ms");
+
+		assertEquals(threads * 1000000L, cache.getHitCount());
+	}
+}
@@ -0,0 +1,167 @@
+package org.ireland.jnetty.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ExpirationWheelTest
+{
+	private static class Item
+	{
+		long _expirationTime;
+
+		boolean _removed;
+
+		boolean _expired;
+
+		Item(long expirationTime)
+		{
+			_expirationTime = expirationTime;
+		}
+	}
+
+	private static class ItemWheel extends ExpirationWheel<Item>
+	{
+		final List<Item> _expired = new ArrayList<Item>();
+
+		ItemWheel(int ticksPerWheel)
+		{
+			super(1000, ticksPerWheel, 0);
+		}
+
+		@Override
+		protected long getExpirationTime(Item item)
+		{
+			return item._removed ? -1 : item._expirationTime;
+		}
+
+		@Override
+		protected void expire(Item item)
+		{
+			item._expired = true;
+			_expired.add(item);
+		}
+	}
+
+	@Test
+	public void expireAfterDeadline()
+	{
+		ItemWheel wheel = new ItemWheel(16);
+
+		Item item = new Item(5500);
+
+		wheel.schedule(item, item._expirationTime);
+
+		assertEquals(0, wheel.advance(5000));
+		assertFalse(item._expired);
+
+		// 5500所在的tick在6000时才处理
+		assertEquals(0, wheel.advance(5999));
+		assertEquals(1, wheel.advance(6000));
+		assertTrue(item._expired);
+
+		// 到期后不再被跟踪
+		assertEquals(0, wheel.advance(100000));
+		assertEquals(1, wheel._expired.size());
+	}
+
+	@Test
+	public void extendedDeadline()
+	{
+		ItemWheel wheel = new ItemWheel(16);
+
+		Item item = new Item(3000);
+
+		wheel.schedule(item, item._expirationTime);
+
+		// 被访问:到期时间推迟,时间轮不需要知道
+		item._expirationTime = 40000;
+
+		assertEquals(0, wheel.advance(3000));
+		assertEquals(0, wheel.advance(39000));
+		assertFalse(item._expired);
+
+		assertEquals(1, wheel.advance(40000));
+		assertTrue(item._expired);
+	}
+
+	@Test
+	public void severalRounds()
+	{
+		ItemWheel wheel = new ItemWheel(8);
+
+		Item item = new Item(20000);
+
+		wheel.schedule(item, item._expirationTime);
+
+		for (long now = 1000; now < 20000; now += 1000)
+		{
+			assertEquals(0, wheel.advance(now));
+		}
+
+		assertEquals(1, wheel.advance(20000));
+	}
+
+	@Test
+	public void removedItem()
+	{
+		ItemWheel wheel = new ItemWheel(16);
+
+		Item item = new Item(2000);
+
+		wheel.schedule(item, item._expirationTime);
+
+		item._removed = true;
+
+		assertEquals(0, wheel.advance(10000));
+		assertFalse(item._expired);
+	}
+
+	@Test
+	public void jumpMoreThanOneRound()
+	{
+		ItemWheel wheel = new ItemWheel(8);
+
+		List<Item> items = new ArrayList<Item>();
+
+		for (int i = 0; i < 100; i++)
+		{
+			Item item = new Item(i * 500);
+
+			items.add(item);
+			wheel.schedule(item, item._expirationTime);
+		}
+
+		Item late = new Item(1000000);
+		wheel.schedule(late, late._expirationTime);
+
+		assertEquals(100, wheel.advance(60000));
+
+		for (Item item : items)
+		{
+			assertTrue(item._expired);
+		}
+
+		assertFalse(late._expired);
+	}
+
+	@Test
+	public void pastDeadline()
+	{
+		ItemWheel wheel = new ItemWheel(16);
+
+		wheel.advance(10000);
+
+		// 放入时已过期:在下一个tick到期
+		Item item = new Item(5000);
+		wheel.schedule(item, item._expirationTime);
+
+		assertEquals(0, wheel.advance(10500));
+		assertEquals(1, wheel.advance(11000));
+	}
+}
@@ -0,0 +1,119 @@
+package org.ireland.jnetty.util.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+public class UrlEncodedParametersTest
+{
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static UrlEncodedParameters query(String uri)
+	{
+		UrlEncodedParameters parameters = new UrlEncodedParameters();
+
+		parameters.addQueryString(uri, uri.indexOf('?') + 1, UTF_8);
+
+		return parameters;
+	}
+
+	@Test
+	public void getParameter()
+	{
+		UrlEncodedParameters parameters = query("/a/b?x=1&y=2&x=3;empty=&flag&=skipped&&z=%E4%B8%AD+%2B%zz");
+
+		assertEquals("1", parameters.getParameter("x"));
+		assertEquals("2", parameters.getParameter("y"));
+		assertEquals("", parameters.getParameter("empty"));
+		assertEquals("", parameters.getParameter("flag"));
+		assertEquals("中 +%zz", parameters.getParameter("z"));
+		assertNull(parameters.getParameter("skipped"));
+		assertNull(parameters.getParameter(""));
+		assertNull(parameters.getParameter("X"));
+
+		assertArrayEquals(new String[] { "1", "3" }, parameters.getParameterValues("x"));
+		assertNull(parameters.getParameterValues("none"));
+
+		assertEquals(6, parameters.size());
+	}
+
+	@Test
+	public void encodedNames()
+	{
+		UrlEncodedParameters parameters = query("/?a%20b=1&%E5%90%8D=2&c+d=3");
+
+		assertEquals("1", parameters.getParameter("a b"));
+		assertEquals("2", parameters.getParameter("名"));
+		assertEquals("3", parameters.getParameter("c d"));
+	}
+
+	@Test
+	public void queryAndContent()
+	{
+		UrlEncodedParameters parameters = query("/form?a=1&b=2");
+
+		ByteBuf content = Unpooled.wrappedBuffer("xxa=3&c=%E4%B8%AD".getBytes(UTF_8));
+
+		parameters.addContent(content, 2, content.writerIndex() - 2, UTF_8);
+
+		assertArrayEquals(new String[] { "1", "3" }, parameters.getParameterValues("a"));
+		assertEquals("中", parameters.getParameter("c"));
+
+		Map<String, String[]> map = parameters.getParameterMap();
+
+		assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(map.keySet().toArray()));
+		assertArrayEquals(new String[] { "1", "3" }, map.get("a"));
+		assertArrayEquals(new String[] { "2" }, map.get("b"));
+
+		assertEquals(map, parameters.getParameterMap());
+	}
+
+	@Test
+	public void directContent()
+	{
+		byte[] bytes = "a=1&name=%E4%B8%AD%E6%96%87&plain=abc&a=2".getBytes(UTF_8);
+
+		ByteBuf content = Unpooled.directBuffer(bytes.length);
+		content.writeBytes(bytes);
+
+		UrlEncodedParameters parameters = new UrlEncodedParameters();
+
+		parameters.addContent(content, 0, content.writerIndex(), UTF_8);
+
+		assertEquals("中文", parameters.getParameter("name"));
+		assertEquals("abc", parameters.getParameter("plain"));
+		assertArrayEquals(new String[] { "1", "2" }, parameters.getParameterValues("a"));
+
+		// 不改变readerIndex
+		assertEquals(0, content.readerIndex());
+
+		content.release();
+	}
+
+	@Test
+	public void noParameters()
+	{
+		UrlEncodedParameters parameters = query("/path?");
+
+		assertEquals(0, parameters.size());
+		assertNull(parameters.getParameter("a"));
+		assertFalse(parameters.getParameterNames().hasMoreElements());
+		assertEquals(0, parameters.getParameterMap().size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void mapIsUnmodifiable()
+	{
+		query("/?a=1").getParameterMap().put("b", new String[] { "2" });
+	}
+}
@@ -0,0 +1,92 @@
+package org.ireland.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.ireland.jnetty.dispatch.HttpInvocation;
+import org.ireland.jnetty.util.http.URIDecoder;
+import org.junit.Test;
+
+public class URIDecoderBench
+{
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final String CLEAN_SHORT = "/index.jsp";
+
+	private static final String CLEAN_LONG = "/shop/catalog/category/electronics/item/123456/detail.do";
+
+	private static final String ESCAPED = "/shop/%E4%B8%AD%E6%96%87/item%20list/detail.do";
+
+	private static final String DOTTED = "/shop/./catalog//category/../item/detail.do";
+
+	private final URIDecoder decoder = new URIDecoder();
+
+	@Test
+	public void cleanUriIsNotCopied()
+	{
+		assertSame(CLEAN_SHORT, decoder.normalizeUri(CLEAN_SHORT));
+		assertSame(CLEAN_LONG, decoder.normalizeUri(CLEAN_LONG));
+
+		assertEquals("/shop/catalog/item/detail.do", decoder.normalizeUri(DOTTED));
+		assertEquals("/a/b", decoder.normalizeUri("\\a\\b"));
+		assertEquals("/a", decoder.normalizeUri("/a."));
+	}
+
+	@Test
+	public void splitQueryAndUnescape() throws IOException
+	{
+		HttpInvocation invocation = new HttpInvocation(null, null);
+
+		byte[] raw = (CLEAN_LONG + "?id=1&name=%20").getBytes(ISO_8859_1);
+
+		decoder.splitQueryAndUnescape(invocation, raw, raw.length);
+
+		assertEquals(CLEAN_LONG, invocation.getRawContextURI());
+		assertEquals(CLEAN_LONG, invocation.getContextURI());
+		assertEquals("id=1&name=%20", invocation.getQueryString());
+
+		raw = ESCAPED.getBytes(ISO_8859_1);
+
+		decoder.splitQueryAndUnescape(invocation, raw, raw.length);
+
+		assertEquals(ESCAPED, invocation.getRawContextURI());
+		assertEquals("/shop/中文/item list/detail.do", invocation.getContextURI());
+	}
+
+	@Test
+	// clean URI: 不复制,escaped/dotted URI: 经过ByteToChar/CharBuffer
+	public void normalizeBench() throws IOException
+	{
+		String[] uris = { CLEAN_SHORT, CLEAN_LONG, ESCAPED, DOTTED };
+
+		for (String uri : uris)
+		{
+			byte[] raw = uri.getBytes(ISO_8859_1);
+
+			HttpInvocation invocation = new HttpInvocation(null, null);
+
+			// warm up
+			for (int i = 0; i < 200000; i++)
+				decoder.splitQueryAndUnescape(invocation, raw, raw.length);
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < 1000000; i++)
+				decoder.splitQueryAndUnescape(invocation, raw, raw.length);
+
+			long unescape = System.nanoTime() - start;
+
+			start = System.nanoTime();
+
+			for (int i = 0; i < 1000000; i++)
+				decoder.normalizeUri(uri);
+
+			long normalize = System.nanoTime() - start;
+
+			System.out.println(uri + ": splitQueryAndUnescape " + unescape / 1000000 + " ns/op, normalizeUri " + normalize / 1000000 + " ns/op");
+		}
+	}
+}